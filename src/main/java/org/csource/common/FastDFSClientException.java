@@ -15,10 +15,32 @@ package org.csource.common;
  * @version Version 1.0
  */
 public class FastDFSClientException extends Exception {
+    private byte errno;
+
     public FastDFSClientException() {
     }
 
     public FastDFSClientException(String message) {
         super(message);
     }
+
+    /**
+     * constructor with the error code returned by the server
+     *
+     * @param message the detail message
+     * @param errno   the error code
+     */
+    public FastDFSClientException(String message, byte errno) {
+        super(message);
+        this.errno = errno;
+    }
+
+    /**
+     * get the error code returned by the server
+     *
+     * @return the error code, 0 for none
+     */
+    public byte getErrorCode() {
+        return this.errno;
+    }
 }
@@ -0,0 +1,441 @@
+/**
+ * Copyright (C) 2008 Happy Fish / YuQing
+ * <p>
+ * FastDFS Java Client may be copied only under the terms of the GNU Lesser
+ * General Public License (LGPL).
+ * Please visit the FastDFS Home Page http://www.csource.org/ for more detail.
+ */
+
+package org.csource.fastdfs;
+
+import org.csource.common.NameValuePair;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Asynchronous storage client for 1 field file id: the operations of StorageClient1
+ * return futures instead of blocking. The requests run on its own NioTransport,
+ * the futures are completed in a bounded executor so the dependent actions do not
+ * run in the event loop threads. When the in-flight request count reaches the max,
+ * the new request fails with RejectedExecutionException at once.
+ * The server error code is carried by org.csource.common.FastDFSClientException
+ *
+ * @author Happy Fish / YuQing
+ * @version Version 1.26
+ */
+public class AsyncStorageClient {
+    public static final int DEFAULT_IO_THREAD_COUNT = 2;
+    public static final int DEFAULT_CALLBACK_THREAD_COUNT = 4;
+    public static final int DEFAULT_MAX_IN_FLIGHT_COUNT = 10000;
+
+    private final NioTransport transport;
+    private final NioStorageClient client;
+    private final ThreadPoolExecutor executor;
+    private final int maxInFlightCount;
+    private final AtomicInteger inFlightCount = new AtomicInteger();
+
+    /**
+     * constructor with global tracker group and default settings
+     */
+    public AsyncStorageClient() throws IOException {
+        this(ClientGlobal.G_TRACKER_GROUP, DEFAULT_IO_THREAD_COUNT, DEFAULT_CALLBACK_THREAD_COUNT,
+                DEFAULT_MAX_IN_FLIGHT_COUNT);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param trackerGroup        the tracker group object
+     * @param ioThreadCount       the event loop thread count of the transport
+     * @param callbackThreadCount the thread count to complete the futures
+     * @param maxInFlightCount    max count of the requests not finished
+     */
+    public AsyncStorageClient(TrackerGroup trackerGroup, int ioThreadCount, int callbackThreadCount,
+                              int maxInFlightCount) throws IOException {
+        this.transport = new NioTransport(ioThreadCount);
+        this.client = new NioStorageClient(this.transport, trackerGroup);
+        this.maxInFlightCount = maxInFlightCount;
+
+        final AtomicInteger threadIndex = new AtomicInteger();
+        //the queue never overflows: a request is counted in flight until its completion is
+        //taken from the queue, and a request queues one completion at most
+        this.executor = new ThreadPoolExecutor(callbackThreadCount, callbackThreadCount,
+                0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(maxInFlightCount),
+                new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "fastdfs-async-" + threadIndex.getAndIncrement());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+    }
+
+    /**
+     * upload file to storage server (by file buff)
+     *
+     * @param fileBuff    file content/buff
+     * @param fileExtName file ext name, do not include dot(.)
+     * @param metaList    meta info array
+     * @return future of the file id
+     */
+    public CompletableFuture<String> upload_file1(byte[] fileBuff, String fileExtName, NameValuePair[] metaList) {
+        return upload_file1(null, fileBuff, fileExtName, metaList);
+    }
+
+    /**
+     * upload file to storage server (by file buff)
+     *
+     * @param groupName   the group name to upload file to, can be empty
+     * @param fileBuff    file content/buff
+     * @param fileExtName file ext name, do not include dot(.)
+     * @param metaList    meta info array
+     * @return future of the file id
+     */
+    public CompletableFuture<String> upload_file1(String groupName, byte[] fileBuff, String fileExtName,
+                                                  NameValuePair[] metaList) {
+        CompletableFuture<String> future = new CompletableFuture<String>();
+        if (acquire(future)) {
+            this.client.upload_file1(groupName, fileBuff, 0, fileBuff.length, fileExtName, metaList, complete(future));
+        }
+        return future;
+    }
+
+    /**
+     * upload file to storage server (by byte buffer)
+     *
+     * @param groupName   the group name to upload file to, can be empty
+     * @param fileBuff    file content, heap or direct buffer, from position to limit,
+     *                    must not be changed until the future completes
+     * @param fileExtName file ext name, do not include dot(.)
+     * @param metaList    meta info array
+     * @return future of the file id
+     */
+    public CompletableFuture<String> upload_file1(String groupName, ByteBuffer fileBuff, String fileExtName,
+                                                  NameValuePair[] metaList) {
+        CompletableFuture<String> future = new CompletableFuture<String>();
+        if (acquire(future)) {
+            this.client.upload_file1(groupName, fileBuff, fileExtName, metaList, complete(future));
+        }
+        return future;
+    }
+
+    /**
+     * upload file to storage server (by file name)
+     *
+     * @param groupName     the group name to upload file to, can be empty
+     * @param localFilename local filename to upload
+     * @param fileExtName   file ext name, do not include dot(.), null to extract ext name from the local filename
+     * @param metaList      meta info array
+     * @return future of the file id
+     */
+    public CompletableFuture<String> upload_file1(String groupName, String localFilename, String fileExtName,
+                                                  NameValuePair[] metaList) {
+        CompletableFuture<String> future = new CompletableFuture<String>();
+        if (acquire(future)) {
+            this.client.upload_file1(groupName, localFilename, fileExtName, metaList, complete(future));
+        }
+        return future;
+    }
+
+    /**
+     * upload slave file to storage server (by file buff)
+     *
+     * @param masterFileId the master file id to generate the slave file
+     * @param prefixName   the prefix name to generate the slave file
+     * @param fileBuff     file content/buff
+     * @param fileExtName  file ext name, do not include dot(.)
+     * @param metaList     meta info array
+     * @return future of the slave file id
+     */
+    public CompletableFuture<String> upload_file1(String masterFileId, String prefixName, byte[] fileBuff,
+                                                  String fileExtName, NameValuePair[] metaList) {
+        CompletableFuture<String> future = new CompletableFuture<String>();
+        if (acquire(future)) {
+            this.client.upload_file1(masterFileId, prefixName, fileBuff, 0, fileBuff.length, fileExtName,
+                    metaList, complete(future));
+        }
+        return future;
+    }
+
+    /**
+     * upload appender file to storage server (by file buff)
+     *
+     * @param groupName   the group name to upload file to, can be empty
+     * @param fileBuff    file content/buff
+     * @param fileExtName file ext name, do not include dot(.)
+     * @param metaList    meta info array
+     * @return future of the appender file id
+     */
+    public CompletableFuture<String> upload_appender_file1(String groupName, byte[] fileBuff, String fileExtName,
+                                                           NameValuePair[] metaList) {
+        CompletableFuture<String> future = new CompletableFuture<String>();
+        if (acquire(future)) {
+            this.client.upload_appender_file1(groupName, fileBuff, 0, fileBuff.length, fileExtName, metaList,
+                    complete(future));
+        }
+        return future;
+    }
+
+    /**
+     * append file to storage server (by file buff)
+     *
+     * @param appenderFileId the appender file id
+     * @param fileBuff       file content/buff
+     * @return future completed when done
+     */
+    public CompletableFuture<Void> append_file1(String appenderFileId, byte[] fileBuff) {
+        CompletableFuture<Void> future = new CompletableFuture<Void>();
+        if (acquire(future)) {
+            this.client.append_file1(appenderFileId, fileBuff, 0, fileBuff.length, complete(future));
+        }
+        return future;
+    }
+
+    /**
+     * modify appender file to storage server (by file buff)
+     *
+     * @param appenderFileId the appender file id
+     * @param fileOffset     the offset of appender file
+     * @param fileBuff       file content/buff
+     * @return future completed when done
+     */
+    public CompletableFuture<Void> modify_file1(String appenderFileId, long fileOffset, byte[] fileBuff) {
+        CompletableFuture<Void> future = new CompletableFuture<Void>();
+        if (acquire(future)) {
+            this.client.modify_file1(appenderFileId, fileOffset, fileBuff, 0, fileBuff.length, complete(future));
+        }
+        return future;
+    }
+
+    /**
+     * truncate appender file to size 0 from storage server
+     *
+     * @param appenderFileId the appender file id
+     * @return future completed when done
+     */
+    public CompletableFuture<Void> truncate_file1(String appenderFileId) {
+        return truncate_file1(appenderFileId, 0);
+    }
+
+    /**
+     * truncate appender file from storage server
+     *
+     * @param appenderFileId    the appender file id
+     * @param truncatedFileSize truncated file size
+     * @return future completed when done
+     */
+    public CompletableFuture<Void> truncate_file1(String appenderFileId, long truncatedFileSize) {
+        CompletableFuture<Void> future = new CompletableFuture<Void>();
+        if (acquire(future)) {
+            this.client.truncate_file1(appenderFileId, truncatedFileSize, complete(future));
+        }
+        return future;
+    }
+
+    /**
+     * delete file from storage server
+     *
+     * @param fileId the file id
+     * @return future completed when done
+     */
+    public CompletableFuture<Void> delete_file1(String fileId) {
+        CompletableFuture<Void> future = new CompletableFuture<Void>();
+        if (acquire(future)) {
+            this.client.delete_file1(fileId, complete(future));
+        }
+        return future;
+    }
+
+    /**
+     * download file from storage server
+     *
+     * @param fileId the file id
+     * @return future of the file content
+     */
+    public CompletableFuture<byte[]> download_file1(String fileId) {
+        return download_file1(fileId, 0, 0);
+    }
+
+    /**
+     * download file from storage server
+     *
+     * @param fileId        the file id
+     * @param fileOffset    the start offset of the file
+     * @param downloadBytes download bytes, 0 for remain bytes from offset
+     * @return future of the file content
+     */
+    public CompletableFuture<byte[]> download_file1(String fileId, long fileOffset, long downloadBytes) {
+        CompletableFuture<byte[]> future = new CompletableFuture<byte[]>();
+        if (acquire(future)) {
+            this.client.download_file1(fileId, fileOffset, downloadBytes, complete(future));
+        }
+        return future;
+    }
+
+    /**
+     * download file from storage server to local file
+     *
+     * @param fileId        the file id
+     * @param localFilename filename on local
+     * @return future completed when done
+     */
+    public CompletableFuture<Void> download_file1(String fileId, String localFilename) {
+        CompletableFuture<Void> future = new CompletableFuture<Void>();
+        if (acquire(future)) {
+            this.client.download_file1(fileId, 0, 0, localFilename, complete(future));
+        }
+        return future;
+    }
+
+    /**
+     * get all metadata items from storage server
+     *
+     * @param fileId the file id
+     * @return future of the meta info array
+     */
+    public CompletableFuture<NameValuePair[]> get_metadata1(String fileId) {
+        CompletableFuture<NameValuePair[]> future = new CompletableFuture<NameValuePair[]>();
+        if (acquire(future)) {
+            this.client.get_metadata1(fileId, complete(future));
+        }
+        return future;
+    }
+
+    /**
+     * set metadata items to storage server
+     *
+     * @param fileId   the file id
+     * @param metaList meta item array
+     * @param op_flag  flag, ProtoCommon.STORAGE_SET_METADATA_FLAG_OVERWRITE or
+     *                 ProtoCommon.STORAGE_SET_METADATA_FLAG_MERGE
+     * @return future completed when done
+     */
+    public CompletableFuture<Void> set_metadata1(String fileId, NameValuePair[] metaList, byte op_flag) {
+        CompletableFuture<Void> future = new CompletableFuture<Void>();
+        if (acquire(future)) {
+            this.client.set_metadata1(fileId, metaList, op_flag, complete(future));
+        }
+        return future;
+    }
+
+    /**
+     * get file info from storage server
+     *
+     * @param fileId the file id
+     * @return future of the file info
+     */
+    public CompletableFuture<FileInfo> query_file_info1(String fileId) {
+        CompletableFuture<FileInfo> future = new CompletableFuture<FileInfo>();
+        if (acquire(future)) {
+            this.client.query_file_info1(fileId, complete(future));
+        }
+        return future;
+    }
+
+    /**
+     * close the transport and the executor, the unfinished futures fail
+     */
+    public void close() {
+        this.transport.close();
+        this.executor.shutdown();
+    }
+
+    /**
+     * @return the count of the requests not finished
+     */
+    public int getInFlightCount() {
+        return this.inFlightCount.get();
+    }
+
+    /**
+     * @return the count of the requests waiting for a connection
+     */
+    public int getPendingCount() {
+        return this.transport.getPendingCount();
+    }
+
+    /**
+     * @return the count of the completions waiting in the executor queue
+     */
+    public int getQueueDepth() {
+        return this.executor.getQueue().size();
+    }
+
+    /**
+     * @return the count of the executor threads completing the futures
+     */
+    public int getActiveCallbackCount() {
+        return this.executor.getActiveCount();
+    }
+
+    public int getMaxInFlightCount() {
+        return maxInFlightCount;
+    }
+
+    public NioTransport getTransport() {
+        return transport;
+    }
+
+    /**
+     * count the request in, fail the future when too many requests in flight
+     *
+     * @return true for accepted
+     */
+    private boolean acquire(CompletableFuture<?> future) {
+        if (this.inFlightCount.incrementAndGet() > this.maxInFlightCount) {
+            this.inFlightCount.decrementAndGet();
+            future.completeExceptionally(new RejectedExecutionException("in-flight request count reaches "
+                    + this.maxInFlightCount));
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * complete the future in the executor, the request is counted in flight until the
+     * completion is taken from the queue
+     */
+    private <T> NioCallback<T> complete(final CompletableFuture<T> future) {
+        return new NioCallback<T>() {
+            public void completed(final T result) {
+                execute(new Runnable() {
+                    public void run() {
+                        //out of the queue, free the slot for the dependent actions run by complete
+                        inFlightCount.decrementAndGet();
+                        future.complete(result);
+                    }
+                });
+            }
+
+            public void failed(final Throwable ex) {
+                execute(new Runnable() {
+                    public void run() {
+                        //out of the queue, free the slot for the dependent actions run by complete
+                        inFlightCount.decrementAndGet();
+                        future.completeExceptionally(ex);
+                    }
+                });
+            }
+        };
+    }
+
+    private void execute(Runnable task) {
+        try {
+            this.executor.execute(task);
+        } catch (RejectedExecutionException ex) {
+            if (!this.executor.isShutdown()) {
+                throw ex;
+            }
+            //closed, complete in the current thread
+            task.run();
+        }
+    }
+}
@@ -0,0 +1,66 @@
+/**
+ * Copyright (C) 2008 Happy Fish / YuQing
+ * <p>
+ * FastDFS Java Client may be copied only under the terms of the GNU Lesser
+ * General Public License (LGPL).
+ * Please visit the FastDFS Home Page http://www.csource.org/ for more detail.
+ */
+
+package org.csource.fastdfs;
+
+/**
+ * Result of an item of the batch operations: the value when success, the error code
+ * answered by the storage server, or the exception when the request or the response is lost
+ *
+ * @author Happy Fish / YuQing
+ * @version Version 1.26
+ */
+public class BatchResult<T> {
+    private final T value;
+    private final byte errno;
+    private final Exception exception;
+
+    BatchResult(T value, byte errno, Exception exception) {
+        this.value = value;
+        this.errno = errno;
+        this.exception = exception;
+    }
+
+    /**
+     * @return true if the item success
+     */
+    public boolean isSuccess() {
+        return this.errno == 0 && this.exception == null;
+    }
+
+    /**
+     * @return the value, null if fail
+     */
+    public T getValue() {
+        return this.value;
+    }
+
+    /**
+     * @return the error code answered by the storage server, 0 for none
+     */
+    public byte getErrorCode() {
+        return this.errno;
+    }
+
+    /**
+     * @return the exception, null for none
+     */
+    public Exception getException() {
+        return this.exception;
+    }
+
+    public String toString() {
+        if (this.exception != null) {
+            return "exception = " + this.exception;
+        }
+        if (this.errno != 0) {
+            return "errno = " + this.errno;
+        }
+        return "value = " + this.value;
+    }
+}
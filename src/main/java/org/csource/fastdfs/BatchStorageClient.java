@@ -0,0 +1,428 @@
+/**
+ * Copyright (C) 2008 Happy Fish / YuQing
+ * <p>
+ * FastDFS Java Client may be copied only under the terms of the GNU Lesser
+ * General Public License (LGPL).
+ * Please visit the FastDFS Home Page http://www.csource.org/ for more detail.
+ */
+
+package org.csource.fastdfs;
+
+import org.csource.common.FastDFSClientException;
+import org.csource.common.NameValuePair;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Batch operations of many small files: the storage server is resolved once per batch
+ * or once per group of files with the same source storage server, the requests are
+ * pipelined on a few connections to each storage server and the responses are read in
+ * order, so the round trip is paid once per window instead of once per file.
+ * Each item gets its own result, the batch goes on when an item fails
+ *
+ * @author Happy Fish / YuQing
+ * @version Version 1.26
+ */
+public class BatchStorageClient {
+    public static final int DEFAULT_CONNECTION_COUNT = 2;
+    public static final int DEFAULT_WINDOW_SIZE = 32;
+
+    /**
+     * create the operation of a file
+     */
+    private interface OperationFactory<T> {
+        StoragePipeline.Operation<T> create(String fileId, String groupName, String filename);
+    }
+
+    private final TrackerGroup trackerGroup;
+    private final ThreadPoolExecutor executor;
+    private final int connectionCount;
+    private final int windowSize;
+
+    /**
+     * constructor with global tracker group and default settings
+     */
+    public BatchStorageClient() {
+        this(ClientGlobal.G_TRACKER_GROUP, DEFAULT_CONNECTION_COUNT, DEFAULT_WINDOW_SIZE);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param trackerGroup    the tracker group object
+     * @param connectionCount the max count of the connections to a storage server
+     * @param windowSize      the max count of the requests waiting for the responses on a connection
+     */
+    public BatchStorageClient(TrackerGroup trackerGroup, int connectionCount, int windowSize) {
+        if (connectionCount <= 0) {
+            throw new IllegalArgumentException("connectionCount: " + connectionCount + " <= 0");
+        }
+        if (windowSize <= 0) {
+            throw new IllegalArgumentException("windowSize: " + windowSize + " <= 0");
+        }
+
+        this.trackerGroup = trackerGroup;
+        this.connectionCount = connectionCount;
+        this.windowSize = windowSize;
+
+        final AtomicInteger threadIndex = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(connectionCount, connectionCount, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "fastdfs-batch-" + threadIndex.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * upload the files to one storage server by pipelined requests
+     *
+     * @param groupName   the group name to upload file to, can be empty
+     * @param fileBuffs   the file contents
+     * @param fileExtName file ext name, do not include dot(.)
+     * @return the results in the order of the file contents, the value is the file id
+     */
+    public List<BatchResult<String>> batch_upload_file1(String groupName, List<byte[]> fileBuffs,
+                                                        final String fileExtName) throws IOException, FastDFSClientException {
+        TrackerClient tracker = new TrackerClient(this.trackerGroup);
+        StorageServer storageServer = tracker.getStorageServer(null, groupName);
+        if (storageServer == null) {
+            throw new FastDFSClientException("getStorageServer fail, errno code: " + tracker.getErrorCode(),
+                    tracker.getErrorCode());
+        }
+        InetSocketAddress address = storageServer.getInetSocketAddress();
+        final int storePathIndex = storageServer.getStorePathIndex();
+        storageServer.close();
+
+        List<StoragePipeline.Operation<String>> operations = new ArrayList<StoragePipeline.Operation<String>>(
+                fileBuffs.size());
+        for (final byte[] fileBuff : fileBuffs) {
+            operations.add(new StoragePipeline.Operation<String>() {
+                void send(ProtoCodec codec, OutputStream out) throws IOException {
+                    codec.encodeUpload(ProtoCommon.STORAGE_PROTO_CMD_UPLOAD_FILE, storePathIndex, null, null,
+                            fileExtName, fileBuff.length);
+                    codec.writeTo(out);
+                    out.write(fileBuff);
+                }
+
+                String decode(ProtoCodec codec) throws FastDFSClientException {
+                    String[] results = codec.decodeUploadResult();
+                    return results[0] + StorageClient1.SPLIT_GROUP_NAME_AND_FILENAME_SEPERATOR + results[1];
+                }
+            });
+        }
+
+        this.execute(Collections.singletonMap(address, operations));
+        return getResults(operations);
+    }
+
+    /**
+     * delete the files, the files are grouped by the storage server to update them
+     * and the requests are pipelined on the connections to each storage server.
+     * The files are dropped from the download caches, the dedup index and the route cache
+     * as delete_file does
+     *
+     * @param fileIds the file ids(including group name and filename)
+     * @return the results keyed by the file id in the order of the file ids
+     */
+    public Map<String, BatchResult<Void>> batch_delete_file1(Collection<String> fileIds) throws IOException, FastDFSClientException {
+        final RouteCache routeCache = this.trackerGroup != null ? this.trackerGroup.getRouteCache() : null;
+        return this.executeByFile(fileIds, new OperationFactory<Void>() {
+            public StoragePipeline.Operation<Void> create(final String fileId, final String groupName,
+                                                          final String filename) {
+                return new StoragePipeline.Operation<Void>() {
+                    void send(ProtoCodec codec, OutputStream out) throws IOException {
+                        StorageClient.removeCachedFile(fileId);
+                        codec.encodeFileCommand(ProtoCommon.STORAGE_PROTO_CMD_DELETE_FILE, groupName, filename);
+                        codec.writeTo(out);
+                    }
+
+                    Void decode(ProtoCodec codec) {
+                        if (routeCache != null) {
+                            routeCache.remove(groupName, filename);
+                        }
+                        return null;
+                    }
+
+                    long getExpectBodyLength() {
+                        return 0;
+                    }
+                };
+            }
+        });
+    }
+
+    /**
+     * query the file info from the storage servers, the files are grouped by the storage
+     * server to update them and the requests are pipelined on the connections to each storage server
+     *
+     * @param fileIds the file ids(including group name and filename)
+     * @return the results keyed by the file id in the order of the file ids
+     */
+    public Map<String, BatchResult<FileInfo>> batch_query_file_info1(Collection<String> fileIds) throws IOException, FastDFSClientException {
+        return this.executeByFile(fileIds, new OperationFactory<FileInfo>() {
+            public StoragePipeline.Operation<FileInfo> create(String fileId, final String groupName, final String filename) {
+                return new StoragePipeline.Operation<FileInfo>() {
+                    void send(ProtoCodec codec, OutputStream out) throws IOException {
+                        codec.encodeFileCommand(ProtoCommon.STORAGE_PROTO_CMD_QUERY_FILE_INFO, groupName, filename);
+                        codec.writeTo(out);
+                    }
+
+                    FileInfo decode(ProtoCodec codec) {
+                        return codec.decodeFileInfo();
+                    }
+
+                    long getExpectBodyLength() {
+                        return ProtoCodec.getFileInfoBodyLength();
+                    }
+                };
+            }
+        });
+    }
+
+    /**
+     * get the metadata of the files, the files are grouped by the storage server to update them
+     * and the requests are pipelined on the connections to each storage server
+     *
+     * @param fileIds the file ids(including group name and filename)
+     * @return the results keyed by the file id in the order of the file ids, the value is the meta info array
+     */
+    public Map<String, BatchResult<NameValuePair[]>> batch_get_metadata1(Collection<String> fileIds) throws IOException, FastDFSClientException {
+        return this.executeByFile(fileIds, new OperationFactory<NameValuePair[]>() {
+            public StoragePipeline.Operation<NameValuePair[]> create(String fileId, final String groupName,
+                                                                    final String filename) {
+                return new StoragePipeline.Operation<NameValuePair[]>() {
+                    void send(ProtoCodec codec, OutputStream out) throws IOException {
+                        codec.encodeFileCommand(ProtoCommon.STORAGE_PROTO_CMD_GET_METADATA, groupName, filename);
+                        codec.writeTo(out);
+                    }
+
+                    NameValuePair[] decode(ProtoCodec codec) throws IOException {
+                        return ProtoCommon.split_metadata(codec.decodeString(ClientGlobal.G_CHARSET));
+                    }
+                };
+            }
+        });
+    }
+
+    /**
+     * set the metadata of the files, the files are grouped by the storage server to update them
+     * and the requests are pipelined on the connections to each storage server
+     *
+     * @param fileMetas the meta info array keyed by the file id(including group name and filename)
+     * @param op_flag   flag, can be one of following values: <br>
+     *                  <ul><li> ProtoCommon.STORAGE_SET_METADATA_FLAG_OVERWRITE: overwrite all old
+     *                  metadata items</li></ul>
+     *                  <ul><li> ProtoCommon.STORAGE_SET_METADATA_FLAG_MERGE: merge, insert when
+     *                  the metadata item not exist, otherwise update it</li></ul>
+     * @return the results keyed by the file id in the order of the map
+     */
+    public Map<String, BatchResult<Void>> batch_set_metadata1(final Map<String, NameValuePair[]> fileMetas,
+                                                              final byte op_flag) throws IOException, FastDFSClientException {
+        return this.executeByFile(fileMetas.keySet(), new OperationFactory<Void>() {
+            public StoragePipeline.Operation<Void> create(String fileId, final String groupName,
+                                                          final String filename) {
+                final NameValuePair[] metaList = fileMetas.get(fileId);
+                return new StoragePipeline.Operation<Void>() {
+                    void send(ProtoCodec codec, OutputStream out) throws IOException {
+                        codec.encodeSetMetadata(groupName, filename, metaList, op_flag);
+                        codec.writeTo(out);
+                    }
+
+                    Void decode(ProtoCodec codec) {
+                        return null;
+                    }
+
+                    long getExpectBodyLength() {
+                        return 0;
+                    }
+                };
+            }
+        });
+    }
+
+    /**
+     * shutdown the batch threads
+     */
+    public void close() {
+        this.executor.shutdownNow();
+    }
+
+    public int getConnectionCount() {
+        return connectionCount;
+    }
+
+    public int getWindowSize() {
+        return windowSize;
+    }
+
+    /**
+     * execute the operations of the files: the files are grouped by the group name and the
+     * source storage server decoded from the filename, the storage server to update is queried
+     * from the tracker server once for each group of files
+     *
+     * @param fileIds the file ids
+     * @param factory the factory of the operations
+     * @return the results keyed by the file id
+     */
+    private <T> Map<String, BatchResult<T>> executeByFile(Collection<String> fileIds,
+                                                          OperationFactory<T> factory) throws IOException, FastDFSClientException {
+        Map<String, BatchResult<T>> results = new LinkedHashMap<String, BatchResult<T>>();
+        Map<String, List<String>> routeFiles = new LinkedHashMap<String, List<String>>();
+        String[] parts = new String[2];
+        for (String fileId : fileIds) {
+            if (results.containsKey(fileId)) {
+                continue;
+            }
+            byte errno = StorageClient1.split_file_id(fileId, parts);
+            if (errno != 0) {
+                results.put(fileId, new BatchResult<T>(null, errno, null));
+                continue;
+            }
+
+            results.put(fileId, null);
+            String routeKey = getRouteKey(parts[0], parts[1]);
+            List<String> files = routeFiles.get(routeKey);
+            if (files == null) {
+                files = new ArrayList<String>();
+                routeFiles.put(routeKey, files);
+            }
+            files.add(fileId);
+        }
+
+        TrackerClient tracker = new TrackerClient(this.trackerGroup);
+        Map<String, StoragePipeline.Operation<T>> fileOperations = new HashMap<String, StoragePipeline.Operation<T>>();
+        Map<InetSocketAddress, List<StoragePipeline.Operation<T>>> storageOperations =
+                new LinkedHashMap<InetSocketAddress, List<StoragePipeline.Operation<T>>>();
+        for (List<String> files : routeFiles.values()) {
+            StorageClient1.split_file_id(files.get(0), parts);
+            ServerInfo[] servers;
+            try {
+                servers = tracker.getServerInfoList(null, ProtoCommon.TRACKER_PROTO_CMD_SERVICE_QUERY_UPDATE,
+                        parts[0], parts[1]);
+            } catch (IOException ex) {
+                for (String fileId : files) {
+                    results.put(fileId, new BatchResult<T>(null, (byte) 0, ex));
+                }
+                continue;
+            }
+            if (servers == null || servers.length == 0) {
+                FastDFSClientException ex = new FastDFSClientException("query storage server fail, errno code: "
+                        + tracker.getErrorCode(), tracker.getErrorCode());
+                for (String fileId : files) {
+                    results.put(fileId, new BatchResult<T>(null, tracker.getErrorCode(), ex));
+                }
+                continue;
+            }
+
+            InetSocketAddress address = new InetSocketAddress(servers[0].getIpAddr(), servers[0].getPort());
+            List<StoragePipeline.Operation<T>> operations = storageOperations.get(address);
+            if (operations == null) {
+                operations = new ArrayList<StoragePipeline.Operation<T>>();
+                storageOperations.put(address, operations);
+            }
+            for (String fileId : files) {
+                StorageClient1.split_file_id(fileId, parts);
+                StoragePipeline.Operation<T> operation = factory.create(fileId, parts[0], parts[1]);
+                operations.add(operation);
+                fileOperations.put(fileId, operation);
+            }
+        }
+
+        this.execute(storageOperations);
+        for (Map.Entry<String, StoragePipeline.Operation<T>> entry : fileOperations.entrySet()) {
+            results.put(entry.getKey(), entry.getValue().getResult());
+        }
+        return results;
+    }
+
+    /**
+     * execute the operations of the storage servers, the operations of a storage server are split
+     * to at most connectionCount connections, one window at least for each connection.
+     * At most connectionCount connections run at the same time
+     *
+     * @param storageOperations the operations of each storage server
+     */
+    private void execute(Map<InetSocketAddress, ? extends List<? extends StoragePipeline.Operation<?>>> storageOperations)
+            throws IOException, FastDFSClientException {
+        List<Runnable> tasks = new ArrayList<Runnable>();
+        for (Map.Entry<InetSocketAddress, ? extends List<? extends StoragePipeline.Operation<?>>> entry
+                : storageOperations.entrySet()) {
+            final InetSocketAddress address = entry.getKey();
+            List<? extends StoragePipeline.Operation<?>> operations = entry.getValue();
+            int count = operations.size();
+            int connections = Math.max(1, Math.min(this.connectionCount,
+                    (count + this.windowSize - 1) / this.windowSize));
+            int sliceSize = (count + connections - 1) / connections;
+            for (int start = 0; start < count; start += sliceSize) {
+                final List<? extends StoragePipeline.Operation<?>> slice = operations.subList(start,
+                        Math.min(start + sliceSize, count));
+                tasks.add(new Runnable() {
+                    public void run() {
+                        StoragePipeline.execute(address, slice, windowSize);
+                    }
+                });
+            }
+        }
+
+        if (tasks.size() == 1) {
+            tasks.get(0).run();
+            return;
+        }
+
+        List<Future<?>> futures = new ArrayList<Future<?>>(tasks.size());
+        boolean success = false;
+        try {
+            for (Runnable task : tasks) {
+                futures.add(this.executor.submit(task));
+            }
+            for (Future<?> future : futures) {
+                ParallelDownloader.getResult(future);
+            }
+            success = true;
+        } finally {
+            if (!success) {
+                ParallelDownloader.cancel(futures);
+            }
+        }
+    }
+
+    /**
+     * the files of the same group and the same source storage server are updated
+     * by the same storage server
+     */
+    private static String getRouteKey(String groupName, String filename) {
+        FileIdDecoder decoder = FileIdDecoder.get();
+        if (!decoder.decode(filename)) {
+            //unknown filename format, route alone
+            return groupName + StorageClient1.SPLIT_GROUP_NAME_AND_FILENAME_SEPERATOR + filename;
+        }
+        //the raw ip or storage server id, the ip string is empty for all the storage server ids
+        return groupName + StorageClient1.SPLIT_GROUP_NAME_AND_FILENAME_SEPERATOR + '@' + decoder.getSourceIpAddrInt();
+    }
+
+    private static <T> List<BatchResult<T>> getResults(List<StoragePipeline.Operation<T>> operations) {
+        List<BatchResult<T>> results = new ArrayList<BatchResult<T>>(operations.size());
+        for (StoragePipeline.Operation<T> operation : operations) {
+            results.add(operation.getResult());
+        }
+        return results;
+    }
+}
@@ -0,0 +1,247 @@
+/**
+ * Copyright (C) 2008 Happy Fish / YuQing
+ * <p>
+ * FastDFS Java Client may be copied only under the terms of the GNU Lesser
+ * General Public License (LGPL).
+ * Please visit the FastDFS Home Page http://www.csource.org/ for more detail.
+ */
+
+package org.csource.fastdfs;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of the I/O buffers used by the transfer loops, so the uploads and downloads
+ * do not allocate a new buffer for each call. The buffers are grouped by size class,
+ * each thread keeps one buffer per size class as the fast path, the others are kept
+ * in a bounded shared queue per size class. A buffer larger than the max size class
+ * is not pooled.<br>
+ * When leak detection is enabled, the chunk collected by GC without release is counted
+ * as leaked and reported
+ *
+ * @author Happy Fish / YuQing
+ * @version Version 1.26
+ */
+public class BufferPool {
+    public static final int[] SIZE_CLASSES = {4 * 1024, 16 * 1024, 64 * 1024, 256 * 1024};
+    public static final int DEFAULT_MAX_COUNT_PER_CLASS = 64;
+
+    /**
+     * the buffer leased from the pool, release it after use
+     */
+    public static class Chunk {
+        private final BufferPool pool;
+        private final int sizeClass;  //-1 for not pooled
+        private byte[] buff;
+        private LeakTracker tracker;
+
+        private Chunk(BufferPool pool, int sizeClass, byte[] buff) {
+            this.pool = pool;
+            this.sizeClass = sizeClass;
+            this.buff = buff;
+        }
+
+        /**
+         * @return the buffer, it may be larger than the requested size
+         */
+        public byte[] array() {
+            return this.buff;
+        }
+
+        /**
+         * give back the buffer to the pool, the chunk can not be used after released
+         */
+        public void release() {
+            byte[] b = this.buff;
+            if (b == null) {
+                return;
+            }
+            this.buff = null;
+            this.pool.recycle(this, b);
+        }
+    }
+
+    /**
+     * weak reference to the leased chunk, enqueued when the chunk is collected without release
+     */
+    private static class LeakTracker extends WeakReference<Chunk> {
+        private final int size;
+
+        private LeakTracker(Chunk chunk, ReferenceQueue<Chunk> queue) {
+            super(chunk, queue);
+            this.size = chunk.buff.length;
+        }
+    }
+
+    private final ArrayBlockingQueue<byte[]>[] queues;
+    private final ThreadLocal<byte[][]> threadCaches = new ThreadLocal<byte[][]>() {
+        protected byte[][] initialValue() {
+            return new byte[SIZE_CLASSES.length][];
+        }
+    };
+    private final boolean leakDetection;
+    private final ReferenceQueue<Chunk> leakQueue = new ReferenceQueue<Chunk>();
+    private final Set<LeakTracker> trackers = Collections.newSetFromMap(new ConcurrentHashMap<LeakTracker, Boolean>());
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong leakCount = new AtomicLong();
+
+    /**
+     * constructor with default settings
+     */
+    public BufferPool() {
+        this(DEFAULT_MAX_COUNT_PER_CLASS, false);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param maxCountPerClass max buffer count of the shared queue per size class,
+     *                         not including the buffers kept by the threads
+     * @param leakDetection    if detect the chunks not released
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public BufferPool(int maxCountPerClass, boolean leakDetection) {
+        if (maxCountPerClass <= 0) {
+            throw new IllegalArgumentException("maxCountPerClass: " + maxCountPerClass + " <= 0");
+        }
+
+        this.leakDetection = leakDetection;
+        this.queues = new ArrayBlockingQueue[SIZE_CLASSES.length];
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            this.queues[i] = new ArrayBlockingQueue<byte[]>(maxCountPerClass);
+        }
+    }
+
+    /**
+     * lease a buffer from the pool
+     *
+     * @param size the min size of the buffer
+     * @return the chunk, must be released after use
+     */
+    public Chunk acquire(int size) {
+        if (this.leakDetection) {
+            pollLeaks();
+        }
+
+        int sizeClass = getSizeClass(size);
+        byte[] buff = null;
+        if (sizeClass >= 0) {
+            byte[][] cache = this.threadCaches.get();
+            buff = cache[sizeClass];
+            if (buff != null) {
+                cache[sizeClass] = null;
+            } else {
+                buff = this.queues[sizeClass].poll();
+            }
+        }
+
+        if (buff != null) {
+            this.hitCount.incrementAndGet();
+        } else {
+            this.missCount.incrementAndGet();
+            buff = new byte[sizeClass >= 0 ? SIZE_CLASSES[sizeClass] : size];
+        }
+
+        Chunk chunk = new Chunk(this, sizeClass, buff);
+        if (this.leakDetection) {
+            chunk.tracker = new LeakTracker(chunk, this.leakQueue);
+            this.trackers.add(chunk.tracker);
+        }
+        return chunk;
+    }
+
+    private void recycle(Chunk chunk, byte[] buff) {
+        if (chunk.tracker != null) {
+            this.trackers.remove(chunk.tracker);
+            chunk.tracker.clear();
+            chunk.tracker = null;
+        }
+
+        if (chunk.sizeClass < 0) {
+            return;
+        }
+        byte[][] cache = this.threadCaches.get();
+        if (cache[chunk.sizeClass] == null) {
+            cache[chunk.sizeClass] = buff;
+        } else {
+            this.queues[chunk.sizeClass].offer(buff);  //dropped when the queue is full
+        }
+    }
+
+    private void pollLeaks() {
+        LeakTracker tracker;
+        while ((tracker = (LeakTracker) this.leakQueue.poll()) != null) {
+            if (this.trackers.remove(tracker)) {
+                this.leakCount.incrementAndGet();
+                System.err.println("buffer pool: a buffer of " + tracker.size
+                        + " bytes is not released before collected, leak count: " + this.leakCount.get());
+            }
+        }
+    }
+
+    /**
+     * @return the index of the size class, -1 for too large
+     */
+    private static int getSizeClass(int size) {
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            if (size <= SIZE_CLASSES[i]) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the count of acquire served by a pooled buffer
+     */
+    public long getHitCount() {
+        return this.hitCount.get();
+    }
+
+    /**
+     * @return the count of acquire served by a new buffer
+     */
+    public long getMissCount() {
+        return this.missCount.get();
+    }
+
+    /**
+     * @return the count of the chunks collected without release, 0 when leak detection disabled
+     */
+    public long getLeakCount() {
+        if (this.leakDetection) {
+            pollLeaks();
+        }
+        return this.leakCount.get();
+    }
+
+    /**
+     * @return the count of the leased chunks not released, 0 when leak detection disabled
+     */
+    public int getLeasedCount() {
+        return this.trackers.size();
+    }
+
+    /**
+     * get the buffer count in the shared queue of the size class
+     *
+     * @param size the size of the class
+     * @return the buffer count
+     */
+    public int getPooledCount(int size) {
+        int sizeClass = getSizeClass(size);
+        return sizeClass >= 0 ? this.queues[sizeClass].size() : 0;
+    }
+
+    public boolean isLeakDetection() {
+        return leakDetection;
+    }
+}
@@ -0,0 +1,149 @@
+/**
+ * Copyright (C) 2008 Happy Fish / YuQing
+ * <p>
+ * FastDFS Java Client may be copied only under the terms of the GNU Lesser
+ * General Public License (LGPL).
+ * Please visit the FastDFS Home Page http://www.csource.org/ for more detail.
+ */
+
+package org.csource.fastdfs;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Read the response body from the socket channel into a byte buffer or a file channel,
+ * the body is not copied to the java heap unless the target buffer is on the heap.
+ * The socket channel is switched to non-blocking mode during the transfer so the network
+ * timeout works, the blocking socket channel ignores SO_TIMEOUT
+ *
+ * @author Happy Fish / YuQing
+ * @version Version 1.26
+ */
+class ChannelTransfer {
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    private static final ThreadLocal<ByteBuffer> buffers = new ThreadLocal<ByteBuffer>() {
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocateDirect(BUFFER_SIZE);
+        }
+    };
+
+    //one selector per thread, the channel is registered during a transfer only
+    private static final ThreadLocal<Selector> selectors = new ThreadLocal<Selector>();
+
+    private final SocketChannel channel;
+    private final int timeout;
+    private final long count;  //total bytes to receive
+    private long recvBytes;    //received bytes
+    private SelectionKey key;
+
+    private ChannelTransfer(SocketChannel channel, long count, int timeout) throws IOException {
+        this.channel = channel;
+        this.count = count;
+        this.timeout = timeout;
+        channel.configureBlocking(false);
+    }
+
+    /**
+     * receive bytes from the socket channel and write to the file channel
+     *
+     * @param src      the socket channel in blocking mode
+     * @param dest     the file channel to write
+     * @param position the position of the file to write
+     * @param count    the bytes to receive
+     * @param timeout  the network timeout in millisecond, 0 for no timeout
+     */
+    static void transferFrom(SocketChannel src, FileChannel dest, long position, long count, int timeout) throws IOException {
+        ByteBuffer buffer = buffers.get();
+        ChannelTransfer transfer = new ChannelTransfer(src, count, timeout);
+        try {
+            while (transfer.recvBytes < count) {
+                buffer.clear();
+                if (count - transfer.recvBytes < buffer.capacity()) {
+                    buffer.limit((int) (count - transfer.recvBytes));
+                }
+                transfer.fill(buffer);
+
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    position += dest.write(buffer, position);
+                }
+            }
+        } finally {
+            transfer.close();
+        }
+    }
+
+    /**
+     * receive bytes from the socket channel until the buffer is full
+     *
+     * @param src     the socket channel in blocking mode
+     * @param dest    the buffer to fill, from its position to its limit
+     * @param timeout the network timeout in millisecond, 0 for no timeout
+     */
+    static void read(SocketChannel src, ByteBuffer dest, int timeout) throws IOException {
+        ChannelTransfer transfer = new ChannelTransfer(src, dest.remaining(), timeout);
+        try {
+            transfer.fill(dest);
+        } finally {
+            transfer.close();
+        }
+    }
+
+    private void fill(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            int bytes = this.channel.read(buffer);
+            if (bytes < 0) {
+                throw new IOException("recv package size " + this.recvBytes + " != " + this.count);
+            }
+            if (bytes > 0) {
+                this.recvBytes += bytes;
+                continue;
+            }
+
+            if (this.key == null) {
+                this.key = this.channel.register(getSelector(), SelectionKey.OP_READ);
+            }
+            Selector selector = this.key.selector();
+            if (selector.select(this.timeout) == 0) {
+                throw new SocketTimeoutException("recv timeout, recv package size "
+                        + this.recvBytes + " != " + this.count);
+            }
+            selector.selectedKeys().clear();
+        }
+    }
+
+    /**
+     * @return the selector of the current thread
+     */
+    private static Selector getSelector() throws IOException {
+        Selector selector = selectors.get();
+        if (selector == null || !selector.isOpen()) {
+            selector = Selector.open();
+            selectors.set(selector);
+        }
+        return selector;
+    }
+
+    private void close() throws IOException {
+        if (this.key != null) {
+            //deregister the channel before switching back, the cancelled key is flushed by selectNow
+            this.key.cancel();
+            try {
+                this.key.selector().selectNow();
+            } catch (IOException ex) {
+                this.key.selector().close();
+                throw ex;
+            }
+        }
+        if (this.channel.isOpen()) {
+            this.channel.configureBlocking(true);
+        }
+    }
+}
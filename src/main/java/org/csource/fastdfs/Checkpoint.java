@@ -0,0 +1,84 @@
+/**
+ * Copyright (C) 2008 Happy Fish / YuQing
+ * <p>
+ * FastDFS Java Client may be copied only under the terms of the GNU Lesser
+ * General Public License (LGPL).
+ * Please visit the FastDFS Home Page http://www.csource.org/ for more detail.
+ */
+
+package org.csource.fastdfs;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+/**
+ * Checkpoint file of the resumable transfers, the items are stored as properties.
+ * The file is written to a temp file, synced and renamed, so it is never half written
+ *
+ * @author Happy Fish / YuQing
+ * @version Version 1.26
+ */
+class Checkpoint {
+    private Checkpoint() {
+    }
+
+    /**
+     * load the checkpoint file
+     *
+     * @param file the checkpoint file
+     * @return the items, null if the file not exist
+     */
+    static Properties load(File file) throws IOException {
+        if (!file.exists()) {
+            return null;
+        }
+
+        Properties props = new Properties();
+        FileInputStream in = new FileInputStream(file);
+        try {
+            props.load(in);
+        } finally {
+            in.close();
+        }
+        return props;
+    }
+
+    /**
+     * save the checkpoint file atomically
+     *
+     * @param file  the checkpoint file
+     * @param props the items
+     */
+    static void save(File file, Properties props) throws IOException {
+        File tmpFile = new File(file.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(tmpFile);
+        try {
+            props.store(out, null);
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * get the number item
+     *
+     * @param props the items
+     * @param name  the item name
+     * @return the value, -1 if not exist or invalid
+     */
+    static long getLong(Properties props, String name) {
+        try {
+            return Long.parseLong(props.getProperty(name));
+        } catch (NumberFormatException ex) {
+            return -1;
+        }
+    }
+}
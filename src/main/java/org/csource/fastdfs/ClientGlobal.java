@@ -11,9 +11,11 @@ package org.csource.fastdfs;
 import org.csource.common.FastDFSClientException;
 import org.csource.common.IniFileReader;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.channels.SocketChannel;
 
 /**
  * Global variables
@@ -29,9 +31,26 @@ public class ClientGlobal {
     public static boolean G_ANTI_STEAL_TOKEN;  //if anti-steal token
     public static String G_SECRET_KEY;   //generage token secret key
     public static TrackerGroup G_TRACKER_GROUP;
+    public static ConnectionPool G_CONNECTION_POOL;  //null when connection pool disabled
+    public static BufferPool G_BUFFER_POOL = new BufferPool();
+    public static DownloadCache G_DOWNLOAD_CACHE;  //null when download cache disabled
+    public static DiskDownloadCache G_DISK_DOWNLOAD_CACHE;  //null when disk download cache disabled
+    public static boolean G_DOWNLOAD_VERIFY_CRC32;  //if verify the whole file downloads by the crc32 in the filename
+    public static DedupIndex G_DEDUP_INDEX;  //null when dedup upload disabled
 
     public static final int DEFAULT_CONNECT_TIMEOUT = 5;  //second
     public static final int DEFAULT_NETWORK_TIMEOUT = 30; //second
+    public static final int DEFAULT_CONNECTION_POOL_MAX_COUNT_PER_ENTRY = 50;
+    public static final int DEFAULT_CONNECTION_POOL_MAX_IDLE_TIME = 30; //second
+    public static final int DEFAULT_CONNECTION_POOL_ACTIVE_TEST_IDLE_TIME = 1; //second
+    public static final int DEFAULT_ROUTE_CACHE_MAX_COUNT = 10000;
+    public static final int DEFAULT_ROUTE_CACHE_TTL = 60; //second
+    public static final int DEFAULT_TOPOLOGY_REFRESH_INTERVAL = 0; //second, 0 for disabled
+    public static final int DEFAULT_DOWNLOAD_CACHE_MAX_SIZE = 256; //MB
+    public static final int DEFAULT_DOWNLOAD_CACHE_MAX_FILE_SIZE = 1024; //KB
+    public static final int DEFAULT_DISK_DOWNLOAD_CACHE_MAX_SIZE = 10240; //MB
+    public static final int DEFAULT_DISK_DOWNLOAD_CACHE_MAX_FILE_SIZE = 64; //MB
+    public static final int DEFAULT_DEDUP_MAX_COUNT = 1000000;
 
     private ClientGlobal() {
     }
@@ -63,6 +82,93 @@ public class ClientGlobal {
             G_CHARSET = "ISO8859-1";
         }
 
+        if (G_CONNECTION_POOL != null) {
+            G_CONNECTION_POOL.close();
+            G_CONNECTION_POOL = null;
+        }
+        if (iniReader.getBoolValue("connection_pool.enabled", true)) {
+            int maxCountPerEntry = iniReader.getIntValue("connection_pool.max_count_per_entry",
+                    DEFAULT_CONNECTION_POOL_MAX_COUNT_PER_ENTRY);
+            if (maxCountPerEntry <= 0) {
+                maxCountPerEntry = DEFAULT_CONNECTION_POOL_MAX_COUNT_PER_ENTRY;
+            }
+            int maxIdleTime = iniReader.getIntValue("connection_pool.max_idle_time",
+                    DEFAULT_CONNECTION_POOL_MAX_IDLE_TIME);
+            if (maxIdleTime <= 0) {
+                maxIdleTime = DEFAULT_CONNECTION_POOL_MAX_IDLE_TIME;
+            }
+            int activeTestIdleTime = iniReader.getIntValue("connection_pool.active_test_idle_time",
+                    DEFAULT_CONNECTION_POOL_ACTIVE_TEST_IDLE_TIME);
+            G_CONNECTION_POOL = new ConnectionPool(maxCountPerEntry, maxIdleTime * 1000L,
+                    activeTestIdleTime < 0 ? -1 : activeTestIdleTime * 1000L);
+        }
+
+        int bufferPoolMaxCountPerClass = iniReader.getIntValue("buffer_pool.max_count_per_class",
+                BufferPool.DEFAULT_MAX_COUNT_PER_CLASS);
+        if (bufferPoolMaxCountPerClass <= 0) {
+            bufferPoolMaxCountPerClass = BufferPool.DEFAULT_MAX_COUNT_PER_CLASS;
+        }
+        G_BUFFER_POOL = new BufferPool(bufferPoolMaxCountPerClass,
+                iniReader.getBoolValue("buffer_pool.leak_detection", false));
+
+        G_DOWNLOAD_CACHE = null;
+        if (iniReader.getBoolValue("download_cache.enabled", false)) {
+            int maxSize = iniReader.getIntValue("download_cache.max_size", DEFAULT_DOWNLOAD_CACHE_MAX_SIZE);
+            if (maxSize <= 0) {
+                maxSize = DEFAULT_DOWNLOAD_CACHE_MAX_SIZE;
+            }
+            int maxFileSize = iniReader.getIntValue("download_cache.max_file_size", DEFAULT_DOWNLOAD_CACHE_MAX_FILE_SIZE);
+            if (maxFileSize <= 0) {
+                maxFileSize = DEFAULT_DOWNLOAD_CACHE_MAX_FILE_SIZE;
+            }
+            G_DOWNLOAD_CACHE = new DownloadCache(maxSize * 1024L * 1024L, maxFileSize * 1024,
+                    iniReader.getBoolValue("download_cache.off_heap", false));
+        }
+
+        if (G_DISK_DOWNLOAD_CACHE != null) {
+            G_DISK_DOWNLOAD_CACHE.close();
+            G_DISK_DOWNLOAD_CACHE = null;
+        }
+        if (iniReader.getBoolValue("download_cache.disk_enabled", false)) {
+            String diskDir = iniReader.getStrValue("download_cache.disk_dir");
+            if (diskDir == null || diskDir.length() == 0) {
+                throw new FastDFSClientException("item \"download_cache.disk_dir\" in " + confFilename + " not found");
+            }
+            int diskMaxSize = iniReader.getIntValue("download_cache.disk_max_size", DEFAULT_DISK_DOWNLOAD_CACHE_MAX_SIZE);
+            if (diskMaxSize <= 0) {
+                diskMaxSize = DEFAULT_DISK_DOWNLOAD_CACHE_MAX_SIZE;
+            }
+            int diskMaxFileSize = iniReader.getIntValue("download_cache.disk_max_file_size",
+                    DEFAULT_DISK_DOWNLOAD_CACHE_MAX_FILE_SIZE);
+            if (diskMaxFileSize <= 0) {
+                diskMaxFileSize = DEFAULT_DISK_DOWNLOAD_CACHE_MAX_FILE_SIZE;
+            }
+            G_DISK_DOWNLOAD_CACHE = new DiskDownloadCache(new File(diskDir), diskMaxSize * 1024L * 1024L,
+                    diskMaxFileSize * 1024L * 1024L);
+        }
+        G_DOWNLOAD_VERIFY_CRC32 = iniReader.getBoolValue("download.verify_crc32", false);
+
+        if (G_DEDUP_INDEX != null) {
+            G_DEDUP_INDEX.close();
+            G_DEDUP_INDEX = null;
+        }
+        if (iniReader.getBoolValue("dedup.enabled", false)) {
+            String indexFile = iniReader.getStrValue("dedup.index_file");
+            if (indexFile == null || indexFile.length() == 0) {
+                throw new FastDFSClientException("item \"dedup.index_file\" in " + confFilename + " not found");
+            }
+            int maxCount = iniReader.getIntValue("dedup.max_count", DEFAULT_DEDUP_MAX_COUNT);
+            if (maxCount <= 0) {
+                maxCount = DEFAULT_DEDUP_MAX_COUNT;
+            }
+            G_DEDUP_INDEX = new DedupIndex(new File(indexFile), maxCount,
+                    iniReader.getBoolValue("dedup.confirm", true));
+        }
+
+        if (G_TRACKER_GROUP != null) {
+            G_TRACKER_GROUP.close();
+        }
+
         szTrackerServers = iniReader.getValues("tracker_server");
         if (szTrackerServers == null) {
             throw new FastDFSClientException("item \"tracker_server\" in " + confFilename + " not found");
@@ -77,7 +183,25 @@ public class ClientGlobal {
 
             tracker_servers[i] = new InetSocketAddress(parts[0].trim(), Integer.parseInt(parts[1].trim()));
         }
-        G_TRACKER_GROUP = new TrackerGroup(tracker_servers);
+        G_TRACKER_GROUP = new TrackerGroup(tracker_servers, G_CONNECTION_POOL);
+        if (iniReader.getBoolValue("route_cache.enabled", false)) {
+            int maxCount = iniReader.getIntValue("route_cache.max_count", DEFAULT_ROUTE_CACHE_MAX_COUNT);
+            if (maxCount <= 0) {
+                maxCount = DEFAULT_ROUTE_CACHE_MAX_COUNT;
+            }
+            int ttl = iniReader.getIntValue("route_cache.ttl", DEFAULT_ROUTE_CACHE_TTL);
+            if (ttl <= 0) {
+                ttl = DEFAULT_ROUTE_CACHE_TTL;
+            }
+            G_TRACKER_GROUP.setRouteCache(new RouteCache(maxCount, ttl * 1000L));
+        }
+
+        int topologyRefreshInterval = iniReader.getIntValue("topology.refresh_interval", DEFAULT_TOPOLOGY_REFRESH_INTERVAL);
+        if (topologyRefreshInterval > 0) {
+            TopologyCache topologyCache = new TopologyCache(G_TRACKER_GROUP, topologyRefreshInterval * 1000L);
+            G_TRACKER_GROUP.setTopologyCache(topologyCache);
+            topologyCache.start();
+        }
 
         G_TRACKER_HTTP_PORT = iniReader.getIntValue("http.tracker_http_port", 80);
         G_ANTI_STEAL_TOKEN = iniReader.getBoolValue("http.anti_steal_token", false);
@@ -87,28 +211,30 @@ public class ClientGlobal {
     }
 
     /**
-     * construct Socket object
+     * construct Socket object, backed by a SocketChannel for sendfile
      *
      * @param ip_addr ip address or hostname
      * @param port    port number
      * @return connected Socket object
      */
     public static Socket getSocket(String ip_addr, int port) throws IOException {
-        Socket sock = new Socket();
+        Socket sock = SocketChannel.open().socket();
         sock.setSoTimeout(ClientGlobal.G_NETWORK_TIMEOUT);
+        sock.setTcpNoDelay(true);
         sock.connect(new InetSocketAddress(ip_addr, port), ClientGlobal.G_CONNECT_TIMEOUT);
         return sock;
     }
 
     /**
-     * construct Socket object
+     * construct Socket object, backed by a SocketChannel for sendfile
      *
      * @param addr InetSocketAddress object, including ip address and port
      * @return connected Socket object
      */
     public static Socket getSocket(InetSocketAddress addr) throws IOException {
-        Socket sock = new Socket();
+        Socket sock = SocketChannel.open().socket();
         sock.setSoTimeout(ClientGlobal.G_NETWORK_TIMEOUT);
+        sock.setTcpNoDelay(true);
         sock.connect(addr, ClientGlobal.G_CONNECT_TIMEOUT);
         return sock;
     }
@@ -0,0 +1,314 @@
+/**
+ * Copyright (C) 2008 Happy Fish / YuQing
+ * <p>
+ * FastDFS Java Client may be copied only under the terms of the GNU Lesser
+ * General Public License (LGPL).
+ * Please visit the FastDFS Home Page http://www.csource.org/ for more detail.
+ */
+
+package org.csource.fastdfs;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Immutable snapshot of the cluster: groups and their storage servers,
+ * built from the group stats and storage stats listed by the tracker server
+ *
+ * @author Happy Fish / YuQing
+ * @version Version 1.26
+ */
+public class ClusterTopology {
+    /**
+     * storage server in the snapshot
+     */
+    public static class Storage {
+        private final String groupName;
+        private final String id;
+        private final String ipAddr;
+        private final byte status;
+        private final long freeMB;
+        private final int uploadPriority;
+        private final int storagePort;
+        private final int storageHttpPort;
+
+        public Storage(String groupName, StructStorageStat stat) {
+            this.groupName = groupName;
+            this.id = stat.getId();
+            this.ipAddr = stat.getIpAddr();
+            this.status = stat.getStatus();
+            this.freeMB = stat.getFreeMB();
+            this.uploadPriority = stat.getUploadPriority();
+            this.storagePort = stat.getStoragePort();
+            this.storageHttpPort = stat.getStorageHttpPort();
+        }
+
+        public String getGroupName() {
+            return groupName;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public String getIpAddr() {
+            return ipAddr;
+        }
+
+        public byte getStatus() {
+            return status;
+        }
+
+        public long getFreeMB() {
+            return freeMB;
+        }
+
+        public int getUploadPriority() {
+            return uploadPriority;
+        }
+
+        public int getStoragePort() {
+            return storagePort;
+        }
+
+        public int getStorageHttpPort() {
+            return storageHttpPort;
+        }
+
+        /**
+         * @return true if the storage server is active (can upload and download)
+         */
+        public boolean isActive() {
+            return status == ProtoCommon.FDFS_STORAGE_STATUS_ACTIVE;
+        }
+
+        public String toString() {
+            return groupName + "/" + ipAddr + ":" + storagePort + " " + ProtoCommon.getStorageStatusCaption(status);
+        }
+    }
+
+    /**
+     * group in the snapshot
+     */
+    public static class Group {
+        private final String groupName;
+        private final long freeMB;
+        private final int activeCount;
+        private final List<Storage> storages;
+        private final List<Storage> activeStorages;
+
+        public Group(StructGroupStat stat, List<Storage> storages) {
+            this.groupName = stat.getGroupName();
+            this.freeMB = stat.getFreeMB();
+            this.activeCount = stat.getActiveCount();
+
+            List<Storage> actives = new ArrayList<Storage>(storages.size());
+            for (Storage storage : storages) {
+                if (storage.isActive()) {
+                    actives.add(storage);
+                }
+            }
+            Collections.sort(actives, UPLOAD_PRIORITY_COMPARATOR);
+
+            this.storages = Collections.unmodifiableList(new ArrayList<Storage>(storages));
+            this.activeStorages = Collections.unmodifiableList(actives);
+        }
+
+        public String getGroupName() {
+            return groupName;
+        }
+
+        public long getFreeMB() {
+            return freeMB;
+        }
+
+        public int getActiveCount() {
+            return activeCount;
+        }
+
+        /**
+         * @return all storage servers of the group
+         */
+        public List<Storage> getStorages() {
+            return storages;
+        }
+
+        /**
+         * @return active storage servers of the group, ordered by upload priority
+         */
+        public List<Storage> getActiveStorages() {
+            return activeStorages;
+        }
+
+        /**
+         * get the storage server by ip address and port
+         *
+         * @param ipAddr the ip address of storage server
+         * @param port   the port of storage server
+         * @return the storage server, null if not exist
+         */
+        public Storage getStorage(String ipAddr, int port) {
+            for (Storage storage : storages) {
+                if (storage.getStoragePort() == port && storage.getIpAddr().equals(ipAddr)) {
+                    return storage;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * the smaller upload priority value, the higher priority
+     */
+    private static final Comparator<Storage> UPLOAD_PRIORITY_COMPARATOR = new Comparator<Storage>() {
+        public int compare(Storage s1, Storage s2) {
+            return s1.getUploadPriority() < s2.getUploadPriority() ? -1 :
+                    (s1.getUploadPriority() == s2.getUploadPriority() ? 0 : 1);
+        }
+    };
+
+    private final Map<String, Group> groups;
+    private final long createTime;
+
+    /**
+     * Constructor
+     *
+     * @param groups the groups, key is group name
+     */
+    public ClusterTopology(Map<String, Group> groups) {
+        this.groups = Collections.unmodifiableMap(new HashMap<String, Group>(groups));
+        this.createTime = System.currentTimeMillis();
+    }
+
+    /**
+     * @return the group names
+     */
+    public Set<String> getGroupNames() {
+        return groups.keySet();
+    }
+
+    /**
+     * get the group by name
+     *
+     * @param groupName the group name
+     * @return the group, null if not exist
+     */
+    public Group getGroup(String groupName) {
+        return groups.get(groupName);
+    }
+
+    /**
+     * get the storage server
+     *
+     * @param groupName the group name
+     * @param ipAddr    the ip address of storage server
+     * @param port      the port of storage server
+     * @return the storage server, null if not exist
+     */
+    public Storage getStorage(String groupName, String ipAddr, int port) {
+        Group group = groups.get(groupName);
+        return group != null ? group.getStorage(ipAddr, port) : null;
+    }
+
+    /**
+     * check if the storage server is known and not active, such as offline or deleted
+     *
+     * @param groupName the group name
+     * @param ipAddr    the ip address of storage server
+     * @param port      the port of storage server
+     * @return true if the storage server is inactive in this snapshot
+     */
+    public boolean isInactive(String groupName, String ipAddr, int port) {
+        Storage storage = getStorage(groupName, ipAddr, port);
+        return storage != null && !storage.isActive();
+    }
+
+    /**
+     * skip the storage servers inactive in this snapshot, the servers not in the snapshot are kept
+     *
+     * @param groupName the group name
+     * @param servers   the storage servers answered by the tracker server
+     * @return the servers not inactive in the same order, the given servers when all are inactive
+     */
+    public ServerInfo[] filterActive(String groupName, ServerInfo[] servers) {
+        Group group = groups.get(groupName);
+        if (group == null) {
+            return servers;
+        }
+
+        List<ServerInfo> actives = new ArrayList<ServerInfo>(servers.length);
+        for (ServerInfo server : servers) {
+            Storage storage = group.getStorage(server.getIpAddr(), server.getPort());
+            if (storage == null || storage.isActive()) {
+                actives.add(server);
+            }
+        }
+        if (actives.size() == servers.length || actives.isEmpty()) {
+            return servers;
+        }
+        return actives.toArray(new ServerInfo[actives.size()]);
+    }
+
+    /**
+     * get the storage servers to upload file to: the one answered by the tracker server first
+     * unless it is inactive, then the other active storage servers of the group by upload priority,
+     * the store path index answered by the tracker server is used for all of them as
+     * TRACKER_PROTO_CMD_SERVICE_QUERY_STORE_WITH_GROUP_ALL does
+     *
+     * @param storeServer the storage server answered by the tracker server
+     * @return the storage servers to try in order, the answered one last when it is inactive
+     */
+    public ProtoCodec.StoreServerInfo[] getStoreCandidates(ProtoCodec.StoreServerInfo storeServer) {
+        Group group = groups.get(storeServer.getGroupName());
+        if (group == null) {
+            return new ProtoCodec.StoreServerInfo[]{storeServer};
+        }
+
+        Storage answered = group.getStorage(storeServer.getIpAddr(), storeServer.getPort());
+        boolean inactive = answered != null && !answered.isActive();
+        List<ProtoCodec.StoreServerInfo> candidates = new ArrayList<ProtoCodec.StoreServerInfo>();
+        if (!inactive) {
+            candidates.add(storeServer);
+        }
+        for (Storage storage : group.getActiveStorages()) {
+            if (storage != answered) {
+                candidates.add(new ProtoCodec.StoreServerInfo(storeServer.getGroupName(), storage.getIpAddr(),
+                        storage.getStoragePort(), (byte) storeServer.getStorePathIndex()));
+            }
+        }
+        if (inactive) {
+            candidates.add(storeServer);
+        }
+        return candidates.toArray(new ProtoCodec.StoreServerInfo[candidates.size()]);
+    }
+
+    /**
+     * get the group which has the most free space and at least one active storage server
+     *
+     * @return the group to upload file to, null if none
+     */
+    public Group getUploadGroup() {
+        Group result = null;
+        for (Group group : groups.values()) {
+            if (group.getActiveStorages().isEmpty()) {
+                continue;
+            }
+            if (result == null || group.getFreeMB() > result.getFreeMB()) {
+                result = group;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the create time of this snapshot in millisecond
+     */
+    public long getCreateTime() {
+        return createTime;
+    }
+}
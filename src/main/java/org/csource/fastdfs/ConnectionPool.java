@@ -0,0 +1,331 @@
+/**
+ * Copyright (C) 2008 Happy Fish / YuQing
+ * <p>
+ * FastDFS Java Client may be copied only under the terms of the GNU Lesser
+ * General Public License (LGPL).
+ * Please visit the FastDFS Home Page http://www.csource.org/ for more detail.
+ */
+
+package org.csource.fastdfs;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Connection pool, keep idle connections per server address for reusing,
+ * the expired idle connections are closed by a background sweeper
+ *
+ * @author Happy Fish / YuQing
+ * @version Version 1.26
+ */
+public class ConnectionPool {
+    private static final long MIN_SWEEP_INTERVAL = 1000;  //millisecond
+
+    /**
+     * idle connection info
+     */
+    private static class IdleConnection {
+        private Socket socket;
+        private long lastAccessTime;
+
+        private IdleConnection(Socket socket, long lastAccessTime) {
+            this.socket = socket;
+            this.lastAccessTime = lastAccessTime;
+        }
+    }
+
+    private final ConcurrentHashMap<InetSocketAddress, LinkedList<IdleConnection>> entries =
+            new ConcurrentHashMap<InetSocketAddress, LinkedList<IdleConnection>>();
+    private int maxCountPerEntry;
+    private long maxIdleTime; //millisecond
+    private long activeTestIdleTime; //millisecond, < 0 for never
+    private ScheduledExecutorService sweeper;  //started when the first connection is released
+    private boolean closed;
+
+    private final AtomicLong createCount = new AtomicLong();
+    private final AtomicLong reuseCount = new AtomicLong();
+    private final AtomicLong closeCount = new AtomicLong();
+    private final AtomicLong activeTestFailCount = new AtomicLong();
+
+    /**
+     * Constructor
+     *
+     * @param maxCountPerEntry max idle connections per server address
+     * @param maxIdleTime      max idle time of a connection in millisecond, the connection
+     *                         will be closed when it idle exceeds this time
+     */
+    public ConnectionPool(int maxCountPerEntry, long maxIdleTime) {
+        this(maxCountPerEntry, maxIdleTime, -1);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param maxCountPerEntry   max idle connections per server address
+     * @param maxIdleTime        max idle time of a connection in millisecond, the connection
+     *                           will be closed when it idle exceeds this time
+     * @param activeTestIdleTime send ACTIVE_TEST command to the server before reusing the connection
+     *                           which idle exceeds this time in millisecond, 0 for always, &lt; 0 for never
+     */
+    public ConnectionPool(int maxCountPerEntry, long maxIdleTime, long activeTestIdleTime) {
+        this.maxCountPerEntry = maxCountPerEntry;
+        this.maxIdleTime = maxIdleTime;
+        this.activeTestIdleTime = activeTestIdleTime;
+    }
+
+    /**
+     * get a connected socket, reuse the idle connection if exists
+     *
+     * @param addr the server address
+     * @return connected Socket object
+     */
+    public Socket borrow(InetSocketAddress addr) throws IOException {
+        LinkedList<IdleConnection> idles = this.entries.get(addr);
+        if (idles != null) {
+            long now = System.currentTimeMillis();
+            IdleConnection idle;
+            while (true) {
+                synchronized (idles) {
+                    idle = idles.poll();
+                }
+                if (idle == null) {
+                    break;
+                }
+
+                if (now - idle.lastAccessTime > this.maxIdleTime || idle.socket.isClosed()) {
+                    this.closeSocket(idle.socket);
+                    continue;
+                }
+
+                if (this.activeTestIdleTime >= 0 && now - idle.lastAccessTime >= this.activeTestIdleTime
+                        && !this.activeTest(idle.socket)) {
+                    continue;
+                }
+
+                this.reuseCount.incrementAndGet();
+                return idle.socket;
+            }
+        }
+
+        Socket sock = ClientGlobal.getSocket(addr);
+        this.createCount.incrementAndGet();
+        return sock;
+    }
+
+    /**
+     * give back the connection to the pool, the connection will be closed when the pool is full
+     *
+     * @param addr the server address
+     * @param sock the socket borrowed from this pool
+     */
+    public void release(InetSocketAddress addr, Socket sock) {
+        if (sock.isClosed() || !sock.isConnected()) {
+            this.closeCount.incrementAndGet();
+            return;
+        }
+        if (!this.startSweeper()) {
+            this.closeSocket(sock);  //the pool is closed
+            return;
+        }
+
+        LinkedList<IdleConnection> idles = this.entries.get(addr);
+        if (idles == null) {
+            idles = new LinkedList<IdleConnection>();
+            LinkedList<IdleConnection> old = this.entries.putIfAbsent(addr, idles);
+            if (old != null) {
+                idles = old;
+            }
+        }
+
+        boolean full;
+        synchronized (idles) {
+            full = idles.size() >= this.maxCountPerEntry;
+            if (!full) {
+                idles.addFirst(new IdleConnection(sock, System.currentTimeMillis()));
+            }
+        }
+
+        if (full) {
+            this.closeSocket(sock);
+        }
+    }
+
+    /**
+     * close the connections which idle time exceeds max idle time
+     */
+    public void closeExpiredConnections() {
+        long now = System.currentTimeMillis();
+        for (LinkedList<IdleConnection> idles : this.entries.values()) {
+            LinkedList<IdleConnection> expired = new LinkedList<IdleConnection>();
+            synchronized (idles) {
+                Iterator<IdleConnection> it = idles.iterator();
+                while (it.hasNext()) {
+                    IdleConnection idle = it.next();
+                    if (now - idle.lastAccessTime > this.maxIdleTime) {
+                        it.remove();
+                        expired.add(idle);
+                    }
+                }
+            }
+
+            for (IdleConnection idle : expired) {
+                this.closeSocket(idle.socket);
+            }
+        }
+    }
+
+    /**
+     * close all idle connections and stop the sweeper, the connections released later are closed
+     */
+    public void close() {
+        synchronized (this) {
+            this.closed = true;
+            if (this.sweeper != null) {
+                this.sweeper.shutdownNow();
+                this.sweeper = null;
+            }
+        }
+
+        for (LinkedList<IdleConnection> idles : this.entries.values()) {
+            LinkedList<IdleConnection> all;
+            synchronized (idles) {
+                all = new LinkedList<IdleConnection>(idles);
+                idles.clear();
+            }
+
+            for (IdleConnection idle : all) {
+                this.closeSocket(idle.socket);
+            }
+        }
+    }
+
+    /**
+     * start the background sweeper closing the expired idle connections if not started
+     *
+     * @return false if the pool is closed
+     */
+    private synchronized boolean startSweeper() {
+        if (this.closed) {
+            return false;
+        }
+        if (this.sweeper != null) {
+            return true;
+        }
+
+        this.sweeper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "fastdfs-connection-sweeper");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        long interval = Math.max(MIN_SWEEP_INTERVAL, this.maxIdleTime / 2);
+        this.sweeper.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                closeExpiredConnections();
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+        return true;
+    }
+
+    /**
+     * get the idle connection count of the server
+     *
+     * @param addr the server address
+     * @return idle connection count
+     */
+    public int getIdleCount(InetSocketAddress addr) {
+        LinkedList<IdleConnection> idles = this.entries.get(addr);
+        if (idles == null) {
+            return 0;
+        }
+
+        synchronized (idles) {
+            return idles.size();
+        }
+    }
+
+    /**
+     * @return total count of new created connections
+     */
+    public long getCreateCount() {
+        return this.createCount.get();
+    }
+
+    /**
+     * @return total count of idle connections discarded by ACTIVE_TEST
+     */
+    public long getActiveTestFailCount() {
+        return this.activeTestFailCount.get();
+    }
+
+    /**
+     * @return total count of reused connections
+     */
+    public long getReuseCount() {
+        return this.reuseCount.get();
+    }
+
+    /**
+     * @return total count of closed connections
+     */
+    public long getCloseCount() {
+        return this.closeCount.get();
+    }
+
+    public int getMaxCountPerEntry() {
+        return maxCountPerEntry;
+    }
+
+    public long getMaxIdleTime() {
+        return maxIdleTime;
+    }
+
+    public long getActiveTestIdleTime() {
+        return activeTestIdleTime;
+    }
+
+    /**
+     * test the idle connection, the broken connection will be closed
+     *
+     * @param sock the idle socket
+     * @return true if the connection is ok
+     */
+    private boolean activeTest(Socket sock) {
+        try {
+            if (ProtoCommon.activeTest(sock)) {
+                return true;
+            }
+        } catch (IOException ex) {
+        }
+
+        this.activeTestFailCount.incrementAndGet();
+        this.closeCount.incrementAndGet();
+        try {
+            sock.close();
+        } catch (IOException ex) {
+        }
+        return false;
+    }
+
+    private void closeSocket(Socket sock) {
+        this.closeCount.incrementAndGet();
+        try {
+            ProtoCommon.closeSocket(sock);
+        } catch (IOException ex) {
+            try {
+                sock.close();
+            } catch (IOException ex1) {
+            }
+        }
+    }
+}
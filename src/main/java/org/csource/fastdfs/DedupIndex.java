@@ -0,0 +1,234 @@
+/**
+ * Copyright (C) 2008 Happy Fish / YuQing
+ * <p>
+ * FastDFS Java Client may be copied only under the terms of the GNU Lesser
+ * General Public License (LGPL).
+ * Please visit the FastDFS Home Page http://www.csource.org/ for more detail.
+ */
+
+package org.csource.fastdfs;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Local index of the uploaded contents: the SHA-256 of the content and the file ext name
+ * to the file id, used by the dedup uploads to return the existing file id of the same
+ * content instead of uploading it again. Kept in memory and persisted as a journal file,
+ * the least recently used entries are evicted when the count exceeds the max count
+ *
+ * @author Happy Fish / YuQing
+ * @version Version 1.26
+ */
+public class DedupIndex {
+    public static final String DIGEST_ALGORITHM = "SHA-256";
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private final int maxCount;
+    private final boolean confirm;
+    private final LinkedHashMap<String, String> entries = new LinkedHashMap<String, String>(16, 0.75f, true);
+    private final HashMap<String, String> keys = new HashMap<String, String>();  //file id to key
+    private final IndexJournal journal;
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+
+    /**
+     * Constructor, load the index file
+     *
+     * @param indexFile the index file
+     * @param maxCount  max count of the entries
+     * @param confirm   if confirm the file exists by query_file_info before returning the existing file id
+     */
+    public DedupIndex(File indexFile, int maxCount, boolean confirm) throws IOException {
+        this.maxCount = maxCount;
+        this.confirm = confirm;
+        this.journal = new IndexJournal(indexFile, this.entries);
+
+        File parent = indexFile.getAbsoluteFile().getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("create index directory " + parent + " fail");
+        }
+        synchronized (this) {
+            this.load();
+            this.evict();
+            this.journal.compact();
+        }
+    }
+
+    /**
+     * @return a new message digest to hash the content
+     */
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(DIGEST_ALGORITHM);
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(DIGEST_ALGORITHM + " not supported", ex);
+        }
+    }
+
+    /**
+     * get the key of the content
+     *
+     * @param digest      the digest of the content
+     * @param fileExtName file ext name, can be null
+     * @return the hex digest, followed by dot(.) and the file ext name if any
+     */
+    static String getKey(byte[] digest, String fileExtName) {
+        StringBuilder sb = new StringBuilder(2 * digest.length + 1 + ProtoCommon.FDFS_FILE_EXT_NAME_MAX_LEN);
+        for (byte b : digest) {
+            sb.append(HEX_DIGITS[(b >> 4) & 0x0F]).append(HEX_DIGITS[b & 0x0F]);
+        }
+        if (fileExtName != null && fileExtName.length() > 0) {
+            sb.append('.').append(fileExtName);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * get the file id of the content
+     *
+     * @param key the key of the content
+     * @return the file id, null if not exist
+     */
+    public synchronized String get(String key) {
+        return this.entries.get(key);
+    }
+
+    /**
+     * record the file id of the content
+     *
+     * @param key    the key of the content
+     * @param fileId the file id(including group name and filename)
+     */
+    public synchronized void put(String key, String fileId) {
+        if (key.indexOf(' ') >= 0 || fileId.indexOf(' ') >= 0 || fileId.indexOf('\n') >= 0) {
+            return;  //not fit the journal format
+        }
+
+        String oldKey = this.keys.remove(fileId);
+        if (oldKey != null && !oldKey.equals(key)) {
+            this.entries.remove(oldKey);
+            this.journal.remove(oldKey);
+        }
+        String oldFileId = this.entries.put(key, fileId);
+        if (oldFileId != null && !oldFileId.equals(fileId)) {
+            this.keys.remove(oldFileId);
+        }
+        this.keys.put(fileId, key);
+        this.journal.put(key, fileId);
+        this.evict();
+    }
+
+    /**
+     * remove the entry of the content
+     *
+     * @param key the key of the content
+     */
+    public synchronized void remove(String key) {
+        String fileId = this.entries.remove(key);
+        if (fileId != null) {
+            this.keys.remove(fileId);
+            this.journal.remove(key);
+        }
+    }
+
+    /**
+     * remove the entry of the file, called when the file is deleted
+     *
+     * @param fileId the file id(including group name and filename)
+     */
+    public synchronized void removeFileId(String fileId) {
+        String key = this.keys.get(fileId);
+        if (key != null) {
+            this.remove(key);
+        }
+    }
+
+    /**
+     * close the index journal
+     */
+    public synchronized void close() {
+        this.journal.close();
+    }
+
+    /**
+     * @return true if confirm the file exists by query_file_info before returning the existing file id
+     */
+    public boolean isConfirm() {
+        return this.confirm;
+    }
+
+    /**
+     * @return the count of the uploads answered by the existing file id
+     */
+    public long getHitCount() {
+        return this.hitCount.get();
+    }
+
+    /**
+     * @return the count of the uploads sending the content
+     */
+    public long getMissCount() {
+        return this.missCount.get();
+    }
+
+    public synchronized int getCount() {
+        return this.entries.size();
+    }
+
+    public int getMaxCount() {
+        return this.maxCount;
+    }
+
+    void countHit() {
+        this.hitCount.incrementAndGet();
+    }
+
+    void countMiss() {
+        this.missCount.incrementAndGet();
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<String, String>> it = this.entries.entrySet().iterator();
+        while (this.entries.size() > this.maxCount && it.hasNext()) {
+            Map.Entry<String, String> eldest = it.next();
+            it.remove();
+            this.keys.remove(eldest.getValue());
+            this.journal.remove(eldest.getKey());
+        }
+    }
+
+    /**
+     * replay the index journal
+     */
+    private void load() throws IOException {
+        this.journal.load(new IndexJournal.Replayer() {
+            public void put(String key, String fileId) {
+                String oldKey = keys.remove(fileId);
+                if (oldKey != null) {
+                    entries.remove(oldKey);
+                }
+                String oldFileId = entries.put(key, fileId);
+                if (oldFileId != null) {
+                    keys.remove(oldFileId);
+                }
+                keys.put(fileId, key);
+            }
+
+            public void remove(String key) {
+                String fileId = entries.remove(key);
+                if (fileId != null) {
+                    keys.remove(fileId);
+                }
+            }
+        });
+    }
+}
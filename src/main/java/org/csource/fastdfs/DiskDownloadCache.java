@@ -0,0 +1,526 @@
+/**
+ * Copyright (C) 2008 Happy Fish / YuQing
+ * <p>
+ * FastDFS Java Client may be copied only under the terms of the GNU Lesser
+ * General Public License (LGPL).
+ * Please visit the FastDFS Home Page http://www.csource.org/ for more detail.
+ */
+
+package org.csource.fastdfs;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * Local disk cache of the downloaded normal files, the second tier after DownloadCache,
+ * survives restarts. A content file per file id under the data directory, in the same
+ * path as the file id, and an index journal of the cached files and their sizes.
+ * The size and the crc32 encoded in the file id are checked before caching, the size is
+ * checked when loaded and hit, the crc32 is checked again when the whole content is read.
+ * The least recently used files are evicted when the total size exceeds the max bytes.
+ * The hits are read by memory mapping or transferred to the file channel directly.
+ * The downloads are cached by putAsync in a background thread, the files larger than
+ * the max file bytes are not cached
+ *
+ * @author Happy Fish / YuQing
+ * @version Version 1.26
+ */
+public class DiskDownloadCache {
+    static final String INDEX_FILE_NAME = "index";
+    static final String DATA_DIR_NAME = "data";
+    static final String TEMP_DIR_NAME = "tmp";
+    private static final int MAX_PENDING_WRITES = 64;  //the writes beyond are discarded
+
+    private final File dir;
+    private final File dataDir;
+    private final File tempDir;
+    private final File indexFile;
+    private final long maxBytes;
+    private final long maxFileBytes;
+    private final ThreadPoolExecutor writer;
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<String, Long>(16, 0.75f, true);
+    private long bytes;
+    private final IndexJournal journal;
+    private long tempIndex;
+    private boolean closed;
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong evictionCount = new AtomicLong();
+
+    /**
+     * Constructor, load the index of the cache directory
+     *
+     * @param dir      the cache directory
+     * @param maxBytes max total bytes of the cached files
+     */
+    public DiskDownloadCache(File dir, long maxBytes) throws IOException {
+        this(dir, maxBytes, maxBytes);
+    }
+
+    /**
+     * Constructor, load the index of the cache directory
+     *
+     * @param dir          the cache directory
+     * @param maxBytes     max total bytes of the cached files
+     * @param maxFileBytes max bytes of a cached file
+     */
+    public DiskDownloadCache(File dir, long maxBytes, long maxFileBytes) throws IOException {
+        this.dir = dir;
+        this.dataDir = new File(dir, DATA_DIR_NAME);
+        this.tempDir = new File(dir, TEMP_DIR_NAME);
+        this.indexFile = new File(dir, INDEX_FILE_NAME);
+        this.maxBytes = maxBytes;
+        this.maxFileBytes = Math.min(maxFileBytes, maxBytes);
+        this.journal = new IndexJournal(this.indexFile, this.entries);
+
+        if (!this.tempDir.isDirectory() && !this.tempDir.mkdirs()) {
+            throw new IOException("create cache directory " + this.tempDir + " fail");
+        }
+        File[] tempFiles = this.tempDir.listFiles();
+        if (tempFiles != null) {
+            for (File file : tempFiles) {
+                file.delete();  //left by the crashed writes
+            }
+        }
+
+        synchronized (this) {
+            this.load();
+            this.evict();
+            this.journal.compact();
+        }
+
+        this.writer = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(MAX_PENDING_WRITES), new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "fastdfs-disk-cache");
+                thread.setDaemon(true);
+                return thread;
+            }
+        }, new ThreadPoolExecutor.DiscardPolicy());
+    }
+
+    /**
+     * check if the file can be cached
+     *
+     * @param remoteFileName filename on storage server
+     * @return true if the size and the crc32 can be decoded from the filename
+     */
+    public boolean isCacheable(String remoteFileName) {
+        FileIdDecoder decoder = FileIdDecoder.get();
+        return isValidPath(remoteFileName) && decoder.decode(remoteFileName) && decoder.isInfoReliable();
+    }
+
+    /**
+     * read the cached content by memory mapping
+     *
+     * @param fileId        the file id(including group name and filename)
+     * @param fileOffset    the start offset of the file
+     * @param downloadBytes download bytes, 0 for remain bytes from offset
+     * @return the content, null if not cached, broken or the offset out of the content
+     */
+    public byte[] get(String fileId, long fileOffset, long downloadBytes) {
+        Long size = this.lookup(fileId);
+        if (size == null || fileOffset < 0 || fileOffset > size) {
+            this.missCount.incrementAndGet();
+            return null;
+        }
+
+        long remain = size - fileOffset;
+        long bytes = downloadBytes > 0 ? Math.min(downloadBytes, remain) : remain;
+        if (bytes > Integer.MAX_VALUE) {
+            this.missCount.incrementAndGet();
+            return null;  //too large for an array
+        }
+        int length = (int) bytes;
+        byte[] content = new byte[length];
+        try {
+            RandomAccessFile file = new RandomAccessFile(this.getContentFile(fileId), "r");
+            try {
+                if (file.length() != size) {
+                    throw new IOException("cached file size " + file.length() + " != " + size);
+                }
+                if (length > 0) {
+                    MappedByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, fileOffset, length);
+                    buffer.get(content);
+                }
+            } finally {
+                file.close();
+            }
+
+            if (fileOffset == 0 && length == size) {
+                CRC32 crc32 = new CRC32();
+                crc32.update(content, 0, length);
+                this.checkCrc32(fileId, crc32);
+            }
+        } catch (IOException ex) {
+            this.remove(fileId);
+            this.missCount.incrementAndGet();
+            return null;
+        }
+
+        this.hitCount.incrementAndGet();
+        return content;
+    }
+
+    /**
+     * transfer the cached content to the file channel directly
+     *
+     * @param fileId        the file id(including group name and filename)
+     * @param fileOffset    the start offset of the file
+     * @param downloadBytes download bytes, 0 for remain bytes from offset
+     * @param out           the file channel to write
+     * @param position      the position of the file channel to write from
+     * @return the transferred bytes, -1 if not cached, broken or the offset out of the content
+     */
+    public long transferTo(String fileId, long fileOffset, long downloadBytes, FileChannel out, long position) {
+        Long size = this.lookup(fileId);
+        if (size == null || fileOffset < 0 || fileOffset > size) {
+            this.missCount.incrementAndGet();
+            return -1;
+        }
+
+        long remain = size - fileOffset;
+        long length = downloadBytes > 0 ? Math.min(downloadBytes, remain) : remain;
+        try {
+            FileInputStream in = new FileInputStream(this.getContentFile(fileId));
+            try {
+                FileChannel channel = in.getChannel();
+                if (channel.size() != size) {
+                    throw new IOException("cached file size " + channel.size() + " != " + size);
+                }
+                long done = 0;
+                while (done < length) {
+                    long bytes = channel.transferTo(fileOffset + done, length - done, out.position(position + done));
+                    if (bytes <= 0) {
+                        throw new IOException("transfer cached file " + fileId + " fail");
+                    }
+                    done += bytes;
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException ex) {
+            this.remove(fileId);
+            this.missCount.incrementAndGet();
+            return -1;
+        }
+
+        this.hitCount.incrementAndGet();
+        return length;
+    }
+
+    /**
+     * cache the downloaded content in the background thread, the content should not be changed
+     *
+     * @param fileId  the file id(including group name and filename)
+     * @param content the whole content of the file
+     */
+    public void putAsync(final String fileId, final byte[] content) {
+        if (!this.isCacheable(fileId, content.length)) {
+            return;
+        }
+        this.writer.execute(new Runnable() {
+            public void run() {
+                put(fileId, content);
+            }
+        });
+    }
+
+    /**
+     * cache the downloaded local file in the background thread, the file should not be
+     * changed until cached, otherwise it is not cached for the crc32 not match
+     *
+     * @param fileId    the file id(including group name and filename)
+     * @param localFile the local file of the whole content
+     */
+    public void putAsync(final String fileId, final File localFile) {
+        if (!this.isCacheable(fileId, localFile.length())) {
+            return;
+        }
+        this.writer.execute(new Runnable() {
+            public void run() {
+                put(fileId, localFile);
+            }
+        });
+    }
+
+    /**
+     * cache the downloaded content, ignored when not match the size or the crc32 in the file id
+     *
+     * @param fileId  the file id(including group name and filename)
+     * @param content the whole content of the file
+     * @return true if cached
+     */
+    public boolean put(String fileId, byte[] content) {
+        if (!this.isCacheable(fileId, content.length)) {
+            return false;
+        }
+
+        File tempFile = this.createTempFile();
+        try {
+            CRC32 crc32 = new CRC32();
+            crc32.update(content, 0, content.length);
+            this.checkCrc32(fileId, crc32);
+
+            FileOutputStream out = new FileOutputStream(tempFile);
+            try {
+                out.write(content);
+                out.getFD().sync();
+            } finally {
+                out.close();
+            }
+            return this.commit(fileId, tempFile, content.length);
+        } catch (IOException ex) {
+            tempFile.delete();
+            ex.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * cache the downloaded local file, ignored when not match the size or the crc32 in the file id
+     *
+     * @param fileId    the file id(including group name and filename)
+     * @param localFile the local file of the whole content
+     * @return true if cached
+     */
+    public boolean put(String fileId, File localFile) {
+        long size = localFile.length();
+        if (!this.isCacheable(fileId, size)) {
+            return false;
+        }
+
+        File tempFile = this.createTempFile();
+        try {
+            CRC32 crc32 = new CRC32();
+            FileInputStream in = new FileInputStream(localFile);
+            FileOutputStream out = new FileOutputStream(tempFile);
+            BufferPool.Chunk chunk = ClientGlobal.G_BUFFER_POOL.acquire(256 * 1024);
+            try {
+                byte[] buff = chunk.array();
+                int bytes;
+                while ((bytes = in.read(buff)) > 0) {
+                    crc32.update(buff, 0, bytes);
+                    out.write(buff, 0, bytes);
+                }
+                out.getFD().sync();
+            } finally {
+                chunk.release();
+                in.close();
+                out.close();
+            }
+
+            this.checkCrc32(fileId, crc32);
+            return this.commit(fileId, tempFile, size);
+        } catch (IOException ex) {
+            tempFile.delete();
+            ex.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * remove the cached file, called when the file is deleted
+     *
+     * @param fileId the file id(including group name and filename)
+     */
+    public synchronized void remove(String fileId) {
+        Long size = this.entries.remove(fileId);
+        if (size != null) {
+            this.bytes -= size;
+            this.getContentFile(fileId).delete();
+            this.journal.remove(fileId);
+        }
+    }
+
+    /**
+     * close the index journal, the pending writes are discarded
+     */
+    public void close() {
+        this.writer.shutdownNow();
+        synchronized (this) {
+            this.closed = true;
+            this.journal.close();
+        }
+    }
+
+    public long getHitCount() {
+        return this.hitCount.get();
+    }
+
+    public long getMissCount() {
+        return this.missCount.get();
+    }
+
+    /**
+     * @return hit count / (hit count + miss count), 0 when no request
+     */
+    public double getHitRatio() {
+        long hits = this.hitCount.get();
+        long total = hits + this.missCount.get();
+        return total > 0 ? (double) hits / total : 0;
+    }
+
+    public long getEvictionCount() {
+        return this.evictionCount.get();
+    }
+
+    /**
+     * @return the total bytes of the cached files
+     */
+    public synchronized long getBytes() {
+        return this.bytes;
+    }
+
+    /**
+     * @return the count of the cached files
+     */
+    public synchronized int getCount() {
+        return this.entries.size();
+    }
+
+    public File getDir() {
+        return this.dir;
+    }
+
+    public long getMaxBytes() {
+        return this.maxBytes;
+    }
+
+    public long getMaxFileBytes() {
+        return this.maxFileBytes;
+    }
+
+    private synchronized Long lookup(String fileId) {
+        return this.entries.get(fileId);
+    }
+
+    private boolean isCacheable(String fileId, long size) {
+        int pos = fileId.indexOf(StorageClient1.SPLIT_GROUP_NAME_AND_FILENAME_SEPERATOR);
+        if (pos <= 0 || size > this.maxFileBytes || !isValidPath(fileId)) {
+            return false;
+        }
+        FileIdDecoder decoder = FileIdDecoder.get();
+        return decoder.decode(fileId, pos + 1) && decoder.isInfoReliable() && decoder.getFileSize() == size;
+    }
+
+    private void checkCrc32(String fileId, CRC32 crc32) throws IOException {
+        FileIdDecoder decoder = FileIdDecoder.get();
+        if (!decoder.decode1(fileId) || !decoder.isInfoReliable() || (int) crc32.getValue() != decoder.getCrc32()) {
+            throw new IOException("crc32 of " + fileId + " not match");
+        }
+    }
+
+    private synchronized File createTempFile() {
+        return new File(this.tempDir, (this.tempIndex++) + "." + Thread.currentThread().getId());
+    }
+
+    /**
+     * move the temp file to the content file and record it in the index
+     */
+    private synchronized boolean commit(String fileId, File tempFile, long size) throws IOException {
+        if (this.closed) {
+            tempFile.delete();
+            return false;
+        }
+
+        File file = this.getContentFile(fileId);
+        File parent = file.getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("create cache directory " + parent + " fail");
+        }
+
+        Long oldSize = this.entries.remove(fileId);
+        if (oldSize != null) {
+            this.bytes -= oldSize;
+        }
+        Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        this.entries.put(fileId, size);
+        this.bytes += size;
+        this.journal.put(fileId, size);
+        this.evict();
+        return this.entries.containsKey(fileId);
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<String, Long>> it = this.entries.entrySet().iterator();
+        while (this.bytes > this.maxBytes && it.hasNext()) {
+            Map.Entry<String, Long> eldest = it.next();
+            it.remove();
+            this.bytes -= eldest.getValue();
+            this.getContentFile(eldest.getKey()).delete();
+            this.journal.remove(eldest.getKey());
+            this.evictionCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * replay the index journal, the files missing or of wrong size are dropped
+     */
+    private void load() throws IOException {
+        this.journal.load(new IndexJournal.Replayer() {
+            public void put(String fileId, String size) {
+                try {
+                    entries.put(fileId, Long.parseLong(size));
+                } catch (NumberFormatException ex) {
+                    //ignore the broken record
+                }
+            }
+
+            public void remove(String fileId) {
+                entries.remove(fileId);
+            }
+        });
+
+        Iterator<Map.Entry<String, Long>> it = this.entries.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Long> entry = it.next();
+            File file = this.getContentFile(entry.getKey());
+            if (!isValidPath(entry.getKey()) || file.length() != entry.getValue()) {
+                it.remove();
+                file.delete();
+            } else {
+                this.bytes += entry.getValue();
+            }
+        }
+    }
+
+    private File getContentFile(String fileId) {
+        return new File(this.dataDir, fileId);
+    }
+
+    /**
+     * @return false if the path may be out of the cache directory
+     */
+    private static boolean isValidPath(String path) {
+        if (path.length() == 0 || path.charAt(0) == '/' || path.contains("..")) {
+            return false;
+        }
+        for (int i = 0; i < path.length(); i++) {
+            char c = path.charAt(i);
+            if (!((c >= '0' && c <= '9') || (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')
+                    || c == '/' || c == '.' || c == '-' || c == '_')) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
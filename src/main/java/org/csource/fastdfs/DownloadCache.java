@@ -0,0 +1,381 @@
+/**
+ * Copyright (C) 2008 Happy Fish / YuQing
+ * <p>
+ * FastDFS Java Client may be copied only under the terms of the GNU Lesser
+ * General Public License (LGPL).
+ * Please visit the FastDFS Home Page http://www.csource.org/ for more detail.
+ */
+
+package org.csource.fastdfs;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Read-through cache of the downloaded file contents keyed by file id, bounded by the total
+ * bytes. The content of a normal file never changes, the appender files are not cached.
+ * Segmented LRU: a new entry is put to the probation segment, it is promoted to the protected
+ * segment when hit again, the entries are evicted from the probation segment first, so the
+ * files downloaded once do not flush the hot files. The contents can be kept off heap in the
+ * blocks of the direct buffers allocated once and reused after eviction, up to the max bytes,
+ * so -XX:MaxDirectMemorySize should be larger than the max bytes of the cache plus the other
+ * direct buffers of the application
+ *
+ * @author Happy Fish / YuQing
+ * @version Version 1.26
+ */
+public class DownloadCache {
+    /**
+     * cached content
+     */
+    private static class Entry {
+        private final byte[] content;  //null when off heap
+        private final int[] blocks;    //the blocks of the arena when off heap
+        private final int length;
+        private final long size;       //the bytes counted: the length, the whole blocks when off heap
+
+        private Entry(byte[] content, int[] blocks, int length, long size) {
+            this.content = content;
+            this.blocks = blocks;
+            this.length = length;
+            this.size = size;
+        }
+    }
+
+    /**
+     * the off heap memory of the contents: fixed size blocks of the direct buffers, the direct
+     * buffers are allocated when the blocks are needed first and never freed, the blocks of
+     * the evicted contents are reused, so no direct buffer is allocated per content
+     */
+    private static class BlockArena {
+        private static final int BLOCK_SIZE = 64 * 1024;
+        private static final int BLOCKS_PER_SLAB = 64;
+
+        private final List<ByteBuffer> slabs = new ArrayList<ByteBuffer>();
+        private final int maxBlockCount;
+        private int[] freeBlocks = new int[BLOCKS_PER_SLAB];
+        private int freeCount;
+        private int blockCount;  //the blocks allocated from the slabs
+
+        private BlockArena(long maxBytes) {
+            this.maxBlockCount = (int) Math.min(Integer.MAX_VALUE, maxBytes / BLOCK_SIZE);
+        }
+
+        private static long getSize(int length) {
+            return ((long) length + BLOCK_SIZE - 1) / BLOCK_SIZE * BLOCK_SIZE;
+        }
+
+        private int[] allocate(int length) {
+            int[] blocks = new int[(int) (getSize(length) / BLOCK_SIZE)];
+            for (int i = 0; i < blocks.length; i++) {
+                if (this.freeCount > 0) {
+                    blocks[i] = this.freeBlocks[--this.freeCount];
+                } else if (this.blockCount < this.maxBlockCount) {
+                    if (this.blockCount % BLOCKS_PER_SLAB == 0) {
+                        this.slabs.add(ByteBuffer.allocateDirect(BLOCK_SIZE * BLOCKS_PER_SLAB));
+                    }
+                    blocks[i] = this.blockCount++;
+                } else {
+                    throw new IllegalStateException("no free block, block count: " + this.blockCount);
+                }
+            }
+            return blocks;
+        }
+
+        private void free(int[] blocks) {
+            if (this.freeCount + blocks.length > this.freeBlocks.length) {
+                this.freeBlocks = Arrays.copyOf(this.freeBlocks,
+                        Math.max(this.freeCount + blocks.length, 2 * this.freeBlocks.length));
+            }
+            for (int block : blocks) {
+                this.freeBlocks[this.freeCount++] = block;
+            }
+        }
+
+        private void write(int[] blocks, byte[] content) {
+            for (int i = 0; i < blocks.length; i++) {
+                int offset = i * BLOCK_SIZE;
+                this.getBlock(blocks[i]).put(content, offset, Math.min(BLOCK_SIZE, content.length - offset));
+            }
+        }
+
+        private byte[] read(int[] blocks, int offset, int length) {
+            byte[] result = new byte[length];
+            int done = 0;
+            while (done < length) {
+                int pos = offset + done;
+                ByteBuffer block = this.getBlock(blocks[pos / BLOCK_SIZE]);
+                block.position(pos % BLOCK_SIZE);
+                int bytes = Math.min(block.remaining(), length - done);
+                block.get(result, done, bytes);
+                done += bytes;
+            }
+            return result;
+        }
+
+        /**
+         * @return the view of the block, position 0 and limit the block size
+         */
+        private ByteBuffer getBlock(int block) {
+            ByteBuffer view = this.slabs.get(block / BLOCKS_PER_SLAB).duplicate();
+            int start = (block % BLOCKS_PER_SLAB) * BLOCK_SIZE;
+            view.limit(start + BLOCK_SIZE).position(start);
+            return view.slice();
+        }
+    }
+
+    private final LinkedHashMap<String, Entry> probation = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private final LinkedHashMap<String, Entry> protect = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private final long maxBytes;
+    private final long maxProtectedBytes;
+    private final int maxFileSize;
+    private final boolean offHeap;
+    private final BlockArena arena;  //null when on heap
+    private long probationBytes;
+    private long protectedBytes;
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong evictionCount = new AtomicLong();
+
+    /**
+     * Constructor
+     *
+     * @param maxBytes    max total bytes of the cached contents
+     * @param maxFileSize max bytes of a cached file, the larger files are not cached
+     * @param offHeap     if keep the contents in direct buffers
+     */
+    public DownloadCache(long maxBytes, int maxFileSize, boolean offHeap) {
+        this.maxBytes = maxBytes;
+        this.maxProtectedBytes = maxBytes * 4 / 5;
+        this.maxFileSize = (int) Math.min(maxFileSize, maxBytes);
+        this.offHeap = offHeap;
+        this.arena = offHeap ? new BlockArena(maxBytes) : null;
+    }
+
+    /**
+     * check if the file can be cached
+     *
+     * @param remoteFileName filename on storage server
+     * @return false for appender file
+     */
+    public boolean isCacheable(String remoteFileName) {
+        return !StorageClient.isAppenderFile(remoteFileName);
+    }
+
+    /**
+     * get the cached content
+     *
+     * @param fileId        the file id(including group name and filename)
+     * @param fileOffset    the start offset of the file
+     * @param downloadBytes download bytes, 0 for remain bytes from offset
+     * @return a copy of the content, null if not cached or the offset out of the content
+     */
+    public byte[] get(String fileId, long fileOffset, long downloadBytes) {
+        Entry entry;
+        synchronized (this) {
+            entry = this.protect.get(fileId);
+            if (entry == null) {
+                entry = this.probation.remove(fileId);
+                if (entry != null) {
+                    this.probationBytes -= entry.size;
+                    this.promote(fileId, entry);
+                }
+            }
+
+            if (entry != null && entry.content == null && fileOffset >= 0 && fileOffset <= entry.length) {
+                //the blocks are reused once the entry is evicted, read them in the lock
+                this.hitCount.incrementAndGet();
+                return this.arena.read(entry.blocks, (int) fileOffset, getLength(entry, fileOffset, downloadBytes));
+            }
+        }
+
+        if (entry == null || fileOffset < 0 || fileOffset > entry.length) {
+            this.missCount.incrementAndGet();
+            return null;
+        }
+
+        this.hitCount.incrementAndGet();
+        int length = getLength(entry, fileOffset, downloadBytes);
+        byte[] result = new byte[length];
+        System.arraycopy(entry.content, (int) fileOffset, result, 0, length);
+        return result;
+    }
+
+    /**
+     * cache the downloaded content, ignored when larger than the max file size
+     *
+     * @param fileId  the file id(including group name and filename)
+     * @param content the whole content of the file
+     */
+    public void put(String fileId, byte[] content) {
+        if (content.length > this.maxFileSize) {
+            return;
+        }
+        if (!this.offHeap) {
+            this.add(fileId, new Entry(content.clone(), null, content.length, content.length));
+            return;
+        }
+
+        long size = BlockArena.getSize(content.length);
+        if (size > this.maxBytes) {
+            return;
+        }
+        synchronized (this) {
+            this.remove(fileId);
+            this.probationBytes += size;  //make room before the blocks allocated
+            this.evict();
+            this.probationBytes -= size;
+
+            int[] blocks = this.arena.allocate(content.length);
+            this.arena.write(blocks, content);
+            this.add(fileId, new Entry(null, blocks, content.length, size));
+        }
+    }
+
+    private synchronized void add(String fileId, Entry entry) {
+        this.remove(fileId);
+        this.probation.put(fileId, entry);
+        this.probationBytes += entry.size;
+        this.evict();
+    }
+
+    /**
+     * remove the content of the file, called when the file is deleted
+     *
+     * @param fileId the file id(including group name and filename)
+     */
+    public synchronized void remove(String fileId) {
+        Entry entry = this.probation.remove(fileId);
+        if (entry != null) {
+            this.probationBytes -= entry.size;
+            this.free(entry);
+        }
+        entry = this.protect.remove(fileId);
+        if (entry != null) {
+            this.protectedBytes -= entry.size;
+            this.free(entry);
+        }
+    }
+
+    /**
+     * remove all contents, the direct buffers are kept for reuse when off heap
+     */
+    public synchronized void clear() {
+        for (Entry entry : this.probation.values()) {
+            this.free(entry);
+        }
+        for (Entry entry : this.protect.values()) {
+            this.free(entry);
+        }
+        this.probation.clear();
+        this.protect.clear();
+        this.probationBytes = 0;
+        this.protectedBytes = 0;
+    }
+
+    public long getHitCount() {
+        return this.hitCount.get();
+    }
+
+    public long getMissCount() {
+        return this.missCount.get();
+    }
+
+    /**
+     * @return hit count / (hit count + miss count), 0 when no request
+     */
+    public double getHitRatio() {
+        long hits = this.hitCount.get();
+        long total = hits + this.missCount.get();
+        return total > 0 ? (double) hits / total : 0;
+    }
+
+    public long getEvictionCount() {
+        return this.evictionCount.get();
+    }
+
+    /**
+     * @return the total bytes of the cached contents, counted by the whole blocks when off heap
+     */
+    public synchronized long getBytes() {
+        return this.probationBytes + this.protectedBytes;
+    }
+
+    /**
+     * @return the count of the cached files
+     */
+    public synchronized int getCount() {
+        return this.probation.size() + this.protect.size();
+    }
+
+    public long getMaxBytes() {
+        return this.maxBytes;
+    }
+
+    public int getMaxFileSize() {
+        return this.maxFileSize;
+    }
+
+    public boolean isOffHeap() {
+        return this.offHeap;
+    }
+
+    /**
+     * move the entry hit again to the protected segment, the least recently used
+     * entries of the protected segment go back to the probation segment when full
+     */
+    private void promote(String fileId, Entry entry) {
+        this.protect.put(fileId, entry);
+        this.protectedBytes += entry.size;
+
+        Iterator<Map.Entry<String, Entry>> it = this.protect.entrySet().iterator();
+        while (this.protectedBytes > this.maxProtectedBytes && it.hasNext()) {
+            Map.Entry<String, Entry> eldest = it.next();
+            if (eldest.getValue() == entry) {
+                break;
+            }
+            it.remove();
+            this.protectedBytes -= eldest.getValue().size;
+            this.probation.put(eldest.getKey(), eldest.getValue());
+            this.probationBytes += eldest.getValue().size;
+        }
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<String, Entry>> it = this.probation.entrySet().iterator();
+        while (this.probationBytes + this.protectedBytes > this.maxBytes && it.hasNext()) {
+            Entry entry = it.next().getValue();
+            it.remove();
+            this.probationBytes -= entry.size;
+            this.free(entry);
+            this.evictionCount.incrementAndGet();
+        }
+
+        it = this.protect.entrySet().iterator();
+        while (this.probationBytes + this.protectedBytes > this.maxBytes && it.hasNext()) {
+            Entry entry = it.next().getValue();
+            it.remove();
+            this.protectedBytes -= entry.size;
+            this.free(entry);
+            this.evictionCount.incrementAndGet();
+        }
+    }
+
+    private void free(Entry entry) {
+        if (entry.blocks != null) {
+            this.arena.free(entry.blocks);
+        }
+    }
+
+    private static int getLength(Entry entry, long fileOffset, long downloadBytes) {
+        long remain = entry.length - fileOffset;
+        return (int) (downloadBytes > 0 ? Math.min(downloadBytes, remain) : remain);
+    }
+}
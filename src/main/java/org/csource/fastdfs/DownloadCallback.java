@@ -24,4 +24,14 @@ public interface DownloadCallback {
      * @return 0 success, return none zero(errno) if fail
      */
     int recv(long file_size, byte[] data, int bytes);
+
+    /**
+     * called before the file is downloaded again from another storage server when the verification
+     * by the crc32 fails, the content received should be discarded
+     *
+     * @return 0 to receive the content again, return none zero(errno) if can't, the default
+     */
+    default int reset() {
+        return ProtoCommon.ERR_NO_EIO;
+    }
 }
@@ -0,0 +1,190 @@
+/**
+ * Copyright (C) 2008 Happy Fish / YuQing
+ * <p>
+ * FastDFS Java Client may be copied only under the terms of the GNU Lesser
+ * General Public License (LGPL).
+ * Please visit the FastDFS Home Page http://www.csource.org/ for more detail.
+ */
+
+package org.csource.fastdfs;
+
+/**
+ * Decoder of the file info encoded in the filename: the source storage server, the create
+ * timestamp, the file size and the crc32. The base64 part of the filename is decoded into
+ * the primitive fields directly, no string or array is allocated, so the decoder can be
+ * reused as a flyweight, such as one per thread. Not thread safe
+ *
+ * @author Happy Fish / YuQing
+ * @version Version 1.26
+ */
+public class FileIdDecoder {
+    private static final byte[] BASE64_VALUES = new byte[128];
+
+    static {
+        java.util.Arrays.fill(BASE64_VALUES, (byte) -1);
+        for (int i = 0; i < 26; i++) {
+            BASE64_VALUES['A' + i] = (byte) i;
+            BASE64_VALUES['a' + i] = (byte) (26 + i);
+        }
+        for (int i = 0; i < 10; i++) {
+            BASE64_VALUES['0' + i] = (byte) (52 + i);
+        }
+        BASE64_VALUES['-'] = 62;  //the same as StorageClient.base64
+        BASE64_VALUES['_'] = 63;
+    }
+
+    private static final ThreadLocal<FileIdDecoder> decoders = new ThreadLocal<FileIdDecoder>() {
+        protected FileIdDecoder initialValue() {
+            return new FileIdDecoder();
+        }
+    };
+
+    private int sourceIpAddr;
+    private int createTimestamp;
+    private long fileSize;
+    private int crc32;
+    private boolean appenderFile;
+    private boolean slaveFile;
+
+    /**
+     * @return the decoder of the current thread
+     */
+    public static FileIdDecoder get() {
+        return decoders.get();
+    }
+
+    /**
+     * decode the filename
+     *
+     * @param remoteFileName filename on storage server, not including the group name
+     * @return false if the filename is invalid
+     */
+    public boolean decode(String remoteFileName) {
+        return this.decode(remoteFileName, 0);
+    }
+
+    /**
+     * decode the filename in the file id
+     *
+     * @param file_id the file id(including group name and filename)
+     * @return false if the file id is invalid
+     */
+    public boolean decode1(String file_id) {
+        int pos = file_id.indexOf(StorageClient1.SPLIT_GROUP_NAME_AND_FILENAME_SEPERATOR);
+        return pos > 0 && this.decode(file_id, pos + 1);
+    }
+
+    /**
+     * decode the filename from the offset of the string
+     *
+     * @param s      the string including the filename
+     * @param offset the offset of the filename in the string
+     * @return false if the filename is invalid
+     */
+    public boolean decode(String s, int offset) {
+        int nameLength = s.length() - offset;
+        if (nameLength < ProtoCommon.NORMAL_LOGIC_FILENAME_LENGTH) {
+            return false;
+        }
+
+        //27 chars of 6 bits: 4 bytes ip, 4 bytes timestamp, 8 bytes size, 4 bytes crc32
+        int ip = 0;
+        int timestamp = 0;
+        long size = 0;
+        int crc = 0;
+        int bits = 0;
+        int bitCount = 0;
+        int byteIndex = 0;
+        int start = offset + ProtoCommon.FDFS_FILE_PATH_LEN;
+        for (int i = start; i < start + ProtoCommon.FDFS_FILENAME_BASE64_LENGTH; i++) {
+            char c = s.charAt(i);
+            int value = c < 128 ? BASE64_VALUES[c] : -1;
+            if (value < 0) {
+                return false;
+            }
+            bits = (bits << 6) | value;
+            bitCount += 6;
+            if (bitCount < 8) {
+                continue;
+            }
+
+            bitCount -= 8;
+            int b = (bits >> bitCount) & 0xFF;
+            if (byteIndex < 4) {
+                ip = (ip << 8) | b;
+            } else if (byteIndex < 8) {
+                timestamp = (timestamp << 8) | b;
+            } else if (byteIndex < 16) {
+                size = (size << 8) | b;
+            } else {
+                crc = (crc << 8) | b;
+            }
+            byteIndex++;
+        }
+
+        this.sourceIpAddr = ip;
+        this.createTimestamp = timestamp;
+        this.crc32 = crc;
+        this.appenderFile = (size & ProtoCommon.APPENDER_FILE_SIZE) != 0;
+        this.slaveFile = nameLength > ProtoCommon.TRUNK_LOGIC_FILENAME_LENGTH
+                || (nameLength > ProtoCommon.NORMAL_LOGIC_FILENAME_LENGTH && (size & ProtoCommon.TRUNK_FILE_MARK_SIZE) == 0);
+        this.fileSize = (size >> 63) != 0 ? size & 0xFFFFFFFFL : size;  //low 32 bits is file size
+        return true;
+    }
+
+    /**
+     * @return true if the size and the crc32 in the filename are the real ones,
+     * false for slave file and appender file
+     */
+    public boolean isInfoReliable() {
+        return !this.appenderFile && !this.slaveFile;
+    }
+
+    public boolean isAppenderFile() {
+        return this.appenderFile;
+    }
+
+    public boolean isSlaveFile() {
+        return this.slaveFile;
+    }
+
+    /**
+     * @return the ip address of the source storage server in network byte order, or the storage server id
+     */
+    public int getSourceIpAddrInt() {
+        return this.sourceIpAddr;
+    }
+
+    /**
+     * @return the ip address of the source storage server, empty for storage server id
+     */
+    public String getSourceIpAddr() {
+        int ip = this.sourceIpAddr;
+        if ((ip >>> 24) == 0 || (ip & 0xFF) == 0) {
+            return "";
+        }
+        return (ip >>> 24) + "." + ((ip >> 16) & 0xFF) + "." + ((ip >> 8) & 0xFF) + "." + (ip & 0xFF);
+    }
+
+    /**
+     * @return the create timestamp in seconds
+     */
+    public int getCreateTimestamp() {
+        return this.createTimestamp;
+    }
+
+    public long getFileSize() {
+        return this.fileSize;
+    }
+
+    public int getCrc32() {
+        return this.crc32;
+    }
+
+    /**
+     * @return the FileInfo object of the decoded info
+     */
+    public FileInfo toFileInfo() {
+        return new FileInfo(this.fileSize, this.createTimestamp, this.crc32, this.getSourceIpAddr());
+    }
+}
@@ -0,0 +1,105 @@
+/**
+ * Copyright (C) 2008 Happy Fish / YuQing
+ * <p>
+ * FastDFS Java Client may be copied only under the terms of the GNU Lesser
+ * General Public License (LGPL).
+ * Please visit the FastDFS Home Page http://www.csource.org/ for more detail.
+ */
+
+package org.csource.fastdfs;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Coalescing output stream of a connection: the header, the fixed fields and the
+ * small body of a request are gathered and sent by one write when flushed, so the
+ * small request goes out in one syscall and one TCP segment. A write not less than
+ * the buffer size is sent directly after the buffered bytes.
+ * The buffer is taken from the buffer pool on the first write and given back when flushed
+ *
+ * @author Happy Fish / YuQing
+ * @version Version 1.26
+ */
+class FramedOutputStream extends OutputStream {
+    static final int BUFFER_SIZE = 16 * 1024;
+
+    private final OutputStream out;
+    private BufferPool.Chunk chunk;
+    private byte[] buff;
+    private int count;
+
+    FramedOutputStream(OutputStream out) {
+        this.out = out;
+    }
+
+    public void write(int b) throws IOException {
+        if (this.buff == null) {
+            acquire();
+        } else if (this.count == this.buff.length) {
+            flushBuffer();
+            acquire();
+        }
+        this.buff[this.count++] = (byte) b;
+    }
+
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (len >= BUFFER_SIZE) {
+            flushBuffer();
+            this.out.write(b, off, len);
+            return;
+        }
+
+        if (this.buff != null && len > this.buff.length - this.count) {
+            flushBuffer();
+        }
+        if (this.buff == null) {
+            acquire();
+        }
+        System.arraycopy(b, off, this.buff, this.count, len);
+        this.count += len;
+    }
+
+    /**
+     * send the buffered bytes
+     */
+    public void flush() throws IOException {
+        flushBuffer();
+        this.out.flush();
+    }
+
+    /**
+     * discard the buffered bytes and give back the buffer, the socket is not closed
+     */
+    public void close() {
+        release();
+    }
+
+    private void acquire() {
+        this.chunk = ClientGlobal.G_BUFFER_POOL.acquire(BUFFER_SIZE);
+        this.buff = this.chunk.array();
+        this.count = 0;
+    }
+
+    private void flushBuffer() throws IOException {
+        if (this.buff == null) {
+            return;
+        }
+        try {
+            if (this.count > 0) {
+                this.out.write(this.buff, 0, this.count);
+            }
+        } finally {
+            release();
+        }
+    }
+
+    private void release() {
+        if (this.chunk != null) {
+            this.chunk.release();
+            this.chunk = null;
+            this.buff = null;
+            this.count = 0;
+        }
+    }
+}
@@ -0,0 +1,165 @@
+/**
+ * Copyright (C) 2008 Happy Fish / YuQing
+ * <p>
+ * FastDFS Java Client may be copied only under the terms of the GNU Lesser
+ * General Public License (LGPL).
+ * Please visit the FastDFS Home Page http://www.csource.org/ for more detail.
+ */
+
+package org.csource.fastdfs;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+
+/**
+ * Journal file of a local index, shared by DedupIndex and DiskDownloadCache.
+ * The records are "+ key value" and "- key" lines appended as the entries change and
+ * replayed in order when loaded. The file is rewritten with the entries of the index,
+ * in their iteration order, when the records exceed twice the entries.
+ * Not thread safe, the calls are synchronized by the index
+ *
+ * @author Happy Fish / YuQing
+ * @version Version 1.26
+ */
+class IndexJournal {
+    private static final int MIN_COMPACT_RECORDS = 1024;
+
+    /**
+     * apply the records when loading the journal
+     */
+    interface Replayer {
+        void put(String key, String value);
+
+        void remove(String key);
+    }
+
+    private final File file;
+    private final Map<String, ?> entries;
+    private Writer writer;
+    private int records;
+    private boolean closed;
+
+    /**
+     * Constructor
+     *
+     * @param file    the journal file
+     * @param entries the entries of the index, written when compacting
+     */
+    IndexJournal(File file, Map<String, ?> entries) {
+        this.file = file;
+        this.entries = entries;
+    }
+
+    /**
+     * replay the records of the journal file
+     *
+     * @param replayer apply the records
+     */
+    void load(Replayer replayer) throws IOException {
+        if (!this.file.exists()) {
+            return;
+        }
+
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(this.file), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] cols = line.split(" ");
+                if (cols.length == 3 && cols[0].equals("+")) {
+                    replayer.put(cols[1], cols[2]);
+                } else if (cols.length >= 2 && cols[0].equals("-")) {
+                    replayer.remove(cols[1]);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * rewrite the journal file with the entries and open it to append
+     */
+    void compact() throws IOException {
+        if (this.closed) {
+            return;
+        }
+        this.closeWriter();
+
+        File tempFile = new File(this.file.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(tempFile);
+        try {
+            Writer tempWriter = new OutputStreamWriter(out, "UTF-8");
+            for (Map.Entry<String, ?> entry : this.entries.entrySet()) {
+                tempWriter.write("+ " + entry.getKey() + " " + entry.getValue() + "\n");
+            }
+            tempWriter.flush();
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        Files.move(tempFile.toPath(), this.file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+
+        this.writer = new OutputStreamWriter(new FileOutputStream(this.file, true), "UTF-8");
+        this.records = this.entries.size();
+    }
+
+    /**
+     * record the entry put, called after the entries changed
+     */
+    void put(String key, Object value) {
+        this.write("+ " + key + " " + value + "\n");
+    }
+
+    /**
+     * record the entry removed, called after the entries changed
+     */
+    void remove(String key) {
+        this.write("- " + key + "\n");
+    }
+
+    /**
+     * close the journal file, the later changes are not recorded
+     */
+    void close() {
+        this.closed = true;
+        this.closeWriter();
+    }
+
+    private void write(String record) {
+        if (this.closed || this.writer == null) {
+            return;
+        }
+        try {
+            if (this.records > 2 * this.entries.size() + MIN_COMPACT_RECORDS) {
+                this.compact();  //the change is in the compacted journal already
+                return;
+            }
+            this.writer.write(record);
+            this.writer.flush();
+            this.records++;
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
+    }
+
+    private void closeWriter() {
+        if (this.writer != null) {
+            try {
+                this.writer.close();
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+            this.writer = null;
+        }
+    }
+}
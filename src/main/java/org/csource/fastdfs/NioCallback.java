@@ -0,0 +1,33 @@
+/**
+ * Copyright (C) 2008 Happy Fish / YuQing
+ * <p>
+ * FastDFS Java Client may be copied only under the terms of the GNU Lesser
+ * General Public License (LGPL).
+ * Please visit the FastDFS Home Page http://www.csource.org/ for more detail.
+ */
+
+package org.csource.fastdfs;
+
+/**
+ * Completion callback of the non-blocking operations, called in the event loop thread,
+ * so the implementation should not block
+ *
+ * @author Happy Fish / YuQing
+ * @version Version 1.26
+ */
+public interface NioCallback<T> {
+    /**
+     * the operation completed successfully
+     *
+     * @param result the result of the operation
+     */
+    void completed(T result);
+
+    /**
+     * the operation failed, the server error code is carried by
+     * org.csource.common.FastDFSClientException
+     *
+     * @param ex the cause
+     */
+    void failed(Throwable ex);
+}
@@ -0,0 +1,358 @@
+/**
+ * Copyright (C) 2008 Happy Fish / YuQing
+ * <p>
+ * FastDFS Java Client may be copied only under the terms of the GNU Lesser
+ * General Public License (LGPL).
+ * Please visit the FastDFS Home Page http://www.csource.org/ for more detail.
+ */
+
+package org.csource.fastdfs;
+
+import org.csource.common.FastDFSClientException;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Non-blocking connection to a tracker or storage server, execute one request at a time:
+ * write the request package, read the response header, then read the response body.
+ * All methods except the constructor are called in the event loop thread
+ *
+ * @author Happy Fish / YuQing
+ * @version Version 1.26
+ */
+class NioConnection {
+    private static final int STATE_CONNECTING = 0;
+    private static final int STATE_WRITING = 1;
+    private static final int STATE_READING_HEADER = 2;
+    private static final int STATE_READING_BODY = 3;
+    private static final int STATE_IDLE = 4;
+    private static final int STATE_CLOSED = 5;
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private final NioTransport transport;
+    private final NioEventLoop eventLoop;
+    private final InetSocketAddress address;
+    private final ByteBuffer headerBuffer = ByteBuffer.allocate(ProtoCommon.FDFS_PROTO_PKG_LEN_SIZE + 2);
+    private SocketChannel channel;
+    private SelectionKey key;
+    private int state = STATE_CONNECTING;
+    private long deadline;   //timeout time of current state, millisecond
+    private long idleTime;   //the time when become idle, millisecond
+
+    private NioRequest request;
+    private ByteBuffer[] outBuffers;
+    private byte[] body;
+    private ByteBuffer bodyBuffer;
+    private ByteBuffer chunkBuffer;
+    private long bodyLength;
+    private long bodyRemain;
+
+    NioConnection(NioTransport transport, NioEventLoop eventLoop, InetSocketAddress address) {
+        this.transport = transport;
+        this.eventLoop = eventLoop;
+        this.address = address;
+    }
+
+    NioEventLoop getEventLoop() {
+        return this.eventLoop;
+    }
+
+    InetSocketAddress getAddress() {
+        return this.address;
+    }
+
+    /**
+     * connect to the server then execute the request
+     *
+     * @param request the first request
+     */
+    void connect(NioRequest request) {
+        this.request = request;
+        if (!this.eventLoop.isRunning()) {
+            fail(new IOException("nio transport closed"));
+            return;
+        }
+
+        try {
+            this.channel = SocketChannel.open();
+            this.channel.configureBlocking(false);
+            this.channel.socket().setTcpNoDelay(true);
+            if (this.channel.connect(this.address)) {
+                this.key = this.channel.register(this.eventLoop.getSelector(), 0, this);
+                beginWrite();
+            } else {
+                this.key = this.channel.register(this.eventLoop.getSelector(), SelectionKey.OP_CONNECT, this);
+                this.deadline = System.currentTimeMillis() + ClientGlobal.G_CONNECT_TIMEOUT;
+            }
+        } catch (IOException ex) {
+            fail(ex);
+        }
+    }
+
+    /**
+     * execute the request on the idle connection
+     *
+     * @param request the request
+     * @return false if the connection is not idle (closed by the server)
+     */
+    boolean start(NioRequest request) {
+        if (this.state != STATE_IDLE) {
+            return false;
+        }
+
+        this.request = request;
+        try {
+            beginWrite();
+        } catch (IOException ex) {
+            fail(ex);
+        }
+        return true;
+    }
+
+    /**
+     * handle the ready events
+     *
+     * @param key the selection key of this connection
+     */
+    void handle(SelectionKey key) {
+        try {
+            if (!key.isValid()) {
+                return;
+            }
+
+            if (key.isConnectable()) {
+                this.channel.finishConnect();
+                beginWrite();
+                return;
+            }
+
+            if (key.isWritable() && this.state == STATE_WRITING) {
+                write();
+            } else if (key.isReadable()) {
+                read();
+            }
+        } catch (IOException ex) {
+            fail(ex);
+        }
+    }
+
+    /**
+     * fail the request when timeout, close the connection when idle too long
+     *
+     * @param now current time in millisecond
+     */
+    void checkTimeout(long now) {
+        if (this.state == STATE_IDLE) {
+            if (now - this.idleTime > this.transport.getMaxIdleTime()) {
+                close();
+            }
+        } else if (this.deadline > 0 && now > this.deadline) {
+            fail(new SocketTimeoutException((this.state == STATE_CONNECTING ? "connect to " : "read / write ")
+                    + this.address + " timeout"));
+        }
+    }
+
+    /**
+     * fail the current request and close the connection
+     *
+     * @param ex the cause
+     */
+    void fail(Throwable ex) {
+        NioRequest req = this.request;
+        this.request = null;
+        close();
+        if (req != null) {
+            this.transport.onFinish(req, null, ex);
+        }
+    }
+
+    /**
+     * close the connection
+     */
+    void close() {
+        if (this.state == STATE_CLOSED) {
+            return;
+        }
+
+        this.state = STATE_CLOSED;
+        this.transport.onClose(this);
+        if (this.key != null) {
+            this.key.cancel();
+        }
+        if (this.channel != null) {
+            try {
+                this.channel.close();
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+        }
+    }
+
+    private void beginWrite() throws IOException {
+        ByteBuffer content = this.request.getBody();
+        if (content != null) {
+            this.outBuffers = new ByteBuffer[]{ByteBuffer.wrap(this.request.getPacket()), content.duplicate()};
+        } else {
+            this.outBuffers = new ByteBuffer[]{ByteBuffer.wrap(this.request.getPacket())};
+        }
+        this.state = STATE_WRITING;
+        this.deadline = System.currentTimeMillis() + ClientGlobal.G_NETWORK_TIMEOUT;
+        write();
+    }
+
+    private void write() throws IOException {
+        if (this.channel.write(this.outBuffers) > 0) {
+            this.deadline = System.currentTimeMillis() + ClientGlobal.G_NETWORK_TIMEOUT;
+        }
+
+        if (this.outBuffers[this.outBuffers.length - 1].hasRemaining()) {
+            this.key.interestOps(SelectionKey.OP_WRITE);
+            return;
+        }
+
+        this.outBuffers = null;
+        this.headerBuffer.clear();
+        this.state = STATE_READING_HEADER;
+        this.key.interestOps(SelectionKey.OP_READ);
+    }
+
+    private void read() throws IOException {
+        if (this.state == STATE_IDLE) {
+            //the server closed the connection or sent unexpected data
+            close();
+            return;
+        }
+
+        if (this.state == STATE_READING_HEADER) {
+            if (readTo(this.headerBuffer) == 0 || this.headerBuffer.hasRemaining()) {
+                return;
+            }
+            if (!onHeader()) {
+                return;
+            }
+        }
+
+        if (this.state == STATE_READING_BODY) {
+            readBody();
+        }
+    }
+
+    /**
+     * @return true for reading body
+     */
+    private boolean onHeader() throws IOException {
+        byte[] header = this.headerBuffer.array();
+        if (header[ProtoCommon.PROTO_HEADER_CMD_INDEX] != ProtoCommon.STORAGE_PROTO_CMD_RESP) {
+            throw new IOException("recv cmd: " + header[ProtoCommon.PROTO_HEADER_CMD_INDEX]
+                    + " is not correct, expect cmd: " + ProtoCommon.STORAGE_PROTO_CMD_RESP);
+        }
+
+        long pkgLen = ProtoCommon.buff2long(header, 0);
+        if (pkgLen < 0) {
+            throw new IOException("recv body length: " + pkgLen + " < 0!");
+        }
+
+        byte status = header[ProtoCommon.PROTO_HEADER_STATUS_INDEX];
+        if (status != 0) {
+            if (pkgLen != 0) {
+                throw new IOException("recv errno: " + status + " with body length: " + pkgLen);
+            }
+            finish(status);
+            return false;
+        }
+
+        long expectBodyLen = this.request.getExpectBodyLen();
+        if (expectBodyLen >= 0 && pkgLen != expectBodyLen) {
+            throw new IOException("recv body length: " + pkgLen + " is not correct, expect length: " + expectBodyLen);
+        }
+
+        this.bodyLength = pkgLen;
+        this.bodyRemain = pkgLen;
+        if (this.request.getDownloadCallback() == null) {
+            if (pkgLen > Integer.MAX_VALUE) {
+                throw new IOException("recv body length: " + pkgLen + " is too large");
+            }
+            this.body = new byte[(int) pkgLen];
+            this.bodyBuffer = ByteBuffer.wrap(this.body);
+        } else if (this.chunkBuffer == null) {
+            this.chunkBuffer = ByteBuffer.allocate(CHUNK_SIZE);
+        }
+
+        this.state = STATE_READING_BODY;
+        if (pkgLen == 0) {
+            finish((byte) 0);
+            return false;
+        }
+        return true;
+    }
+
+    private void readBody() throws IOException {
+        DownloadCallback callback = this.request.getDownloadCallback();
+        if (callback == null) {
+            readTo(this.bodyBuffer);
+            this.bodyRemain = this.bodyBuffer.remaining();
+        } else {
+            int bytes;
+            do {
+                this.chunkBuffer.clear();
+                if (this.bodyRemain < this.chunkBuffer.capacity()) {
+                    this.chunkBuffer.limit((int) this.bodyRemain);
+                }
+                if ((bytes = readTo(this.chunkBuffer)) == 0) {
+                    break;
+                }
+
+                this.bodyRemain -= bytes;
+                int result = callback.recv(this.bodyLength, this.chunkBuffer.array(), bytes);
+                if (result != 0) {
+                    fail(new FastDFSClientException("download callback fail, errno code: " + result, (byte) result));
+                    return;
+                }
+            } while (this.bodyRemain > 0);
+        }
+
+        if (this.bodyRemain == 0) {
+            finish((byte) 0);
+        }
+    }
+
+    private int readTo(ByteBuffer buffer) throws IOException {
+        int bytes = this.channel.read(buffer);
+        if (bytes < 0) {
+            throw new EOFException("connection to " + this.address + " closed by the server");
+        }
+        if (bytes > 0) {
+            this.deadline = System.currentTimeMillis() + ClientGlobal.G_NETWORK_TIMEOUT;
+        }
+        return bytes;
+    }
+
+    /**
+     * the response received, become idle and call back
+     */
+    private void finish(byte errno) {
+        NioRequest req = this.request;
+        byte[] result = this.body;
+        this.request = null;
+        this.body = null;
+        this.bodyBuffer = null;
+        this.deadline = 0;
+        this.idleTime = System.currentTimeMillis();
+        this.state = STATE_IDLE;
+        this.transport.release(this);
+
+        if (errno != 0) {
+            this.transport.onFinish(req, null, new FastDFSClientException("recv errno: " + errno
+                    + " from " + this.address, errno));
+        } else {
+            this.transport.onFinish(req, result, null);
+        }
+    }
+}
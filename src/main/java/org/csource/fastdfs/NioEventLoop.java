@@ -0,0 +1,128 @@
+/**
+ * Copyright (C) 2008 Happy Fish / YuQing
+ * <p>
+ * FastDFS Java Client may be copied only under the terms of the GNU Lesser
+ * General Public License (LGPL).
+ * Please visit the FastDFS Home Page http://www.csource.org/ for more detail.
+ */
+
+package org.csource.fastdfs;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Event loop thread: one selector drives all connections registered to it,
+ * the connections are only touched in this thread
+ *
+ * @author Happy Fish / YuQing
+ * @version Version 1.26
+ */
+class NioEventLoop implements Runnable {
+    private static final long CHECK_INTERVAL = 100;  //millisecond
+
+    private final Selector selector;
+    private final Thread thread;
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+    private volatile boolean running = true;
+
+    NioEventLoop(String name) throws IOException {
+        this.selector = Selector.open();
+        this.thread = new Thread(this, name);
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    Selector getSelector() {
+        return this.selector;
+    }
+
+    boolean isRunning() {
+        return this.running;
+    }
+
+    /**
+     * run the task in the event loop thread
+     *
+     * @param task the task
+     * @return false if the event loop is stopped, the task will never run
+     */
+    boolean execute(Runnable task) {
+        this.tasks.offer(task);
+        //the tasks offered before the loop stops are run by the last runTasks,
+        //take back the task if not run yet after that
+        if (!this.running && this.tasks.remove(task)) {
+            return false;
+        }
+        if (Thread.currentThread() != this.thread) {
+            this.selector.wakeup();
+        }
+        return true;
+    }
+
+    /**
+     * stop the event loop, the connections are closed and the pending requests fail
+     */
+    void shutdown() {
+        this.running = false;
+        this.selector.wakeup();
+    }
+
+    public void run() {
+        long lastCheckTime = System.currentTimeMillis();
+        while (this.running) {
+            try {
+                this.selector.select(CHECK_INTERVAL);
+
+                Iterator<SelectionKey> it = this.selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    ((NioConnection) key.attachment()).handle(key);
+                }
+
+                runTasks();
+
+                long now = System.currentTimeMillis();
+                if (now - lastCheckTime >= CHECK_INTERVAL) {
+                    lastCheckTime = now;
+                    for (SelectionKey key : new ArrayList<SelectionKey>(this.selector.keys())) {
+                        if (key.isValid()) {
+                            ((NioConnection) key.attachment()).checkTimeout(now);
+                        }
+                    }
+                }
+            } catch (Throwable ex) {
+                ex.printStackTrace();
+            }
+        }
+
+        List<SelectionKey> keys = new ArrayList<SelectionKey>(this.selector.keys());
+        for (SelectionKey key : keys) {
+            ((NioConnection) key.attachment()).fail(new IOException("nio transport closed"));
+        }
+        runTasks();
+
+        try {
+            this.selector.close();
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = this.tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (Throwable ex) {
+                ex.printStackTrace();
+            }
+        }
+    }
+}
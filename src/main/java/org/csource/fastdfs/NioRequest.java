@@ -0,0 +1,79 @@
+/**
+ * Copyright (C) 2008 Happy Fish / YuQing
+ * <p>
+ * FastDFS Java Client may be copied only under the terms of the GNU Lesser
+ * General Public License (LGPL).
+ * Please visit the FastDFS Home Page http://www.csource.org/ for more detail.
+ */
+
+package org.csource.fastdfs;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Request executed by NioTransport: send the package and the optional body,
+ * then receive the response package
+ *
+ * @author Happy Fish / YuQing
+ * @version Version 1.26
+ */
+public class NioRequest {
+    private final byte[] packet;
+    private final long expectBodyLen;
+    private final NioCallback<byte[]> callback;
+    private ByteBuffer body;
+    private DownloadCallback downloadCallback;
+
+    /**
+     * Constructor
+     *
+     * @param packet        the package to send, including the header
+     * @param expectBodyLen expect body length of the response, -1 for any length
+     * @param callback      called with the response body, the body is null when
+     *                      the response is passed to the download callback
+     */
+    public NioRequest(byte[] packet, long expectBodyLen, NioCallback<byte[]> callback) {
+        this.packet = packet;
+        this.expectBodyLen = expectBodyLen;
+        this.callback = callback;
+    }
+
+    public byte[] getPacket() {
+        return packet;
+    }
+
+    public long getExpectBodyLen() {
+        return expectBodyLen;
+    }
+
+    public NioCallback<byte[]> getCallback() {
+        return callback;
+    }
+
+    public ByteBuffer getBody() {
+        return body;
+    }
+
+    /**
+     * set the content sent after the package, such as the file content to upload
+     *
+     * @param body the content, sent from the position to the limit
+     */
+    public void setBody(ByteBuffer body) {
+        this.body = body;
+    }
+
+    public DownloadCallback getDownloadCallback() {
+        return downloadCallback;
+    }
+
+    /**
+     * pass the response body to the callback piece by piece instead of
+     * collecting it in memory, the callback is called in the event loop thread
+     *
+     * @param downloadCallback the download callback
+     */
+    public void setDownloadCallback(DownloadCallback downloadCallback) {
+        this.downloadCallback = downloadCallback;
+    }
+}
@@ -0,0 +1,918 @@
+/**
+ * Copyright (C) 2008 Happy Fish / YuQing
+ * <p>
+ * FastDFS Java Client may be copied only under the terms of the GNU Lesser
+ * General Public License (LGPL).
+ * Please visit the FastDFS Home Page http://www.csource.org/ for more detail.
+ */
+
+package org.csource.fastdfs;
+
+import org.csource.common.FastDFSClientException;
+import org.csource.common.NameValuePair;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Non-blocking storage client for 1 field file id, both the tracker queries and the storage
+ * requests run on NioTransport, the result is passed to the callback in the event loop thread.
+ * It covers the upload (including slave and appender files), append, modify, truncate, delete,
+ * download, metadata and file info operations of StorageClient1 for the contents in memory
+ * and the local files, the local file to upload is mapped and the downloaded content is written
+ * to the local file in the event loop thread. The other operations (resumable, parallel, dedup,
+ * verified and cached downloads) are served by the blocking StorageClient1 only
+ *
+ * @author Happy Fish / YuQing
+ * @version Version 1.26
+ */
+public class NioStorageClient {
+    /**
+     * pass the response to the callback as void
+     */
+    private static class VoidCallback implements NioCallback<byte[]> {
+        private final NioCallback<Void> callback;
+
+        private VoidCallback(NioCallback<Void> callback) {
+            this.callback = callback;
+        }
+
+        public void completed(byte[] body) {
+            callback.completed(null);
+        }
+
+        public void failed(Throwable ex) {
+            callback.failed(ex);
+        }
+    }
+
+    private final NioTransport transport;
+    private final TrackerGroup trackerGroup;
+
+    /**
+     * constructor with global tracker group
+     *
+     * @param transport the non-blocking transport
+     */
+    public NioStorageClient(NioTransport transport) {
+        this(transport, ClientGlobal.G_TRACKER_GROUP);
+    }
+
+    /**
+     * constructor with specified tracker group
+     *
+     * @param transport    the non-blocking transport
+     * @param trackerGroup the tracker group object
+     */
+    public NioStorageClient(NioTransport transport, TrackerGroup trackerGroup) {
+        this.transport = transport;
+        this.trackerGroup = trackerGroup;
+    }
+
+    public NioTransport getTransport() {
+        return transport;
+    }
+
+    public TrackerGroup getTrackerGroup() {
+        return trackerGroup;
+    }
+
+    /**
+     * query storage server to upload file
+     *
+     * @param groupName the group name to upload file to, can be empty
+     * @param callback  called with the storage server
+     */
+    public void queryStoreServer(String groupName, final NioCallback<ProtoCodec.StoreServerInfo> callback) {
+        byte[] packet;
+        try {
+            packet = ProtoCodec.packQueryStore(groupName);
+        } catch (IOException ex) {
+            callback.failed(ex);
+            return;
+        }
+
+        executeTracker(packet, ProtoCommon.TRACKER_QUERY_STORAGE_STORE_BODY_LEN, new NioCallback<byte[]>() {
+            public void completed(byte[] body) {
+                ProtoCodec.StoreServerInfo storeServer;
+                try {
+                    storeServer = ProtoCodec.decodeStoreServer(body);
+                } catch (IOException ex) {
+                    callback.failed(ex);
+                    return;
+                }
+                callback.completed(storeServer);
+            }
+
+            public void failed(Throwable ex) {
+                callback.failed(ex);
+            }
+        });
+    }
+
+    /**
+     * query storage servers to download or update file, the cached routes are used if enabled,
+     * the storage servers inactive in the topology snapshot are skipped
+     *
+     * @param cmd       command code, ProtoCommon.TRACKER_PROTO_CMD_SERVICE_QUERY_FETCH_ONE,
+     *                  ProtoCommon.TRACKER_PROTO_CMD_SERVICE_QUERY_FETCH_ALL or
+     *                  ProtoCommon.TRACKER_PROTO_CMD_SERVICE_QUERY_UPDATE
+     * @param groupName the group name of storage server
+     * @param filename  filename on storage server
+     * @param callback  called with the storage servers
+     */
+    public void queryStorageServers(final byte cmd, final String groupName, final String filename,
+                                    final NioCallback<ServerInfo[]> callback) {
+        final RouteCache routeCache = this.trackerGroup.getRouteCache();
+        final byte queryCmd = routeCache != null ? RouteCache.getQueryCmd(cmd) : cmd;
+        if (routeCache != null) {
+            ServerInfo[] servers = routeCache.get(queryCmd, groupName, filename);
+            if (servers != null) {
+                ClusterTopology topology = getTopology();
+                if (topology != null && topology.isInactive(groupName, servers[0].getIpAddr(), servers[0].getPort())) {
+                    routeCache.removeServer(servers[0].getIpAddr(), servers[0].getPort());
+                } else {
+                    callback.completed(routeCache.select(cmd,
+                            topology != null ? topology.filterActive(groupName, servers) : servers));
+                    return;
+                }
+            }
+        }
+
+        byte[] packet;
+        try {
+            packet = ProtoCodec.packFileCommand(queryCmd, groupName, filename);
+        } catch (IOException ex) {
+            callback.failed(ex);
+            return;
+        }
+
+        executeTracker(packet, -1, new NioCallback<byte[]>() {
+            public void completed(byte[] body) {
+                ServerInfo[] servers;
+                try {
+                    servers = ProtoCodec.decodeFetchServers(body);
+                } catch (IOException ex) {
+                    callback.failed(ex);
+                    return;
+                }
+
+                if (routeCache != null) {
+                    routeCache.put(queryCmd, groupName, filename, servers);
+                }
+                ClusterTopology topology = getTopology();
+                if (topology != null) {
+                    servers = topology.filterActive(groupName, servers);
+                }
+                callback.completed(routeCache != null ? routeCache.select(cmd, servers) : servers);
+            }
+
+            public void failed(Throwable ex) {
+                callback.failed(ex);
+            }
+        });
+    }
+
+    /**
+     * upload file to storage server (by file buff)
+     *
+     * @param groupName   the group name to upload file to, can be empty
+     * @param fileBuff    file content/buff
+     * @param offset      start offset of the buff
+     * @param length      the length of buff to upload
+     * @param fileExtName file ext name, do not include dot(.)
+     * @param metaList    meta info array
+     * @param callback    called with the file id
+     */
+    public void upload_file1(String groupName, byte[] fileBuff, int offset, int length, String fileExtName,
+                             NameValuePair[] metaList, NioCallback<String> callback) {
+        do_upload_file(ProtoCommon.STORAGE_PROTO_CMD_UPLOAD_FILE, groupName, null, null,
+                ByteBuffer.wrap(fileBuff, offset, length), fileExtName, metaList, callback);
+    }
+
+    /**
+     * upload file to storage server (by byte buffer)
+     *
+     * @param groupName   the group name to upload file to, can be empty
+     * @param fileBuff    file content, heap or direct buffer, from position to limit
+     * @param fileExtName file ext name, do not include dot(.)
+     * @param metaList    meta info array
+     * @param callback    called with the file id
+     */
+    public void upload_file1(String groupName, ByteBuffer fileBuff, String fileExtName,
+                             NameValuePair[] metaList, NioCallback<String> callback) {
+        do_upload_file(ProtoCommon.STORAGE_PROTO_CMD_UPLOAD_FILE, groupName, null, null, fileBuff.duplicate(),
+                fileExtName, metaList, callback);
+    }
+
+    /**
+     * upload file to storage server (by file name), the file is mapped into memory
+     *
+     * @param groupName     the group name to upload file to, can be empty
+     * @param localFilename local filename to upload
+     * @param fileExtName   file ext name, do not include dot(.), null to extract ext name from the local filename
+     * @param metaList      meta info array
+     * @param callback      called with the file id
+     */
+    public void upload_file1(String groupName, String localFilename, String fileExtName,
+                             NameValuePair[] metaList, NioCallback<String> callback) {
+        ByteBuffer content = mapFile(localFilename, callback);
+        if (content == null) {
+            return;
+        }
+        do_upload_file(ProtoCommon.STORAGE_PROTO_CMD_UPLOAD_FILE, groupName, null, null, content,
+                fileExtName != null ? fileExtName : StorageClient.getExtension(localFilename), metaList, callback);
+    }
+
+    /**
+     * upload file to storage server (by callback), the content is collected in memory by the
+     * upload callback in the caller thread before sending
+     *
+     * @param groupName      the group name to upload file to, can be empty
+     * @param fileSize       the file size
+     * @param uploadCallback the write data callback object
+     * @param fileExtName    file ext name, do not include dot(.)
+     * @param metaList       meta info array
+     * @param callback       called with the file id
+     */
+    public void upload_file1(String groupName, long fileSize, UploadCallback uploadCallback, String fileExtName,
+                             NameValuePair[] metaList, NioCallback<String> callback) {
+        ByteBuffer content = collect(fileSize, uploadCallback, callback);
+        if (content == null) {
+            return;
+        }
+        do_upload_file(ProtoCommon.STORAGE_PROTO_CMD_UPLOAD_FILE, groupName, null, null, content,
+                fileExtName, metaList, callback);
+    }
+
+    /**
+     * upload slave file to storage server (by file buff), sent to the storage server of the master file
+     *
+     * @param masterFileId the master file id to generate the slave file
+     * @param prefixName   the prefix name to generate the slave file
+     * @param fileBuff     file content/buff
+     * @param offset       start offset of the buff
+     * @param length       the length of buff to upload
+     * @param fileExtName  file ext name, do not include dot(.)
+     * @param metaList     meta info array
+     * @param callback     called with the slave file id
+     */
+    public void upload_file1(String masterFileId, String prefixName, byte[] fileBuff, int offset, int length,
+                             String fileExtName, NameValuePair[] metaList, NioCallback<String> callback) {
+        String[] parts = splitFileId(masterFileId, callback);
+        if (parts == null) {
+            return;
+        }
+        do_upload_file(ProtoCommon.STORAGE_PROTO_CMD_UPLOAD_SLAVE_FILE, parts[0], parts[1], prefixName,
+                ByteBuffer.wrap(fileBuff, offset, length), fileExtName, metaList, callback);
+    }
+
+    /**
+     * upload slave file to storage server (by file name), the file is mapped into memory
+     *
+     * @param masterFileId  the master file id to generate the slave file
+     * @param prefixName    the prefix name to generate the slave file
+     * @param localFilename local filename to upload
+     * @param fileExtName   file ext name, do not include dot(.), null to extract ext name from the local filename
+     * @param metaList      meta info array
+     * @param callback      called with the slave file id
+     */
+    public void upload_file1(String masterFileId, String prefixName, String localFilename, String fileExtName,
+                             NameValuePair[] metaList, NioCallback<String> callback) {
+        String[] parts = splitFileId(masterFileId, callback);
+        if (parts == null) {
+            return;
+        }
+        ByteBuffer content = mapFile(localFilename, callback);
+        if (content == null) {
+            return;
+        }
+        do_upload_file(ProtoCommon.STORAGE_PROTO_CMD_UPLOAD_SLAVE_FILE, parts[0], parts[1], prefixName, content,
+                fileExtName != null ? fileExtName : StorageClient.getExtension(localFilename), metaList, callback);
+    }
+
+    /**
+     * upload appender file to storage server (by file buff)
+     *
+     * @param groupName   the group name to upload file to, can be empty
+     * @param fileBuff    file content/buff
+     * @param offset      start offset of the buff
+     * @param length      the length of buff to upload
+     * @param fileExtName file ext name, do not include dot(.)
+     * @param metaList    meta info array
+     * @param callback    called with the appender file id
+     */
+    public void upload_appender_file1(String groupName, byte[] fileBuff, int offset, int length, String fileExtName,
+                                      NameValuePair[] metaList, NioCallback<String> callback) {
+        do_upload_file(ProtoCommon.STORAGE_PROTO_CMD_UPLOAD_APPENDER_FILE, groupName, null, null,
+                ByteBuffer.wrap(fileBuff, offset, length), fileExtName, metaList, callback);
+    }
+
+    /**
+     * upload appender file to storage server (by file name), the file is mapped into memory
+     *
+     * @param groupName     the group name to upload file to, can be empty
+     * @param localFilename local filename to upload
+     * @param fileExtName   file ext name, do not include dot(.), null to extract ext name from the local filename
+     * @param metaList      meta info array
+     * @param callback      called with the appender file id
+     */
+    public void upload_appender_file1(String groupName, String localFilename, String fileExtName,
+                                      NameValuePair[] metaList, NioCallback<String> callback) {
+        ByteBuffer content = mapFile(localFilename, callback);
+        if (content == null) {
+            return;
+        }
+        do_upload_file(ProtoCommon.STORAGE_PROTO_CMD_UPLOAD_APPENDER_FILE, groupName, null, null, content,
+                fileExtName != null ? fileExtName : StorageClient.getExtension(localFilename), metaList, callback);
+    }
+
+    /**
+     * append file to storage server (by file buff)
+     *
+     * @param appenderFileId the appender file id
+     * @param fileBuff       file content/buff
+     * @param offset         start offset of the buff
+     * @param length         the length of buff to append
+     * @param callback       called when done
+     */
+    public void append_file1(String appenderFileId, byte[] fileBuff, int offset, int length, NioCallback<Void> callback) {
+        String[] parts = splitFileId(appenderFileId, callback);
+        if (parts == null) {
+            return;
+        }
+
+        byte[] packet;
+        try {
+            packet = ProtoCodec.packAppend(parts[1], length);
+        } catch (IOException ex) {
+            callback.failed(ex);
+            return;
+        }
+        execute(ProtoCommon.TRACKER_PROTO_CMD_SERVICE_QUERY_UPDATE, parts[0], parts[1], packet,
+                ByteBuffer.wrap(fileBuff, offset, length), 0, null, new VoidCallback(callback));
+    }
+
+    /**
+     * modify appender file to storage server (by file buff)
+     *
+     * @param appenderFileId the appender file id
+     * @param fileOffset     the offset of appender file
+     * @param fileBuff       file content/buff
+     * @param offset         start offset of the buff
+     * @param length         the length of buff to modify
+     * @param callback       called when done
+     */
+    public void modify_file1(String appenderFileId, long fileOffset, byte[] fileBuff, int offset, int length,
+                             NioCallback<Void> callback) {
+        String[] parts = splitFileId(appenderFileId, callback);
+        if (parts == null) {
+            return;
+        }
+
+        byte[] packet;
+        try {
+            packet = ProtoCodec.packModify(parts[1], fileOffset, length);
+        } catch (IOException ex) {
+            callback.failed(ex);
+            return;
+        }
+        execute(ProtoCommon.TRACKER_PROTO_CMD_SERVICE_QUERY_UPDATE, parts[0], parts[1], packet,
+                ByteBuffer.wrap(fileBuff, offset, length), 0, null, new VoidCallback(callback));
+    }
+
+    /**
+     * truncate appender file from storage server
+     *
+     * @param appenderFileId    the appender file id
+     * @param truncatedFileSize truncated file size
+     * @param callback          called when done
+     */
+    public void truncate_file1(String appenderFileId, long truncatedFileSize, NioCallback<Void> callback) {
+        String[] parts = splitFileId(appenderFileId, callback);
+        if (parts == null) {
+            return;
+        }
+
+        byte[] packet;
+        try {
+            packet = ProtoCodec.packTruncate(parts[1], truncatedFileSize);
+        } catch (IOException ex) {
+            callback.failed(ex);
+            return;
+        }
+        execute(ProtoCommon.TRACKER_PROTO_CMD_SERVICE_QUERY_UPDATE, parts[0], parts[1], packet,
+                null, 0, null, new VoidCallback(callback));
+    }
+
+    /**
+     * delete file from storage server
+     *
+     * @param fileId   the file id
+     * @param callback called when done
+     */
+    public void delete_file1(String fileId, final NioCallback<Void> callback) {
+        final String[] parts = splitFileId(fileId, callback);
+        if (parts == null) {
+            return;
+        }
+
+        executeFileCommand(ProtoCommon.TRACKER_PROTO_CMD_SERVICE_QUERY_UPDATE, ProtoCommon.STORAGE_PROTO_CMD_DELETE_FILE,
+                fileId, 0, new NioCallback<byte[]>() {
+                    public void completed(byte[] body) {
+                        RouteCache routeCache = trackerGroup.getRouteCache();
+                        if (routeCache != null) {
+                            routeCache.remove(parts[0], parts[1]);
+                        }
+                        callback.completed(null);
+                    }
+
+                    public void failed(Throwable ex) {
+                        callback.failed(ex);
+                    }
+                }, callback);
+    }
+
+    /**
+     * download file from storage server
+     *
+     * @param fileId        the file id
+     * @param fileOffset    the start offset of the file
+     * @param downloadBytes download bytes, 0 for remain bytes from offset
+     * @param callback      called with the file content
+     */
+    public void download_file1(String fileId, long fileOffset, long downloadBytes, NioCallback<byte[]> callback) {
+        String[] parts = splitFileId(fileId, callback);
+        if (parts == null) {
+            return;
+        }
+
+        byte[] packet;
+        try {
+            packet = ProtoCodec.packDownload(parts[0], parts[1], fileOffset, downloadBytes);
+        } catch (IOException ex) {
+            callback.failed(ex);
+            return;
+        }
+        execute(ProtoCommon.TRACKER_PROTO_CMD_SERVICE_QUERY_FETCH_ONE, parts[0], parts[1], packet,
+                null, -1, null, callback);
+    }
+
+    /**
+     * download file from storage server, the file content is passed to the download callback
+     * in the event loop thread
+     *
+     * @param fileId           the file id
+     * @param fileOffset       the start offset of the file
+     * @param downloadBytes    download bytes, 0 for remain bytes from offset
+     * @param downloadCallback the callback object to receive the file content
+     * @param callback         called when done
+     */
+    public void download_file1(String fileId, long fileOffset, long downloadBytes,
+                               DownloadCallback downloadCallback, NioCallback<Void> callback) {
+        String[] parts = splitFileId(fileId, callback);
+        if (parts == null) {
+            return;
+        }
+
+        byte[] packet;
+        try {
+            packet = ProtoCodec.packDownload(parts[0], parts[1], fileOffset, downloadBytes);
+        } catch (IOException ex) {
+            callback.failed(ex);
+            return;
+        }
+        execute(ProtoCommon.TRACKER_PROTO_CMD_SERVICE_QUERY_FETCH_ONE, parts[0], parts[1], packet,
+                null, -1, downloadCallback, new VoidCallback(callback));
+    }
+
+    /**
+     * download file from storage server to local file, the content is written in the event loop
+     * thread, the local file is deleted when fail
+     *
+     * @param fileId        the file id
+     * @param fileOffset    the start offset of the file
+     * @param downloadBytes download bytes, 0 for remain bytes from offset
+     * @param localFilename filename on local
+     * @param callback      called when done
+     */
+    public void download_file1(String fileId, long fileOffset, long downloadBytes, String localFilename,
+                               final NioCallback<Void> callback) {
+        final File localFile = new File(localFilename);
+        final FileOutputStream out;
+        try {
+            out = new FileOutputStream(localFile);
+        } catch (IOException ex) {
+            callback.failed(ex);
+            return;
+        }
+
+        DownloadCallback downloadCallback = new DownloadCallback() {
+            public int recv(long file_size, byte[] data, int bytes) {
+                try {
+                    out.write(data, 0, bytes);
+                } catch (IOException ex) {
+                    ex.printStackTrace();
+                    return ProtoCommon.ERR_NO_EIO;
+                }
+                return 0;
+            }
+        };
+        download_file1(fileId, fileOffset, downloadBytes, downloadCallback, new NioCallback<Void>() {
+            public void completed(Void result) {
+                try {
+                    out.close();
+                } catch (IOException ex) {
+                    localFile.delete();
+                    callback.failed(ex);
+                    return;
+                }
+                callback.completed(null);
+            }
+
+            public void failed(Throwable ex) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                localFile.delete();
+                callback.failed(ex);
+            }
+        });
+    }
+
+    /**
+     * get all metadata items from storage server
+     *
+     * @param fileId   the file id
+     * @param callback called with the meta info array
+     */
+    public void get_metadata1(String fileId, final NioCallback<NameValuePair[]> callback) {
+        executeFileCommand(ProtoCommon.TRACKER_PROTO_CMD_SERVICE_QUERY_UPDATE, ProtoCommon.STORAGE_PROTO_CMD_GET_METADATA,
+                fileId, -1, new NioCallback<byte[]>() {
+                    public void completed(byte[] body) {
+                        NameValuePair[] metaList;
+                        try {
+                            metaList = ProtoCommon.split_metadata(new String(body, ClientGlobal.G_CHARSET));
+                        } catch (IOException ex) {
+                            callback.failed(ex);
+                            return;
+                        }
+                        callback.completed(metaList);
+                    }
+
+                    public void failed(Throwable ex) {
+                        callback.failed(ex);
+                    }
+                }, callback);
+    }
+
+    /**
+     * set metadata items to storage server
+     *
+     * @param fileId   the file id
+     * @param metaList meta item array
+     * @param op_flag  flag, ProtoCommon.STORAGE_SET_METADATA_FLAG_OVERWRITE or
+     *                 ProtoCommon.STORAGE_SET_METADATA_FLAG_MERGE
+     * @param callback called when done
+     */
+    public void set_metadata1(String fileId, NameValuePair[] metaList, byte op_flag, NioCallback<Void> callback) {
+        String[] parts = splitFileId(fileId, callback);
+        if (parts == null) {
+            return;
+        }
+
+        byte[] packet;
+        try {
+            packet = ProtoCodec.packSetMetadata(parts[0], parts[1], metaList, op_flag);
+        } catch (IOException ex) {
+            callback.failed(ex);
+            return;
+        }
+        execute(ProtoCommon.TRACKER_PROTO_CMD_SERVICE_QUERY_UPDATE, parts[0], parts[1], packet,
+                null, 0, null, new VoidCallback(callback));
+    }
+
+    /**
+     * get file info from storage server
+     *
+     * @param fileId   the file id
+     * @param callback called with the file info
+     */
+    public void query_file_info1(String fileId, final NioCallback<FileInfo> callback) {
+        executeFileCommand(ProtoCommon.TRACKER_PROTO_CMD_SERVICE_QUERY_UPDATE, ProtoCommon.STORAGE_PROTO_CMD_QUERY_FILE_INFO,
+                fileId, ProtoCodec.getFileInfoBodyLength(), new NioCallback<byte[]>() {
+                    public void completed(byte[] body) {
+                        callback.completed(ProtoCodec.decodeFileInfo(body));
+                    }
+
+                    public void failed(Throwable ex) {
+                        callback.failed(ex);
+                    }
+                }, callback);
+    }
+
+    /**
+     * upload the content to the storage server answered by the tracker server, replaced by an active
+     * storage server of the group when it is inactive in the topology snapshot, the slave file
+     * is uploaded to the storage server of the master file
+     */
+    private void do_upload_file(final byte cmd, String groupName, final String masterFilename,
+                                final String prefixName, final ByteBuffer content, final String fileExtName,
+                                final NameValuePair[] metaList, final NioCallback<String> callback) {
+        if (masterFilename != null) {
+            queryStorageServers(ProtoCommon.TRACKER_PROTO_CMD_SERVICE_QUERY_UPDATE, groupName, masterFilename,
+                    new NioCallback<ServerInfo[]>() {
+                        public void completed(ServerInfo[] servers) {
+                            sendUpload(cmd, servers[0], 0, masterFilename, prefixName, content,
+                                    fileExtName, metaList, callback);
+                        }
+
+                        public void failed(Throwable ex) {
+                            callback.failed(ex);
+                        }
+                    });
+            return;
+        }
+
+        queryStoreServer(groupName, new NioCallback<ProtoCodec.StoreServerInfo>() {
+            public void completed(ProtoCodec.StoreServerInfo server) {
+                ClusterTopology topology = getTopology();
+                if (topology != null) {
+                    server = topology.getStoreCandidates(server)[0];
+                }
+                sendUpload(cmd, server, server.getStorePathIndex(), null, null, content,
+                        fileExtName, metaList, callback);
+            }
+
+            public void failed(Throwable ex) {
+                callback.failed(ex);
+            }
+        });
+    }
+
+    private void sendUpload(byte cmd, final ServerInfo server, int storePathIndex, String masterFilename,
+                            String prefixName, ByteBuffer content, String fileExtName,
+                            final NameValuePair[] metaList, final NioCallback<String> callback) {
+        byte[] packet;
+        try {
+            packet = ProtoCodec.packUpload(cmd, storePathIndex, masterFilename, prefixName,
+                    fileExtName, content.remaining());
+        } catch (IOException ex) {
+            callback.failed(ex);
+            return;
+        }
+
+        executeStorage(server, packet, content, -1, null, new NioCallback<byte[]>() {
+            public void completed(byte[] body) {
+                final String[] results;
+                try {
+                    results = ProtoCodec.decodeUploadResult(body);
+                } catch (FastDFSClientException ex) {
+                    callback.failed(ex);
+                    return;
+                }
+
+                final String fileId = results[0] + StorageClient1.SPLIT_GROUP_NAME_AND_FILENAME_SEPERATOR + results[1];
+                if (metaList == null || metaList.length == 0) {
+                    callback.completed(fileId);
+                    return;
+                }
+
+                setUploadedMetadata(server, results[0], results[1], fileId, metaList, callback);
+            }
+
+            public void failed(Throwable ex) {
+                callback.failed(ex);
+            }
+        });
+    }
+
+    /**
+     * set metadata of the uploaded file on the source storage server, delete the file when fail
+     */
+    private void setUploadedMetadata(final ServerInfo server, final String groupName, final String filename,
+                                     final String fileId, NameValuePair[] metaList, final NioCallback<String> callback) {
+        byte[] packet;
+        try {
+            packet = ProtoCodec.packSetMetadata(groupName, filename, metaList,
+                    ProtoCommon.STORAGE_SET_METADATA_FLAG_OVERWRITE);
+        } catch (IOException ex) {
+            callback.failed(ex);
+            return;
+        }
+
+        executeStorage(server, packet, null, 0, null, new NioCallback<byte[]>() {
+            public void completed(byte[] body) {
+                callback.completed(fileId);
+            }
+
+            public void failed(final Throwable ex) {
+                byte[] deletePacket;
+                try {
+                    deletePacket = ProtoCodec.packFileCommand(ProtoCommon.STORAGE_PROTO_CMD_DELETE_FILE, groupName, filename);
+                } catch (IOException e) {
+                    callback.failed(ex);
+                    return;
+                }
+
+                executeStorage(server, deletePacket, null, 0, null, new NioCallback<byte[]>() {
+                    public void completed(byte[] body) {
+                        callback.failed(ex);
+                    }
+
+                    public void failed(Throwable e) {
+                        callback.failed(ex);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * execute the storage command with group name and filename
+     */
+    private void executeFileCommand(byte queryCmd, byte cmd, String fileId, long expectBodyLen,
+                                    NioCallback<byte[]> callback, NioCallback<?> resultCallback) {
+        String[] parts = splitFileId(fileId, resultCallback);
+        if (parts == null) {
+            return;
+        }
+
+        byte[] packet;
+        try {
+            packet = ProtoCodec.packFileCommand(cmd, parts[0], parts[1]);
+        } catch (IOException ex) {
+            callback.failed(ex);
+            return;
+        }
+        execute(queryCmd, parts[0], parts[1], packet, null, expectBodyLen, null, callback);
+    }
+
+    /**
+     * query the storage server from the tracker server, then execute the request on it,
+     * the cached routes of the file are removed when the storage server answers ENOENT
+     */
+    private void execute(byte queryCmd, final String groupName, final String filename, final byte[] packet,
+                         final ByteBuffer body, final long expectBodyLen, final DownloadCallback downloadCallback,
+                         final NioCallback<byte[]> callback) {
+        queryStorageServers(queryCmd, groupName, filename, new NioCallback<ServerInfo[]>() {
+            public void completed(ServerInfo[] servers) {
+                executeStorage(servers[0], packet, body, expectBodyLen, downloadCallback, new NioCallback<byte[]>() {
+                    public void completed(byte[] result) {
+                        callback.completed(result);
+                    }
+
+                    public void failed(Throwable ex) {
+                        RouteCache routeCache = trackerGroup.getRouteCache();
+                        if (routeCache != null && ex instanceof FastDFSClientException
+                                && ((FastDFSClientException) ex).getErrorCode() == ProtoCommon.ERR_NO_ENOENT) {
+                            routeCache.remove(groupName, filename);
+                        }
+                        callback.failed(ex);
+                    }
+                });
+            }
+
+            public void failed(Throwable ex) {
+                callback.failed(ex);
+            }
+        });
+    }
+
+    /**
+     * execute the request on the storage server, remove the cached routes to the server
+     * when network fail
+     */
+    private void executeStorage(final ServerInfo server, byte[] packet, ByteBuffer body, long expectBodyLen,
+                                DownloadCallback downloadCallback, final NioCallback<byte[]> callback) {
+        NioRequest request = new NioRequest(packet, expectBodyLen, new NioCallback<byte[]>() {
+            public void completed(byte[] result) {
+                callback.completed(result);
+            }
+
+            public void failed(Throwable ex) {
+                RouteCache routeCache = trackerGroup.getRouteCache();
+                if (routeCache != null && ex instanceof IOException) {
+                    routeCache.removeServer(server.getIpAddr(), server.getPort());
+                }
+                callback.failed(ex);
+            }
+        });
+        request.setBody(body);
+        request.setDownloadCallback(downloadCallback);
+        this.transport.execute(new InetSocketAddress(server.getIpAddr(), server.getPort()), request);
+    }
+
+    /**
+     * execute the request on the tracker servers, try the next tracker server when network fail
+     */
+    private void executeTracker(byte[] packet, long expectBodyLen, NioCallback<byte[]> callback) {
+        executeTracker(this.trackerGroup.getCandidates(), 0, packet, expectBodyLen, callback);
+    }
+
+    private void executeTracker(final TrackerHealth[] candidates, final int index, final byte[] packet,
+                                final long expectBodyLen, final NioCallback<byte[]> callback) {
+        final TrackerHealth health = candidates[index];
+        final long startTime = System.nanoTime();
+        this.transport.execute(health.getAddress(), new NioRequest(packet, expectBodyLen, new NioCallback<byte[]>() {
+            public void completed(byte[] body) {
+                health.onSuccess((System.nanoTime() - startTime) / 1000);
+                callback.completed(body);
+            }
+
+            public void failed(Throwable ex) {
+                if (!(ex instanceof IOException) || transport.isClosed()) {
+                    callback.failed(ex);
+                    return;
+                }
+
+                trackerGroup.onFailure(health, (IOException) ex);
+                if (index + 1 < candidates.length) {
+                    executeTracker(candidates, index + 1, packet, expectBodyLen, callback);
+                } else {
+                    callback.failed(ex);
+                }
+            }
+        }));
+    }
+
+    /**
+     * map the local file to upload, the mapping is kept after the file closed
+     *
+     * @return the mapped content, null when fail and the callback is called
+     */
+    private static ByteBuffer mapFile(String localFilename, NioCallback<?> callback) {
+        try {
+            FileInputStream in = new FileInputStream(localFilename);
+            try {
+                FileChannel fileChannel = in.getChannel();
+                long size = fileChannel.size();
+                if (size > Integer.MAX_VALUE) {
+                    throw new IOException("file " + localFilename + " is too large: " + size);
+                }
+                return fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            } finally {
+                in.close();
+            }
+        } catch (IOException ex) {
+            callback.failed(ex);
+            return null;
+        }
+    }
+
+    /**
+     * collect the content written by the upload callback
+     *
+     * @return the content, null when fail and the callback is called
+     */
+    private static ByteBuffer collect(long fileSize, UploadCallback uploadCallback, NioCallback<?> callback) {
+        if (fileSize < 0 || fileSize > Integer.MAX_VALUE) {
+            callback.failed(new IOException("invalid file size: " + fileSize));
+            return null;
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream((int) fileSize);
+        try {
+            int result = uploadCallback.send(out);
+            if (result != 0) {
+                callback.failed(new FastDFSClientException("upload callback fail, result: " + result, (byte) result));
+                return null;
+            }
+        } catch (IOException ex) {
+            callback.failed(ex);
+            return null;
+        }
+
+        if (out.size() != fileSize) {
+            callback.failed(new IOException("upload callback sent bytes: " + out.size() + " != " + fileSize));
+            return null;
+        }
+        return ByteBuffer.wrap(out.toByteArray());
+    }
+
+    /**
+     * @return the topology snapshot, null for none
+     */
+    private ClusterTopology getTopology() {
+        TopologyCache topologyCache = this.trackerGroup.getTopologyCache();
+        return topologyCache != null ? topologyCache.getTopology() : null;
+    }
+
+    private static String[] splitFileId(String fileId, NioCallback<?> callback) {
+        String[] parts = new String[2];
+        byte errno = StorageClient1.split_file_id(fileId, parts);
+        if (errno != 0) {
+            callback.failed(new FastDFSClientException("invalid file id: " + fileId, errno));
+            return null;
+        }
+        return parts;
+    }
+}
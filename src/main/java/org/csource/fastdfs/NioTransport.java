@@ -0,0 +1,327 @@
+/**
+ * Copyright (C) 2008 Happy Fish / YuQing
+ * <p>
+ * FastDFS Java Client may be copied only under the terms of the GNU Lesser
+ * General Public License (LGPL).
+ * Please visit the FastDFS Home Page http://www.csource.org/ for more detail.
+ */
+
+package org.csource.fastdfs;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Non-blocking transport for the tracker and storage servers: a few event loop threads
+ * drive many connections with selectors, so many concurrent requests do not need
+ * as many threads. The connections are kept per server address and reused after
+ * the response received
+ *
+ * @author Happy Fish / YuQing
+ * @version Version 1.26
+ */
+public class NioTransport {
+    public static final int DEFAULT_MAX_CONNECTION_COUNT_PER_ENTRY = 64;
+    public static final long DEFAULT_MAX_IDLE_TIME = 30 * 1000; //millisecond
+
+    /**
+     * connections and waiting requests of a server address
+     */
+    private static class Entry {
+        private final ConcurrentLinkedQueue<NioConnection> idleConnections = new ConcurrentLinkedQueue<NioConnection>();
+        private final ConcurrentLinkedQueue<NioRequest> pendingRequests = new ConcurrentLinkedQueue<NioRequest>();
+        private final AtomicInteger connectionCount = new AtomicInteger();
+    }
+
+    private final NioEventLoop[] eventLoops;
+    private final AtomicInteger eventLoopIndex = new AtomicInteger();
+    private final ConcurrentHashMap<InetSocketAddress, Entry> entries = new ConcurrentHashMap<InetSocketAddress, Entry>();
+    private final int maxConnectionCountPerEntry;
+    private final long maxIdleTime;
+    private final AtomicInteger inFlightCount = new AtomicInteger();
+    private final AtomicInteger pendingCount = new AtomicInteger();
+    private final AtomicInteger connectionCount = new AtomicInteger();
+    private volatile boolean closed;
+
+    /**
+     * Constructor
+     *
+     * @param threadCount the event loop thread count
+     */
+    public NioTransport(int threadCount) throws IOException {
+        this(threadCount, DEFAULT_MAX_CONNECTION_COUNT_PER_ENTRY, DEFAULT_MAX_IDLE_TIME);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param threadCount                the event loop thread count
+     * @param maxConnectionCountPerEntry max connection count per server address, the requests
+     *                                   wait for an idle connection when reach this count
+     * @param maxIdleTime                the idle connection is closed after this time in millisecond
+     */
+    public NioTransport(int threadCount, int maxConnectionCountPerEntry, long maxIdleTime) throws IOException {
+        if (threadCount <= 0) {
+            throw new IllegalArgumentException("threadCount: " + threadCount + " <= 0");
+        }
+        if (maxConnectionCountPerEntry <= 0) {
+            throw new IllegalArgumentException("maxConnectionCountPerEntry: " + maxConnectionCountPerEntry + " <= 0");
+        }
+
+        this.maxConnectionCountPerEntry = maxConnectionCountPerEntry;
+        this.maxIdleTime = maxIdleTime;
+        this.eventLoops = new NioEventLoop[threadCount];
+        try {
+            for (int i = 0; i < threadCount; i++) {
+                this.eventLoops[i] = new NioEventLoop("fastdfs-nio-" + i);
+            }
+        } catch (IOException ex) {
+            close();
+            throw ex;
+        }
+    }
+
+    /**
+     * execute the request on an idle connection to the server, or a new connection when none,
+     * the request waits when the connection count reaches the max. The callback of the request
+     * is called in the event loop thread
+     *
+     * @param address the server address
+     * @param request the request
+     */
+    public void execute(InetSocketAddress address, NioRequest request) {
+        if (this.closed) {
+            request.getCallback().failed(new IOException("nio transport closed"));
+            return;
+        }
+
+        this.inFlightCount.incrementAndGet();
+        submit(address, getEntry(address), request);
+    }
+
+    private void submit(InetSocketAddress address, Entry entry, NioRequest request) {
+        NioConnection conn = entry.idleConnections.poll();
+        if (conn != null) {
+            dispatch(conn, request);
+            return;
+        }
+
+        if (entry.connectionCount.incrementAndGet() <= this.maxConnectionCountPerEntry) {
+            connect(address, request);
+            return;
+        }
+
+        entry.connectionCount.decrementAndGet();
+        entry.pendingRequests.offer(request);
+        this.pendingCount.incrementAndGet();
+        dispatchPending(entry);
+    }
+
+    /**
+     * execute the request on the idle connection in its event loop thread
+     */
+    private void dispatch(final NioConnection conn, final NioRequest request) {
+        boolean accepted = conn.getEventLoop().execute(new Runnable() {
+            public void run() {
+                if (!conn.start(request)) {
+                    submit(conn.getAddress(), getEntry(conn.getAddress()), request);
+                }
+            }
+        });
+        if (!accepted) {
+            onFinish(request, null, new IOException("nio transport closed"));
+        }
+    }
+
+    /**
+     * match the waiting requests with the idle connections, called after either is added
+     * so no request is left waiting while a connection is idle
+     */
+    private void dispatchPending(Entry entry) {
+        while (!entry.pendingRequests.isEmpty()) {
+            NioConnection conn = entry.idleConnections.poll();
+            if (conn == null) {
+                return;
+            }
+
+            NioRequest request = entry.pendingRequests.poll();
+            if (request == null) {
+                entry.idleConnections.offer(conn);
+                return;
+            }
+            this.pendingCount.decrementAndGet();
+            dispatch(conn, request);
+        }
+    }
+
+    private void connect(InetSocketAddress address, final NioRequest request) {
+        NioEventLoop eventLoop = this.eventLoops[(this.eventLoopIndex.getAndIncrement() & Integer.MAX_VALUE)
+                % this.eventLoops.length];
+        final NioConnection conn = new NioConnection(this, eventLoop, address);
+        this.connectionCount.incrementAndGet();
+        boolean accepted = eventLoop.execute(new Runnable() {
+            public void run() {
+                conn.connect(request);
+            }
+        });
+        if (!accepted) {
+            //not registered to the selector yet, safe to close in this thread
+            conn.close();
+            onFinish(request, null, new IOException("nio transport closed"));
+        }
+    }
+
+    private Entry getEntry(InetSocketAddress address) {
+        Entry entry = this.entries.get(address);
+        if (entry == null) {
+            entry = new Entry();
+            Entry old = this.entries.putIfAbsent(address, entry);
+            if (old != null) {
+                entry = old;
+            }
+        }
+        return entry;
+    }
+
+    /**
+     * give back the idle connection, execute the waiting request on it if any
+     *
+     * @param conn the idle connection
+     */
+    void release(NioConnection conn) {
+        if (this.closed) {
+            conn.close();
+            return;
+        }
+
+        Entry entry = getEntry(conn.getAddress());
+        NioRequest request = entry.pendingRequests.poll();
+        if (request != null) {
+            this.pendingCount.decrementAndGet();
+            dispatch(conn, request);
+            return;
+        }
+
+        entry.idleConnections.offer(conn);
+        dispatchPending(entry);
+    }
+
+    /**
+     * the connection closed, open a new connection for the waiting request if any
+     *
+     * @param conn the closed connection
+     */
+    void onClose(NioConnection conn) {
+        this.connectionCount.decrementAndGet();
+        Entry entry = getEntry(conn.getAddress());
+        entry.idleConnections.remove(conn);
+        entry.connectionCount.decrementAndGet();
+
+        if (this.closed || entry.pendingRequests.isEmpty()) {
+            return;
+        }
+        if (entry.connectionCount.incrementAndGet() <= this.maxConnectionCountPerEntry) {
+            NioRequest request = entry.pendingRequests.poll();
+            if (request != null) {
+                this.pendingCount.decrementAndGet();
+                connect(conn.getAddress(), request);
+                return;
+            }
+        }
+        entry.connectionCount.decrementAndGet();
+    }
+
+    /**
+     * the request finished, call back
+     *
+     * @param request the request
+     * @param body    the response body
+     * @param ex      the cause when fail
+     */
+    void onFinish(NioRequest request, byte[] body, Throwable ex) {
+        this.inFlightCount.decrementAndGet();
+        try {
+            if (ex != null) {
+                request.getCallback().failed(ex);
+            } else {
+                request.getCallback().completed(body);
+            }
+        } catch (Throwable e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * close the transport, the connections are closed and the requests fail
+     */
+    public void close() {
+        this.closed = true;
+        for (NioEventLoop eventLoop : this.eventLoops) {
+            if (eventLoop != null) {
+                eventLoop.shutdown();
+            }
+        }
+
+        for (Entry entry : this.entries.values()) {
+            NioRequest request;
+            while ((request = entry.pendingRequests.poll()) != null) {
+                this.pendingCount.decrementAndGet();
+                onFinish(request, null, new IOException("nio transport closed"));
+            }
+        }
+    }
+
+    /**
+     * @return true if closed
+     */
+    public boolean isClosed() {
+        return this.closed;
+    }
+
+    /**
+     * @return the count of requests not finished, including the waiting requests
+     */
+    public int getInFlightCount() {
+        return this.inFlightCount.get();
+    }
+
+    /**
+     * @return the count of requests waiting for a connection
+     */
+    public int getPendingCount() {
+        return this.pendingCount.get();
+    }
+
+    /**
+     * @return the count of open connections, including the idle connections
+     */
+    public int getConnectionCount() {
+        return this.connectionCount.get();
+    }
+
+    /**
+     * get the idle connection count to the server
+     *
+     * @param address the server address
+     * @return the idle connection count
+     */
+    public int getIdleCount(InetSocketAddress address) {
+        Entry entry = this.entries.get(address);
+        return entry != null ? entry.idleConnections.size() : 0;
+    }
+
+    public int getThreadCount() {
+        return eventLoops.length;
+    }
+
+    public int getMaxConnectionCountPerEntry() {
+        return maxConnectionCountPerEntry;
+    }
+
+    public long getMaxIdleTime() {
+        return maxIdleTime;
+    }
+}
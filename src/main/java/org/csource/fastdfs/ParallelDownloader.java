@@ -0,0 +1,362 @@
+/**
+ * Copyright (C) 2008 Happy Fish / YuQing
+ * <p>
+ * FastDFS Java Client may be copied only under the terms of the GNU Lesser
+ * General Public License (LGPL).
+ * Please visit the FastDFS Home Page http://www.csource.org/ for more detail.
+ */
+
+package org.csource.fastdfs;
+
+import org.csource.common.FastDFSClientException;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Parallel ranged download: a large file is split into ranges, the ranges are fetched
+ * concurrently, each by its own connection, from the storage servers holding the file
+ * in turn. A failed range is retried on the other storage servers.
+ * The ranges are written to the local file by positional writes, or to the output stream
+ * in order with at most two ranges per thread buffered in memory
+ *
+ * @author Happy Fish / YuQing
+ * @version Version 1.26
+ */
+public class ParallelDownloader {
+    public static final int DEFAULT_THREAD_COUNT = 4;
+    public static final int DEFAULT_RANGE_SIZE = 4 * 1024 * 1024;
+
+    /**
+     * operation on a storage server
+     */
+    private interface StorageTask {
+        /**
+         * @return the result, -1 if fail and the error code is kept by the client
+         */
+        long run(StorageClient client) throws IOException, FastDFSClientException;
+    }
+
+    private final TrackerGroup trackerGroup;
+    private final ThreadPoolExecutor executor;
+    private final int threadCount;
+    private final int rangeSize;
+
+    /**
+     * constructor with global tracker group and default settings
+     */
+    public ParallelDownloader() {
+        this(ClientGlobal.G_TRACKER_GROUP, DEFAULT_THREAD_COUNT, DEFAULT_RANGE_SIZE);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param trackerGroup the tracker group object
+     * @param threadCount  the count of the ranges downloaded concurrently
+     * @param rangeSize    the bytes of a range
+     */
+    public ParallelDownloader(TrackerGroup trackerGroup, int threadCount, int rangeSize) {
+        if (threadCount <= 0) {
+            throw new IllegalArgumentException("threadCount: " + threadCount + " <= 0");
+        }
+        if (rangeSize <= 0) {
+            throw new IllegalArgumentException("rangeSize: " + rangeSize + " <= 0");
+        }
+
+        this.trackerGroup = trackerGroup;
+        this.threadCount = threadCount;
+        this.rangeSize = rangeSize;
+
+        final AtomicInteger threadIndex = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threadCount, threadCount, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "fastdfs-download-" + threadIndex.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * download file from storage servers to local file
+     *
+     * @param file_id       the file id(including group name and filename)
+     * @param localFileName filename on local
+     * @return 0 success, return none zero errno if fail
+     */
+    public int download_file1(String file_id, String localFileName) throws IOException, FastDFSClientException {
+        String[] parts = new String[2];
+        byte errno = StorageClient1.split_file_id(file_id, parts);
+        if (errno != 0) {
+            return errno;
+        }
+
+        return this.download_file(parts[0], parts[1], localFileName);
+    }
+
+    /**
+     * download file from storage servers to the output stream
+     *
+     * @param file_id the file id(including group name and filename)
+     * @param out     the output stream, the content is written in order
+     * @return 0 success, return none zero errno if fail
+     */
+    public int download_file1(String file_id, OutputStream out) throws IOException, FastDFSClientException {
+        String[] parts = new String[2];
+        byte errno = StorageClient1.split_file_id(file_id, parts);
+        if (errno != 0) {
+            return errno;
+        }
+
+        return this.download_file(parts[0], parts[1], out);
+    }
+
+    /**
+     * download file from storage servers to local file, the partial file is deleted when fail
+     *
+     * @param groupName      the group name of storage server
+     * @param remoteFileName filename on storage server
+     * @param localFileName  filename on local
+     * @return 0 success, return none zero errno if fail
+     */
+    public int download_file(final String groupName, final String remoteFileName,
+                             String localFileName) throws IOException, FastDFSClientException {
+        List<Future<Long>> futures = new ArrayList<Future<Long>>();
+        boolean success = false;
+        FileOutputStream out = new FileOutputStream(localFileName);
+        try {
+            final ServerInfo[] servers = this.getFetchServers(groupName, remoteFileName);
+            long fileSize = this.queryFileSize(groupName, remoteFileName, servers);
+
+            final FileChannel channel = out.getChannel();
+            int count = this.getRangeCount(fileSize);
+            for (int i = 0; i < count; i++) {
+                final long offset = (long) i * this.rangeSize;
+                final long length = Math.min(this.rangeSize, fileSize - offset);
+                StorageTask task = new StorageTask() {
+                    public long run(StorageClient client) throws IOException, FastDFSClientException {
+                        return client.download_file(groupName, remoteFileName, offset, length, channel, offset);
+                    }
+                };
+                if (count == 1) {
+                    this.execute(servers, i, task, length);
+                } else {
+                    futures.add(this.submit(servers, i, task, length));
+                }
+            }
+
+            for (Future<Long> future : futures) {
+                getResult(future);
+            }
+            success = true;
+            return 0;
+        } catch (FastDFSClientException ex) {
+            if (ex.getErrorCode() != 0) {
+                return ex.getErrorCode();
+            }
+            throw ex;
+        } finally {
+            if (!success) {
+                cancel(futures);
+            }
+            out.close();
+            if (!success) {
+                new File(localFileName).delete();
+            }
+        }
+    }
+
+    /**
+     * download file from storage servers to the output stream
+     *
+     * @param groupName      the group name of storage server
+     * @param remoteFileName filename on storage server
+     * @param out            the output stream, the content is written in order
+     * @return 0 success, return none zero errno if fail
+     */
+    public int download_file(final String groupName, final String remoteFileName,
+                             OutputStream out) throws IOException, FastDFSClientException {
+        ArrayDeque<Future<Long>> futures = new ArrayDeque<Future<Long>>();
+        ArrayDeque<byte[]> buffs = new ArrayDeque<byte[]>();  //buffers of the pending ranges in order
+        byte[] freeBuff = null;
+        try {
+            ServerInfo[] servers = this.getFetchServers(groupName, remoteFileName);
+            long fileSize = this.queryFileSize(groupName, remoteFileName, servers);
+
+            int count = this.getRangeCount(fileSize);
+            int window = Math.min(count, this.threadCount * 2);
+            int next = 0;
+            for (int i = 0; i < count; i++) {
+                while (next < count && futures.size() < window) {
+                    final byte[] rangeBuff = freeBuff != null ? freeBuff
+                            : new byte[(int) Math.min(this.rangeSize, fileSize)];
+                    freeBuff = null;
+                    buffs.add(rangeBuff);
+
+                    final long offset = (long) next * this.rangeSize;
+                    final long length = Math.min(this.rangeSize, fileSize - offset);
+                    futures.add(this.submit(servers, next, new StorageTask() {
+                        public long run(StorageClient client) throws IOException, FastDFSClientException {
+                            return client.download_file(groupName, remoteFileName, offset, length, rangeBuff, 0);
+                        }
+                    }, length));
+                    next++;
+                }
+
+                long length = getResult(futures.poll());
+                freeBuff = buffs.poll();
+                out.write(freeBuff, 0, (int) length);
+            }
+            return 0;
+        } catch (FastDFSClientException ex) {
+            if (ex.getErrorCode() != 0) {
+                return ex.getErrorCode();
+            }
+            throw ex;
+        } finally {
+            cancel(futures);
+        }
+    }
+
+    /**
+     * shutdown the download threads
+     */
+    public void close() {
+        this.executor.shutdownNow();
+    }
+
+    public int getThreadCount() {
+        return threadCount;
+    }
+
+    public int getRangeSize() {
+        return rangeSize;
+    }
+
+    private ServerInfo[] getFetchServers(String groupName, String remoteFileName) throws IOException, FastDFSClientException {
+        TrackerClient tracker = new TrackerClient(this.trackerGroup);
+        ServerInfo[] servers = tracker.getFetchServerInfoList(null, groupName, remoteFileName);
+        if (servers == null || servers.length == 0) {
+            throw new FastDFSClientException("getFetchServerInfoList fail, errno code: " + tracker.getErrorCode(),
+                    tracker.getErrorCode());
+        }
+        return servers;
+    }
+
+    private long queryFileSize(final String groupName, final String remoteFileName,
+                               ServerInfo[] servers) throws IOException, FastDFSClientException {
+        return this.execute(servers, 0, new StorageTask() {
+            public long run(StorageClient client) throws IOException, FastDFSClientException {
+                FileInfo fileInfo = client.query_file_info(groupName, remoteFileName);
+                return fileInfo != null ? fileInfo.getFileSize() : -1;
+            }
+        }, -1);
+    }
+
+    private int getRangeCount(long fileSize) {
+        return (int) ((fileSize + this.rangeSize - 1) / this.rangeSize);
+    }
+
+    private Future<Long> submit(final ServerInfo[] servers, final int index, final StorageTask task,
+                                final long expectResult) {
+        return this.executor.submit(new Callable<Long>() {
+            public Long call() throws IOException, FastDFSClientException {
+                return execute(servers, index, task, expectResult);
+            }
+        });
+    }
+
+    /**
+     * run the task on the storage servers in turn from the index until success
+     *
+     * @param servers      the storage servers holding the file
+     * @param index        the index of the first storage server, the range index for load balance
+     * @param task         the task to run
+     * @param expectResult the expect result, -1 for any
+     * @return the result of the task
+     */
+    private long execute(ServerInfo[] servers, int index, StorageTask task,
+                         long expectResult) throws IOException, FastDFSClientException {
+        IOException lastException = null;
+        byte errno = 0;
+        for (int i = 0; i < servers.length; i++) {
+            ServerInfo server = servers[(index + i) % servers.length];
+            StorageServer storageServer = null;
+            try {
+                storageServer = new StorageServer(server.getIpAddr(), server.getPort(), 0);
+                StorageClient client = new StorageClient(null, storageServer);
+                long result = task.run(client);
+                if (result < 0) {
+                    errno = client.getErrorCode();  //maybe not synced to this server yet, try the others
+                } else if (expectResult >= 0 && result != expectResult) {
+                    lastException = new IOException("recv range size " + result + " != " + expectResult
+                            + " from " + server.getIpAddr() + ":" + server.getPort());
+                } else {
+                    return result;
+                }
+            } catch (IOException ex) {
+                lastException = ex;
+            } finally {
+                if (storageServer != null) {
+                    try {
+                        storageServer.close();
+                    } catch (IOException ex1) {
+                        ex1.printStackTrace();
+                    }
+                }
+            }
+        }
+
+        if (errno != 0) {
+            throw new FastDFSClientException("download fail, errno code: " + errno, errno);
+        }
+        throw lastException;
+    }
+
+    /**
+     * wait for the result of the task, the exception of the task is thrown as is
+     */
+    static <T> T getResult(Future<T> future) throws IOException, FastDFSClientException {
+        try {
+            return future.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("download interrupted");
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof FastDFSClientException) {
+                throw (FastDFSClientException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    static void cancel(Iterable<? extends Future<?>> futures) {
+        for (Future<?> future : futures) {
+            future.cancel(true);
+        }
+    }
+}
@@ -0,0 +1,298 @@
+/**
+ * Copyright (C) 2008 Happy Fish / YuQing
+ * <p>
+ * FastDFS Java Client may be copied only under the terms of the GNU Lesser
+ * General Public License (LGPL).
+ * Please visit the FastDFS Home Page http://www.csource.org/ for more detail.
+ */
+
+package org.csource.fastdfs;
+
+import org.csource.common.FastDFSClientException;
+import org.csource.common.NameValuePair;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Parallel chunked upload of a large local file: an empty appender file is created and
+ * truncated to the file size, then the chunks are written concurrently by modify_file at
+ * their offsets, each by its own connection to the storage server of the appender file.
+ * Extending the appender file by truncate_file and modifying it beyond its end require
+ * a storage server accepting them, the stock FastDFS storage server answers EINVAL, then
+ * the chunks are appended in order by append_file on one connection instead.
+ * The file size is checked by query_file_info at last, the appender file is deleted when fail.
+ * The file not larger than a chunk is uploaded as an appender file directly.
+ * The server error code is carried by org.csource.common.FastDFSClientException
+ *
+ * @author Happy Fish / YuQing
+ * @version Version 1.26
+ */
+public class ParallelUploader {
+    public static final int DEFAULT_THREAD_COUNT = 4;
+    public static final int DEFAULT_CHUNK_SIZE = 8 * 1024 * 1024;
+
+    private final TrackerGroup trackerGroup;
+    private final ThreadPoolExecutor executor;
+    private final int threadCount;
+    private final int chunkSize;
+
+    /**
+     * constructor with global tracker group and default settings
+     */
+    public ParallelUploader() {
+        this(ClientGlobal.G_TRACKER_GROUP, DEFAULT_THREAD_COUNT, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * constructor with global tracker group
+     *
+     * @param threadCount the count of the chunks uploaded concurrently
+     * @param chunkSize   the bytes of a chunk
+     */
+    public ParallelUploader(int threadCount, int chunkSize) {
+        this(ClientGlobal.G_TRACKER_GROUP, threadCount, chunkSize);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param trackerGroup the tracker group object
+     * @param threadCount  the count of the chunks uploaded concurrently
+     * @param chunkSize    the bytes of a chunk
+     */
+    public ParallelUploader(TrackerGroup trackerGroup, int threadCount, int chunkSize) {
+        if (threadCount <= 0) {
+            throw new IllegalArgumentException("threadCount: " + threadCount + " <= 0");
+        }
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("chunkSize: " + chunkSize + " <= 0");
+        }
+
+        this.trackerGroup = trackerGroup;
+        this.threadCount = threadCount;
+        this.chunkSize = chunkSize;
+
+        final AtomicInteger threadIndex = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threadCount, threadCount, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "fastdfs-upload-" + threadIndex.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * upload local file to storage server as an appender file
+     *
+     * @param groupName     the group name to upload file to, can be empty
+     * @param localFileName local filename to upload
+     * @param fileExtName   file ext name, do not include dot(.), null to extract ext name from the local filename
+     * @param metaList      meta info array
+     * @return file id(including group name and filename)
+     */
+    public String upload_file1(String groupName, String localFileName, String fileExtName,
+                               NameValuePair[] metaList) throws IOException, FastDFSClientException {
+        String[] results = this.upload_file(groupName, localFileName, fileExtName, metaList);
+        return results[0] + StorageClient1.SPLIT_GROUP_NAME_AND_FILENAME_SEPERATOR + results[1];
+    }
+
+    /**
+     * upload local file to storage server as an appender file
+     *
+     * @param groupName     the group name to upload file to, can be empty
+     * @param localFileName local filename to upload
+     * @param fileExtName   file ext name, do not include dot(.), null to extract ext name from the local filename
+     * @param metaList      meta info array
+     * @return 2 elements string array:<br>
+     * <ul><li>results[0]: the group name to store the file</li></ul>
+     * <ul><li>results[1]: the new created appender filename</li></ul>
+     */
+    public String[] upload_file(String groupName, String localFileName, String fileExtName,
+                                NameValuePair[] metaList) throws IOException, FastDFSClientException {
+        if (fileExtName == null) {
+            fileExtName = StorageClient.getExtension(localFileName);
+        }
+
+        TrackerClient tracker = new TrackerClient(this.trackerGroup);
+        StorageServer storageServer = tracker.getStorageServer(null, groupName);
+        if (storageServer == null) {
+            throw new FastDFSClientException("getStorageServer fail, errno code: " + tracker.getErrorCode(),
+                    tracker.getErrorCode());
+        }
+
+        //the storage server uploaded to is the source server of the appender file, it updates the file
+        InetSocketAddress address = storageServer.getInetSocketAddress();
+        FileInputStream fis = new FileInputStream(localFileName);
+        try {
+            FileChannel fileChannel = fis.getChannel();
+            long fileSize = fileChannel.size();
+            StorageClient client = new StorageClient(null, storageServer);
+            if (fileSize <= this.chunkSize) {
+                return check(client.upload_appender_file(groupName, fileSize,
+                        new UploadFileChannel(fileChannel, 0, fileSize), fileExtName, metaList), client);
+            }
+
+            String[] results = check(client.upload_appender_file(groupName, new byte[0], fileExtName, metaList),
+                    client);
+            boolean success = false;
+            try {
+                this.uploadChunks(client, address, results[0], results[1], fileChannel, fileSize);
+                success = true;
+                return results;
+            } finally {
+                if (!success) {
+                    deleteFile(address, results[0], results[1]);
+                }
+            }
+        } finally {
+            fis.close();
+            try {
+                storageServer.close();
+            } catch (IOException ex1) {
+                ex1.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * shutdown the upload threads
+     */
+    public void close() {
+        this.executor.shutdownNow();
+    }
+
+    public int getThreadCount() {
+        return threadCount;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    private void uploadChunks(StorageClient client, InetSocketAddress address, String groupName, String appenderFileName,
+                              FileChannel fileChannel, long fileSize) throws IOException, FastDFSClientException {
+        if (client.truncate_file(groupName, appenderFileName, fileSize) == 0) {
+            this.modifyChunks(address, groupName, appenderFileName, fileChannel, fileSize);
+        } else if (client.getErrorCode() == ProtoCommon.ERR_NO_EINVAL) {
+            //the storage server can't extend the appender file, append the chunks in order
+            for (long offset = 0; offset < fileSize; offset += this.chunkSize) {
+                long length = Math.min(this.chunkSize, fileSize - offset);
+                if (client.append_file(groupName, appenderFileName, length,
+                        new UploadFileChannel(fileChannel, offset, length)) != 0) {
+                    throw new FastDFSClientException("append_file at offset " + offset
+                            + " fail, errno code: " + client.getErrorCode(), client.getErrorCode());
+                }
+            }
+        } else {
+            throw new FastDFSClientException("truncate_file fail, errno code: " + client.getErrorCode(),
+                    client.getErrorCode());
+        }
+
+        FileInfo fileInfo = client.query_file_info(groupName, appenderFileName);
+        if (fileInfo == null) {
+            throw new FastDFSClientException("query_file_info fail, errno code: " + client.getErrorCode(),
+                    client.getErrorCode());
+        }
+        if (fileInfo.getFileSize() != fileSize) {
+            throw new IOException("uploaded file size " + fileInfo.getFileSize() + " != " + fileSize);
+        }
+    }
+
+    /**
+     * write the chunks concurrently to the appender file truncated to the file size
+     */
+    private void modifyChunks(final InetSocketAddress address, final String groupName, final String appenderFileName,
+                              final FileChannel fileChannel, long fileSize) throws IOException, FastDFSClientException {
+        final AtomicBoolean aborted = new AtomicBoolean();
+        List<Future<Void>> futures = new ArrayList<Future<Void>>();
+        boolean success = false;
+        try {
+            for (long offset = 0; offset < fileSize; offset += this.chunkSize) {
+                final long chunkOffset = offset;
+                final long length = Math.min(this.chunkSize, fileSize - offset);
+                futures.add(this.executor.submit(new Callable<Void>() {
+                    public Void call() throws IOException, FastDFSClientException {
+                        if (aborted.get()) {
+                            return null;
+                        }
+                        StorageClient chunkClient = newClient(address);
+                        try {
+                            if (chunkClient.modify_file(groupName, appenderFileName, chunkOffset, length,
+                                    new UploadFileChannel(fileChannel, chunkOffset, length)) != 0) {
+                                throw new FastDFSClientException("modify_file at offset " + chunkOffset
+                                        + " fail, errno code: " + chunkClient.getErrorCode(), chunkClient.getErrorCode());
+                            }
+                        } finally {
+                            chunkClient.storageServer.close();
+                        }
+                        return null;
+                    }
+                }));
+            }
+
+            for (Future<Void> future : futures) {
+                ParallelDownloader.getResult(future);
+            }
+            success = true;
+        } finally {
+            if (!success) {
+                //the chunks not started are skipped, wait for the running ones before the appender file deleted
+                aborted.set(true);
+                for (Future<Void> future : futures) {
+                    try {
+                        future.get();
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    } catch (ExecutionException ex) {
+                        //the failure is thrown already
+                    }
+                }
+            }
+        }
+    }
+
+    private static StorageClient newClient(InetSocketAddress address) throws IOException {
+        return new StorageClient(null, new StorageServer(address.getHostString(), address.getPort(), 0));
+    }
+
+    /**
+     * delete the appender file by a new connection, the connection of the upload may be broken
+     */
+    private static void deleteFile(InetSocketAddress address, String groupName, String appenderFileName) {
+        try {
+            StorageClient client = newClient(address);
+            try {
+                client.delete_file(groupName, appenderFileName);
+            } finally {
+                client.storageServer.close();
+            }
+        } catch (Exception ex) {
+            ex.printStackTrace();
+        }
+    }
+
+    private static String[] check(String[] results, StorageClient client) throws FastDFSClientException {
+        if (results == null) {
+            throw new FastDFSClientException("upload_appender_file fail, errno code: " + client.getErrorCode(),
+                    client.getErrorCode());
+        }
+        return results;
+    }
+}
@@ -0,0 +1,683 @@
+/**
+ * Copyright (C) 2008 Happy Fish / YuQing
+ * <p>
+ * FastDFS Java Client may be copied only under the terms of the GNU Lesser
+ * General Public License (LGPL).
+ * Please visit the FastDFS Home Page http://www.csource.org/ for more detail.
+ */
+
+package org.csource.fastdfs;
+
+import org.csource.common.FastDFSClientException;
+import org.csource.common.NameValuePair;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+
+/**
+ * encode request packages and decode response bodies of the FastDFS protocol,
+ * shared by the blocking clients and the non-blocking transport.<br>
+ * The blocking clients encode the headers and fixed fields into the reusable buffer
+ * of the codec and decode the responses in place, the static methods return
+ * new arrays for the non-blocking transport
+ *
+ * @author Happy Fish / YuQing
+ * @version Version 1.26
+ */
+public class ProtoCodec {
+    /**
+     * storage server info answered by tracker server for uploading
+     */
+    public static class StoreServerInfo extends ServerInfo {
+        private String groupName;
+        private int storePathIndex;
+
+        public StoreServerInfo(String groupName, String ipAddr, int port, byte storePath) {
+            super(ipAddr, port);
+            this.groupName = groupName;
+            this.storePathIndex = storePath < 0 ? 256 + storePath : storePath;
+        }
+
+        public String getGroupName() {
+            return groupName;
+        }
+
+        public int getStorePathIndex() {
+            return storePathIndex;
+        }
+    }
+
+    private static final int HEADER_LENGTH = ProtoCommon.FDFS_PROTO_PKG_LEN_SIZE + 2;
+    private static final int INIT_BUFFER_SIZE = 512;
+    private static final int MAX_BUFFERED_BODY_LENGTH = 64 * 1024 * 1024;
+    private static final int SHRINK_THRESHOLD = 64 * 1024;  //the larger buffer is not kept after use
+    private static final String ASCII_SAMPLE = "09AZaz./-_";
+
+    private static final ThreadLocal<ProtoCodec> codecs = new ThreadLocal<ProtoCodec>() {
+        protected ProtoCodec initialValue() {
+            return new ProtoCodec();
+        }
+    };
+    private static volatile String asciiCompatibleCharset;
+
+    private byte[] buff = new byte[INIT_BUFFER_SIZE];
+    private int length;       //the length of the encoded package or the received body
+    private long bodyLength;  //the body length of the received header
+
+    /**
+     * constructor, the codec of the blocking clients is got by ProtoCodec.get(),
+     * a connection is used by one thread at a time so the buffer is reused for
+     * all requests of the thread
+     */
+    ProtoCodec() {
+    }
+
+    /**
+     * group name to fixed length bytes, padding with 0
+     *
+     * @param groupName the group name
+     * @return FDFS_GROUP_NAME_MAX_LEN bytes
+     */
+    public static byte[] packGroupName(String groupName) throws UnsupportedEncodingException {
+        byte[] bGroupName = new byte[ProtoCommon.FDFS_GROUP_NAME_MAX_LEN];
+        byte[] bs = groupName.getBytes(ClientGlobal.G_CHARSET);
+        int len;
+
+        if (bs.length <= ProtoCommon.FDFS_GROUP_NAME_MAX_LEN) {
+            len = bs.length;
+        } else {
+            len = ProtoCommon.FDFS_GROUP_NAME_MAX_LEN;
+        }
+        Arrays.fill(bGroupName, (byte) 0);
+        System.arraycopy(bs, 0, bGroupName, 0, len);
+        return bGroupName;
+    }
+
+    /**
+     * pack tracker query store package
+     *
+     * @param groupName the group name to upload file to, can be empty
+     * @return the whole package
+     */
+    public static byte[] packQueryStore(String groupName) throws UnsupportedEncodingException {
+        ProtoCodec codec = new ProtoCodec();
+        codec.encodeQueryStore(groupName);
+        return codec.toByteArray();
+    }
+
+    /**
+     * pack package with group name and filename, such as tracker query fetch / update,
+     * storage delete file, get metadata and query file info
+     *
+     * @param cmd       the command
+     * @param groupName the group name
+     * @param filename  the filename
+     * @return the whole package
+     */
+    public static byte[] packFileCommand(byte cmd, String groupName, String filename) throws UnsupportedEncodingException {
+        ProtoCodec codec = new ProtoCodec();
+        codec.encodeFileCommand(cmd, groupName, filename);
+        return codec.toByteArray();
+    }
+
+    /**
+     * pack upload package without file content
+     *
+     * @param cmd            the command code
+     * @param storePathIndex the store path index on the storage server
+     * @param masterFileName the master file name to generate the slave file, null for not slave file
+     * @param prefixName     the prefix name to generate the slave file
+     * @param fileExtName    file ext name, do not include dot(.)
+     * @param fileSize       the file size
+     * @return the package before file content
+     */
+    public static byte[] packUpload(byte cmd, int storePathIndex, String masterFileName, String prefixName,
+                                    String fileExtName, long fileSize) throws UnsupportedEncodingException {
+        ProtoCodec codec = new ProtoCodec();
+        codec.encodeUpload(cmd, storePathIndex, masterFileName, prefixName, fileExtName, fileSize);
+        return codec.toByteArray();
+    }
+
+    /**
+     * pack append package without file content
+     *
+     * @param appenderFileName the appender filename
+     * @param fileSize         the size to append
+     * @return the package before file content
+     */
+    public static byte[] packAppend(String appenderFileName, long fileSize) throws UnsupportedEncodingException {
+        ProtoCodec codec = new ProtoCodec();
+        codec.encodeAppend(appenderFileName, fileSize);
+        return codec.toByteArray();
+    }
+
+    /**
+     * pack modify package without file content
+     *
+     * @param appenderFileName the appender filename
+     * @param fileOffset       the offset of appender file
+     * @param modifySize       the modify size
+     * @return the package before file content
+     */
+    public static byte[] packModify(String appenderFileName, long fileOffset, long modifySize) throws UnsupportedEncodingException {
+        ProtoCodec codec = new ProtoCodec();
+        codec.encodeModify(appenderFileName, fileOffset, modifySize);
+        return codec.toByteArray();
+    }
+
+    /**
+     * pack truncate package
+     *
+     * @param appenderFileName  the appender filename
+     * @param truncatedFileSize truncated file size
+     * @return the whole package
+     */
+    public static byte[] packTruncate(String appenderFileName, long truncatedFileSize) throws UnsupportedEncodingException {
+        ProtoCodec codec = new ProtoCodec();
+        codec.encodeTruncate(appenderFileName, truncatedFileSize);
+        return codec.toByteArray();
+    }
+
+    /**
+     * pack download package
+     *
+     * @param groupName     the group name of storage server
+     * @param filename      filename on storage server
+     * @param fileOffset    the start offset of the file
+     * @param downloadBytes download bytes, 0 for remain bytes from offset
+     * @return the whole package
+     */
+    public static byte[] packDownload(String groupName, String filename, long fileOffset, long downloadBytes) throws UnsupportedEncodingException {
+        ProtoCodec codec = new ProtoCodec();
+        codec.encodeDownload(groupName, filename, fileOffset, downloadBytes);
+        return codec.toByteArray();
+    }
+
+    /**
+     * pack set metadata package, including the metadata
+     *
+     * @param groupName the group name of storage server
+     * @param filename  filename on storage server
+     * @param metaList  meta item array, can be null
+     * @param op_flag   flag, ProtoCommon.STORAGE_SET_METADATA_FLAG_OVERWRITE or
+     *                  ProtoCommon.STORAGE_SET_METADATA_FLAG_MERGE
+     * @return the whole package
+     */
+    public static byte[] packSetMetadata(String groupName, String filename,
+                                         NameValuePair[] metaList, byte op_flag) throws UnsupportedEncodingException {
+        ProtoCodec codec = new ProtoCodec();
+        codec.encodeSetMetadata(groupName, filename, metaList, op_flag);
+        return codec.toByteArray();
+    }
+
+    /**
+     * decode the response body of tracker query store
+     *
+     * @param body the response body
+     * @return the storage server to upload file to
+     */
+    public static StoreServerInfo decodeStoreServer(byte[] body) throws IOException {
+        return decodeStoreServer(body, body.length);
+    }
+
+    private static StoreServerInfo decodeStoreServer(byte[] body, int length) throws IOException {
+        if (length != ProtoCommon.TRACKER_QUERY_STORAGE_STORE_BODY_LEN) {
+            throw new IOException("Invalid body length: " + length);
+        }
+
+        String groupName = new String(body, 0, ProtoCommon.FDFS_GROUP_NAME_MAX_LEN).trim();
+        String ipAddr = new String(body, ProtoCommon.FDFS_GROUP_NAME_MAX_LEN, ProtoCommon.FDFS_IPADDR_SIZE - 1).trim();
+        int port = (int) ProtoCommon.buff2long(body, ProtoCommon.FDFS_GROUP_NAME_MAX_LEN
+                + ProtoCommon.FDFS_IPADDR_SIZE - 1);
+        byte storePath = body[ProtoCommon.TRACKER_QUERY_STORAGE_STORE_BODY_LEN - 1];
+        return new StoreServerInfo(groupName, ipAddr, port, storePath);
+    }
+
+    /**
+     * decode the response body of tracker query fetch / update
+     *
+     * @param body the response body
+     * @return the storage servers
+     */
+    public static ServerInfo[] decodeFetchServers(byte[] body) throws IOException {
+        return decodeFetchServers(body, body.length);
+    }
+
+    private static ServerInfo[] decodeFetchServers(byte[] body, int length) throws IOException {
+        if (length < ProtoCommon.TRACKER_QUERY_STORAGE_FETCH_BODY_LEN) {
+            throw new IOException("Invalid body length: " + length);
+        }
+
+        if ((length - ProtoCommon.TRACKER_QUERY_STORAGE_FETCH_BODY_LEN) % (ProtoCommon.FDFS_IPADDR_SIZE - 1) != 0) {
+            throw new IOException("Invalid body length: " + length);
+        }
+
+        int serverCount = 1 + (length - ProtoCommon.TRACKER_QUERY_STORAGE_FETCH_BODY_LEN) / (ProtoCommon.FDFS_IPADDR_SIZE - 1);
+
+        String ipAddr = new String(body, ProtoCommon.FDFS_GROUP_NAME_MAX_LEN, ProtoCommon.FDFS_IPADDR_SIZE - 1).trim();
+        int offset = ProtoCommon.FDFS_GROUP_NAME_MAX_LEN + ProtoCommon.FDFS_IPADDR_SIZE - 1;
+
+        int port = (int) ProtoCommon.buff2long(body, offset);
+        offset += ProtoCommon.FDFS_PROTO_PKG_LEN_SIZE;
+
+        ServerInfo[] servers = new ServerInfo[serverCount];
+        servers[0] = new ServerInfo(ipAddr, port);
+        for (int i = 1; i < serverCount; i++) {
+            servers[i] = new ServerInfo(new String(body, offset, ProtoCommon.FDFS_IPADDR_SIZE - 1).trim(), port);
+            offset += ProtoCommon.FDFS_IPADDR_SIZE - 1;
+        }
+
+        return servers;
+    }
+
+    /**
+     * decode the response body of upload
+     *
+     * @param body the response body
+     * @return 2 elements string array: the group name and the new created filename
+     */
+    public static String[] decodeUploadResult(byte[] body) throws FastDFSClientException {
+        return decodeUploadResult(body, body.length);
+    }
+
+    private static String[] decodeUploadResult(byte[] body, int length) throws FastDFSClientException {
+        if (length <= ProtoCommon.FDFS_GROUP_NAME_MAX_LEN) {
+            throw new FastDFSClientException("body length: " + length + " <= " + ProtoCommon.FDFS_GROUP_NAME_MAX_LEN);
+        }
+
+        String[] results = new String[2];
+        results[0] = new String(body, 0, ProtoCommon.FDFS_GROUP_NAME_MAX_LEN).trim();
+        results[1] = new String(body, ProtoCommon.FDFS_GROUP_NAME_MAX_LEN, length - ProtoCommon.FDFS_GROUP_NAME_MAX_LEN);
+        return results;
+    }
+
+    /**
+     * @return the expected response body length of query file info
+     */
+    public static int getFileInfoBodyLength() {
+        return 3 * ProtoCommon.FDFS_PROTO_PKG_LEN_SIZE + ProtoCommon.FDFS_IPADDR_SIZE;
+    }
+
+    /**
+     * decode the response body of query file info
+     *
+     * @param body the response body
+     * @return FileInfo object
+     */
+    public static FileInfo decodeFileInfo(byte[] body) {
+        long file_size = ProtoCommon.buff2long(body, 0);
+        int create_timestamp = (int) ProtoCommon.buff2long(body, ProtoCommon.FDFS_PROTO_PKG_LEN_SIZE);
+        int crc32 = (int) ProtoCommon.buff2long(body, 2 * ProtoCommon.FDFS_PROTO_PKG_LEN_SIZE);
+        String source_ip_addr = (new String(body, 3 * ProtoCommon.FDFS_PROTO_PKG_LEN_SIZE, ProtoCommon.FDFS_IPADDR_SIZE)).trim();
+        return new FileInfo(file_size, create_timestamp, crc32, source_ip_addr);
+    }
+
+    /**
+     * @return the codec of the current thread
+     */
+    static ProtoCodec get() {
+        return codecs.get();
+    }
+
+    /**
+     * @return the buffer holding the encoded package or the received body
+     */
+    byte[] array() {
+        return this.buff;
+    }
+
+    /**
+     * @return the length of the encoded package or the received body
+     */
+    int length() {
+        return this.length;
+    }
+
+    /**
+     * @return the copy of the encoded package or the received body
+     */
+    byte[] toByteArray() {
+        return Arrays.copyOf(this.buff, this.length);
+    }
+
+    /**
+     * write the encoded package
+     *
+     * @param out the output stream
+     */
+    void writeTo(OutputStream out) throws IOException {
+        out.write(this.buff, 0, this.length);
+    }
+
+    void encodeQueryStore(String groupName) throws UnsupportedEncodingException {
+        if (groupName == null || groupName.length() == 0) {
+            begin(ProtoCommon.TRACKER_PROTO_CMD_SERVICE_QUERY_STORE_WITHOUT_GROUP_ONE);
+        } else {
+            begin(ProtoCommon.TRACKER_PROTO_CMD_SERVICE_QUERY_STORE_WITH_GROUP_ONE);
+            putFixedString(groupName, ProtoCommon.FDFS_GROUP_NAME_MAX_LEN);
+        }
+        end(0);
+    }
+
+    void encodeFileCommand(byte cmd, String groupName, String filename) throws UnsupportedEncodingException {
+        begin(cmd);
+        putFixedString(groupName, ProtoCommon.FDFS_GROUP_NAME_MAX_LEN);
+        putString(filename);
+        end(0);
+    }
+
+    void encodeUpload(byte cmd, int storePathIndex, String masterFileName, String prefixName,
+                      String fileExtName, long fileSize) throws UnsupportedEncodingException {
+        begin(cmd);
+        if (masterFileName != null) {
+            putLong(masterFileName.length());
+            putLong(fileSize);
+            putFixedString(prefixName, ProtoCommon.FDFS_FILE_PREFIX_MAX_LEN);
+            putFixedString(fileExtName, ProtoCommon.FDFS_FILE_EXT_NAME_MAX_LEN);
+            putString(masterFileName);
+        } else {
+            putByte(storePathIndex);
+            putLong(fileSize);
+            putFixedString(fileExtName, ProtoCommon.FDFS_FILE_EXT_NAME_MAX_LEN);
+        }
+        end(fileSize);
+    }
+
+    void encodeAppend(String appenderFileName, long fileSize) throws UnsupportedEncodingException {
+        begin(ProtoCommon.STORAGE_PROTO_CMD_APPEND_FILE);
+        putLong(appenderFileName.length());
+        putLong(fileSize);
+        putString(appenderFileName);
+        end(fileSize);
+    }
+
+    void encodeModify(String appenderFileName, long fileOffset, long modifySize) throws UnsupportedEncodingException {
+        begin(ProtoCommon.STORAGE_PROTO_CMD_MODIFY_FILE);
+        putLong(appenderFileName.length());
+        putLong(fileOffset);
+        putLong(modifySize);
+        putString(appenderFileName);
+        end(modifySize);
+    }
+
+    void encodeTruncate(String appenderFileName, long truncatedFileSize) throws UnsupportedEncodingException {
+        begin(ProtoCommon.STORAGE_PROTO_CMD_TRUNCATE_FILE);
+        putLong(appenderFileName.length());
+        putLong(truncatedFileSize);
+        putString(appenderFileName);
+        end(0);
+    }
+
+    void encodeRegenerate(String appenderFileName) throws UnsupportedEncodingException {
+        begin(ProtoCommon.STORAGE_PROTO_CMD_REGENERATE_APPENDER_FILENAME);
+        putString(appenderFileName);
+        end(0);
+    }
+
+    void encodeDownload(String groupName, String filename, long fileOffset, long downloadBytes) throws UnsupportedEncodingException {
+        begin(ProtoCommon.STORAGE_PROTO_CMD_DOWNLOAD_FILE);
+        putLong(fileOffset);
+        putLong(downloadBytes);
+        putFixedString(groupName, ProtoCommon.FDFS_GROUP_NAME_MAX_LEN);
+        putString(filename);
+        end(0);
+    }
+
+    void encodeSetMetadata(String groupName, String filename, NameValuePair[] metaList, byte op_flag) throws UnsupportedEncodingException {
+        begin(ProtoCommon.STORAGE_PROTO_CMD_SET_METADATA);
+        int sizeOffset = this.length;
+        putLong(0);  //filename length, set below
+        putLong(0);  //metadata length, set below
+        putByte(op_flag);
+        putFixedString(groupName, ProtoCommon.FDFS_GROUP_NAME_MAX_LEN);
+
+        int offset = this.length;
+        putString(filename);
+        setLong(sizeOffset, this.length - offset);
+
+        offset = this.length;
+        if (metaList != null) {
+            putString(ProtoCommon.pack_metadata(metaList));
+        }
+        setLong(sizeOffset + ProtoCommon.FDFS_PROTO_PKG_LEN_SIZE, this.length - offset);
+        end(0);
+    }
+
+    /**
+     * receive the response header into the buffer
+     *
+     * @param in              the input stream
+     * @param expectCmd       expect response command
+     * @param expectBodyLen   expect response package body length, -1 for any length
+     * @return the status (errno) of the response
+     */
+    byte recvHeader(InputStream in, byte expectCmd, long expectBodyLen) throws IOException {
+        this.length = 0;
+        this.bodyLength = 0;
+        readFully(in, HEADER_LENGTH);
+        if (this.buff[ProtoCommon.PROTO_HEADER_CMD_INDEX] != expectCmd) {
+            throw new IOException("recv cmd: " + this.buff[ProtoCommon.PROTO_HEADER_CMD_INDEX]
+                    + " is not correct, expect cmd: " + expectCmd);
+        }
+
+        byte status = this.buff[ProtoCommon.PROTO_HEADER_STATUS_INDEX];
+        if (status != 0) {
+            return status;
+        }
+
+        long pkgLen = ProtoCommon.buff2long(this.buff, 0);
+        if (pkgLen < 0) {
+            throw new IOException("recv body length: " + pkgLen + " < 0!");
+        }
+        if (expectBodyLen >= 0 && pkgLen != expectBodyLen) {
+            throw new IOException("recv body length: " + pkgLen + " is not correct, expect length: " + expectBodyLen);
+        }
+
+        this.bodyLength = pkgLen;
+        return 0;
+    }
+
+    /**
+     * @return the body length of the received header
+     */
+    long getBodyLength() {
+        return this.bodyLength;
+    }
+
+    /**
+     * receive the whole response, the body is kept in the buffer
+     *
+     * @param in            the input stream
+     * @param expectCmd     expect response command
+     * @param expectBodyLen expect response package body length, -1 for any length
+     * @return the status (errno) of the response
+     */
+    byte recvPackage(InputStream in, byte expectCmd, long expectBodyLen) throws IOException {
+        byte status = recvHeader(in, expectCmd, expectBodyLen);
+        if (status != 0) {
+            return status;
+        }
+
+        if (this.bodyLength > MAX_BUFFERED_BODY_LENGTH) {
+            throw new IOException("recv body length: " + this.bodyLength + " is too large");
+        }
+        readFully(in, (int) this.bodyLength);
+        return 0;
+    }
+
+    /**
+     * skip the body of the error response received by recvHeader, so the next
+     * response on the connection can be received
+     *
+     * @param in the input stream
+     */
+    void skipErrorBody(InputStream in) throws IOException {
+        long remain = ProtoCommon.buff2long(this.buff, 0);
+        while (remain > 0) {
+            int bytes = (int) Math.min(remain, this.buff.length);
+            ProtoCommon.readFully(in, this.buff, 0, bytes);
+            remain -= bytes;
+        }
+        this.length = 0;
+    }
+
+    /**
+     * receive the body of the received header to a new array
+     *
+     * @param in the input stream
+     * @return the body
+     */
+    byte[] recvBody(InputStream in) throws IOException {
+        if (this.bodyLength > Integer.MAX_VALUE) {
+            throw new IOException("recv body length: " + this.bodyLength + " is too large");
+        }
+
+        byte[] body = new byte[(int) this.bodyLength];
+        ProtoCommon.readFully(in, body, 0, body.length);
+        return body;
+    }
+
+    StoreServerInfo decodeStoreServer() throws IOException {
+        return decodeStoreServer(this.buff, this.length);
+    }
+
+    ServerInfo[] decodeFetchServers() throws IOException {
+        return decodeFetchServers(this.buff, this.length);
+    }
+
+    String[] decodeUploadResult() throws FastDFSClientException {
+        return decodeUploadResult(this.buff, this.length);
+    }
+
+    FileInfo decodeFileInfo() {
+        return decodeFileInfo(this.buff);
+    }
+
+    String decodeString(String charset) throws UnsupportedEncodingException {
+        return new String(this.buff, 0, this.length, charset);
+    }
+
+    /**
+     * drop the buffer grown by a large package, such as the metadata, and go back to the initial
+     * size, so the thread does not keep it. Called after the package is decoded or sent
+     */
+    void shrink() {
+        if (this.buff.length > SHRINK_THRESHOLD) {
+            this.buff = new byte[INIT_BUFFER_SIZE];
+            this.length = 0;
+        }
+    }
+
+    private void begin(byte cmd) {
+        this.shrink();
+        this.length = HEADER_LENGTH;
+        this.buff[ProtoCommon.PROTO_HEADER_CMD_INDEX] = cmd;
+        this.buff[ProtoCommon.PROTO_HEADER_STATUS_INDEX] = 0;
+    }
+
+    /**
+     * set the package length of the header
+     *
+     * @param contentLength the length of the content sent after the package, such as the file content
+     */
+    private void end(long contentLength) {
+        setLong(0, this.length - HEADER_LENGTH + contentLength);
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > this.buff.length) {
+            this.buff = Arrays.copyOf(this.buff, Math.max(capacity, 2 * this.buff.length));
+        }
+    }
+
+    private void putByte(int b) {
+        ensureCapacity(this.length + 1);
+        this.buff[this.length++] = (byte) b;
+    }
+
+    private void putLong(long n) {
+        ensureCapacity(this.length + ProtoCommon.FDFS_PROTO_PKG_LEN_SIZE);
+        setLong(this.length, n);
+        this.length += ProtoCommon.FDFS_PROTO_PKG_LEN_SIZE;
+    }
+
+    private void setLong(int offset, long n) {
+        for (int i = ProtoCommon.FDFS_PROTO_PKG_LEN_SIZE - 1; i >= 0; i--) {
+            this.buff[offset + i] = (byte) (n & 0xFF);
+            n >>= 8;
+        }
+    }
+
+    /**
+     * put the string padding with 0 to the fixed length, truncated when too long
+     */
+    private void putFixedString(String s, int fixedLength) throws UnsupportedEncodingException {
+        ensureCapacity(this.length + fixedLength);
+        int offset = this.length;
+        if (s != null) {
+            putString(s);
+            if (this.length - offset > fixedLength) {
+                this.length = offset + fixedLength;
+            }
+        }
+        Arrays.fill(this.buff, this.length, offset + fixedLength, (byte) 0);
+        this.length = offset + fixedLength;
+    }
+
+    /**
+     * put the string, the ASCII string is put char by char without encoding
+     */
+    private void putString(String s) throws UnsupportedEncodingException {
+        int len = s.length();
+        if (isAsciiCompatible(ClientGlobal.G_CHARSET)) {
+            ensureCapacity(this.length + len);
+            int i;
+            for (i = 0; i < len; i++) {
+                char c = s.charAt(i);
+                if (c >= 0x80) {
+                    break;
+                }
+                this.buff[this.length + i] = (byte) c;
+            }
+            if (i == len) {
+                this.length += len;
+                return;
+            }
+        }
+
+        byte[] bs = s.getBytes(ClientGlobal.G_CHARSET);
+        ensureCapacity(this.length + bs.length);
+        System.arraycopy(bs, 0, this.buff, this.length, bs.length);
+        this.length += bs.length;
+    }
+
+    private void readFully(InputStream in, int count) throws IOException {
+        ensureCapacity(count);
+        ProtoCommon.readFully(in, this.buff, 0, count);
+        this.length = count;
+    }
+
+    /**
+     * @return true if the ASCII chars are encoded as one byte of the same value
+     */
+    private static boolean isAsciiCompatible(String charset) throws UnsupportedEncodingException {
+        if (charset == asciiCompatibleCharset) {
+            return true;
+        }
+
+        byte[] bs = ASCII_SAMPLE.getBytes(charset);
+        if (bs.length != ASCII_SAMPLE.length()) {
+            return false;
+        }
+        for (int i = 0; i < bs.length; i++) {
+            if (bs[i] != ASCII_SAMPLE.charAt(i)) {
+                return false;
+            }
+        }
+        asciiCompatibleCharset = charset;
+        return true;
+    }
+}
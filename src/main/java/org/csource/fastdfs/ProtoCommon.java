@@ -75,6 +75,7 @@ public class ProtoCommon {
     public static final byte STORAGE_PROTO_CMD_APPEND_FILE = 24;  //append file
     public static final byte STORAGE_PROTO_CMD_MODIFY_FILE = 34;  //modify appender file
     public static final byte STORAGE_PROTO_CMD_TRUNCATE_FILE = 36;  //truncate appender file
+    public static final byte STORAGE_PROTO_CMD_REGENERATE_APPENDER_FILENAME = 38;  //convert appender file to normal file
 
     public static final byte STORAGE_PROTO_CMD_RESP = TRACKER_PROTO_CMD_RESP;
 
@@ -195,14 +196,10 @@ public class ProtoCommon {
      */
     public static RecvHeaderInfo recvHeader(InputStream in, byte expect_cmd, long expect_body_len) throws IOException {
         byte[] header;
-        int bytes;
         long pkg_len;
 
         header = new byte[FDFS_PROTO_PKG_LEN_SIZE + 2];
-
-        if ((bytes = in.read(header)) != header.length) {
-            throw new IOException("recv package size " + bytes + " != " + header.length);
-        }
+        readFully(in, header, 0, header.length);
 
         if (header[PROTO_HEADER_CMD_INDEX] != expect_cmd) {
             throw new IOException("recv cmd: " + header[PROTO_HEADER_CMD_INDEX] + " is not correct, expect cmd: " + expect_cmd);
@@ -238,24 +235,24 @@ public class ProtoCommon {
         }
 
         byte[] body = new byte[(int) header.body_len];
-        int totalBytes = 0;
-        int remainBytes = (int) header.body_len;
-        int bytes;
+        readFully(in, body, 0, body.length);
+        return new RecvPackageInfo((byte) 0, body);
+    }
 
-        while (totalBytes < header.body_len) {
-            if ((bytes = in.read(body, totalBytes, remainBytes)) < 0) {
-                break;
+    /**
+     * receive exact length bytes, the short reads are continued
+     * @param in input stream
+     * @param buff the buffer to fill
+     * @param offset the start offset of the buffer
+     * @param length the bytes to receive
+     */
+    public static void readFully(InputStream in, byte[] buff, int offset, int length) throws IOException {
+        int bytes;
+        for (int totalBytes = 0; totalBytes < length; totalBytes += bytes) {
+            if ((bytes = in.read(buff, offset + totalBytes, length - totalBytes)) < 0) {
+                throw new IOException("recv package size " + totalBytes + " != " + length);
             }
-
-            totalBytes += bytes;
-            remainBytes -= bytes;
         }
-
-        if (totalBytes != header.body_len) {
-            throw new IOException("recv package size " + totalBytes + " != " + header.body_len);
-        }
-
-        return new RecvPackageInfo((byte) 0, body);
     }
 
     /**
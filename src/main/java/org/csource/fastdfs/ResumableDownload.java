@@ -0,0 +1,213 @@
+/**
+ * Copyright (C) 2008 Happy Fish / YuQing
+ * <p>
+ * FastDFS Java Client may be copied only under the terms of the GNU Lesser
+ * General Public License (LGPL).
+ * Please visit the FastDFS Home Page http://www.csource.org/ for more detail.
+ */
+
+package org.csource.fastdfs;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Properties;
+import java.util.zip.CRC32;
+
+/**
+ * State of a resumable download: the partial local file and its checkpoint file.
+ * The checkpoint records the remote file and the offset synced to the disk, it is
+ * saved every CHECKPOINT_INTERVAL bytes and when the download fails, so the next
+ * attempt continues from the offset instead of from zero
+ *
+ * @author Happy Fish / YuQing
+ * @version Version 1.26
+ */
+class ResumableDownload implements DownloadCallback {
+    static final String CHECKPOINT_FILE_SUFFIX = ".checkpoint";
+    static final long CHECKPOINT_INTERVAL = 8 * 1024 * 1024;
+
+    private final String localFileName;
+    private final File checkpointFile;
+    private final String groupName;
+    private final String remoteFileName;
+    private final FileInfo fileInfo;
+    private final CRC32 crc32 = new CRC32();
+    private RandomAccessFile file;
+    private FileChannel channel;
+    private long position;        //the bytes written
+    private long savedPosition;   //the offset of the saved checkpoint
+    private IOException writeException;
+
+    /**
+     * Constructor
+     *
+     * @param localFileName  filename on local
+     * @param groupName      the group name of storage server
+     * @param remoteFileName filename on storage server
+     * @param fileInfo       the file info of the remote file
+     */
+    ResumableDownload(String localFileName, String groupName, String remoteFileName, FileInfo fileInfo) {
+        this.localFileName = localFileName;
+        this.checkpointFile = new File(localFileName + CHECKPOINT_FILE_SUFFIX);
+        this.groupName = groupName;
+        this.remoteFileName = remoteFileName;
+        this.fileInfo = fileInfo;
+    }
+
+    /**
+     * open the local file, the content after the checkpoint is discarded,
+     * start from zero when no checkpoint or the remote file changed
+     *
+     * @return the offset to continue from
+     */
+    long open() throws IOException {
+        long offset = this.loadCheckpoint();
+        this.file = new RandomAccessFile(this.localFileName, "rw");
+        this.channel = this.file.getChannel();
+        if (this.channel.size() < offset) {
+            offset = 0;
+        }
+        this.channel.truncate(offset);
+
+        if (offset > 0) {
+            this.updateCrc32(offset);
+        }
+        this.position = offset;
+        this.savedPosition = offset;
+        return offset;
+    }
+
+    public int recv(long file_size, byte[] data, int bytes) {
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(data, 0, bytes);
+            while (buffer.hasRemaining()) {
+                this.position += this.channel.write(buffer, this.position);
+            }
+            this.crc32.update(data, 0, bytes);
+            if (this.position - this.savedPosition >= CHECKPOINT_INTERVAL) {
+                this.checkpoint();
+            }
+            return 0;
+        } catch (IOException ex) {
+            this.writeException = ex;
+            return ProtoCommon.ERR_NO_EIO;
+        }
+    }
+
+    /**
+     * sync the written content to the disk and save the checkpoint
+     */
+    void checkpoint() throws IOException {
+        if (this.position == this.savedPosition) {
+            return;
+        }
+        this.channel.force(false);
+
+        Properties props = new Properties();
+        props.setProperty("group_name", this.groupName);
+        props.setProperty("remote_filename", this.remoteFileName);
+        props.setProperty("file_size", String.valueOf(this.fileInfo.getFileSize()));
+        props.setProperty("crc32", String.valueOf(this.fileInfo.getCrc32()));
+        props.setProperty("create_timestamp", String.valueOf(this.fileInfo.getCreateTimestamp().getTime()));
+        props.setProperty("offset", String.valueOf(this.position));
+
+        Checkpoint.save(this.checkpointFile, props);
+        this.savedPosition = this.position;
+    }
+
+    /**
+     * check the size and the crc32 of the downloaded content
+     *
+     * @param verifyCrc32 if check the crc32
+     * @return error info, null for ok
+     */
+    String verify(boolean verifyCrc32) {
+        if (this.position != this.fileInfo.getFileSize()) {
+            return "file size " + this.position + " != " + this.fileInfo.getFileSize();
+        }
+        if (verifyCrc32 && (int) this.crc32.getValue() != this.fileInfo.getCrc32()) {
+            return "crc32 " + (int) this.crc32.getValue() + " != " + this.fileInfo.getCrc32();
+        }
+        return null;
+    }
+
+    /**
+     * close the local file
+     */
+    void close() throws IOException {
+        if (this.file != null) {
+            this.file.close();
+            this.file = null;
+        }
+    }
+
+    /**
+     * the download is done, delete the checkpoint
+     */
+    void finish() {
+        this.checkpointFile.delete();
+    }
+
+    /**
+     * the content is bad, delete the local file and the checkpoint
+     */
+    void discard() {
+        new File(this.localFileName).delete();
+        this.checkpointFile.delete();
+    }
+
+    /**
+     * @return the IOException occurs when writing the local file, null for none
+     */
+    IOException getWriteException() {
+        return this.writeException;
+    }
+
+    long getPosition() {
+        return this.position;
+    }
+
+    /**
+     * @return the offset of the checkpoint, 0 for none or the remote file changed
+     */
+    private long loadCheckpoint() throws IOException {
+        Properties props = Checkpoint.load(this.checkpointFile);
+        if (props == null
+                || !this.groupName.equals(props.getProperty("group_name"))
+                || !this.remoteFileName.equals(props.getProperty("remote_filename"))
+                || Checkpoint.getLong(props, "file_size") != this.fileInfo.getFileSize()
+                || !String.valueOf(this.fileInfo.getCrc32()).equals(props.getProperty("crc32"))
+                || Checkpoint.getLong(props, "create_timestamp") != this.fileInfo.getCreateTimestamp().getTime()) {
+            return 0;
+        }
+
+        long offset = Checkpoint.getLong(props, "offset");
+        return offset >= 0 && offset <= this.fileInfo.getFileSize() ? offset : 0;
+    }
+
+    private void updateCrc32(long length) throws IOException {
+        BufferPool.Chunk chunk = ClientGlobal.G_BUFFER_POOL.acquire((int) Math.min(length, 256 * 1024));
+        try {
+            byte[] buff = chunk.array();
+            ByteBuffer buffer = ByteBuffer.wrap(buff);
+            long offset = 0;
+            while (offset < length) {
+                buffer.clear();
+                if (length - offset < buff.length) {
+                    buffer.limit((int) (length - offset));
+                }
+                int bytes = this.channel.read(buffer, offset);
+                if (bytes < 0) {
+                    throw new IOException("read local file size " + offset + " != " + length);
+                }
+                this.crc32.update(buff, 0, bytes);
+                offset += bytes;
+            }
+        } finally {
+            chunk.release();
+        }
+    }
+}
@@ -0,0 +1,87 @@
+/**
+ * Copyright (C) 2008 Happy Fish / YuQing
+ * <p>
+ * FastDFS Java Client may be copied only under the terms of the GNU Lesser
+ * General Public License (LGPL).
+ * Please visit the FastDFS Home Page http://www.csource.org/ for more detail.
+ */
+
+package org.csource.fastdfs;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Properties;
+
+/**
+ * Checkpoint of a resumable upload: the local file (size and last modified time),
+ * the appender file created for it and the offset confirmed by the storage server.
+ * The checkpoint is ignored when the local file changed
+ *
+ * @author Happy Fish / YuQing
+ * @version Version 1.26
+ */
+class ResumableUpload {
+    static final String CHECKPOINT_FILE_SUFFIX = ".upload.checkpoint";
+    static final int CHUNK_SIZE = 4 * 1024 * 1024;
+
+    private final File checkpointFile;
+    private final long fileSize;
+    private final long lastModified;
+
+    /**
+     * Constructor
+     *
+     * @param checkpointFile the checkpoint file
+     * @param localFile      the local file to upload
+     * @param fileSize       the size of the local file
+     */
+    ResumableUpload(File checkpointFile, File localFile, long fileSize) {
+        this.checkpointFile = checkpointFile;
+        this.fileSize = fileSize;
+        this.lastModified = localFile.lastModified();
+    }
+
+    /**
+     * load the appender file of the checkpoint
+     *
+     * @return the group name and the appender filename, null for none or the local file changed
+     */
+    String[] load() throws IOException {
+        Properties props = Checkpoint.load(this.checkpointFile);
+        if (props == null
+                || Checkpoint.getLong(props, "file_size") != this.fileSize
+                || Checkpoint.getLong(props, "last_modified") != this.lastModified) {
+            return null;
+        }
+
+        String groupName = props.getProperty("group_name");
+        String appenderFileName = props.getProperty("appender_filename");
+        if (groupName == null || appenderFileName == null) {
+            return null;
+        }
+        return new String[]{groupName, appenderFileName};
+    }
+
+    /**
+     * save the checkpoint
+     *
+     * @param results the group name and the appender filename
+     * @param offset  the uploaded size
+     */
+    void save(String[] results, long offset) throws IOException {
+        Properties props = new Properties();
+        props.setProperty("file_size", String.valueOf(this.fileSize));
+        props.setProperty("last_modified", String.valueOf(this.lastModified));
+        props.setProperty("group_name", results[0]);
+        props.setProperty("appender_filename", results[1]);
+        props.setProperty("offset", String.valueOf(offset));
+        Checkpoint.save(this.checkpointFile, props);
+    }
+
+    /**
+     * the upload is done, delete the checkpoint
+     */
+    void finish() {
+        this.checkpointFile.delete();
+    }
+}
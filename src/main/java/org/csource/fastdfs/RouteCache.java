@@ -0,0 +1,277 @@
+/**
+ * Copyright (C) 2008 Happy Fish / YuQing
+ * <p>
+ * FastDFS Java Client may be copied only under the terms of the GNU Lesser
+ * General Public License (LGPL).
+ * Please visit the FastDFS Home Page http://www.csource.org/ for more detail.
+ */
+
+package org.csource.fastdfs;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of the storage servers answered by the tracker server for fetching or updating file,
+ * the route of a file expires after ttl, the least recently used route is evicted when full.
+ * Only the answers of TRACKER_PROTO_CMD_SERVICE_QUERY_FETCH_ALL and
+ * TRACKER_PROTO_CMD_SERVICE_QUERY_UPDATE are cached, a cached FETCH_ONE answer would pin all
+ * the downloads of the file to one storage server, the storage server to download from is
+ * picked from the FETCH_ALL answer by round robin instead
+ *
+ * @author Happy Fish / YuQing
+ * @version Version 1.26
+ */
+public class RouteCache {
+    /**
+     * cached route
+     */
+    private static class Route {
+        private ServerInfo[] servers;
+        private long expireTime;
+
+        private Route(ServerInfo[] servers, long expireTime) {
+            this.servers = servers;
+            this.expireTime = expireTime;
+        }
+    }
+
+    private final LinkedHashMap<String, Route> routes;
+    private final HashMap<String, Set<String>> serverRoutes = new HashMap<String, Set<String>>(); //server -> route keys
+    private final int maxCount;
+    private final long ttl;  //millisecond
+    private final AtomicInteger replicaIndex = new AtomicInteger();
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+
+    /**
+     * Constructor
+     *
+     * @param maxCount max route count
+     * @param ttl      time to live of the route in millisecond
+     */
+    public RouteCache(int maxCount, long ttl) {
+        this.maxCount = maxCount;
+        this.ttl = ttl;
+        this.routes = new LinkedHashMap<String, Route>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<String, Route> eldest) {
+                if (size() > RouteCache.this.maxCount) {
+                    unindex(eldest.getKey(), eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * get the tracker query command to send for the command, FETCH_ONE is sent as FETCH_ALL
+     * so the answer can be cached
+     *
+     * @param cmd the tracker query command
+     * @return the tracker query command to send and cache
+     */
+    public static byte getQueryCmd(byte cmd) {
+        return cmd == ProtoCommon.TRACKER_PROTO_CMD_SERVICE_QUERY_FETCH_ONE ?
+                ProtoCommon.TRACKER_PROTO_CMD_SERVICE_QUERY_FETCH_ALL : cmd;
+    }
+
+    /**
+     * select the storage servers for the command from the answer of getQueryCmd(cmd)
+     *
+     * @param cmd     the tracker query command
+     * @param servers the storage servers answered for getQueryCmd(cmd)
+     * @return one storage server picked by round robin for FETCH_ONE, the servers for the others
+     */
+    public ServerInfo[] select(byte cmd, ServerInfo[] servers) {
+        if (cmd != ProtoCommon.TRACKER_PROTO_CMD_SERVICE_QUERY_FETCH_ONE || servers.length <= 1) {
+            return servers;
+        }
+        int index = (this.replicaIndex.getAndIncrement() & Integer.MAX_VALUE) % servers.length;
+        return new ServerInfo[]{servers[index]};
+    }
+
+    /**
+     * get the cached storage servers
+     *
+     * @param cmd       the tracker query command
+     * @param groupName the group name of storage server
+     * @param filename  filename on storage server
+     * @return storage servers, return null if not cached or expired
+     */
+    public ServerInfo[] get(byte cmd, String groupName, String filename) {
+        String key = makeKey(cmd, groupName, filename);
+        Route route;
+        synchronized (this.routes) {
+            route = this.routes.get(key);
+            if (route != null && route.expireTime < System.currentTimeMillis()) {
+                this.routes.remove(key);
+                unindex(key, route);
+                route = null;
+            }
+        }
+
+        if (route == null) {
+            this.missCount.incrementAndGet();
+            return null;
+        }
+
+        this.hitCount.incrementAndGet();
+        ServerInfo[] servers = new ServerInfo[route.servers.length];
+        System.arraycopy(route.servers, 0, servers, 0, servers.length);
+        return servers;
+    }
+
+    /**
+     * cache the storage servers answered by the tracker server, the FETCH_ONE answer is ignored
+     *
+     * @param cmd       the tracker query command
+     * @param groupName the group name of storage server
+     * @param filename  filename on storage server
+     * @param servers   the storage servers
+     */
+    public void put(byte cmd, String groupName, String filename, ServerInfo[] servers) {
+        if (cmd == ProtoCommon.TRACKER_PROTO_CMD_SERVICE_QUERY_FETCH_ONE) {
+            return;
+        }
+
+        ServerInfo[] copied = new ServerInfo[servers.length];
+        System.arraycopy(servers, 0, copied, 0, copied.length);
+        Route route = new Route(copied, System.currentTimeMillis() + this.ttl);
+        String key = makeKey(cmd, groupName, filename);
+        synchronized (this.routes) {
+            Route old = this.routes.put(key, route);
+            if (old != null) {
+                unindex(key, old);
+            }
+            if (this.routes.containsKey(key)) {  //not evicted at once when max count is 0
+                index(key, route);
+            }
+        }
+    }
+
+    /**
+     * remove the routes of the file, called when the file is deleted or not found
+     * on the storage server
+     *
+     * @param groupName the group name of storage server
+     * @param filename  filename on storage server
+     */
+    public void remove(String groupName, String filename) {
+        synchronized (this.routes) {
+            removeRoute(makeKey(ProtoCommon.TRACKER_PROTO_CMD_SERVICE_QUERY_FETCH_ALL, groupName, filename));
+            removeRoute(makeKey(ProtoCommon.TRACKER_PROTO_CMD_SERVICE_QUERY_UPDATE, groupName, filename));
+        }
+    }
+
+    /**
+     * remove the routes to the storage server, called when the storage server fail
+     *
+     * @param ipAddr the ip address of storage server
+     * @param port   the port of storage server
+     */
+    public void removeServer(String ipAddr, int port) {
+        synchronized (this.routes) {
+            Set<String> keys = this.serverRoutes.remove(makeServerKey(ipAddr, port));
+            if (keys == null) {
+                return;
+            }
+            for (String key : keys) {
+                removeRoute(key);
+            }
+        }
+    }
+
+    /**
+     * remove all routes
+     */
+    public void clear() {
+        synchronized (this.routes) {
+            this.routes.clear();
+            this.serverRoutes.clear();
+        }
+    }
+
+    private void removeRoute(String key) {
+        Route route = this.routes.remove(key);
+        if (route != null) {
+            unindex(key, route);
+        }
+    }
+
+    /**
+     * add the route key to the reverse index of its storage servers, called in the lock
+     */
+    private void index(String key, Route route) {
+        for (ServerInfo server : route.servers) {
+            String serverKey = makeServerKey(server.getIpAddr(), server.getPort());
+            Set<String> keys = this.serverRoutes.get(serverKey);
+            if (keys == null) {
+                keys = new HashSet<String>();
+                this.serverRoutes.put(serverKey, keys);
+            }
+            keys.add(key);
+        }
+    }
+
+    /**
+     * remove the route key from the reverse index of its storage servers, called in the lock
+     */
+    private void unindex(String key, Route route) {
+        for (ServerInfo server : route.servers) {
+            String serverKey = makeServerKey(server.getIpAddr(), server.getPort());
+            Set<String> keys = this.serverRoutes.get(serverKey);
+            if (keys != null && keys.remove(key) && keys.isEmpty()) {
+                this.serverRoutes.remove(serverKey);
+            }
+        }
+    }
+
+    /**
+     * @return the cached route count
+     */
+    public int size() {
+        synchronized (this.routes) {
+            return this.routes.size();
+        }
+    }
+
+    /**
+     * @return total count of cache hit
+     */
+    public long getHitCount() {
+        return this.hitCount.get();
+    }
+
+    /**
+     * @return total count of cache miss
+     */
+    public long getMissCount() {
+        return this.missCount.get();
+    }
+
+    public int getMaxCount() {
+        return maxCount;
+    }
+
+    public long getTtl() {
+        return ttl;
+    }
+
+    private static String makeKey(byte cmd, String groupName, String filename) {
+        return new StringBuilder(groupName.length() + filename.length() + 5)
+                .append(cmd).append(':').append(groupName)
+                .append(StorageClient1.SPLIT_GROUP_NAME_AND_FILENAME_SEPERATOR)
+                .append(filename).toString();
+    }
+
+    private static String makeServerKey(String ipAddr, int port) {
+        return ipAddr + ':' + port;
+    }
+}
@@ -11,6 +11,7 @@ package org.csource.fastdfs;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.channels.SocketChannel;
 
 /**
  * Server Info
@@ -58,9 +59,10 @@ public class ServerInfo {
      * @return connected Socket object
      */
     public Socket connect() throws IOException {
-        Socket sock = new Socket();
+        Socket sock = SocketChannel.open().socket();
         sock.setReuseAddress(true);
         sock.setSoTimeout(ClientGlobal.G_NETWORK_TIMEOUT);
+        sock.setTcpNoDelay(true);
         sock.connect(new InetSocketAddress(ipAddr, port), ClientGlobal.G_CONNECT_TIMEOUT);
         return sock;
     }
@@ -13,8 +13,16 @@ import org.csource.common.FastDFSClientException;
 import org.csource.common.NameValuePair;
 
 import java.io.*;
+import java.net.InetSocketAddress;
 import java.net.Socket;
-import java.util.Arrays;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
 
 /**
  * Storage client for 2 fields file id: group name and filename
@@ -59,10 +67,73 @@ public class StorageClient {
         }
     }
 
+    /**
+     * Upload file by byte buffer, heap or direct, the bytes from position to limit are uploaded
+     * and the position of the buffer is not changed
+     */
+    public static class UploadByteBuffer implements UploadCallback {
+        private ByteBuffer fileBuff;
+
+        /**
+         * constructor
+         *
+         * @param fileBuff the file buff for uploading
+         */
+        public UploadByteBuffer(ByteBuffer fileBuff) {
+            super();
+            this.fileBuff = fileBuff;
+        }
+
+        /**
+         * send file content callback function, be called only once when the file uploaded
+         *
+         * @param out output stream for writing file content
+         * @return 0 success, return none zero(errno) if fail
+         */
+        public int send(OutputStream out) throws IOException {
+            if (this.fileBuff.hasArray()) {
+                out.write(this.fileBuff.array(), this.fileBuff.arrayOffset() + this.fileBuff.position(),
+                        this.fileBuff.remaining());
+                return 0;
+            }
+
+            ByteBuffer buffer = this.fileBuff.duplicate();
+            BufferPool.Chunk chunk = ClientGlobal.G_BUFFER_POOL.acquire(Math.min(buffer.remaining(), 64 * 1024));
+            try {
+                byte[] buff = chunk.array();
+                while (buffer.hasRemaining()) {
+                    int bytes = Math.min(buffer.remaining(), buff.length);
+                    buffer.get(buff, 0, bytes);
+                    out.write(buff, 0, bytes);
+                }
+            } finally {
+                chunk.release();
+            }
+            return 0;
+        }
+
+        /**
+         * send file content to the channel directly, be called only once when the file uploaded
+         *
+         * @param target the socket channel to write file content
+         * @return 0 success, return none zero(errno) if fail
+         */
+        public int send(WritableByteChannel target) throws IOException {
+            ByteBuffer buffer = this.fileBuff.duplicate();
+            while (buffer.hasRemaining()) {
+                target.write(buffer);
+            }
+            return 0;
+        }
+    }
+
     public final static Base64 base64 = new Base64('-', '_', '.', 0);
     protected TrackerServer trackerServer;
     protected StorageServer storageServer;
     protected byte errno;
+    protected boolean verifyDownload = ClientGlobal.G_DOWNLOAD_VERIFY_CRC32;
+    private String routeGroupName;  //the file of the route used by the new connection
+    private String routeFileName;
 
     /**
      * constructor using global settings in class ClientGlobal
@@ -101,6 +172,25 @@ public class StorageClient {
         return this.errno;
     }
 
+    /**
+     * @return true if the whole file downloads are verified by the crc32 in the filename
+     */
+    public boolean isVerifyDownload() {
+        return this.verifyDownload;
+    }
+
+    /**
+     * verify the whole file downloads of the normal files by the size and the crc32 in the filename,
+     * the crc32 is computed as the content arrives. When not match, the file is downloaded again from
+     * the other storage servers holding the file, IOException is thrown when none of them match.
+     * The range downloads, the appender files and the slave files are not verified
+     *
+     * @param verifyDownload if verify the downloads, default from the config item download.verify_crc32
+     */
+    public void setVerifyDownload(boolean verifyDownload) {
+        this.verifyDownload = verifyDownload;
+    }
+
     /**
      * upload file to storage server (by file name)
      *
@@ -150,12 +240,12 @@ public class StorageClient {
         if (fileExtName == null) {
             fileExtName = getExtension(localFilename);
         }
-        File file = new File(localFilename);
-        long length = file.length();
-        FileInputStream fileInputStream = new FileInputStream(file);
-        UploadStream uploadStream = new UploadStream(fileInputStream, length);
+        FileInputStream fileInputStream = new FileInputStream(localFilename);
         try {
-            return do_upload_file(cmd, groupName, null, null, fileExtName, length, uploadStream, metaList);
+            FileChannel fileChannel = fileInputStream.getChannel();
+            long length = fileChannel.size();
+            return do_upload_file(cmd, groupName, null, null, fileExtName, length,
+                    new UploadFileChannel(fileChannel, 0, length), metaList);
         } finally {
             fileInputStream.close();
         }
@@ -234,6 +324,23 @@ public class StorageClient {
         return do_upload_file(ProtoCommon.STORAGE_PROTO_CMD_UPLOAD_FILE, groupName, null, null, fileExtName, length, uploadBuff, metaList);
     }
 
+    /**
+     * upload file to storage server (by byte buffer)
+     *
+     * @param groupName   the group name to upload file to, can be empty
+     * @param fileBuff    file content, heap or direct buffer, from position to limit
+     * @param fileExtName file ext name, do not include dot(.)
+     * @param metaList    meta info array
+     * @return 2 elements string array if success:<br>
+     * <ul><li>results[0]: the group name to store the file</li></ul>
+     * <ul><li>results[1]: the new created filename</li></ul>
+     * return null if fail
+     */
+    public String[] upload_file(String groupName, ByteBuffer fileBuff,
+                                String fileExtName, NameValuePair[] metaList) throws IOException, FastDFSClientException {
+        return do_upload_file(ProtoCommon.STORAGE_PROTO_CMD_UPLOAD_FILE, groupName, null, null, fileExtName,
+                fileBuff.remaining(), new UploadByteBuffer(fileBuff), metaList);
+    }
 
     /**
      * upload file to storage server (by callback)
@@ -253,6 +360,191 @@ public class StorageClient {
         return do_upload_file(ProtoCommon.STORAGE_PROTO_CMD_UPLOAD_FILE, groupName, null, null, fileExtName, fileSize, callback, metaList);
     }
 
+    /**
+     * upload file to storage server (by file buff), deduplicated by the content hash: when the
+     * same content with the same ext name was uploaded, the existing file is returned without
+     * sending the content. The metaList is set to the new uploaded file only. Upload as usual
+     * when the dedup index is disabled
+     *
+     * @param groupName   the group name to upload file to, can be empty
+     * @param fileBuff    file content/buff
+     * @param fileExtName file ext name, do not include dot(.)
+     * @param metaList    meta info array
+     * @return 2 elements string array if success:<br>
+     * <ul><li>results[0]: the group name to store the file</li></ul>
+     * <ul><li>results[1]: the new created or the existing filename</li></ul>
+     * return null if fail
+     */
+    public String[] upload_dedup_file(String groupName, byte[] fileBuff, String fileExtName,
+                                      NameValuePair[] metaList) throws IOException, FastDFSClientException {
+        DedupIndex index = ClientGlobal.G_DEDUP_INDEX;
+        if (index == null) {
+            return this.upload_file(groupName, fileBuff, fileExtName, metaList);
+        }
+
+        MessageDigest digest = DedupIndex.newDigest();
+        CRC32 crc32 = new CRC32();
+        digest.update(fileBuff);
+        crc32.update(fileBuff);
+        String key = DedupIndex.getKey(digest.digest(), fileExtName);
+
+        String[] results = this.findDuplicate(index, key, groupName, fileBuff.length, crc32);
+        if (results != null) {
+            return results;
+        }
+        results = this.upload_file(groupName, fileBuff, fileExtName, metaList);
+        recordUpload(index, key, results, fileBuff.length, crc32);
+        return results;
+    }
+
+    /**
+     * upload file to storage server (by file name), deduplicated by the content hash, the local
+     * file is hashed before uploading, see upload_dedup_file by file buff
+     *
+     * @param groupName     the group name to upload file to, can be empty
+     * @param localFileName local filename to upload
+     * @param fileExtName   file ext name, do not include dot(.), null to extract ext name from the local filename
+     * @param metaList      meta info array
+     * @return 2 elements string array if success:<br>
+     * <ul><li>results[0]: the group name to store the file</li></ul>
+     * <ul><li>results[1]: the new created or the existing filename</li></ul>
+     * return null if fail
+     */
+    public String[] upload_dedup_file(String groupName, String localFileName, String fileExtName,
+                                      NameValuePair[] metaList) throws IOException, FastDFSClientException {
+        DedupIndex index = ClientGlobal.G_DEDUP_INDEX;
+        if (index == null) {
+            return this.upload_file(groupName, localFileName, fileExtName, metaList);
+        }
+        if (fileExtName == null) {
+            fileExtName = getExtension(localFileName);
+        }
+
+        MessageDigest digest = DedupIndex.newDigest();
+        CRC32 crc32 = new CRC32();
+        long fileSize = 0;
+        FileInputStream in = new FileInputStream(localFileName);
+        BufferPool.Chunk chunk = ClientGlobal.G_BUFFER_POOL.acquire(256 * 1024);
+        try {
+            byte[] buff = chunk.array();
+            int bytes;
+            while ((bytes = in.read(buff)) >= 0) {
+                digest.update(buff, 0, bytes);
+                crc32.update(buff, 0, bytes);
+                fileSize += bytes;
+            }
+        } finally {
+            chunk.release();
+            in.close();
+        }
+        String key = DedupIndex.getKey(digest.digest(), fileExtName);
+
+        String[] results = this.findDuplicate(index, key, groupName, fileSize, crc32);
+        if (results != null) {
+            return results;
+        }
+        //the file changed after hashed is not recorded since the size or crc32 not match
+        results = this.upload_file(groupName, localFileName, fileExtName, metaList);
+        recordUpload(index, key, results, fileSize, crc32);
+        return results;
+    }
+
+    /**
+     * upload file to storage server (by callback), deduplicated by the content hash. The content
+     * is hashed while sending, so it is always sent, the new uploaded file is deleted and the
+     * existing file is returned when the content is duplicated
+     *
+     * @param groupName   the group name to upload file to, can be empty
+     * @param fileSize    the file size
+     * @param callback    the write data callback object
+     * @param fileExtName file ext name, do not include dot(.)
+     * @param metaList    meta info array
+     * @return 2 elements string array if success:<br>
+     * <ul><li>results[0]: the group name to store the file</li></ul>
+     * <ul><li>results[1]: the new created or the existing filename</li></ul>
+     * return null if fail
+     */
+    public String[] upload_dedup_file(String groupName, long fileSize, final UploadCallback callback,
+                                      String fileExtName, NameValuePair[] metaList) throws IOException, FastDFSClientException {
+        DedupIndex index = ClientGlobal.G_DEDUP_INDEX;
+        if (index == null) {
+            return this.upload_file(groupName, fileSize, callback, fileExtName, metaList);
+        }
+
+        final MessageDigest digest = DedupIndex.newDigest();
+        final CRC32 crc32 = new CRC32();
+        String[] results = this.upload_file(groupName, fileSize, new UploadCallback() {
+            public int send(OutputStream out) throws IOException {
+                return callback.send(new DigestOutputStream(new CheckedOutputStream(out, crc32), digest));
+            }
+        }, fileExtName, metaList);
+        if (results == null) {
+            return null;
+        }
+
+        String key = DedupIndex.getKey(digest.digest(), fileExtName);
+        String[] existing = this.findDuplicate(index, key, groupName, fileSize, crc32);
+        if (existing == null) {
+            recordUpload(index, key, results, fileSize, crc32);
+            return results;
+        }
+        if (this.delete_file(results[0], results[1]) != 0) {
+            return results;  //keep the new one
+        }
+        this.errno = 0;
+        return existing;
+    }
+
+    /**
+     * find the uploaded file of the content in the index, the size and the crc32 in the
+     * filename are checked, and the file exists on the storage server if confirm
+     *
+     * @return the group name and the filename of the uploaded file, null if not found
+     */
+    private String[] findDuplicate(DedupIndex index, String key, String groupName, long fileSize,
+                                   CRC32 crc32) throws IOException, FastDFSClientException {
+        String fileId = index.get(key);
+        String[] parts = new String[2];
+        if (fileId == null || StorageClient1.split_file_id(fileId, parts) != 0
+                || (groupName != null && groupName.length() > 0 && !groupName.equals(parts[0]))) {
+            index.countMiss();
+            return null;
+        }
+
+        FileIdDecoder decoder = FileIdDecoder.get();
+        if (!decoder.decode(parts[1]) || !decoder.isInfoReliable() || decoder.getFileSize() != fileSize
+                || decoder.getCrc32() != (int) crc32.getValue()) {
+            index.remove(key);
+            index.countMiss();
+            return null;
+        }
+        if (index.isConfirm() && this.query_file_info(parts[0], parts[1]) == null) {
+            if (this.errno == ProtoCommon.ERR_NO_ENOENT) {
+                index.remove(key);  //deleted by others
+            }
+            index.countMiss();
+            return null;
+        }
+
+        this.errno = 0;
+        index.countHit();
+        return parts;
+    }
+
+    /**
+     * record the new uploaded file when its size and crc32 match the hashed content
+     */
+    private static void recordUpload(DedupIndex index, String key, String[] results, long fileSize, CRC32 crc32) {
+        if (results == null) {
+            return;
+        }
+        FileIdDecoder decoder = FileIdDecoder.get();
+        if (decoder.decode(results[1]) && decoder.isInfoReliable() && decoder.getFileSize() == fileSize
+                && decoder.getCrc32() == (int) crc32.getValue()) {
+            index.put(key, results[0] + StorageClient1.SPLIT_GROUP_NAME_AND_FILENAME_SEPERATOR + results[1]);
+        }
+    }
+
     /**
      * upload file to storage server (by file name, slave file mode)
      *
@@ -277,19 +569,18 @@ public class StorageClient {
         if (fileExtName == null) {
             fileExtName = getExtension(localFileName);
         }
-        File file = new File(localFileName);
-        long length = file.length();
-        FileInputStream fileInputStream = new FileInputStream(file);
-        UploadStream uploadStream = new UploadStream(fileInputStream, length);
+        FileInputStream fileInputStream = new FileInputStream(localFileName);
         try {
+            FileChannel fileChannel = fileInputStream.getChannel();
+            long length = fileChannel.size();
             return do_upload_file(ProtoCommon.STORAGE_PROTO_CMD_UPLOAD_SLAVE_FILE, groupName, masterFilename, prefixName,
-                    fileExtName, length, uploadStream, metaList);
+                    fileExtName, length, new UploadFileChannel(fileChannel, 0, length), metaList);
         } finally {
             fileInputStream.close();
         }
     }
 
-    private String getExtension(String fileName) {
+    static String getExtension(String fileName) {
         int nPos = fileName.lastIndexOf('.');
         if (nPos > 0 && fileName.length() - nPos <= ProtoCommon.FDFS_FILE_EXT_NAME_MAX_LEN + 1) {
             return fileName.substring(nPos + 1);
@@ -475,6 +766,24 @@ public class StorageClient {
         return do_upload_file(ProtoCommon.STORAGE_PROTO_CMD_UPLOAD_APPENDER_FILE, groupName, null, null, fileExtName, fileBuff.length, uploadBuff, metaList);
     }
 
+    /**
+     * upload appender file to storage server (by byte buffer)
+     *
+     * @param groupName   the group name to upload file to, can be empty
+     * @param fileBuff    file content, heap or direct buffer, from position to limit
+     * @param fileExtName file ext name, do not include dot(.)
+     * @param metaList    meta info array
+     * @return 2 elements string array if success:<br>
+     * <ul><li>results[0]: the group name to store the file</li></ul>
+     * <ul><li>results[1]: the new created filename</li></ul>
+     * return null if fail
+     */
+    public String[] upload_appender_file(String groupName, ByteBuffer fileBuff,
+                                         String fileExtName, NameValuePair[] metaList) throws IOException, FastDFSClientException {
+        return do_upload_file(ProtoCommon.STORAGE_PROTO_CMD_UPLOAD_APPENDER_FILE, groupName, null, null, fileExtName,
+                fileBuff.remaining(), new UploadByteBuffer(fileBuff), metaList);
+    }
+
     /**
      * upload appender file to storage server (by callback)
      *
@@ -494,6 +803,106 @@ public class StorageClient {
                 fileExtName, fileSize, callback, metaList);
     }
 
+    /**
+     * upload local file to storage server, resumable, the checkpoint file is
+     * local filename + ".upload.checkpoint"
+     *
+     * @param groupName     the group name to upload file to, can be empty
+     * @param localFileName local filename to upload
+     * @param fileExtName   file ext name, do not include dot(.), null to extract ext name from the local filename
+     * @param metaList      meta info array
+     * @return 2 elements string array if success:<br>
+     * <ul><li>results[0]: the group name to store the file</li></ul>
+     * <ul><li>results[1]: the appender filename</li></ul>
+     * return null if fail
+     */
+    public String[] upload_resumable_file(String groupName, String localFileName, String fileExtName,
+                                          NameValuePair[] metaList) throws IOException, FastDFSClientException {
+        return this.upload_resumable_file(groupName, localFileName, fileExtName, metaList,
+                localFileName + ResumableUpload.CHECKPOINT_FILE_SUFFIX, false);
+    }
+
+    /**
+     * upload local file to storage server, resumable: the file is uploaded as an appender file
+     * chunk by chunk, the appender file and the uploaded size are recorded in the checkpoint file.
+     * When called again after fail, it continues from the file size queried from the storage server
+     *
+     * @param groupName          the group name to upload file to, can be empty
+     * @param localFileName      local filename to upload
+     * @param fileExtName        file ext name, do not include dot(.), null to extract ext name from the local filename
+     * @param metaList           meta info array
+     * @param checkpointFileName the checkpoint filename, deleted when done
+     * @param toNormalFile       if convert the appender file to normal file when done,
+     *                           need FastDFS server V6.02 or higher version
+     * @return 2 elements string array if success:<br>
+     * <ul><li>results[0]: the group name to store the file</li></ul>
+     * <ul><li>results[1]: the new created filename</li></ul>
+     * return null if fail
+     */
+    public String[] upload_resumable_file(String groupName, String localFileName, String fileExtName,
+                                          NameValuePair[] metaList, String checkpointFileName,
+                                          boolean toNormalFile) throws IOException, FastDFSClientException {
+        if (fileExtName == null) {
+            fileExtName = getExtension(localFileName);
+        }
+
+        File localFile = new File(localFileName);
+        FileInputStream fis = new FileInputStream(localFile);
+        try {
+            FileChannel fileChannel = fis.getChannel();
+            long fileSize = fileChannel.size();
+            ResumableUpload upload = new ResumableUpload(new File(checkpointFileName), localFile, fileSize);
+
+            long offset = 0;
+            String[] results = upload.load();
+            if (results != null) {
+                FileInfo fileInfo = this.query_file_info(results[0], results[1]);
+                if (fileInfo == null) {
+                    if (this.errno != ProtoCommon.ERR_NO_ENOENT) {
+                        return null;
+                    }
+                    results = null;  //the appender file is gone, upload again
+                } else if (fileInfo.getFileSize() > fileSize) {
+                    results = null;
+                } else {
+                    offset = fileInfo.getFileSize();
+                }
+            }
+
+            if (results == null) {
+                long length = Math.min(ResumableUpload.CHUNK_SIZE, fileSize);
+                results = this.upload_appender_file(groupName, length, new UploadFileChannel(fileChannel, 0, length),
+                        fileExtName, metaList);
+                if (results == null) {
+                    return null;
+                }
+                offset = length;
+                upload.save(results, offset);
+            }
+
+            while (offset < fileSize) {
+                long length = Math.min(ResumableUpload.CHUNK_SIZE, fileSize - offset);
+                if (this.append_file(results[0], results[1], length,
+                        new UploadFileChannel(fileChannel, offset, length)) != 0) {
+                    return null;
+                }
+                offset += length;
+                upload.save(results, offset);
+            }
+
+            if (toNormalFile) {
+                results = this.regenerate_appender_filename(results[0], results[1]);
+                if (results == null) {
+                    return null;
+                }
+            }
+            upload.finish();
+            return results;
+        } finally {
+            fis.close();
+        }
+    }
+
     /**
      * append file to storage server (by file name)
      *
@@ -503,12 +912,11 @@ public class StorageClient {
      * @return 0 for success, != 0 for error (error no)
      */
     public int append_file(String groupName, String appenderFilename, String localFileName) throws IOException, FastDFSClientException {
-        File file = new File(localFileName);
-        FileInputStream fileInputStream = new FileInputStream(file);
+        FileInputStream fileInputStream = new FileInputStream(localFileName);
         try {
-            long length = file.length();
-            UploadStream uploadStream = new UploadStream(fileInputStream, length);
-            return do_append_file(groupName, appenderFilename, length, uploadStream);
+            FileChannel fileChannel = fileInputStream.getChannel();
+            long length = fileChannel.size();
+            return do_append_file(groupName, appenderFilename, length, new UploadFileChannel(fileChannel, 0, length));
         } finally {
             fileInputStream.close();
         }
@@ -543,6 +951,18 @@ public class StorageClient {
         return do_append_file(groupName, appenderFilename, length, new UploadBuff(fileBuff, offset, length));
     }
 
+    /**
+     * append file to storage server (by byte buffer)
+     *
+     * @param groupName        the group name of appender file
+     * @param appenderFilename the appender filename
+     * @param fileBuff         file content, heap or direct buffer, from position to limit
+     * @return 0 for success, != 0 for error (error no)
+     */
+    public int append_file(String groupName, String appenderFilename, ByteBuffer fileBuff) throws IOException, FastDFSClientException {
+        return do_append_file(groupName, appenderFilename, fileBuff.remaining(), new UploadByteBuffer(fileBuff));
+    }
+
     /**
      * append file to storage server (by callback)
      *
@@ -568,10 +988,12 @@ public class StorageClient {
      */
     public int modify_file(String groupName, String appenderFileName,
                            long fileOffset, String localFileName) throws IOException, FastDFSClientException {
-        File file = new File(localFileName);
-        FileInputStream fis = new FileInputStream(file);
+        FileInputStream fis = new FileInputStream(localFileName);
         try {
-            return do_modify_file(groupName, appenderFileName, fileOffset, file.length(), new UploadStream(fis, file.length()));
+            FileChannel fileChannel = fis.getChannel();
+            long length = fileChannel.size();
+            return do_modify_file(groupName, appenderFileName, fileOffset, length,
+                    new UploadFileChannel(fileChannel, 0, length));
         } finally {
             fis.close();
         }
@@ -609,6 +1031,21 @@ public class StorageClient {
                 bufferLength, new UploadBuff(fileBuff, bufferOffset, bufferLength));
     }
 
+    /**
+     * modify appender file to storage server (by byte buffer)
+     *
+     * @param groupName        the group name of appender file
+     * @param appenderFileName the appender filename
+     * @param fileOffset       the offset of appender file
+     * @param fileBuff         file content, heap or direct buffer, from position to limit
+     * @return 0 for success, != 0 for error (error no)
+     */
+    public int modify_file(String groupName, String appenderFileName,
+                           long fileOffset, ByteBuffer fileBuff) throws IOException, FastDFSClientException {
+        return this.do_modify_file(groupName, appenderFileName, fileOffset,
+                fileBuff.remaining(), new UploadByteBuffer(fileBuff));
+    }
+
     /**
      * modify appender file to storage server (by callback)
      *
@@ -644,19 +1081,11 @@ public class StorageClient {
     protected String[] do_upload_file(byte cmd, String groupName, String masterFileName,
                                       String prefixName, String fileExtName, long file_size, UploadCallback callback,
                                       NameValuePair[] metaList) throws IOException, FastDFSClientException {
-        byte[] header;
-        byte[] extNameBytes = new byte[ProtoCommon.FDFS_FILE_EXT_NAME_MAX_LEN];
-        Arrays.fill(extNameBytes, (byte) 0);
         String newGroupName;
         String remoteFilename;
         boolean bNewConnection;
         Socket storageSocket;
-        byte[] sizeBytes;
-        byte[] hexLenBytes;
-        byte[] masterFilenameBytes;
         boolean bUploadSlave;
-        int offset;
-        long bodyLen;
 
         bUploadSlave = ((groupName != null && groupName.length() > 0) && (masterFileName != null && masterFileName.length() > 0) && (prefixName != null));
         if (bUploadSlave) {
@@ -667,89 +1096,25 @@ public class StorageClient {
 
         try {
             storageSocket = storageServer.getSocket();
-            if (fileExtName != null && fileExtName.length() > 0) {
-                byte[] fileExtNameBytes = fileExtName.getBytes(ClientGlobal.G_CHARSET);
-                int extNameLen = fileExtNameBytes.length;
-                if (extNameLen > ProtoCommon.FDFS_FILE_EXT_NAME_MAX_LEN) {
-                    extNameLen = ProtoCommon.FDFS_FILE_EXT_NAME_MAX_LEN;
-                }
-                System.arraycopy(fileExtNameBytes, 0, extNameBytes, 0, extNameLen);
-            }
-
-            if (bUploadSlave) {
-                masterFilenameBytes = masterFileName.getBytes(ClientGlobal.G_CHARSET);
-
-                sizeBytes = new byte[2 * ProtoCommon.FDFS_PROTO_PKG_LEN_SIZE];
-                bodyLen = sizeBytes.length + ProtoCommon.FDFS_FILE_PREFIX_MAX_LEN + ProtoCommon.FDFS_FILE_EXT_NAME_MAX_LEN
-                        + masterFilenameBytes.length + file_size;
-
-                hexLenBytes = ProtoCommon.long2buff(masterFileName.length());
-                System.arraycopy(hexLenBytes, 0, sizeBytes, 0, hexLenBytes.length);
-                offset = hexLenBytes.length;
-            } else {
-                masterFilenameBytes = null;
-                sizeBytes = new byte[1 + 1 * ProtoCommon.FDFS_PROTO_PKG_LEN_SIZE];
-                bodyLen = sizeBytes.length + ProtoCommon.FDFS_FILE_EXT_NAME_MAX_LEN + file_size;
-
-                sizeBytes[0] = (byte) this.storageServer.getStorePathIndex();
-                offset = 1;
-            }
-
-            hexLenBytes = ProtoCommon.long2buff(file_size);
-            System.arraycopy(hexLenBytes, 0, sizeBytes, offset, hexLenBytes.length);
-
-            OutputStream out = storageSocket.getOutputStream();
-            header = ProtoCommon.packHeader(cmd, bodyLen, (byte) 0);
-            byte[] wholePkg = new byte[(int) (header.length + bodyLen - file_size)];
-            System.arraycopy(header, 0, wholePkg, 0, header.length);
-            System.arraycopy(sizeBytes, 0, wholePkg, header.length, sizeBytes.length);
-            offset = header.length + sizeBytes.length;
-            if (bUploadSlave) {
-                byte[] prefixName_bs = new byte[ProtoCommon.FDFS_FILE_PREFIX_MAX_LEN];
-                byte[] bs = prefixName.getBytes(ClientGlobal.G_CHARSET);
-                int prefixName_len = bs.length;
-                Arrays.fill(prefixName_bs, (byte) 0);
-                if (prefixName_len > ProtoCommon.FDFS_FILE_PREFIX_MAX_LEN) {
-                    prefixName_len = ProtoCommon.FDFS_FILE_PREFIX_MAX_LEN;
-                }
-                if (prefixName_len > 0) {
-                    System.arraycopy(bs, 0, prefixName_bs, 0, prefixName_len);
-                }
-
-                System.arraycopy(prefixName_bs, 0, wholePkg, offset, prefixName_bs.length);
-                offset += prefixName_bs.length;
-            }
-
-            System.arraycopy(extNameBytes, 0, wholePkg, offset, extNameBytes.length);
-            offset += extNameBytes.length;
-
-            if (bUploadSlave) {
-                System.arraycopy(masterFilenameBytes, 0, wholePkg, offset, masterFilenameBytes.length);
-                offset += masterFilenameBytes.length;
-            }
-
-            out.write(wholePkg);
-
-            if ((this.errno = (byte) callback.send(out)) != 0) {
+            ProtoCodec codec = ProtoCodec.get();
+            codec.encodeUpload(cmd, this.storageServer.getStorePathIndex(),
+                    bUploadSlave ? masterFileName : null, prefixName, fileExtName, file_size);
+            FramedOutputStream out = this.storageServer.getFramedOutputStream();
+            codec.writeTo(out);
+
+            if ((this.errno = (byte) sendContent(storageSocket, out, callback)) != 0) {
+                this.storageServer.markBroken();
                 return null;
             }
 
-            ProtoCommon.RecvPackageInfo pkgInfo = ProtoCommon.recvPackage(storageSocket.getInputStream(),
-                    ProtoCommon.STORAGE_PROTO_CMD_RESP, -1);
-            this.errno = pkgInfo.errno;
-            if (pkgInfo.errno != 0) {
+            this.errno = codec.recvPackage(storageSocket.getInputStream(), ProtoCommon.STORAGE_PROTO_CMD_RESP, -1);
+            if (this.errno != 0) {
                 return null;
             }
 
-            if (pkgInfo.body.length <= ProtoCommon.FDFS_GROUP_NAME_MAX_LEN) {
-                throw new FastDFSClientException("body length: " + pkgInfo.body.length + " <= " + ProtoCommon.FDFS_GROUP_NAME_MAX_LEN);
-            }
-
-            newGroupName = new String(pkgInfo.body, 0, ProtoCommon.FDFS_GROUP_NAME_MAX_LEN).trim();
-            remoteFilename = new String(pkgInfo.body, ProtoCommon.FDFS_GROUP_NAME_MAX_LEN, pkgInfo.body.length - ProtoCommon.FDFS_GROUP_NAME_MAX_LEN);
-            String[] results = new String[2];
-            results[0] = newGroupName;
-            results[1] = remoteFilename;
+            String[] results = codec.decodeUploadResult();
+            newGroupName = results[0];
+            remoteFilename = results[1];
 
             if (metaList == null || metaList.length == 0) {
                 return results;
@@ -771,12 +1136,44 @@ public class StorageClient {
 
             return results;
         } catch (IOException ex) {
+            this.storageServer.markBroken();
             throw ex;
         } finally {
             closeStorageServer(bNewConnection);
         }
     }
 
+    /**
+     * send the file content after the buffered request header, by sendfile when the content
+     * is from a file channel and the socket is backed by a socket channel, the small content
+     * is coalesced with the header
+     *
+     * @param storageSocket the storage socket
+     * @param out           the coalescing output stream of the socket
+     * @param callback      the write data callback object
+     * @return 0 success, return none zero(errno) if fail
+     */
+    private int sendContent(Socket storageSocket, FramedOutputStream out, UploadCallback callback) throws IOException {
+        SocketChannel channel = storageSocket.getChannel();
+        if (channel != null) {
+            if (callback instanceof UploadFileChannel) {
+                out.flush();  //the header must be sent before the channel writes
+                return ((UploadFileChannel) callback).send(channel);
+            }
+            if (callback instanceof UploadByteBuffer
+                    && ((UploadByteBuffer) callback).fileBuff.remaining() >= FramedOutputStream.BUFFER_SIZE) {
+                out.flush();
+                return ((UploadByteBuffer) callback).send(channel);
+            }
+        }
+
+        int result = callback.send(out);
+        if (result == 0) {
+            out.flush();
+        }
+        return result;
+    }
+
     /**
      * append file to storage server
      *
@@ -788,13 +1185,8 @@ public class StorageClient {
      */
     protected int do_append_file(String groupName, String appenderFileName,
                                  long file_size, UploadCallback callback) throws IOException, FastDFSClientException {
-        byte[] header;
         boolean bNewConnection;
         Socket storageSocket;
-        byte[] hexLenBytes;
-        byte[] appenderFilenameBytes;
-        int offset;
-        long bodyLen;
 
         if ((groupName == null || groupName.length() == 0) ||
                 (appenderFileName == null || appenderFileName.length() == 0)) {
@@ -806,42 +1198,19 @@ public class StorageClient {
 
         try {
             storageSocket = this.storageServer.getSocket();
+            ProtoCodec codec = ProtoCodec.get();
+            codec.encodeAppend(appenderFileName, file_size);
+            FramedOutputStream out = this.storageServer.getFramedOutputStream();
+            codec.writeTo(out);
+            if ((this.errno = (byte) sendContent(storageSocket, out, callback)) != 0) {
+                this.storageServer.markBroken();
+                return this.errno;
+            }
 
-            appenderFilenameBytes = appenderFileName.getBytes(ClientGlobal.G_CHARSET);
-            bodyLen = 2 * ProtoCommon.FDFS_PROTO_PKG_LEN_SIZE + appenderFilenameBytes.length + file_size;
-
-            header = ProtoCommon.packHeader(ProtoCommon.STORAGE_PROTO_CMD_APPEND_FILE, bodyLen, (byte) 0);
-            byte[] wholePkg = new byte[(int) (header.length + bodyLen - file_size)];
-            System.arraycopy(header, 0, wholePkg, 0, header.length);
-            offset = header.length;
-
-            hexLenBytes = ProtoCommon.long2buff(appenderFileName.length());
-            System.arraycopy(hexLenBytes, 0, wholePkg, offset, hexLenBytes.length);
-            offset += hexLenBytes.length;
-
-            hexLenBytes = ProtoCommon.long2buff(file_size);
-            System.arraycopy(hexLenBytes, 0, wholePkg, offset, hexLenBytes.length);
-            offset += hexLenBytes.length;
-
-            OutputStream out = storageSocket.getOutputStream();
-
-            System.arraycopy(appenderFilenameBytes, 0, wholePkg, offset, appenderFilenameBytes.length);
-            offset += appenderFilenameBytes.length;
-
-            out.write(wholePkg);
-            if ((this.errno = (byte) callback.send(out)) != 0) {
-                return this.errno;
-            }
-
-            ProtoCommon.RecvPackageInfo pkgInfo = ProtoCommon.recvPackage(storageSocket.getInputStream(),
-                    ProtoCommon.STORAGE_PROTO_CMD_RESP, 0);
-            this.errno = pkgInfo.errno;
-            if (pkgInfo.errno != 0) {
-                return this.errno;
-            }
-
-            return 0;
+            this.errno = codec.recvHeader(storageSocket.getInputStream(), ProtoCommon.STORAGE_PROTO_CMD_RESP, 0);
+            return this.errno;
         } catch (IOException ex) {
+            this.storageServer.markBroken();
             throw ex;
         } finally {
             closeStorageServer(bNewConnection);
@@ -860,13 +1229,8 @@ public class StorageClient {
      */
     protected int do_modify_file(String groupName, String appenderFileName,
                                  long fileOffset, long modify_size, UploadCallback callback) throws IOException, FastDFSClientException {
-        byte[] header;
         boolean bNewConnection;
         Socket storageSocket;
-        byte[] hexLenBytes;
-        byte[] appenderFilenameBytes;
-        int offset;
-        long bodyLen;
 
         if ((groupName == null || groupName.length() == 0) ||
                 (appenderFileName == null || appenderFileName.length() == 0)) {
@@ -878,46 +1242,19 @@ public class StorageClient {
 
         try {
             storageSocket = this.storageServer.getSocket();
-
-            appenderFilenameBytes = appenderFileName.getBytes(ClientGlobal.G_CHARSET);
-            bodyLen = 3 * ProtoCommon.FDFS_PROTO_PKG_LEN_SIZE + appenderFilenameBytes.length + modify_size;
-
-            header = ProtoCommon.packHeader(ProtoCommon.STORAGE_PROTO_CMD_MODIFY_FILE, bodyLen, (byte) 0);
-            byte[] wholePkg = new byte[(int) (header.length + bodyLen - modify_size)];
-            System.arraycopy(header, 0, wholePkg, 0, header.length);
-            offset = header.length;
-
-            hexLenBytes = ProtoCommon.long2buff(appenderFileName.length());
-            System.arraycopy(hexLenBytes, 0, wholePkg, offset, hexLenBytes.length);
-            offset += hexLenBytes.length;
-
-            hexLenBytes = ProtoCommon.long2buff(fileOffset);
-            System.arraycopy(hexLenBytes, 0, wholePkg, offset, hexLenBytes.length);
-            offset += hexLenBytes.length;
-
-            hexLenBytes = ProtoCommon.long2buff(modify_size);
-            System.arraycopy(hexLenBytes, 0, wholePkg, offset, hexLenBytes.length);
-            offset += hexLenBytes.length;
-
-            OutputStream out = storageSocket.getOutputStream();
-
-            System.arraycopy(appenderFilenameBytes, 0, wholePkg, offset, appenderFilenameBytes.length);
-            offset += appenderFilenameBytes.length;
-
-            out.write(wholePkg);
-            if ((this.errno = (byte) callback.send(out)) != 0) {
+            ProtoCodec codec = ProtoCodec.get();
+            codec.encodeModify(appenderFileName, fileOffset, modify_size);
+            FramedOutputStream out = this.storageServer.getFramedOutputStream();
+            codec.writeTo(out);
+            if ((this.errno = (byte) sendContent(storageSocket, out, callback)) != 0) {
+                this.storageServer.markBroken();
                 return this.errno;
             }
 
-            ProtoCommon.RecvPackageInfo pkgInfo = ProtoCommon.recvPackage(storageSocket.getInputStream(),
-                    ProtoCommon.STORAGE_PROTO_CMD_RESP, 0);
-            this.errno = pkgInfo.errno;
-            if (pkgInfo.errno != 0) {
-                return this.errno;
-            }
-
-            return 0;
+            this.errno = codec.recvHeader(storageSocket.getInputStream(), ProtoCommon.STORAGE_PROTO_CMD_RESP, 0);
+            return this.errno;
         } catch (IOException ex) {
+            this.storageServer.markBroken();
             throw ex;
         } finally {
             closeStorageServer(bNewConnection);
@@ -932,23 +1269,48 @@ public class StorageClient {
      * @return 0 for success, none zero for fail (error code)
      */
     public int delete_file(String groupName, String remoteFileName) throws IOException, FastDFSClientException {
+        removeCachedFile(groupName + StorageClient1.SPLIT_GROUP_NAME_AND_FILENAME_SEPERATOR + remoteFileName);
+
         boolean bNewConnection = this.newUpdatableStorageConnection(groupName, remoteFileName);
         Socket storageSocket = this.storageServer.getSocket();
 
         try {
             send_package(ProtoCommon.STORAGE_PROTO_CMD_DELETE_FILE, groupName, remoteFileName);
-            ProtoCommon.RecvPackageInfo pkgInfo = ProtoCommon.recvPackage(storageSocket.getInputStream(),
+            this.errno = ProtoCodec.get().recvHeader(storageSocket.getInputStream(),
                     ProtoCommon.STORAGE_PROTO_CMD_RESP, 0);
-
-            this.errno = pkgInfo.errno;
-            return pkgInfo.errno;
+            RouteCache routeCache = ClientGlobal.G_TRACKER_GROUP != null ? ClientGlobal.G_TRACKER_GROUP.getRouteCache() : null;
+            if (this.errno == 0 && routeCache != null) {
+                routeCache.remove(groupName, remoteFileName);
+            }
+            return this.errno;
         } catch (IOException ex) {
+            this.storageServer.markBroken();
             throw ex;
         } finally {
             closeStorageServer(bNewConnection);
         }
     }
 
+    /**
+     * drop the file from the download caches and the dedup index, called before the file is deleted
+     *
+     * @param fileId the file id(including group name and filename)
+     */
+    static void removeCachedFile(String fileId) {
+        DownloadCache cache = ClientGlobal.G_DOWNLOAD_CACHE;
+        if (cache != null) {
+            cache.remove(fileId);
+        }
+        DiskDownloadCache diskCache = ClientGlobal.G_DISK_DOWNLOAD_CACHE;
+        if (diskCache != null) {
+            diskCache.remove(fileId);
+        }
+        DedupIndex dedupIndex = ClientGlobal.G_DEDUP_INDEX;
+        if (dedupIndex != null) {
+            dedupIndex.removeFileId(fileId);
+        }
+    }
+
     /**
      * truncate appender file to size 0 from storage server
      *
@@ -970,13 +1332,8 @@ public class StorageClient {
      */
     public int truncate_file(String groupName, String appenderFileName,
                              long truncatedFileSize) throws IOException, FastDFSClientException {
-        byte[] header;
         boolean bNewConnection;
         Socket storageSocket;
-        byte[] hexLenBytes;
-        byte[] appenderFilenameBytes;
-        int offset;
-        int bodyLen;
 
         if ((groupName == null || groupName.length() == 0) ||
                 (appenderFileName == null || appenderFileName.length() == 0)) {
@@ -988,42 +1345,84 @@ public class StorageClient {
 
         try {
             storageSocket = this.storageServer.getSocket();
+            ProtoCodec codec = ProtoCodec.get();
+            codec.encodeTruncate(appenderFileName, truncatedFileSize);
+            codec.writeTo(storageSocket.getOutputStream());
+            this.errno = codec.recvHeader(storageSocket.getInputStream(), ProtoCommon.STORAGE_PROTO_CMD_RESP, 0);
+            return this.errno;
+        } catch (IOException ex) {
+            this.storageServer.markBroken();
+            throw ex;
+        } finally {
+            closeStorageServer(bNewConnection);
+        }
+    }
 
-            appenderFilenameBytes = appenderFileName.getBytes(ClientGlobal.G_CHARSET);
-            bodyLen = 2 * ProtoCommon.FDFS_PROTO_PKG_LEN_SIZE + appenderFilenameBytes.length;
-
-            header = ProtoCommon.packHeader(ProtoCommon.STORAGE_PROTO_CMD_TRUNCATE_FILE, bodyLen, (byte) 0);
-            byte[] wholePkg = new byte[header.length + bodyLen];
-            System.arraycopy(header, 0, wholePkg, 0, header.length);
-            offset = header.length;
-
-            hexLenBytes = ProtoCommon.long2buff(appenderFileName.length());
-            System.arraycopy(hexLenBytes, 0, wholePkg, offset, hexLenBytes.length);
-            offset += hexLenBytes.length;
+    /**
+     * convert the appender file to a normal file with a new filename,
+     * need FastDFS server V6.02 or higher version
+     *
+     * @param groupName        the group name of appender file
+     * @param appenderFileName the appender filename
+     * @return 2 elements string array if success:<br>
+     * <ul><li>results[0]: the group name of the file</li></ul>
+     * <ul><li>results[1]: the new filename</li></ul>
+     * return null if fail
+     */
+    public String[] regenerate_appender_filename(String groupName, String appenderFileName) throws IOException, FastDFSClientException {
+        boolean bNewConnection;
+        Socket storageSocket;
 
-            hexLenBytes = ProtoCommon.long2buff(truncatedFileSize);
-            System.arraycopy(hexLenBytes, 0, wholePkg, offset, hexLenBytes.length);
-            offset += hexLenBytes.length;
+        if ((groupName == null || groupName.length() == 0) ||
+                (appenderFileName == null || appenderFileName.length() == 0)) {
+            this.errno = ProtoCommon.ERR_NO_EINVAL;
+            return null;
+        }
 
-            OutputStream out = storageSocket.getOutputStream();
+        bNewConnection = this.newUpdatableStorageConnection(groupName, appenderFileName);
 
-            System.arraycopy(appenderFilenameBytes, 0, wholePkg, offset, appenderFilenameBytes.length);
-            offset += appenderFilenameBytes.length;
+        try {
+            storageSocket = this.storageServer.getSocket();
+            ProtoCodec codec = ProtoCodec.get();
+            codec.encodeRegenerate(appenderFileName);
+            codec.writeTo(storageSocket.getOutputStream());
+            this.errno = codec.recvPackage(storageSocket.getInputStream(), ProtoCommon.STORAGE_PROTO_CMD_RESP, -1);
+            if (this.errno != 0) {
+                return null;
+            }
 
-            out.write(wholePkg);
-            ProtoCommon.RecvPackageInfo pkgInfo = ProtoCommon.recvPackage(storageSocket.getInputStream(),
-                    ProtoCommon.STORAGE_PROTO_CMD_RESP, 0);
-            this.errno = pkgInfo.errno;
-            return pkgInfo.errno;
+            return codec.decodeUploadResult();
         } catch (IOException ex) {
+            this.storageServer.markBroken();
             throw ex;
         } finally {
             closeStorageServer(bNewConnection);
         }
     }
 
+    /**
+     * close the new created storage connection, the connection will be given back
+     * to the connection pool when pooled. The cached routes to the storage server are
+     * removed when the connection is broken, the cached routes of the file are removed
+     * when the storage server answers ENOENT
+     *
+     * @param bNewConnection if the connection is new created
+     */
     private void closeStorageServer(boolean bNewConnection) {
         if (bNewConnection) {
+            TrackerGroup trackerGroup = ClientGlobal.G_TRACKER_GROUP;
+            RouteCache routeCache = trackerGroup != null ? trackerGroup.getRouteCache() : null;
+            if (routeCache != null) {
+                if (this.storageServer.isBroken()) {
+                    InetSocketAddress addr = this.storageServer.getInetSocketAddress();
+                    routeCache.removeServer(addr.getAddress().getHostAddress(), addr.getPort());
+                } else if (this.errno == ProtoCommon.ERR_NO_ENOENT && this.routeFileName != null) {
+                    routeCache.remove(this.routeGroupName, this.routeFileName);
+                }
+            }
+            this.routeGroupName = null;
+            this.routeFileName = null;
+
             try {
                 this.storageServer.close();
             } catch (IOException ex1) {
@@ -1054,30 +1453,212 @@ public class StorageClient {
      * @param downloadBytes  download bytes, 0 for remain bytes from offset
      * @return file content/buff, return null if fail
      */
-    public byte[] download_file(String groupName, String remoteFileName, long fileOffset, long downloadBytes) throws IOException, FastDFSClientException {
+    public byte[] download_file(final String groupName, final String remoteFileName, long fileOffset,
+                                long downloadBytes) throws IOException, FastDFSClientException {
+        String fileId = groupName + StorageClient1.SPLIT_GROUP_NAME_AND_FILENAME_SEPERATOR + remoteFileName;
+        DownloadCache cache = ClientGlobal.G_DOWNLOAD_CACHE;
+        if (cache != null && !cache.isCacheable(remoteFileName)) {
+            cache = null;
+        }
+        DiskDownloadCache diskCache = ClientGlobal.G_DISK_DOWNLOAD_CACHE;
+        if (diskCache != null && !diskCache.isCacheable(remoteFileName)) {
+            diskCache = null;
+        }
+        boolean wholeFile = fileOffset == 0 && downloadBytes == 0;
+
+        byte[] cached = cache != null ? cache.get(fileId, fileOffset, downloadBytes) : null;
+        if (cached == null && diskCache != null) {
+            cached = diskCache.get(fileId, fileOffset, downloadBytes);
+            if (cached != null && cache != null && wholeFile) {
+                cache.put(fileId, cached);
+            }
+        }
+        if (cached != null) {
+            this.errno = 0;
+            return cached;
+        }
+
+        byte[] content;
+        if (this.isVerifiable(remoteFileName, fileOffset, downloadBytes)) {
+            final byte[][] result = new byte[1][];
+            this.downloadVerified(groupName, remoteFileName, new VerifiedDownload() {
+                long download(StorageClient client, CRC32 crc32) throws IOException, FastDFSClientException {
+                    result[0] = client.downloadContent(groupName, remoteFileName, 0, 0, crc32);
+                    return result[0] != null ? result[0].length : -1;
+                }
+            });
+            content = result[0];
+        } else {
+            content = this.downloadContent(groupName, remoteFileName, fileOffset, downloadBytes, null);
+        }
+
+        if (content != null && wholeFile) {
+            if (cache != null) {
+                cache.put(fileId, content);
+            }
+            if (diskCache != null) {
+                diskCache.putAsync(fileId, content);
+            }
+        }
+        return content;
+    }
+
+    private byte[] downloadContent(String groupName, String remoteFileName, long fileOffset, long downloadBytes,
+                                   CRC32 crc32) throws IOException, FastDFSClientException {
         boolean bNewConnection = this.newReadableStorageConnection(groupName, remoteFileName);
         Socket storageSocket = this.storageServer.getSocket();
 
         try {
-            ProtoCommon.RecvPackageInfo pkgInfo;
-
             this.send_download_package(groupName, remoteFileName, fileOffset, downloadBytes);
-            pkgInfo = ProtoCommon.recvPackage(storageSocket.getInputStream(),
-                    ProtoCommon.STORAGE_PROTO_CMD_RESP, -1);
 
-            this.errno = pkgInfo.errno;
-            if (pkgInfo.errno != 0) {
+            ProtoCodec codec = ProtoCodec.get();
+            InputStream in = storageSocket.getInputStream();
+            this.errno = codec.recvHeader(in, ProtoCommon.STORAGE_PROTO_CMD_RESP, -1);
+            if (this.errno != 0) {
                 return null;
             }
 
-            return pkgInfo.body;
+            if (crc32 == null) {
+                return codec.recvBody(in);
+            }
+            long bodyLen = codec.getBodyLength();
+            if (bodyLen > Integer.MAX_VALUE) {
+                throw new IOException("recv body length: " + bodyLen + " is too large");
+            }
+            byte[] content = new byte[(int) bodyLen];
+            readFully(in, content, 0, content.length, crc32);
+            return content;
         } catch (IOException ex) {
+            this.storageServer.markBroken();
             throw ex;
         } finally {
             closeStorageServer(bNewConnection);
         }
     }
 
+    /**
+     * download file from storage server into the buffer of the caller, no buffer is allocated
+     *
+     * @param groupName      the group name of storage server
+     * @param remoteFileName filename on storage server
+     * @param fileOffset     the start offset of the file
+     * @param downloadBytes  download bytes, 0 for remain bytes from offset
+     * @param buffer         heap or direct buffer, the content is put from its position and
+     *                       the position is advanced
+     * @return the received bytes, return -1 if fail, ProtoCommon.ERR_NO_ENOSPC as the error
+     * code when the remaining of the buffer is less than the content
+     */
+    public int download_file(final String groupName, final String remoteFileName, long fileOffset, long downloadBytes,
+                             final ByteBuffer buffer) throws IOException, FastDFSClientException {
+        if (!this.isVerifiable(remoteFileName, fileOffset, downloadBytes)) {
+            return this.downloadToBuffer(groupName, remoteFileName, fileOffset, downloadBytes, buffer, null);
+        }
+
+        final int position = buffer.position();
+        return (int) this.downloadVerified(groupName, remoteFileName, new VerifiedDownload() {
+            long download(StorageClient client, CRC32 crc32) throws IOException, FastDFSClientException {
+                return client.downloadToBuffer(groupName, remoteFileName, 0, 0, buffer, crc32);
+            }
+
+            int reset() {
+                buffer.position(position);
+                return 0;
+            }
+        });
+    }
+
+    private int downloadToBuffer(String groupName, String remoteFileName, long fileOffset, long downloadBytes,
+                                 ByteBuffer buffer, CRC32 crc32) throws IOException, FastDFSClientException {
+        boolean bNewConnection = this.newReadableStorageConnection(groupName, remoteFileName);
+        Socket storageSocket = this.storageServer.getSocket();
+
+        try {
+            this.send_download_package(groupName, remoteFileName, fileOffset, downloadBytes);
+
+            InputStream in = storageSocket.getInputStream();
+            ProtoCodec codec = ProtoCodec.get();
+            this.errno = codec.recvHeader(in, ProtoCommon.STORAGE_PROTO_CMD_RESP, -1);
+            if (this.errno != 0) {
+                return -1;
+            }
+            long bodyLen = codec.getBodyLength();
+            if (bodyLen > buffer.remaining()) {
+                //drain the body so the connection can be reused
+                BufferPool.Chunk chunk = ClientGlobal.G_BUFFER_POOL.acquire((int) Math.min(bodyLen, 64 * 1024));
+                try {
+                    byte[] buff = chunk.array();
+                    int bytes;
+                    for (long remainBytes = bodyLen; remainBytes > 0; remainBytes -= bytes) {
+                        if ((bytes = in.read(buff, 0, (int) Math.min(remainBytes, buff.length))) < 0) {
+                            throw new IOException("recv package size " + (bodyLen - remainBytes)
+                                    + " != " + bodyLen);
+                        }
+                    }
+                } finally {
+                    chunk.release();
+                }
+                this.errno = ProtoCommon.ERR_NO_ENOSPC;
+                return -1;
+            }
+
+            int length = (int) bodyLen;
+            SocketChannel channel = storageSocket.getChannel();
+            if (buffer.hasArray()) {
+                readFully(in, buffer.array(), buffer.arrayOffset() + buffer.position(), length, crc32);
+                buffer.position(buffer.position() + length);
+            } else if (channel != null && crc32 == null) {
+                int limit = buffer.limit();
+                buffer.limit(buffer.position() + length);
+                try {
+                    ChannelTransfer.read(channel, buffer, storageSocket.getSoTimeout());
+                } finally {
+                    buffer.limit(limit);
+                }
+            } else {
+                BufferPool.Chunk chunk = ClientGlobal.G_BUFFER_POOL.acquire(Math.min(length, 64 * 1024));
+                try {
+                    byte[] buff = chunk.array();
+                    int bytes;
+                    for (int remainBytes = length; remainBytes > 0; remainBytes -= bytes) {
+                        if ((bytes = in.read(buff, 0, Math.min(remainBytes, buff.length))) < 0) {
+                            throw new IOException("recv package size " + (length - remainBytes) + " != " + length);
+                        }
+                        if (crc32 != null) {
+                            crc32.update(buff, 0, bytes);
+                        }
+                        buffer.put(buff, 0, bytes);
+                    }
+                } finally {
+                    chunk.release();
+                }
+            }
+            return length;
+        } catch (IOException ex) {
+            this.storageServer.markBroken();
+            throw ex;
+        } finally {
+            closeStorageServer(bNewConnection);
+        }
+    }
+
+    /**
+     * download file from storage server into the buff of the caller, no buff is allocated
+     *
+     * @param groupName      the group name of storage server
+     * @param remoteFileName filename on storage server
+     * @param fileOffset     the start offset of the file
+     * @param downloadBytes  download bytes, 0 for remain bytes from offset
+     * @param buff           the buff to put the content
+     * @param offset         the start offset of the buff
+     * @return the received bytes, return -1 if fail, ProtoCommon.ERR_NO_ENOSPC as the error
+     * code when the buff is too small
+     */
+    public int download_file(String groupName, String remoteFileName, long fileOffset, long downloadBytes,
+                             byte[] buff, int offset) throws IOException, FastDFSClientException {
+        return this.download_file(groupName, remoteFileName, fileOffset, downloadBytes,
+                ByteBuffer.wrap(buff, offset, buff.length - offset));
+    }
+
     /**
      * download file from storage server
      *
@@ -1102,46 +1683,200 @@ public class StorageClient {
      * @return 0 success, return none zero errno if fail
      */
     public int download_file(String groupName, String remoteFileName, long fileOffset, long downloadBytes, String localFileName) throws IOException, FastDFSClientException {
-        boolean bNewConnection = this.newReadableStorageConnection(groupName, remoteFileName);
-        Socket storageSocket = this.storageServer.getSocket();
+        String fileId = groupName + StorageClient1.SPLIT_GROUP_NAME_AND_FILENAME_SEPERATOR + remoteFileName;
+        DiskDownloadCache diskCache = ClientGlobal.G_DISK_DOWNLOAD_CACHE;
+        if (diskCache != null && !diskCache.isCacheable(remoteFileName)) {
+            diskCache = null;
+        }
+
+        boolean success = false;
+        FileOutputStream out = new FileOutputStream(localFileName);
         try {
-            ProtoCommon.RecvHeaderInfo header;
-            FileOutputStream out = new FileOutputStream(localFileName);
-            try {
+            if (diskCache != null && diskCache.transferTo(fileId, fileOffset, downloadBytes, out.getChannel(), 0) >= 0) {
                 this.errno = 0;
-                this.send_download_package(groupName, remoteFileName, fileOffset, downloadBytes);
+                success = true;
+                return 0;
+            }
+
+            if (this.download_file(groupName, remoteFileName, fileOffset, downloadBytes, out.getChannel(), 0) < 0) {
+                return this.errno;
+            }
+            success = true;
+        } finally {
+            out.close();
+            if (!success) {
+                new File(localFileName).delete();
+            }
+        }
+
+        if (diskCache != null && fileOffset == 0 && downloadBytes == 0) {
+            diskCache.putAsync(fileId, new File(localFileName));
+        }
+        return 0;
+    }
+
+    /**
+     * download file from storage server to local file, resumable: when fail, the partial file
+     * and its checkpoint file (local filename + ".checkpoint") are kept and the next call continues
+     * from the offset of the checkpoint. The content is verified by the crc32 encoded in the file id
+     * except for the appender file, the local file is deleted when the verification fails
+     *
+     * @param groupName      the group name of storage server
+     * @param remoteFileName filename on storage server
+     * @param localFileName  filename on local
+     * @return 0 success, return none zero errno if fail
+     */
+    public int download_resumable_file(String groupName, String remoteFileName,
+                                       String localFileName) throws IOException, FastDFSClientException {
+        FileInfo fileInfo = this.get_file_info(groupName, remoteFileName);
+        if (fileInfo == null) {
+            return this.errno;
+        }
+
+        ResumableDownload download = new ResumableDownload(localFileName, groupName, remoteFileName, fileInfo);
+        String error;
+        try {
+            long offset = download.open();
+            if (offset < fileInfo.getFileSize()) {
+                int result;
+                try {
+                    result = this.downloadToCallback(groupName, remoteFileName, offset, 0, download, null);
+                } catch (IOException ex) {
+                    keepPartialFile(download);
+                    throw ex;
+                }
+                if (result != 0) {
+                    keepPartialFile(download);
+                    if (download.getWriteException() != null) {
+                        throw download.getWriteException();
+                    }
+                    return result;
+                }
+            }
+            error = download.verify(!isAppenderFile(remoteFileName));
+        } finally {
+            download.close();
+        }
+
+        if (error != null) {
+            download.discard();
+            this.errno = ProtoCommon.ERR_NO_EIO;
+            throw new IOException("verify " + groupName + "/" + remoteFileName + " fail, " + error);
+        }
+        download.finish();
+        return 0;
+    }
+
+    private static void keepPartialFile(ResumableDownload download) {
+        try {
+            if (download.getPosition() > 0) {
+                download.checkpoint();
+            } else {
+                download.close();
+                download.discard();  //nothing received
+            }
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
+    }
 
-                InputStream in = storageSocket.getInputStream();
-                header = ProtoCommon.recvHeader(in, ProtoCommon.STORAGE_PROTO_CMD_RESP, -1);
-                this.errno = header.errno;
-                if (header.errno != 0) {
-                    return header.errno;
+    /**
+     * check if the file is an appender file by the file size encoded in the filename
+     *
+     * @param remoteFileName filename on storage server
+     * @return true for appender file
+     */
+    static boolean isAppenderFile(String remoteFileName) {
+        FileIdDecoder decoder = FileIdDecoder.get();
+        return decoder.decode(remoteFileName) && decoder.isAppenderFile();
+    }
+
+    /**
+     * download file from storage server to the file channel at the position,
+     * by positional writes so the ranges of a file can be downloaded concurrently
+     *
+     * @param groupName      the group name of storage server
+     * @param remoteFileName filename on storage server
+     * @param fileOffset     the start offset of the file
+     * @param downloadBytes  download bytes, 0 for remain bytes from offset
+     * @param out            the file channel to write
+     * @param position       the position of the file channel to write from
+     * @return the received bytes, return -1 if fail
+     */
+    public long download_file(final String groupName, final String remoteFileName, long fileOffset, long downloadBytes,
+                              final FileChannel out, final long position) throws IOException, FastDFSClientException {
+        if (!this.isVerifiable(remoteFileName, fileOffset, downloadBytes)) {
+            return this.downloadToChannel(groupName, remoteFileName, fileOffset, downloadBytes, out, position, null);
+        }
+
+        //the content of the next storage server overwrites the same range
+        return this.downloadVerified(groupName, remoteFileName, new VerifiedDownload() {
+            long download(StorageClient client, CRC32 crc32) throws IOException, FastDFSClientException {
+                return client.downloadToChannel(groupName, remoteFileName, 0, 0, out, position, crc32);
+            }
+
+            int reset() throws IOException {
+                //the content received of a longer file should not be left behind
+                if (out.size() > position) {
+                    out.truncate(position);
                 }
+                return 0;
+            }
+        });
+    }
+
+    private long downloadToChannel(String groupName, String remoteFileName, long fileOffset, long downloadBytes,
+                                   FileChannel out, long position, CRC32 crc32) throws IOException, FastDFSClientException {
+        boolean bNewConnection = this.newReadableStorageConnection(groupName, remoteFileName);
+        Socket storageSocket = this.storageServer.getSocket();
+        try {
+            this.errno = 0;
+            this.send_download_package(groupName, remoteFileName, fileOffset, downloadBytes);
+
+            InputStream in = storageSocket.getInputStream();
+            ProtoCodec codec = ProtoCodec.get();
+            this.errno = codec.recvHeader(in, ProtoCommon.STORAGE_PROTO_CMD_RESP, -1);
+            if (this.errno != 0) {
+                return -1;
+            }
+            long bodyLen = codec.getBodyLength();
+
+            SocketChannel channel = storageSocket.getChannel();
+            if (channel != null && crc32 == null) {
+                ChannelTransfer.transferFrom(channel, out, position, bodyLen, storageSocket.getSoTimeout());
+                return bodyLen;
+            }
 
-                byte[] buff = new byte[256 * 1024];
-                long remainBytes = header.body_len;
+            BufferPool.Chunk chunk = ClientGlobal.G_BUFFER_POOL.acquire((int) Math.min(bodyLen, 256 * 1024));
+            try {
+                byte[] buff = chunk.array();
+                ByteBuffer buffer = ByteBuffer.wrap(buff);
+                long remainBytes = bodyLen;
                 int bytes;
 
                 while (remainBytes > 0) {
                     if ((bytes = in.read(buff, 0, remainBytes > buff.length ? buff.length : (int) remainBytes)) < 0) {
-                        throw new IOException("recv package size " + (header.body_len - remainBytes) + " != " + header.body_len);
+                        throw new IOException("recv package size " + (bodyLen - remainBytes) + " != " + bodyLen);
+                    }
+                    if (crc32 != null) {
+                        crc32.update(buff, 0, bytes);
+                    }
+                    buffer.clear();
+                    buffer.limit(bytes);
+                    while (buffer.hasRemaining()) {
+                        position += out.write(buffer, position);
                     }
-                    out.write(buff, 0, bytes);
                     remainBytes -= bytes;
                 }
-                return 0;
-            } catch (IOException ex) {
-                if (this.errno == 0) {
-                    this.errno = ProtoCommon.ERR_NO_EIO;
-                }
-                throw ex;
             } finally {
-                out.close();
-                if (this.errno != 0) {
-                    new File(localFileName).delete();
-                }
+                chunk.release();
             }
+            return bodyLen;
         } catch (IOException ex) {
+            if (this.errno == 0) {
+                this.errno = ProtoCommon.ERR_NO_EIO;
+            }
+            this.storageServer.markBroken();
             throw ex;
         } finally {
             closeStorageServer(bNewConnection);
@@ -1171,44 +1906,231 @@ public class StorageClient {
      * @param callback       call callback.recv() when data arrive
      * @return 0 success, return none zero errno if fail
      */
-    public int download_file(String groupName, String remoteFileName, long fileOffset, long downloadBytes, DownloadCallback callback) throws IOException, FastDFSClientException {
+    public int download_file(final String groupName, final String remoteFileName, long fileOffset, long downloadBytes,
+                             final DownloadCallback callback) throws IOException, FastDFSClientException {
+        if (!this.isVerifiable(remoteFileName, fileOffset, downloadBytes)) {
+            return this.downloadToCallback(groupName, remoteFileName, fileOffset, downloadBytes, callback, null);
+        }
+
+        final long[] fileSize = new long[1];
+        final DownloadCallback sizeRecorder = new DownloadCallback() {
+            public int recv(long file_size, byte[] data, int bytes) {
+                fileSize[0] = file_size;
+                return callback.recv(file_size, data, bytes);
+            }
+        };
+        long result = this.downloadVerified(groupName, remoteFileName, new VerifiedDownload() {
+            long download(StorageClient client, CRC32 crc32) throws IOException, FastDFSClientException {
+                fileSize[0] = 0;
+                return client.downloadToCallback(groupName, remoteFileName, 0, 0, sizeRecorder, crc32) == 0 ? fileSize[0] : -1;
+            }
+
+            int reset() {
+                return callback.reset();
+            }
+        });
+        return result < 0 ? this.errno : 0;
+    }
+
+    private int downloadToCallback(String groupName, String remoteFileName, long fileOffset, long downloadBytes,
+                                   DownloadCallback callback, CRC32 crc32) throws IOException, FastDFSClientException {
         int result;
         boolean bNewConnection = this.newReadableStorageConnection(groupName, remoteFileName);
         Socket storageSocket = this.storageServer.getSocket();
 
         try {
-            ProtoCommon.RecvHeaderInfo header;
             this.send_download_package(groupName, remoteFileName, fileOffset, downloadBytes);
 
             InputStream in = storageSocket.getInputStream();
-            header = ProtoCommon.recvHeader(in, ProtoCommon.STORAGE_PROTO_CMD_RESP, -1);
-            this.errno = header.errno;
-            if (header.errno != 0) {
-                return header.errno;
+            ProtoCodec codec = ProtoCodec.get();
+            this.errno = codec.recvHeader(in, ProtoCommon.STORAGE_PROTO_CMD_RESP, -1);
+            if (this.errno != 0) {
+                return this.errno;
             }
+            long bodyLen = codec.getBodyLength();
 
-            byte[] buff = new byte[2 * 1024];
-            long remainBytes = header.body_len;
-            int bytes;
+            BufferPool.Chunk chunk = ClientGlobal.G_BUFFER_POOL.acquire((int) Math.min(bodyLen, 64 * 1024));
+            try {
+                byte[] buff = chunk.array();
+                long remainBytes = bodyLen;
+                int bytes;
 
-            while (remainBytes > 0) {
-                if ((bytes = in.read(buff, 0, remainBytes > buff.length ? buff.length : (int) remainBytes)) < 0) {
-                    throw new IOException("recv package size " + (header.body_len - remainBytes) + " != " + header.body_len);
-                }
-                if ((result = callback.recv(header.body_len, buff, bytes)) != 0) {
-                    this.errno = (byte) result;
-                    return result;
+                while (remainBytes > 0) {
+                    if ((bytes = in.read(buff, 0, remainBytes > buff.length ? buff.length : (int) remainBytes)) < 0) {
+                        throw new IOException("recv package size " + (bodyLen - remainBytes) + " != " + bodyLen);
+                    }
+                    if (crc32 != null) {
+                        crc32.update(buff, 0, bytes);
+                    }
+                    if ((result = callback.recv(bodyLen, buff, bytes)) != 0) {
+                        this.storageServer.markBroken();
+                        this.errno = (byte) result;
+                        return result;
+                    }
+                    remainBytes -= bytes;
                 }
-                remainBytes -= bytes;
+            } finally {
+                chunk.release();
             }
             return 0;
         } catch (IOException ex) {
+            this.storageServer.markBroken();
             throw ex;
         } finally {
             closeStorageServer(bNewConnection);
         }
     }
 
+    /**
+     * a download of the whole file verified by downloadVerified
+     */
+    private abstract static class VerifiedDownload {
+        /**
+         * download the whole file by the client, the received content is updated to the crc32
+         *
+         * @param client the client connected to the storage server
+         * @param crc32  the crc32 to update
+         * @return the received bytes, return -1 if fail
+         */
+        abstract long download(StorageClient client, CRC32 crc32) throws IOException, FastDFSClientException;
+
+        /**
+         * discard the content received before downloading again
+         *
+         * @return 0 to download again, return none zero(errno) to give up
+         */
+        int reset() throws IOException {
+            return 0;
+        }
+    }
+
+    /**
+     * check if the download is verified by the crc32: verification enabled, the whole file
+     * is downloaded and the size and the crc32 in the filename are the real ones
+     */
+    private boolean isVerifiable(String remoteFileName, long fileOffset, long downloadBytes) {
+        if (!this.verifyDownload || fileOffset != 0 || downloadBytes != 0) {
+            return false;
+        }
+        FileIdDecoder decoder = FileIdDecoder.get();
+        return decoder.decode(remoteFileName) && decoder.isInfoReliable();
+    }
+
+    /**
+     * download the whole file and check the size and the crc32 computed when the content
+     * arrives against the ones in the filename. When not match, download again from the
+     * other storage servers holding the file. The storage server failed to connect or broken
+     * is skipped too, the errors of the storage server are not retried
+     *
+     * @param groupName      the group name of storage server
+     * @param remoteFileName filename on storage server
+     * @param download       the download to run
+     * @return the received bytes, return -1 if fail
+     */
+    private long downloadVerified(String groupName, String remoteFileName,
+                                  VerifiedDownload download) throws IOException, FastDFSClientException {
+        FileIdDecoder decoder = FileIdDecoder.get();
+        decoder.decode(remoteFileName);
+        long fileSize = decoder.getFileSize();
+        int crc = decoder.getCrc32();
+        CRC32 crc32 = new CRC32();
+        int mismatchCount = 0;
+        boolean received = false;
+        IOException lastException = null;
+
+        InetSocketAddress triedAddr = null;
+        if (this.storageServer != null) {
+            triedAddr = this.storageServer.getInetSocketAddress();
+            try {
+                long result = download.download(this, crc32);
+                if (result < 0 || (result == fileSize && (int) crc32.getValue() == crc)) {
+                    return result;
+                }
+                mismatchCount++;
+            } catch (IOException ex) {
+                lastException = ex;
+            }
+            received = true;
+        }
+
+        TrackerClient tracker = new TrackerClient();
+        ServerInfo[] servers = tracker.getFetchServerInfoList(this.trackerServer, groupName, remoteFileName);
+        if ((servers == null || servers.length == 0) && triedAddr == null) {
+            throw new FastDFSClientException("getStorageServer fail, errno code: " + tracker.getErrorCode(),
+                    tracker.getErrorCode());
+        }
+
+        for (int i = 0; servers != null && i < servers.length; i++) {
+            ServerInfo server = servers[i];
+            if (triedAddr != null && triedAddr.getPort() == server.getPort()
+                    && triedAddr.getAddress().getHostAddress().equals(server.getIpAddr())) {
+                continue;
+            }
+            if (received) {
+                int result = download.reset();
+                if (result != 0) {
+                    break;
+                }
+                crc32.reset();
+            }
+
+            StorageServer storageServer = null;
+            long result;
+            try {
+                storageServer = new StorageServer(server.getIpAddr(), server.getPort(), 0);
+                received = true;
+                StorageClient client = new StorageClient(this.trackerServer, storageServer);
+                try {
+                    result = download.download(client, crc32);
+                } finally {
+                    this.errno = client.errno;
+                }
+            } catch (IOException ex) {
+                lastException = ex;
+                continue;
+            } finally {
+                if (storageServer != null) {
+                    try {
+                        storageServer.close();
+                    } catch (IOException ex1) {
+                        ex1.printStackTrace();
+                    }
+                }
+            }
+            if (result < 0 || (result == fileSize && (int) crc32.getValue() == crc)) {
+                return result;
+            }
+            mismatchCount++;
+        }
+
+        if (lastException != null && mismatchCount == 0) {
+            throw lastException;
+        }
+        this.errno = ProtoCommon.ERR_NO_EIO;
+        throw new IOException("verify " + groupName + "/" + remoteFileName + " fail, size or crc32 not match, "
+                + mismatchCount + " storage server(s) tried");
+    }
+
+    /**
+     * receive the content to the buff and update the crc32 as the bytes arrive
+     *
+     * @param crc32 the crc32 to update, can be null
+     */
+    private static void readFully(InputStream in, byte[] buff, int offset, int length, CRC32 crc32) throws IOException {
+        if (crc32 == null) {
+            ProtoCommon.readFully(in, buff, offset, length);
+            return;
+        }
+
+        int bytes;
+        for (int totalBytes = 0; totalBytes < length; totalBytes += bytes) {
+            if ((bytes = in.read(buff, offset + totalBytes, length - totalBytes)) < 0) {
+                throw new IOException("recv package size " + totalBytes + " != " + length);
+            }
+            crc32.update(buff, offset + totalBytes, bytes);
+        }
+    }
+
     /**
      * get all metadata items from storage server
      *
@@ -1220,22 +2142,21 @@ public class StorageClient {
         boolean bNewConnection = this.newUpdatableStorageConnection(groupName, remoteFileName);
         Socket storageSocket = this.storageServer.getSocket();
 
+        ProtoCodec codec = ProtoCodec.get();
         try {
-            ProtoCommon.RecvPackageInfo pkgInfo;
-
             this.send_package(ProtoCommon.STORAGE_PROTO_CMD_GET_METADATA, groupName, remoteFileName);
-            pkgInfo = ProtoCommon.recvPackage(storageSocket.getInputStream(),
-                    ProtoCommon.STORAGE_PROTO_CMD_RESP, -1);
 
-            this.errno = pkgInfo.errno;
-            if (pkgInfo.errno != 0) {
+            this.errno = codec.recvPackage(storageSocket.getInputStream(), ProtoCommon.STORAGE_PROTO_CMD_RESP, -1);
+            if (this.errno != 0) {
                 return null;
             }
 
-            return ProtoCommon.split_metadata(new String(pkgInfo.body, ClientGlobal.G_CHARSET));
+            return ProtoCommon.split_metadata(codec.decodeString(ClientGlobal.G_CHARSET));
         } catch (IOException ex) {
+            this.storageServer.markBroken();
             throw ex;
         } finally {
+            codec.shrink();
             closeStorageServer(bNewConnection);
         }
     }
@@ -1258,64 +2179,18 @@ public class StorageClient {
         boolean bNewConnection = this.newUpdatableStorageConnection(groupName, remoteFileName);
         Socket storageSocket = this.storageServer.getSocket();
 
+        ProtoCodec codec = ProtoCodec.get();
         try {
-            byte[] header;
-            byte[] groupBytes;
-            byte[] filenameBytes;
-            byte[] metaBuff;
-            byte[] bs;
-            int groupLen;
-            byte[] sizeBytes;
-            ProtoCommon.RecvPackageInfo pkgInfo;
-
-            if (metaList == null) {
-                metaBuff = new byte[0];
-            } else {
-                metaBuff = ProtoCommon.pack_metadata(metaList).getBytes(ClientGlobal.G_CHARSET);
-            }
-
-            filenameBytes = remoteFileName.getBytes(ClientGlobal.G_CHARSET);
-            sizeBytes = new byte[2 * ProtoCommon.FDFS_PROTO_PKG_LEN_SIZE];
-            Arrays.fill(sizeBytes, (byte) 0);
-
-            bs = ProtoCommon.long2buff(filenameBytes.length);
-            System.arraycopy(bs, 0, sizeBytes, 0, bs.length);
-            bs = ProtoCommon.long2buff(metaBuff.length);
-            System.arraycopy(bs, 0, sizeBytes, ProtoCommon.FDFS_PROTO_PKG_LEN_SIZE, bs.length);
-
-            groupBytes = new byte[ProtoCommon.FDFS_GROUP_NAME_MAX_LEN];
-            bs = groupName.getBytes(ClientGlobal.G_CHARSET);
-
-            Arrays.fill(groupBytes, (byte) 0);
-            if (bs.length <= groupBytes.length) {
-                groupLen = bs.length;
-            } else {
-                groupLen = groupBytes.length;
-            }
-            System.arraycopy(bs, 0, groupBytes, 0, groupLen);
-
-            header = ProtoCommon.packHeader(ProtoCommon.STORAGE_PROTO_CMD_SET_METADATA,
-                    2 * ProtoCommon.FDFS_PROTO_PKG_LEN_SIZE + 1 + groupBytes.length
-                            + filenameBytes.length + metaBuff.length, (byte) 0);
-            OutputStream out = storageSocket.getOutputStream();
-            byte[] wholePkg = new byte[header.length + sizeBytes.length + 1 + groupBytes.length + filenameBytes.length];
-            System.arraycopy(header, 0, wholePkg, 0, header.length);
-            System.arraycopy(sizeBytes, 0, wholePkg, header.length, sizeBytes.length);
-            wholePkg[header.length + sizeBytes.length] = op_flag;
-            System.arraycopy(groupBytes, 0, wholePkg, header.length + sizeBytes.length + 1, groupBytes.length);
-            System.arraycopy(filenameBytes, 0, wholePkg, header.length + sizeBytes.length + 1 + groupBytes.length, filenameBytes.length);
-            out.write(wholePkg);
-            if (metaBuff.length > 0) {
-                out.write(metaBuff);
-            }
+            codec.encodeSetMetadata(groupName, remoteFileName, metaList, op_flag);
+            codec.writeTo(storageSocket.getOutputStream());
 
-            pkgInfo = ProtoCommon.recvPackage(storageSocket.getInputStream(), ProtoCommon.STORAGE_PROTO_CMD_RESP, 0);
-
-            this.errno = pkgInfo.errno;
-            return pkgInfo.errno;
+            this.errno = codec.recvHeader(storageSocket.getInputStream(), ProtoCommon.STORAGE_PROTO_CMD_RESP, 0);
+            return this.errno;
         } catch (IOException ex) {
+            this.storageServer.markBroken();
             throw ex;
         } finally {
+            codec.shrink();
             closeStorageServer(bNewConnection);
         }
     }
@@ -1334,29 +2209,25 @@ public class StorageClient {
             return null;
         }
 
-        byte[] buff = base64.decodeAuto(remoteFileName.substring(ProtoCommon.FDFS_FILE_PATH_LEN,
-                ProtoCommon.FDFS_FILE_PATH_LEN + ProtoCommon.FDFS_FILENAME_BASE64_LENGTH));
-
-        long file_size = ProtoCommon.buff2long(buff, 4 * 2);
-        if (((remoteFileName.length() > ProtoCommon.TRUNK_LOGIC_FILENAME_LENGTH) ||
-                ((remoteFileName.length() > ProtoCommon.NORMAL_LOGIC_FILENAME_LENGTH) && ((file_size & ProtoCommon.TRUNK_FILE_MARK_SIZE) == 0))) ||
-                ((file_size & ProtoCommon.APPENDER_FILE_SIZE) != 0)) { //slave file or appender file
-            FileInfo fi = this.query_file_info(groupName, remoteFileName);
-            if (fi == null) {
-                return null;
-            }
-            return fi;
+        FileInfo fileInfo = decodeFileInfo(remoteFileName);
+        if (fileInfo == null) { //slave file or appender file
+            return this.query_file_info(groupName, remoteFileName);
         }
+        return fileInfo;
+    }
 
-        FileInfo fileInfo = new FileInfo(file_size, 0, 0, ProtoCommon.getIpAddress(buff, 0));
-        fileInfo.setCreateTimestamp(ProtoCommon.buff2int(buff, 4));
-        if ((file_size >> 63) != 0) {
-            file_size &= 0xFFFFFFFFL;  //low 32 bits is file size
-            fileInfo.setFileSize(file_size);
+    /**
+     * decode the file info from the filename
+     *
+     * @param remoteFileName the filename
+     * @return FileInfo object, return null for slave file, appender file or too short filename
+     */
+    static FileInfo decodeFileInfo(String remoteFileName) {
+        FileIdDecoder decoder = FileIdDecoder.get();
+        if (!decoder.decode(remoteFileName) || !decoder.isInfoReliable()) {
+            return null;
         }
-        fileInfo.setCrc32(ProtoCommon.buff2int(buff, 4 * 4));
-
-        return fileInfo;
+        return decoder.toFileInfo();
     }
 
     /**
@@ -1371,50 +2242,18 @@ public class StorageClient {
         Socket storageSocket = this.storageServer.getSocket();
 
         try {
-            byte[] header;
-            byte[] groupBytes;
-            byte[] filenameBytes;
-            byte[] bs;
-            int groupLen;
-            ProtoCommon.RecvPackageInfo pkgInfo;
-
-            filenameBytes = remoteFileName.getBytes(ClientGlobal.G_CHARSET);
-            groupBytes = new byte[ProtoCommon.FDFS_GROUP_NAME_MAX_LEN];
-            bs = groupName.getBytes(ClientGlobal.G_CHARSET);
-
-            Arrays.fill(groupBytes, (byte) 0);
-            if (bs.length <= groupBytes.length) {
-                groupLen = bs.length;
-            } else {
-                groupLen = groupBytes.length;
-            }
-            System.arraycopy(bs, 0, groupBytes, 0, groupLen);
-
-            header = ProtoCommon.packHeader(ProtoCommon.STORAGE_PROTO_CMD_QUERY_FILE_INFO,
-                    +groupBytes.length + filenameBytes.length, (byte) 0);
-            OutputStream out = storageSocket.getOutputStream();
-            byte[] wholePkg = new byte[header.length + groupBytes.length + filenameBytes.length];
-            System.arraycopy(header, 0, wholePkg, 0, header.length);
-            System.arraycopy(groupBytes, 0, wholePkg, header.length, groupBytes.length);
-            System.arraycopy(filenameBytes, 0, wholePkg, header.length + groupBytes.length, filenameBytes.length);
-            out.write(wholePkg);
-
-            pkgInfo = ProtoCommon.recvPackage(storageSocket.getInputStream(),
-                    ProtoCommon.STORAGE_PROTO_CMD_RESP,
-                    3 * ProtoCommon.FDFS_PROTO_PKG_LEN_SIZE +
-                            ProtoCommon.FDFS_IPADDR_SIZE);
-
-            this.errno = pkgInfo.errno;
-            if (pkgInfo.errno != 0) {
+            send_package(ProtoCommon.STORAGE_PROTO_CMD_QUERY_FILE_INFO, groupName, remoteFileName);
+
+            ProtoCodec codec = ProtoCodec.get();
+            this.errno = codec.recvPackage(storageSocket.getInputStream(),
+                    ProtoCommon.STORAGE_PROTO_CMD_RESP, ProtoCodec.getFileInfoBodyLength());
+            if (this.errno != 0) {
                 return null;
             }
 
-            long file_size = ProtoCommon.buff2long(pkgInfo.body, 0);
-            int create_timestamp = (int) ProtoCommon.buff2long(pkgInfo.body, ProtoCommon.FDFS_PROTO_PKG_LEN_SIZE);
-            int crc32 = (int) ProtoCommon.buff2long(pkgInfo.body, 2 * ProtoCommon.FDFS_PROTO_PKG_LEN_SIZE);
-            String source_ip_addr = (new String(pkgInfo.body, 3 * ProtoCommon.FDFS_PROTO_PKG_LEN_SIZE, ProtoCommon.FDFS_IPADDR_SIZE)).trim();
-            return new FileInfo(file_size, create_timestamp, crc32, source_ip_addr);
+            return codec.decodeFileInfo();
         } catch (IOException ex) {
+            this.storageServer.markBroken();
             throw ex;
         } finally {
             closeStorageServer(bNewConnection);
@@ -1456,6 +2295,8 @@ public class StorageClient {
             if (this.storageServer == null) {
                 throw new FastDFSClientException("getStorageServer fail, errno code: " + tracker.getErrorCode());
             }
+            this.routeGroupName = groupName;
+            this.routeFileName = remoteFileName;
             return true;
         }
     }
@@ -1476,6 +2317,8 @@ public class StorageClient {
             if (this.storageServer == null) {
                 throw new FastDFSClientException("getStorageServer fail, errno code: " + tracker.getErrorCode());
             }
+            this.routeGroupName = groupName;
+            this.routeFileName = remoteFileName;
             return true;
         }
     }
@@ -1488,30 +2331,9 @@ public class StorageClient {
      * @param remoteFileName filename on storage server
      */
     protected void send_package(byte cmd, String groupName, String remoteFileName) throws IOException {
-        byte[] header;
-        byte[] groupBytes;
-        byte[] filenameBytes;
-        byte[] bs;
-        int groupLen;
-
-        groupBytes = new byte[ProtoCommon.FDFS_GROUP_NAME_MAX_LEN];
-        bs = groupName.getBytes(ClientGlobal.G_CHARSET);
-        filenameBytes = remoteFileName.getBytes(ClientGlobal.G_CHARSET);
-
-        Arrays.fill(groupBytes, (byte) 0);
-        if (bs.length <= groupBytes.length) {
-            groupLen = bs.length;
-        } else {
-            groupLen = groupBytes.length;
-        }
-        System.arraycopy(bs, 0, groupBytes, 0, groupLen);
-
-        header = ProtoCommon.packHeader(cmd, groupBytes.length + filenameBytes.length, (byte) 0);
-        byte[] wholePkg = new byte[header.length + groupBytes.length + filenameBytes.length];
-        System.arraycopy(header, 0, wholePkg, 0, header.length);
-        System.arraycopy(groupBytes, 0, wholePkg, header.length, groupBytes.length);
-        System.arraycopy(filenameBytes, 0, wholePkg, header.length + groupBytes.length, filenameBytes.length);
-        this.storageServer.getSocket().getOutputStream().write(wholePkg);
+        ProtoCodec codec = ProtoCodec.get();
+        codec.encodeFileCommand(cmd, groupName, remoteFileName);
+        codec.writeTo(this.storageServer.getSocket().getOutputStream());
     }
 
     /**
@@ -1523,36 +2345,8 @@ public class StorageClient {
      * @param downloadBytes  download bytes
      */
     protected void send_download_package(String groupName, String remoteFileName, long fileOffset, long downloadBytes) throws IOException {
-        byte[] header;
-        byte[] bsOffset;
-        byte[] bsDownBytes;
-        byte[] groupBytes;
-        byte[] filenameBytes;
-        byte[] bs;
-        int groupLen;
-
-        bsOffset = ProtoCommon.long2buff(fileOffset);
-        bsDownBytes = ProtoCommon.long2buff(downloadBytes);
-        groupBytes = new byte[ProtoCommon.FDFS_GROUP_NAME_MAX_LEN];
-        bs = groupName.getBytes(ClientGlobal.G_CHARSET);
-        filenameBytes = remoteFileName.getBytes(ClientGlobal.G_CHARSET);
-
-        Arrays.fill(groupBytes, (byte) 0);
-        if (bs.length <= groupBytes.length) {
-            groupLen = bs.length;
-        } else {
-            groupLen = groupBytes.length;
-        }
-        System.arraycopy(bs, 0, groupBytes, 0, groupLen);
-
-        header = ProtoCommon.packHeader(ProtoCommon.STORAGE_PROTO_CMD_DOWNLOAD_FILE,
-                bsOffset.length + bsDownBytes.length + groupBytes.length + filenameBytes.length, (byte) 0);
-        byte[] wholePkg = new byte[header.length + bsOffset.length + bsDownBytes.length + groupBytes.length + filenameBytes.length];
-        System.arraycopy(header, 0, wholePkg, 0, header.length);
-        System.arraycopy(bsOffset, 0, wholePkg, header.length, bsOffset.length);
-        System.arraycopy(bsDownBytes, 0, wholePkg, header.length + bsOffset.length, bsDownBytes.length);
-        System.arraycopy(groupBytes, 0, wholePkg, header.length + bsOffset.length + bsDownBytes.length, groupBytes.length);
-        System.arraycopy(filenameBytes, 0, wholePkg, header.length + bsOffset.length + bsDownBytes.length + groupBytes.length, filenameBytes.length);
-        this.storageServer.getSocket().getOutputStream().write(wholePkg);
+        ProtoCodec codec = ProtoCodec.get();
+        codec.encodeDownload(groupName, remoteFileName, fileOffset, downloadBytes);
+        codec.writeTo(this.storageServer.getSocket().getOutputStream());
     }
 }
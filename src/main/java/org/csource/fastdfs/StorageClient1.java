@@ -12,6 +12,8 @@ import org.csource.common.FastDFSClientException;
 import org.csource.common.NameValuePair;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 /**
  * Storage client for 1 field file id: combined group name and filename
@@ -128,6 +130,26 @@ public class StorageClient1 extends StorageClient {
         }
     }
 
+    /**
+     * upload file to storage server (by byte buffer)
+     *
+     * @param groupName   the group name to upload file to, can be empty
+     * @param fileBuff    file content, heap or direct buffer, from position to limit
+     * @param fileExtName file ext name, do not include dot(.)
+     * @param metaList    meta info array
+     * @return file id(including group name and filename) if success, <br>
+     * return null if fail
+     */
+    public String upload_file1(String groupName, ByteBuffer fileBuff, String fileExtName,
+                               NameValuePair[] metaList) throws IOException, FastDFSClientException {
+        String parts[] = this.upload_file(groupName, fileBuff, fileExtName, metaList);
+        if (parts != null) {
+            return parts[0] + SPLIT_GROUP_NAME_AND_FILENAME_SEPERATOR + parts[1];
+        } else {
+            return null;
+        }
+    }
+
     /**
      * upload file to storage server (by callback)
      *
@@ -228,6 +250,26 @@ public class StorageClient1 extends StorageClient {
         }
     }
 
+    /**
+     * upload appender file to storage server (by byte buffer)
+     *
+     * @param groupName   the group name to upload file to, can be empty
+     * @param fileBuff    file content, heap or direct buffer, from position to limit
+     * @param fileExtName file ext name, do not include dot(.)
+     * @param metaList    meta info array
+     * @return file id(including group name and filename) if success, <br>
+     * return null if fail
+     */
+    public String upload_appender_file1(String groupName, ByteBuffer fileBuff, String fileExtName,
+                                        NameValuePair[] metaList) throws IOException, FastDFSClientException {
+        String parts[] = this.upload_appender_file(groupName, fileBuff, fileExtName, metaList);
+        if (parts != null) {
+            return parts[0] + SPLIT_GROUP_NAME_AND_FILENAME_SEPERATOR + parts[1];
+        } else {
+            return null;
+        }
+    }
+
     /**
      * upload appender file to storage server (by callback)
      *
@@ -416,6 +458,23 @@ public class StorageClient1 extends StorageClient {
         return this.append_file(parts[0], parts[1], fileBuff, offset, length);
     }
 
+    /**
+     * append file to storage server (by byte buffer)
+     *
+     * @param appender_file_id the appender file id
+     * @param fileBuff         file content, heap or direct buffer, from position to limit
+     * @return 0 for success, != 0 for error (error no)
+     */
+    public int append_file1(String appender_file_id, ByteBuffer fileBuff) throws IOException, FastDFSClientException {
+        String[] parts = new String[2];
+        this.errno = split_file_id(appender_file_id, parts);
+        if (this.errno != 0) {
+            return this.errno;
+        }
+
+        return this.append_file(parts[0], parts[1], fileBuff);
+    }
+
     /**
      * append file to storage server (by callback)
      *
@@ -494,6 +553,24 @@ public class StorageClient1 extends StorageClient {
                 fileBuff, buffer_offset, buffer_length);
     }
 
+    /**
+     * modify appender file to storage server (by byte buffer)
+     *
+     * @param appender_file_id the appender file id
+     * @param file_offset      the offset of appender file
+     * @param fileBuff         file content, heap or direct buffer, from position to limit
+     * @return 0 for success, != 0 for error (error no)
+     */
+    public int modify_file1(String appender_file_id, long file_offset, ByteBuffer fileBuff) throws IOException, FastDFSClientException {
+        String[] parts = new String[2];
+        this.errno = split_file_id(appender_file_id, parts);
+        if (this.errno != 0) {
+            return this.errno;
+        }
+
+        return this.modify_file(parts[0], parts[1], file_offset, fileBuff);
+    }
+
     /**
      * modify appender file to storage server (by callback)
      *
@@ -594,6 +671,135 @@ public class StorageClient1 extends StorageClient {
         return this.download_file(parts[0], parts[1], file_offset, download_bytes);
     }
 
+    /**
+     * convert the appender file to a normal file with a new file id,
+     * need FastDFS server V6.02 or higher version
+     *
+     * @param appender_file_id the appender file id
+     * @return the new file id, return null if fail
+     */
+    public String regenerate_appender_filename1(String appender_file_id) throws IOException, FastDFSClientException {
+        String[] parts = new String[2];
+        this.errno = split_file_id(appender_file_id, parts);
+        if (this.errno != 0) {
+            return null;
+        }
+
+        parts = this.regenerate_appender_filename(parts[0], parts[1]);
+        if (parts != null) {
+            return parts[0] + SPLIT_GROUP_NAME_AND_FILENAME_SEPERATOR + parts[1];
+        } else {
+            return null;
+        }
+    }
+
+    /**
+     * upload file to storage server (by file buff), deduplicated by the content hash,
+     * see StorageClient.upload_dedup_file
+     *
+     * @param groupName   the group name to upload file to, can be empty
+     * @param fileBuff    file content/buff
+     * @param fileExtName file ext name, do not include dot(.)
+     * @param metaList    meta info array
+     * @return the new created or the existing file id(including group name and filename) if success,
+     * return null if fail
+     */
+    public String upload_dedup_file1(String groupName, byte[] fileBuff, String fileExtName,
+                                     NameValuePair[] metaList) throws IOException, FastDFSClientException {
+        String parts[] = this.upload_dedup_file(groupName, fileBuff, fileExtName, metaList);
+        if (parts != null) {
+            return parts[0] + SPLIT_GROUP_NAME_AND_FILENAME_SEPERATOR + parts[1];
+        } else {
+            return null;
+        }
+    }
+
+    /**
+     * upload file to storage server (by file name), deduplicated by the content hash,
+     * see StorageClient.upload_dedup_file
+     *
+     * @param groupName     the group name to upload file to, can be empty
+     * @param localFileName local filename to upload
+     * @param fileExtName   file ext name, do not include dot(.), null to extract ext name from the local filename
+     * @param metaList      meta info array
+     * @return the new created or the existing file id(including group name and filename) if success,
+     * return null if fail
+     */
+    public String upload_dedup_file1(String groupName, String localFileName, String fileExtName,
+                                     NameValuePair[] metaList) throws IOException, FastDFSClientException {
+        String parts[] = this.upload_dedup_file(groupName, localFileName, fileExtName, metaList);
+        if (parts != null) {
+            return parts[0] + SPLIT_GROUP_NAME_AND_FILENAME_SEPERATOR + parts[1];
+        } else {
+            return null;
+        }
+    }
+
+    /**
+     * upload file to storage server (by callback), deduplicated by the content hash,
+     * see StorageClient.upload_dedup_file
+     *
+     * @param groupName   the group name to upload file to, can be empty
+     * @param fileSize    the file size
+     * @param callback    the write data callback object
+     * @param fileExtName file ext name, do not include dot(.)
+     * @param metaList    meta info array
+     * @return the new created or the existing file id(including group name and filename) if success,
+     * return null if fail
+     */
+    public String upload_dedup_file1(String groupName, long fileSize, UploadCallback callback,
+                                     String fileExtName, NameValuePair[] metaList) throws IOException, FastDFSClientException {
+        String parts[] = this.upload_dedup_file(groupName, fileSize, callback, fileExtName, metaList);
+        if (parts != null) {
+            return parts[0] + SPLIT_GROUP_NAME_AND_FILENAME_SEPERATOR + parts[1];
+        } else {
+            return null;
+        }
+    }
+
+    /**
+     * upload local file to storage server, resumable, the checkpoint file is
+     * local filename + ".upload.checkpoint"
+     *
+     * @param groupName     the group name to upload file to, can be empty
+     * @param localFileName local filename to upload
+     * @param fileExtName   file ext name, do not include dot(.), null to extract ext name from the local filename
+     * @param metaList      meta info array
+     * @return the appender file id if success, return null if fail
+     */
+    public String upload_resumable_file1(String groupName, String localFileName, String fileExtName,
+                                         NameValuePair[] metaList) throws IOException, FastDFSClientException {
+        String parts[] = this.upload_resumable_file(groupName, localFileName, fileExtName, metaList);
+        if (parts != null) {
+            return parts[0] + SPLIT_GROUP_NAME_AND_FILENAME_SEPERATOR + parts[1];
+        } else {
+            return null;
+        }
+    }
+
+    /**
+     * upload local file to storage server, resumable by the checkpoint file
+     *
+     * @param groupName          the group name to upload file to, can be empty
+     * @param localFileName      local filename to upload
+     * @param fileExtName        file ext name, do not include dot(.), null to extract ext name from the local filename
+     * @param metaList           meta info array
+     * @param checkpointFileName the checkpoint filename, deleted when done
+     * @param toNormalFile       if convert the appender file to normal file when done
+     * @return file id(including group name and filename) if success, return null if fail
+     */
+    public String upload_resumable_file1(String groupName, String localFileName, String fileExtName,
+                                         NameValuePair[] metaList, String checkpointFileName,
+                                         boolean toNormalFile) throws IOException, FastDFSClientException {
+        String parts[] = this.upload_resumable_file(groupName, localFileName, fileExtName, metaList,
+                checkpointFileName, toNormalFile);
+        if (parts != null) {
+            return parts[0] + SPLIT_GROUP_NAME_AND_FILENAME_SEPERATOR + parts[1];
+        } else {
+            return null;
+        }
+    }
+
     /**
      * download file from storage server
      *
@@ -627,6 +833,86 @@ public class StorageClient1 extends StorageClient {
         return this.download_file(parts[0], parts[1], file_offset, download_bytes, localFileName);
     }
 
+    /**
+     * download file from storage server to local file, resumable: when fail, the partial file
+     * and its checkpoint file are kept and the next call continues from the checkpoint
+     *
+     * @param file_id       the file id(including group name and filename)
+     * @param localFileName the filename on local
+     * @return 0 success, return none zero errno if fail
+     */
+    public int download_resumable_file1(String file_id, String localFileName) throws IOException, FastDFSClientException {
+        String[] parts = new String[2];
+        this.errno = split_file_id(file_id, parts);
+        if (this.errno != 0) {
+            return this.errno;
+        }
+
+        return this.download_resumable_file(parts[0], parts[1], localFileName);
+    }
+
+    /**
+     * download file from storage server into the buffer of the caller
+     *
+     * @param file_id        the file id(including group name and filename)
+     * @param file_offset    the start offset of the file
+     * @param download_bytes download bytes, 0 for remain bytes from offset
+     * @param buffer         heap or direct buffer, the content is put from its position and
+     *                       the position is advanced
+     * @return the received bytes, return -1 if fail
+     */
+    public int download_file1(String file_id, long file_offset, long download_bytes, ByteBuffer buffer) throws IOException, FastDFSClientException {
+        String[] parts = new String[2];
+        this.errno = split_file_id(file_id, parts);
+        if (this.errno != 0) {
+            return -1;
+        }
+
+        return this.download_file(parts[0], parts[1], file_offset, download_bytes, buffer);
+    }
+
+    /**
+     * download file from storage server into the buff of the caller
+     *
+     * @param file_id        the file id(including group name and filename)
+     * @param file_offset    the start offset of the file
+     * @param download_bytes download bytes, 0 for remain bytes from offset
+     * @param buff           the buff to put the content
+     * @param offset         the start offset of the buff
+     * @return the received bytes, return -1 if fail
+     */
+    public int download_file1(String file_id, long file_offset, long download_bytes,
+                              byte[] buff, int offset) throws IOException, FastDFSClientException {
+        String[] parts = new String[2];
+        this.errno = split_file_id(file_id, parts);
+        if (this.errno != 0) {
+            return -1;
+        }
+
+        return this.download_file(parts[0], parts[1], file_offset, download_bytes, buff, offset);
+    }
+
+    /**
+     * download file from storage server to the file channel at the position
+     *
+     * @param file_id        the file id(including group name and filename)
+     * @param file_offset    the start offset of the file
+     * @param download_bytes download bytes, 0 for remain bytes from offset
+     * @param out            the file channel to write
+     * @param position       the position of the file channel to write from
+     * @return the received bytes, return -1 if fail
+     */
+    public long download_file1(String file_id, long file_offset, long download_bytes,
+                               FileChannel out, long position) throws IOException, FastDFSClientException {
+        String[] parts = new String[2];
+        this.errno = split_file_id(file_id, parts);
+        if (this.errno != 0) {
+            return -1;
+        }
+
+        return this.download_file(parts[0], parts[1], file_offset, download_bytes, out, position);
+    }
+
     /**
      * download file from storage server
      *
@@ -0,0 +1,136 @@
+/**
+ * Copyright (C) 2008 Happy Fish / YuQing
+ * <p>
+ * FastDFS Java Client may be copied only under the terms of the GNU Lesser
+ * General Public License (LGPL).
+ * Please visit the FastDFS Home Page http://www.csource.org/ for more detail.
+ */
+
+package org.csource.fastdfs;
+
+import org.csource.common.FastDFSClientException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.List;
+
+/**
+ * Pipelined requests on one storage connection: the requests are sent back-to-back,
+ * at most window requests are waiting for the responses, the storage server answers
+ * them in order. When the connection fails, the requests sent and not answered fail,
+ * the requests not sent yet continue on a new connection
+ *
+ * @author Happy Fish / YuQing
+ * @version Version 1.26
+ */
+class StoragePipeline {
+    /**
+     * a request in the pipeline
+     */
+    abstract static class Operation<T> {
+        private BatchResult<T> result;
+
+        /**
+         * write the request package
+         *
+         * @param codec the codec of the current thread
+         * @param out   the output stream, flushed by the pipeline
+         */
+        abstract void send(ProtoCodec codec, OutputStream out) throws IOException;
+
+        /**
+         * decode the response body kept in the codec
+         *
+         * @param codec the codec of the current thread
+         * @return the value of the result
+         */
+        abstract T decode(ProtoCodec codec) throws IOException, FastDFSClientException;
+
+        /**
+         * @return expect response package body length, -1 for any length
+         */
+        long getExpectBodyLength() {
+            return -1;
+        }
+
+        BatchResult<T> getResult() {
+            return this.result;
+        }
+
+        void recv(ProtoCodec codec, InputStream in) throws IOException {
+            byte errno = codec.recvPackage(in, ProtoCommon.STORAGE_PROTO_CMD_RESP, this.getExpectBodyLength());
+            if (errno != 0) {
+                codec.skipErrorBody(in);
+                this.result = new BatchResult<T>(null, errno, null);
+                return;
+            }
+
+            try {
+                this.result = new BatchResult<T>(this.decode(codec), (byte) 0, null);
+            } catch (FastDFSClientException ex) {
+                this.result = new BatchResult<T>(null, (byte) 0, ex);
+            }
+        }
+
+        void fail(Exception ex) {
+            this.result = new BatchResult<T>(null, (byte) 0, ex);
+        }
+    }
+
+    private StoragePipeline() {
+    }
+
+    /**
+     * execute the operations on the storage server in order, the results are set to the operations
+     *
+     * @param address    the storage server address
+     * @param operations the operations
+     * @param window     the max count of the requests waiting for the responses
+     */
+    static void execute(InetSocketAddress address, List<? extends Operation<?>> operations, int window) {
+        int count = operations.size();
+        int index = 0;  //the first operation not answered
+        while (index < count) {
+            int start = index;
+            int sent = index;
+            StorageServer storageServer = null;
+            try {
+                storageServer = new StorageServer(address.getHostString(), address.getPort(), 0);
+                InputStream in = storageServer.getSocket().getInputStream();
+                OutputStream out = storageServer.getFramedOutputStream();
+                ProtoCodec codec = ProtoCodec.get();
+                while (index < count) {
+                    while (sent < count && sent - index < window) {
+                        sent++;  //count as sent even if the write fails
+                        operations.get(sent - 1).send(codec, out);
+                    }
+                    out.flush();
+
+                    operations.get(index).recv(codec, in);
+                    index++;
+                }
+            } catch (IOException ex) {
+                if (storageServer != null) {
+                    storageServer.markBroken();
+                }
+                if (index == start) {
+                    sent = count;  //no response from the new connection, give up
+                }
+                for (; index < sent; index++) {
+                    operations.get(index).fail(ex);
+                }
+            } finally {
+                ProtoCodec.get().shrink();
+                if (storageServer != null) {
+                    try {
+                        storageServer.close();
+                    } catch (IOException ex1) {
+                        ex1.printStackTrace();
+                    }
+                }
+            }
+        }
+    }
+}
@@ -28,7 +28,7 @@ public class StorageServer extends TrackerServer {
      * @param store_path the store path index on the storage server
      */
     public StorageServer(String ipAddr, int port, int store_path) throws IOException {
-        super(ClientGlobal.getSocket(ipAddr, port), new InetSocketAddress(ipAddr, port));
+        super(new InetSocketAddress(ipAddr, port), ClientGlobal.G_CONNECTION_POOL);
         this.storePathIndex = store_path;
     }
 
@@ -40,7 +40,7 @@ public class StorageServer extends TrackerServer {
      * @param store_path the store path index on the storage server
      */
     public StorageServer(String ipAddr, int port, byte store_path) throws IOException {
-        super(ClientGlobal.getSocket(ipAddr, port), new InetSocketAddress(ipAddr, port));
+        super(new InetSocketAddress(ipAddr, port), ClientGlobal.G_CONNECTION_POOL);
         if (store_path < 0) {
             this.storePathIndex = 256 + store_path;
         } else {
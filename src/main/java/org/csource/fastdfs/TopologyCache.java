@@ -0,0 +1,137 @@
+/**
+ * Copyright (C) 2008 Happy Fish / YuQing
+ * <p>
+ * FastDFS Java Client may be copied only under the terms of the GNU Lesser
+ * General Public License (LGPL).
+ * Please visit the FastDFS Home Page http://www.csource.org/ for more detail.
+ */
+
+package org.csource.fastdfs;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Cluster topology cache, refresh the snapshot from the tracker server periodically
+ * in background, readers get the current snapshot without locking
+ *
+ * @author Happy Fish / YuQing
+ * @version Version 1.26
+ */
+public class TopologyCache {
+    private final TrackerGroup trackerGroup;
+    private final long refreshInterval; //millisecond
+    private final AtomicReference<ClusterTopology> topology = new AtomicReference<ClusterTopology>();
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * Constructor
+     *
+     * @param trackerGroup    the tracker group to list groups and storages from
+     * @param refreshInterval refresh interval in millisecond
+     */
+    public TopologyCache(TrackerGroup trackerGroup, long refreshInterval) {
+        this.trackerGroup = trackerGroup;
+        this.refreshInterval = refreshInterval;
+    }
+
+    /**
+     * start the background refreshing
+     */
+    public synchronized void start() {
+        if (this.scheduler != null) {
+            return;
+        }
+
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "fastdfs-topology-refresher");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.scheduler.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    refresh();
+                } catch (Exception ex) {
+                    System.err.println("refresh cluster topology fail, " + ex.getMessage());
+                }
+            }
+        }, 0, this.refreshInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * stop the background refreshing
+     */
+    public synchronized void stop() {
+        if (this.scheduler != null) {
+            this.scheduler.shutdownNow();
+            this.scheduler = null;
+        }
+    }
+
+    /**
+     * get the current snapshot
+     *
+     * @return the snapshot, null if not refreshed yet
+     */
+    public ClusterTopology getTopology() {
+        return this.topology.get();
+    }
+
+    /**
+     * list groups and storages from the tracker server and replace the snapshot
+     *
+     * @return true for success, false for fail and the old snapshot is kept
+     */
+    public boolean refresh() throws IOException {
+        TrackerClient tracker = new TrackerClient(this.trackerGroup);
+        TrackerServer trackerServer = tracker.getTrackerServer();
+        if (trackerServer == null) {
+            return false;
+        }
+
+        try {
+            StructGroupStat[] groupStats = tracker.listGroups(trackerServer);
+            if (groupStats == null) {
+                return false;
+            }
+
+            Map<String, ClusterTopology.Group> groups = new HashMap<String, ClusterTopology.Group>(groupStats.length);
+            for (StructGroupStat groupStat : groupStats) {
+                StructStorageStat[] storageStats = tracker.listStorages(trackerServer, groupStat.getGroupName());
+                if (storageStats == null) {
+                    return false;
+                }
+
+                List<ClusterTopology.Storage> storages = new ArrayList<ClusterTopology.Storage>(storageStats.length);
+                for (StructStorageStat storageStat : storageStats) {
+                    storages.add(new ClusterTopology.Storage(groupStat.getGroupName(), storageStat));
+                }
+                groups.put(groupStat.getGroupName(), new ClusterTopology.Group(groupStat, storages));
+            }
+
+            this.topology.set(new ClusterTopology(groups));
+            return true;
+        } finally {
+            try {
+                trackerServer.close();
+            } catch (IOException ex1) {
+                ex1.printStackTrace();
+            }
+        }
+    }
+
+    public long getRefreshInterval() {
+        return refreshInterval;
+    }
+}
@@ -76,14 +76,9 @@ public class TrackerClient {
      * @return storage server object, return null if fail
      */
     public StorageServer getStorageServer(TrackerServer trackerServer, String groupName) throws IOException {
-        byte[] header;
-        String ipAddr;
-        int port;
-        byte cmd;
-        int outLen;
         boolean bNewConnection;
-        byte storePath;
         Socket trackerSocket;
+        ProtoCodec.StoreServerInfo storeServer;
 
         if (trackerServer == null) {
             trackerServer = getTrackerServer();
@@ -99,51 +94,22 @@ public class TrackerClient {
         OutputStream out = trackerSocket.getOutputStream();
 
         try {
-            boolean empty = groupName == null || groupName.length() == 0;
-            if (empty) {
-                cmd = ProtoCommon.TRACKER_PROTO_CMD_SERVICE_QUERY_STORE_WITHOUT_GROUP_ONE;
-                outLen = 0;
-            } else {
-                cmd = ProtoCommon.TRACKER_PROTO_CMD_SERVICE_QUERY_STORE_WITH_GROUP_ONE;
-                outLen = ProtoCommon.FDFS_GROUP_NAME_MAX_LEN;
-            }
-            header = ProtoCommon.packHeader(cmd, outLen, (byte) 0);
-            out.write(header);
-
-            if (!empty) {
-                byte[] bGroupName;
-                byte[] bs;
-                int groupLen;
-
-                bs = groupName.getBytes(ClientGlobal.G_CHARSET);
-                bGroupName = new byte[ProtoCommon.FDFS_GROUP_NAME_MAX_LEN];
-
-                if (bs.length <= ProtoCommon.FDFS_GROUP_NAME_MAX_LEN) {
-                    groupLen = bs.length;
-                } else {
-                    groupLen = ProtoCommon.FDFS_GROUP_NAME_MAX_LEN;
-                }
-                Arrays.fill(bGroupName, (byte) 0);
-                System.arraycopy(bs, 0, bGroupName, 0, groupLen);
-                out.write(bGroupName);
-            }
+            long startTime = System.nanoTime();
+            ProtoCodec codec = ProtoCodec.get();
+            codec.encodeQueryStore(groupName);
+            codec.writeTo(out);
 
-            ProtoCommon.RecvPackageInfo pkgInfo = ProtoCommon.recvPackage(trackerSocket.getInputStream(),
-                    ProtoCommon.TRACKER_PROTO_CMD_RESP,
+            errno = codec.recvPackage(trackerSocket.getInputStream(), ProtoCommon.TRACKER_PROTO_CMD_RESP,
                     ProtoCommon.TRACKER_QUERY_STORAGE_STORE_BODY_LEN);
-            errno = pkgInfo.errno;
-            if (pkgInfo.errno != 0) {
+            trackerServer.onSuccess(startTime);
+            if (errno != 0) {
                 return null;
             }
 
-            ipAddr = new String(pkgInfo.body, ProtoCommon.FDFS_GROUP_NAME_MAX_LEN, ProtoCommon.FDFS_IPADDR_SIZE - 1).trim();
-
-            port = (int) ProtoCommon.buff2long(pkgInfo.body, ProtoCommon.FDFS_GROUP_NAME_MAX_LEN
-                    + ProtoCommon.FDFS_IPADDR_SIZE - 1);
-            storePath = pkgInfo.body[ProtoCommon.TRACKER_QUERY_STORAGE_STORE_BODY_LEN - 1];
-
-            return new StorageServer(ipAddr, port, storePath);
+            storeServer = codec.decodeStoreServer();
         } catch (IOException ex) {
+            trackerServer.markBroken();
+            trackerServer.onFailure(ex);
             if (!bNewConnection) {
                 try {
                     trackerServer.close();
@@ -162,6 +128,8 @@ public class TrackerClient {
                 }
             }
         }
+
+        return connectStoreServer(storeServer);
     }
 
     /**
@@ -191,9 +159,10 @@ public class TrackerClient {
         }
 
         trackerSocket = trackerServer.getSocket();
-        OutputStream outputStream = trackerSocket.getOutputStream();
+        OutputStream outputStream = trackerServer.getFramedOutputStream();
 
         try {
+            long startTime = System.nanoTime();
             boolean empty = groupName != null && groupName.length() > 0;
             if (!empty) {
                 cmd = ProtoCommon.TRACKER_PROTO_CMD_SERVICE_QUERY_STORE_WITHOUT_GROUP_ALL;
@@ -221,9 +190,11 @@ public class TrackerClient {
                 System.arraycopy(bs, 0, bGroupName, 0, groupLen);
                 outputStream.write(bGroupName);
             }
+            outputStream.flush();
 
             ProtoCommon.RecvPackageInfo pkgInfo = ProtoCommon.recvPackage(trackerSocket.getInputStream(),
                     ProtoCommon.TRACKER_PROTO_CMD_RESP, -1);
+            trackerServer.onSuccess(startTime);
             errno = pkgInfo.errno;
             if (pkgInfo.errno != 0) {
                 return null;
@@ -264,6 +235,8 @@ public class TrackerClient {
 
             return storageServers;
         } catch (IOException ex) {
+            trackerServer.markBroken();
+            trackerServer.onFailure(ex);
             if (!bNewConnection) {
                 try {
                     trackerServer.close();
@@ -299,8 +272,7 @@ public class TrackerClient {
         if (serverInfoList == null || serverInfoList.length == 0) {
             return null;
         }
-        ServerInfo serverInfo = serverInfoList[0];
-        return new StorageServer(serverInfo.getIpAddr(), serverInfo.getPort(), 0);
+        return connectFetchServer(groupName, filename, serverInfoList[0]);
     }
 
     /**
@@ -318,8 +290,103 @@ public class TrackerClient {
         if (serverInfoList == null || serverInfoList.length == 0) {
             return null;
         }
-        ServerInfo serverInfo = serverInfoList[0];
-        return new StorageServer(serverInfo.getIpAddr(), serverInfo.getPort(), 0);
+        return connectStorageServer(serverInfoList[0]);
+    }
+
+    /**
+     * connect to the storage server to upload file, the other active storage servers of the group
+     * in the topology snapshot are tried when the answered one is inactive or fails to connect
+     *
+     * @param storeServer the storage server answered by the tracker server
+     * @return connected storage server
+     */
+    private StorageServer connectStoreServer(ProtoCodec.StoreServerInfo storeServer) throws IOException {
+        ClusterTopology topology = getTopology();
+        if (topology == null) {
+            return new StorageServer(storeServer.getIpAddr(), storeServer.getPort(), storeServer.getStorePathIndex());
+        }
+
+        IOException lastException = null;
+        for (ProtoCodec.StoreServerInfo candidate : topology.getStoreCandidates(storeServer)) {
+            try {
+                return new StorageServer(candidate.getIpAddr(), candidate.getPort(), candidate.getStorePathIndex());
+            } catch (IOException ex) {
+                lastException = ex;
+            }
+        }
+        throw lastException;
+    }
+
+    /**
+     * connect to the storage server to download file, when the topology snapshot is available,
+     * the other storage servers holding the file are tried if the answered one is inactive
+     * in the snapshot or fails to connect
+     *
+     * @param groupName  the group name of storage server
+     * @param filename   filename on storage server
+     * @param serverInfo the storage server answered by the tracker server
+     * @return connected storage server
+     */
+    private StorageServer connectFetchServer(String groupName, String filename,
+                                             ServerInfo serverInfo) throws IOException {
+        ClusterTopology topology = getTopology();
+        if (topology == null) {
+            return connectStorageServer(serverInfo);
+        }
+
+        IOException lastException = null;
+        boolean tried = !topology.isInactive(groupName, serverInfo.getIpAddr(), serverInfo.getPort());
+        if (tried) {
+            try {
+                return connectStorageServer(serverInfo);
+            } catch (IOException ex) {
+                lastException = ex;
+            }
+        }
+
+        ServerInfo[] servers = getServerInfoList(null, ProtoCommon.TRACKER_PROTO_CMD_SERVICE_QUERY_FETCH_ALL,
+                groupName, filename);
+        for (int i = 0; servers != null && i < servers.length; i++) {
+            if (tried && servers[i].getPort() == serverInfo.getPort()
+                    && servers[i].getIpAddr().equals(serverInfo.getIpAddr())) {
+                continue;
+            }
+            try {
+                return connectStorageServer(servers[i]);
+            } catch (IOException ex) {
+                lastException = ex;
+            }
+        }
+        if (lastException != null) {
+            throw lastException;
+        }
+        return connectStorageServer(serverInfo);
+    }
+
+    /**
+     * @return the topology snapshot, null for none
+     */
+    private ClusterTopology getTopology() {
+        TopologyCache topologyCache = trackerGroup.getTopologyCache();
+        return topologyCache != null ? topologyCache.getTopology() : null;
+    }
+
+    /**
+     * connect to the storage server, remove the cached routes to the server when fail
+     *
+     * @param serverInfo the storage server info
+     * @return connected storage server
+     */
+    private StorageServer connectStorageServer(ServerInfo serverInfo) throws IOException {
+        try {
+            return new StorageServer(serverInfo.getIpAddr(), serverInfo.getPort(), 0);
+        } catch (IOException ex) {
+            RouteCache routeCache = trackerGroup.getRouteCache();
+            if (routeCache != null) {
+                routeCache.removeServer(serverInfo.getIpAddr(), serverInfo.getPort());
+            }
+            throw ex;
+        }
     }
 
     /**
@@ -346,16 +413,24 @@ public class TrackerClient {
      */
     protected ServerInfo[] getServerInfoList(TrackerServer trackerServer,
                                              byte cmd, String groupName, String filename) throws IOException {
-        byte[] header;
-        byte[] bFileName;
-        byte[] bGroupName;
-        byte[] bs;
-        int len;
-        String ipAddr;
-        int port;
         boolean bNewConnection;
         Socket trackerSocket;
 
+        RouteCache routeCache = trackerGroup.getRouteCache();
+        byte queryCmd = routeCache != null ? RouteCache.getQueryCmd(cmd) : cmd;
+        if (routeCache != null) {
+            ServerInfo[] servers = routeCache.get(queryCmd, groupName, filename);
+            if (servers != null) {
+                ClusterTopology topology = getTopology();
+                if (topology != null && topology.isInactive(groupName, servers[0].getIpAddr(), servers[0].getPort())) {
+                    routeCache.removeServer(servers[0].getIpAddr(), servers[0].getPort());
+                } else {
+                    errno = 0;
+                    return routeCache.select(cmd, topology != null ? topology.filterActive(groupName, servers) : servers);
+                }
+            }
+        }
+
         if (trackerServer == null) {
             trackerServer = getTrackerServer();
             if (trackerServer == null) {
@@ -369,57 +444,29 @@ public class TrackerClient {
         OutputStream out = trackerSocket.getOutputStream();
 
         try {
-            bs = groupName.getBytes(ClientGlobal.G_CHARSET);
-            bGroupName = new byte[ProtoCommon.FDFS_GROUP_NAME_MAX_LEN];
-            bFileName = filename.getBytes(ClientGlobal.G_CHARSET);
-
-            if (bs.length <= ProtoCommon.FDFS_GROUP_NAME_MAX_LEN) {
-                len = bs.length;
-            } else {
-                len = ProtoCommon.FDFS_GROUP_NAME_MAX_LEN;
-            }
-            Arrays.fill(bGroupName, (byte) 0);
-            System.arraycopy(bs, 0, bGroupName, 0, len);
-
-            header = ProtoCommon.packHeader(cmd, ProtoCommon.FDFS_GROUP_NAME_MAX_LEN + bFileName.length, (byte) 0);
-            byte[] wholePkg = new byte[header.length + bGroupName.length + bFileName.length];
-            System.arraycopy(header, 0, wholePkg, 0, header.length);
-            System.arraycopy(bGroupName, 0, wholePkg, header.length, bGroupName.length);
-            System.arraycopy(bFileName, 0, wholePkg, header.length + bGroupName.length, bFileName.length);
-            out.write(wholePkg);
-
-            ProtoCommon.RecvPackageInfo pkgInfo = ProtoCommon.recvPackage(trackerSocket.getInputStream(),
-                    ProtoCommon.TRACKER_PROTO_CMD_RESP, -1);
-            errno = pkgInfo.errno;
-            if (pkgInfo.errno != 0) {
+            long startTime = System.nanoTime();
+            ProtoCodec codec = ProtoCodec.get();
+            codec.encodeFileCommand(queryCmd, groupName, filename);
+            codec.writeTo(out);
+
+            errno = codec.recvPackage(trackerSocket.getInputStream(), ProtoCommon.TRACKER_PROTO_CMD_RESP, -1);
+            trackerServer.onSuccess(startTime);
+            if (errno != 0) {
                 return null;
             }
 
-            if (pkgInfo.body.length < ProtoCommon.TRACKER_QUERY_STORAGE_FETCH_BODY_LEN) {
-                throw new IOException("Invalid body length: " + pkgInfo.body.length);
+            ServerInfo[] servers = codec.decodeFetchServers();
+            if (routeCache != null) {
+                routeCache.put(queryCmd, groupName, filename, servers);
             }
-
-            if ((pkgInfo.body.length - ProtoCommon.TRACKER_QUERY_STORAGE_FETCH_BODY_LEN) % (ProtoCommon.FDFS_IPADDR_SIZE - 1) != 0) {
-                throw new IOException("Invalid body length: " + pkgInfo.body.length);
+            ClusterTopology topology = getTopology();
+            if (topology != null) {
+                servers = topology.filterActive(groupName, servers);
             }
-
-            int serverCount = 1 + (pkgInfo.body.length - ProtoCommon.TRACKER_QUERY_STORAGE_FETCH_BODY_LEN) / (ProtoCommon.FDFS_IPADDR_SIZE - 1);
-
-            ipAddr = new String(pkgInfo.body, ProtoCommon.FDFS_GROUP_NAME_MAX_LEN, ProtoCommon.FDFS_IPADDR_SIZE - 1).trim();
-            int offset = ProtoCommon.FDFS_GROUP_NAME_MAX_LEN + ProtoCommon.FDFS_IPADDR_SIZE - 1;
-
-            port = (int) ProtoCommon.buff2long(pkgInfo.body, offset);
-            offset += ProtoCommon.FDFS_PROTO_PKG_LEN_SIZE;
-
-            ServerInfo[] servers = new ServerInfo[serverCount];
-            servers[0] = new ServerInfo(ipAddr, port);
-            for (int i = 1; i < serverCount; i++) {
-                servers[i] = new ServerInfo(new String(pkgInfo.body, offset, ProtoCommon.FDFS_IPADDR_SIZE - 1).trim(), port);
-                offset += ProtoCommon.FDFS_IPADDR_SIZE - 1;
-            }
-
-            return servers;
+            return routeCache != null ? routeCache.select(cmd, servers) : servers;
         } catch (IOException ex) {
+            trackerServer.markBroken();
+            trackerServer.onFailure(ex);
             if (!bNewConnection) {
                 try {
                     trackerServer.close();
@@ -499,11 +546,13 @@ public class TrackerClient {
         OutputStream out = trackerSocket.getOutputStream();
 
         try {
+            long startTime = System.nanoTime();
             header = ProtoCommon.packHeader(ProtoCommon.TRACKER_PROTO_CMD_SERVER_LIST_GROUP, 0, (byte) 0);
             out.write(header);
 
             ProtoCommon.RecvPackageInfo pkgInfo = ProtoCommon.recvPackage(trackerSocket.getInputStream(),
                     ProtoCommon.TRACKER_PROTO_CMD_RESP, -1);
+            trackerServer.onSuccess(startTime);
             errno = pkgInfo.errno;
             if (pkgInfo.errno != 0) {
                 return null;
@@ -512,6 +561,8 @@ public class TrackerClient {
             ProtoStructDecoder<StructGroupStat> decoder = new ProtoStructDecoder<StructGroupStat>();
             return decoder.decode(pkgInfo.body, StructGroupStat.class, StructGroupStat.getFieldsTotalSize());
         } catch (IOException ex) {
+            trackerServer.markBroken();
+            trackerServer.onFailure(ex);
             if (!bNewConnection) {
                 try {
                     trackerServer.close();
@@ -578,6 +629,7 @@ public class TrackerClient {
         OutputStream out = trackerSocket.getOutputStream();
 
         try {
+            long startTime = System.nanoTime();
             bs = groupName.getBytes(ClientGlobal.G_CHARSET);
             bGroupName = new byte[ProtoCommon.FDFS_GROUP_NAME_MAX_LEN];
 
@@ -614,6 +666,7 @@ public class TrackerClient {
 
             ProtoCommon.RecvPackageInfo pkgInfo = ProtoCommon.recvPackage(trackerSocket.getInputStream(),
                     ProtoCommon.TRACKER_PROTO_CMD_RESP, -1);
+            trackerServer.onSuccess(startTime);
             errno = pkgInfo.errno;
             if (pkgInfo.errno != 0) {
                 return null;
@@ -622,6 +675,8 @@ public class TrackerClient {
             ProtoStructDecoder<StructStorageStat> decoder = new ProtoStructDecoder<StructStorageStat>();
             return decoder.decode(pkgInfo.body, StructStorageStat.class, StructStorageStat.getFieldsTotalSize());
         } catch (IOException ex) {
+            trackerServer.markBroken();
+            trackerServer.onFailure(ex);
             if (!bNewConnection) {
                 try {
                     trackerServer.close();
@@ -689,12 +744,21 @@ public class TrackerClient {
         System.arraycopy(header, 0, wholePkg, 0, header.length);
         System.arraycopy(bGroupName, 0, wholePkg, header.length, bGroupName.length);
         System.arraycopy(bIpAddr, 0, wholePkg, header.length + bGroupName.length, ipAddrLen);
-        out.write(wholePkg);
 
-        ProtoCommon.RecvPackageInfo pkgInfo = ProtoCommon.recvPackage(trackerSocket.getInputStream(),
-                ProtoCommon.TRACKER_PROTO_CMD_RESP, 0);
-        errno = pkgInfo.errno;
-        return pkgInfo.errno == 0;
+        try {
+            long startTime = System.nanoTime();
+            out.write(wholePkg);
+
+            ProtoCommon.RecvPackageInfo pkgInfo = ProtoCommon.recvPackage(trackerSocket.getInputStream(),
+                    ProtoCommon.TRACKER_PROTO_CMD_RESP, 0);
+            trackerServer.onSuccess(startTime);
+            errno = pkgInfo.errno;
+            return pkgInfo.errno == 0;
+        } catch (IOException ex) {
+            trackerServer.markBroken();
+            trackerServer.onFailure(ex);
+            throw ex;
+        }
     }
 
     /**
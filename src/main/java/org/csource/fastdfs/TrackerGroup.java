@@ -11,6 +11,12 @@ package org.csource.fastdfs;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Tracker server group
@@ -22,18 +28,42 @@ public class TrackerGroup {
 
     private Object lock = new Object();
 
-    private int trackerServerIndex;
+    private final AtomicInteger trackerServerIndex = new AtomicInteger();
 
     private InetSocketAddress[] trackerServers;
 
+    private volatile TrackerHealth[] trackerHealths;
+
+    private ScheduledExecutorService prober;
+
+    private boolean closed;
+
+    private boolean sharedCaches;  //the route cache and the topology cache are owned by the cloned group
+
+    private ConnectionPool connectionPool;
+
+    private RouteCache routeCache;
+
+    private TopologyCache topologyCache;
+
     /**
      * Constructor
      *
      * @param tracker_servers tracker servers
      */
     public TrackerGroup(InetSocketAddress[] tracker_servers) {
-        this.trackerServers = tracker_servers;
-        this.trackerServerIndex = 0;
+        this(tracker_servers, null);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param tracker_servers tracker servers
+     * @param connectionPool  the connection pool to reuse tracker connections, null for not pooled
+     */
+    public TrackerGroup(InetSocketAddress[] tracker_servers, ConnectionPool connectionPool) {
+        this.setTrackerServers(tracker_servers);
+        this.connectionPool = connectionPool;
     }
 
     /**
@@ -42,52 +72,227 @@ public class TrackerGroup {
      * @return connected tracker server, null for fail
      */
     public TrackerServer getTrackerServer(int serverIndex) throws IOException {
-        Socket socket = new Socket();
-        socket.setReuseAddress(true);
-        socket.setSoTimeout(ClientGlobal.G_NETWORK_TIMEOUT);
-        socket.connect(trackerServers[serverIndex], ClientGlobal.G_CONNECT_TIMEOUT);
-        return new TrackerServer(socket, trackerServers[serverIndex]);
+        return connect(trackerServers[serverIndex]);
     }
 
     /**
-     * return connected tracker server
+     * return connected tracker server, the healthy tracker server with lower latency is preferred,
+     * the ejected tracker servers are tried only when all healthy tracker servers fail
      *
      * @return connected tracker server, null for fail
      */
     public TrackerServer getTrackerServer() throws IOException {
-        int currentIndex;
-        synchronized (lock) {
-            trackerServerIndex++;
-            if (trackerServerIndex >= trackerServers.length) {
-                trackerServerIndex = 0;
+        TrackerHealth[] candidates = getCandidates();
+        for (int i = 0; i < candidates.length; i++) {
+            TrackerServer trackerServer = connect(candidates[i]);
+            if (trackerServer != null) {
+                return trackerServer;
             }
-            currentIndex = trackerServerIndex;
         }
+        return null;
+    }
+
+    /**
+     * order the tracker servers to try: round robin start, the healthy tracker servers first
+     * and the one with lower latency of the first two is preferred, the ejected ones last
+     *
+     * @return the tracker servers in order
+     */
+    TrackerHealth[] getCandidates() {
+        TrackerHealth[] healths = this.trackerHealths;
+        int count = healths.length;
+        int start = (this.trackerServerIndex.incrementAndGet() & Integer.MAX_VALUE) % count;
+
+        TrackerHealth[] candidates = new TrackerHealth[count];
+        int healthyCount = 0;
+        int ejectedIndex = count;
+        for (int i = 0; i < count; i++) {
+            TrackerHealth health = healths[(start + i) % count];
+            if (health.isEjected()) {
+                candidates[--ejectedIndex] = health;
+            } else {
+                candidates[healthyCount++] = health;
+            }
+        }
+
+        if (healthyCount >= 2 && candidates[1].getEwmaLatency() < candidates[0].getEwmaLatency()) {
+            TrackerHealth temp = candidates[0];
+            candidates[0] = candidates[1];
+            candidates[1] = temp;
+        }
+        return candidates;
+    }
+
+    /**
+     * record the failure of the tracker server, start probing when it is ejected
+     *
+     * @param health the tracker server health
+     * @param ex     the cause
+     */
+    void onFailure(TrackerHealth health, IOException ex) {
+        if (health.onFailure()) {
+            InetSocketAddress trackerServer = health.getAddress();
+            System.err.println("tracker server " + trackerServer.getAddress().getHostAddress() + ":"
+                    + trackerServer.getPort() + " fail " + health.getFailCount() + " times, ejected, " + ex.getMessage());
+            startProber();
+        }
+    }
+
+    /**
+     * connect to the tracker server, the connect failure is recorded to the health, the latency
+     * and the failures of the exchanges are recorded by TrackerClient
+     *
+     * @param health the tracker server health
+     * @return connected tracker server, null for fail
+     */
+    private TrackerServer connect(TrackerHealth health) {
         try {
-            return getTrackerServer(currentIndex);
+            TrackerServer trackerServer = connect(health.getAddress());
+            trackerServer.setHealth(this, health);
+            return trackerServer;
         } catch (IOException ex) {
-            InetSocketAddress trackerServer = trackerServers[currentIndex];
-            System.err.println("connect to server " + trackerServer.getAddress().getHostAddress() + ":" + trackerServer.getPort() + " fail");
-            ex.printStackTrace(System.err);
+            onFailure(health, ex);
+            return null;
         }
-        for (int i = currentIndex; i < trackerServers.length; i++) {
-            try {
-                TrackerServer trackerServer = getTrackerServer(i);
-                synchronized (lock) {
-                    if (trackerServerIndex == currentIndex) {
-                        trackerServerIndex = i;
+    }
+
+    /**
+     * connect to the tracker server
+     *
+     * @param addr the tracker server address
+     * @return connected tracker server
+     */
+    private TrackerServer connect(InetSocketAddress addr) throws IOException {
+        if (this.connectionPool != null) {
+            return new TrackerServer(addr, this.connectionPool);
+        }
+
+        Socket socket = SocketChannel.open().socket();
+        socket.setReuseAddress(true);
+        socket.setSoTimeout(ClientGlobal.G_NETWORK_TIMEOUT);
+        socket.setTcpNoDelay(true);
+        socket.connect(addr, ClientGlobal.G_CONNECT_TIMEOUT);
+        return new TrackerServer(socket, addr);
+    }
+
+    /**
+     * start the background thread to probe the ejected tracker servers
+     */
+    private void startProber() {
+        synchronized (lock) {
+            if (this.prober != null || this.closed) {
+                return;
+            }
+
+            this.prober = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "fastdfs-tracker-prober");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            this.prober.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    probe();
+                }
+            }, TrackerHealth.MIN_BACKOFF_TIME, TrackerHealth.MIN_BACKOFF_TIME, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * stop the background thread probing the ejected tracker servers
+     *
+     * @param onlyIdle only stop when no tracker server is ejected
+     */
+    private void stopProber(boolean onlyIdle) {
+        synchronized (lock) {
+            if (this.prober == null) {
+                return;
+            }
+            if (onlyIdle) {
+                for (TrackerHealth health : this.trackerHealths) {
+                    if (health.isEjected()) {
+                        return;
                     }
                 }
-                return trackerServer;
+            }
+
+            this.prober.shutdownNow();
+            this.prober = null;
+        }
+    }
+
+    /**
+     * @return true if the background thread probing the ejected tracker servers is running
+     */
+    boolean isProbing() {
+        synchronized (lock) {
+            return this.prober != null;
+        }
+    }
+
+    /**
+     * stop the prober and the topology refreshing, the topology cache shared by the
+     * cloned group is stopped by the group it is cloned from
+     */
+    public void close() {
+        synchronized (lock) {
+            this.closed = true;
+        }
+        stopProber(false);
+        if (this.topologyCache != null && !this.sharedCaches) {
+            this.topologyCache.stop();
+        }
+    }
+
+    /**
+     * probe the ejected tracker servers by connecting and ACTIVE_TEST
+     */
+    private void probe() {
+        TrackerHealth[] healths = this.trackerHealths;
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < healths.length; i++) {
+            TrackerHealth health = healths[i];
+            if (!health.needProbe(now)) {
+                continue;
+            }
+
+            Socket socket = null;
+            try {
+                socket = ClientGlobal.getSocket(health.getAddress());
+                if (ProtoCommon.activeTest(socket)) {
+                    health.onProbeSuccess();
+                } else {
+                    health.onProbeFailure();
+                }
             } catch (IOException ex) {
-                InetSocketAddress trackerServer = trackerServers[i];
-                System.err.println("connect to server " + trackerServer.getAddress().getHostAddress() + ":" + trackerServer.getPort() + " fail");
-                ex.printStackTrace(System.err);
+                health.onProbeFailure();
+            } finally {
+                if (socket != null) {
+                    try {
+                        ProtoCommon.closeSocket(socket);
+                    } catch (IOException ex1) {
+                    }
+                }
             }
         }
-        return null;
+
+        stopProber(true);  //started again when a tracker server is ejected
     }
 
+    /**
+     * get the health of the tracker servers
+     *
+     * @return the tracker server health array, same order as tracker servers
+     */
+    public TrackerHealth[] getTrackerHealths() {
+        return this.trackerHealths;
+    }
+
+    /**
+     * clone the tracker group, the clone shares the connection pool, the route cache and the
+     * topology cache, closing the clone does not stop the shared topology cache
+     */
     @Override
     public Object clone() {
         InetSocketAddress[] trackerServers = new InetSocketAddress[this.trackerServers.length];
@@ -95,15 +300,19 @@ public class TrackerGroup {
             InetSocketAddress trackerServer = this.trackerServers[i];
             trackerServers[i] = new InetSocketAddress(trackerServer.getAddress().getHostAddress(), trackerServer.getPort());
         }
-        return new TrackerGroup(trackerServers);
+        TrackerGroup trackerGroup = new TrackerGroup(trackerServers, this.connectionPool);
+        trackerGroup.setRouteCache(this.routeCache);
+        trackerGroup.setTopologyCache(this.topologyCache);
+        trackerGroup.sharedCaches = true;
+        return trackerGroup;
     }
 
     public int getTrackerServerIndex() {
-        return trackerServerIndex;
+        return (trackerServerIndex.get() & Integer.MAX_VALUE) % trackerServers.length;
     }
 
     public void setTrackerServerIndex(int trackerServerIndex) {
-        this.trackerServerIndex = trackerServerIndex;
+        this.trackerServerIndex.set(trackerServerIndex);
     }
 
     public InetSocketAddress[] getTrackerServers() {
@@ -111,6 +320,41 @@ public class TrackerGroup {
     }
 
     public void setTrackerServers(InetSocketAddress[] trackerServers) {
+        TrackerHealth[] healths = new TrackerHealth[trackerServers.length];
+        for (int i = 0; i < healths.length; i++) {
+            healths[i] = new TrackerHealth(trackerServers[i], TrackerHealth.DEFAULT_MAX_FAIL_COUNT);
+        }
         this.trackerServers = trackerServers;
+        this.trackerHealths = healths;
+    }
+
+    public ConnectionPool getConnectionPool() {
+        return connectionPool;
+    }
+
+    public void setConnectionPool(ConnectionPool connectionPool) {
+        this.connectionPool = connectionPool;
+    }
+
+    /**
+     * @return the cache of storage servers for fetching or updating file, null for not cached
+     */
+    public RouteCache getRouteCache() {
+        return routeCache;
+    }
+
+    public void setRouteCache(RouteCache routeCache) {
+        this.routeCache = routeCache;
+    }
+
+    /**
+     * @return the cluster topology cache, null for none
+     */
+    public TopologyCache getTopologyCache() {
+        return topologyCache;
+    }
+
+    public void setTopologyCache(TopologyCache topologyCache) {
+        this.topologyCache = topologyCache;
     }
 }
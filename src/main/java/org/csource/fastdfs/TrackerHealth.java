@@ -0,0 +1,141 @@
+/**
+ * Copyright (C) 2008 Happy Fish / YuQing
+ * <p>
+ * FastDFS Java Client may be copied only under the terms of the GNU Lesser
+ * General Public License (LGPL).
+ * Please visit the FastDFS Home Page http://www.csource.org/ for more detail.
+ */
+
+package org.csource.fastdfs;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Health of a tracker server: EWMA latency of the request/response exchanges and the
+ * consecutive failures of connecting and exchanging, the tracker server is ejected when
+ * fail too many times in a row until probed ok
+ *
+ * @author Happy Fish / YuQing
+ * @version Version 1.26
+ */
+public class TrackerHealth {
+    public static final int DEFAULT_MAX_FAIL_COUNT = 3;
+    public static final long MIN_BACKOFF_TIME = 1000;  //millisecond
+    public static final long MAX_BACKOFF_TIME = 60 * 1000;  //millisecond
+
+    private static final double EWMA_ALPHA = 0.2;
+
+    private final InetSocketAddress address;
+    private final int maxFailCount;
+    private final AtomicLong ewmaLatency = new AtomicLong(); //microsecond
+    private final AtomicInteger failCount = new AtomicInteger();
+    private volatile boolean ejected;
+    private volatile long backoffTime = MIN_BACKOFF_TIME;
+    private volatile long nextProbeTime;
+
+    /**
+     * Constructor
+     *
+     * @param address      the tracker server address
+     * @param maxFailCount eject the tracker server when consecutive failures reach this count
+     */
+    public TrackerHealth(InetSocketAddress address, int maxFailCount) {
+        this.address = address;
+        this.maxFailCount = maxFailCount;
+    }
+
+    /**
+     * record a success
+     *
+     * @param latency the latency in microsecond
+     */
+    public void onSuccess(long latency) {
+        long old;
+        long ewma;
+        do {
+            old = this.ewmaLatency.get();
+            ewma = old == 0 ? latency : (long) (EWMA_ALPHA * latency + (1 - EWMA_ALPHA) * old);
+        } while (!this.ewmaLatency.compareAndSet(old, ewma));
+        this.failCount.set(0);
+    }
+
+    /**
+     * record a failure
+     *
+     * @return true if the tracker server is ejected by this failure
+     */
+    public boolean onFailure() {
+        if (this.failCount.incrementAndGet() < this.maxFailCount) {
+            return false;
+        }
+
+        synchronized (this) {
+            if (this.ejected) {
+                return false;
+            }
+            this.ejected = true;
+            this.backoffTime = MIN_BACKOFF_TIME;
+            this.nextProbeTime = System.currentTimeMillis() + this.backoffTime;
+            return true;
+        }
+    }
+
+    /**
+     * the probe ok, bring the tracker server back
+     */
+    public synchronized void onProbeSuccess() {
+        this.failCount.set(0);
+        this.ejected = false;
+        this.backoffTime = MIN_BACKOFF_TIME;
+    }
+
+    /**
+     * the probe fail, double the backoff time
+     */
+    public synchronized void onProbeFailure() {
+        this.backoffTime = Math.min(this.backoffTime * 2, MAX_BACKOFF_TIME);
+        this.nextProbeTime = System.currentTimeMillis() + this.backoffTime;
+    }
+
+    /**
+     * @param now current time in millisecond
+     * @return true if the ejected tracker server should be probed
+     */
+    public boolean needProbe(long now) {
+        return this.ejected && now >= this.nextProbeTime;
+    }
+
+    public InetSocketAddress getAddress() {
+        return address;
+    }
+
+    /**
+     * @return EWMA latency in microsecond, 0 for unknown
+     */
+    public long getEwmaLatency() {
+        return this.ewmaLatency.get();
+    }
+
+    /**
+     * @return consecutive failure count
+     */
+    public int getFailCount() {
+        return this.failCount.get();
+    }
+
+    /**
+     * @return true if the tracker server is ejected
+     */
+    public boolean isEjected() {
+        return this.ejected;
+    }
+
+    public String toString() {
+        return address.getAddress().getHostAddress() + ":" + address.getPort()
+                + ", ewmaLatency = " + getEwmaLatency() + "us"
+                + ", failCount = " + getFailCount()
+                + ", ejected = " + ejected;
+    }
+}
@@ -24,6 +24,11 @@ import java.net.Socket;
 public class TrackerServer implements Closeable {
     private Socket socket;
     private InetSocketAddress inetSocketAddress;
+    private ConnectionPool connectionPool;
+    private boolean broken;
+    private FramedOutputStream framedOut;
+    private TrackerGroup trackerGroup;
+    private TrackerHealth health;
 
     /**
      * Constructor
@@ -36,6 +41,23 @@ public class TrackerServer implements Closeable {
         this.inetSocketAddress = inetSocketAddress;
     }
 
+    /**
+     * Constructor, the socket is taken from the connection pool and
+     * will be given back to the pool when closed
+     *
+     * @param inetSocketAddress the server info
+     * @param connectionPool    the connection pool, null for new connection
+     */
+    protected TrackerServer(InetSocketAddress inetSocketAddress, ConnectionPool connectionPool) throws IOException {
+        this.inetSocketAddress = inetSocketAddress;
+        this.connectionPool = connectionPool;
+        if (connectionPool != null) {
+            this.socket = connectionPool.borrow(inetSocketAddress);
+        } else {
+            this.socket = ClientGlobal.getSocket(inetSocketAddress);
+        }
+    }
+
     /**
      * get the connected socket
      *
@@ -44,6 +66,7 @@ public class TrackerServer implements Closeable {
     public Socket getSocket() throws IOException {
         if (this.socket == null) {
             this.socket = ClientGlobal.getSocket(this.inetSocketAddress);
+            this.broken = false;
         }
 
         return this.socket;
@@ -66,10 +89,81 @@ public class TrackerServer implements Closeable {
         return this.socket.getInputStream();
     }
 
+    /**
+     * get the coalescing output stream of the connection, flush it to send the request
+     *
+     * @return the output stream
+     */
+    FramedOutputStream getFramedOutputStream() throws IOException {
+        if (this.framedOut == null) {
+            this.framedOut = new FramedOutputStream(this.getSocket().getOutputStream());
+        }
+        return this.framedOut;
+    }
+
+    /**
+     * attach the health of the tracker server, the request/response exchanges are recorded to it
+     *
+     * @param trackerGroup the tracker group of the tracker server
+     * @param health       the tracker server health
+     */
+    void setHealth(TrackerGroup trackerGroup, TrackerHealth health) {
+        this.trackerGroup = trackerGroup;
+        this.health = health;
+    }
+
+    /**
+     * record the response received, no-op when the health not attached
+     *
+     * @param startTime the System.nanoTime() before sending the request
+     */
+    void onSuccess(long startTime) {
+        if (this.health != null) {
+            this.health.onSuccess((System.nanoTime() - startTime) / 1000);
+        }
+    }
+
+    /**
+     * record the network failure of the exchange, no-op when the health not attached
+     *
+     * @param ex the cause
+     */
+    void onFailure(IOException ex) {
+        if (this.health != null) {
+            this.trackerGroup.onFailure(this.health, ex);
+        }
+    }
+
+    /**
+     * mark the connection as broken, such as IOException occurs or the response
+     * is not read completely, the broken connection will not be reused
+     */
+    void markBroken() {
+        this.broken = true;
+    }
+
+    /**
+     * @return true if the connection is broken
+     */
+    boolean isBroken() {
+        return this.broken;
+    }
+
+    /**
+     * close the connection, give back to the connection pool when pooled and not broken
+     */
     public void close() throws IOException {
+        if (this.framedOut != null) {
+            this.framedOut.close();
+            this.framedOut = null;
+        }
         if (this.socket != null) {
             try {
-                ProtoCommon.closeSocket(this.socket);
+                if (this.connectionPool != null && !this.broken) {
+                    this.connectionPool.release(this.inetSocketAddress, this.socket);
+                } else {
+                    ProtoCommon.closeSocket(this.socket);
+                }
             } finally {
                 this.socket = null;
             }
@@ -77,6 +171,7 @@ public class TrackerServer implements Closeable {
     }
 
     protected void finalize() throws Throwable {
+        this.markBroken();  //may be abandoned in the middle of an exchange, never pool it
         this.close();
     }
 }
@@ -0,0 +1,114 @@
+/**
+ * Copyright (C) 2008 Happy Fish / YuQing
+ * <p>
+ * FastDFS Java Client may be copied only under the terms of the GNU Lesser
+ * General Public License (LGPL).
+ * Please visit the FastDFS Home Page http://www.csource.org/ for more detail.
+ */
+
+package org.csource.fastdfs;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Upload file by file channel. When the socket is backed by a SocketChannel,
+ * the file content is sent with FileChannel.transferTo (sendfile on Linux)
+ * without copying to the user space, otherwise it is copied to the output stream
+ *
+ * @author Happy Fish / YuQing
+ * @version Version 1.26
+ */
+public class UploadFileChannel implements UploadCallback {
+    private FileChannel fileChannel; //file channel for reading
+    private long position;           //start position of the file
+    private long fileSize;           //size to upload
+
+    /**
+     * constructor
+     *
+     * @param fileChannel file channel for uploading
+     * @param position    the start position of the file
+     * @param fileSize    size to upload
+     */
+    public UploadFileChannel(FileChannel fileChannel, long position, long fileSize) {
+        super();
+        this.fileChannel = fileChannel;
+        this.position = position;
+        this.fileSize = fileSize;
+    }
+
+    /**
+     * send file content callback function, be called only once when the file uploaded
+     *
+     * @param out output stream for writing file content
+     * @return 0 success, return none zero(errno) if fail
+     */
+    public int send(OutputStream out) throws IOException {
+        return this.copy(out, this.position, this.fileSize);
+    }
+
+    /**
+     * send file content to the channel directly, be called only once when the file uploaded.
+     * When transferTo makes no progress, the rest is copied by the buffer instead
+     *
+     * @param target the socket channel in blocking mode to write file content
+     * @return 0 success, return none zero(errno) if fail
+     */
+    public int send(WritableByteChannel target) throws IOException {
+        long offset = this.position;
+        long remainBytes = this.fileSize;
+        while (remainBytes > 0) {
+            long bytes = this.fileChannel.transferTo(offset, remainBytes, target);
+            if (bytes <= 0) {
+                if (offset >= this.fileChannel.size()) {
+                    return -1;  //the file is truncated
+                }
+                return this.copy(Channels.newOutputStream(target), offset, remainBytes);
+            }
+
+            offset += bytes;
+            remainBytes -= bytes;
+        }
+
+        return 0;
+    }
+
+    /**
+     * copy the file content to the output stream by the pooled buffer
+     *
+     * @param out         output stream for writing file content
+     * @param offset      the start position of the file
+     * @param remainBytes the bytes to copy
+     * @return 0 success, return -1 if the file is truncated
+     */
+    private int copy(OutputStream out, long offset, long remainBytes) throws IOException {
+        BufferPool.Chunk chunk = ClientGlobal.G_BUFFER_POOL.acquire((int) Math.min(remainBytes, 256 * 1024));
+        try {
+            byte[] buff = chunk.array();
+            ByteBuffer buffer = ByteBuffer.wrap(buff);
+            int bytes;
+            while (remainBytes > 0) {
+                buffer.clear();
+                if (remainBytes < buff.length) {
+                    buffer.limit((int) remainBytes);
+                }
+                if ((bytes = this.fileChannel.read(buffer, offset)) < 0) {
+                    return -1;
+                }
+
+                out.write(buff, 0, bytes);
+                offset += bytes;
+                remainBytes -= bytes;
+            }
+        } finally {
+            chunk.release();
+        }
+
+        return 0;
+    }
+}
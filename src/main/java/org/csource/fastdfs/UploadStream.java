@@ -34,20 +34,25 @@ public class UploadStream implements UploadCallback {
      */
     public int send(OutputStream out) throws IOException {
         long remainBytes = fileSize;
-        byte[] buff = new byte[256 * 1024];
-        int bytes;
-        while (remainBytes > 0) {
-            try {
-                if ((bytes = inputStream.read(buff, 0, remainBytes > buff.length ? buff.length : (int) remainBytes)) < 0) {
+        BufferPool.Chunk chunk = ClientGlobal.G_BUFFER_POOL.acquire((int) Math.min(fileSize, 256 * 1024));
+        try {
+            byte[] buff = chunk.array();
+            int bytes;
+            while (remainBytes > 0) {
+                try {
+                    if ((bytes = inputStream.read(buff, 0, remainBytes > buff.length ? buff.length : (int) remainBytes)) < 0) {
+                        return -1;
+                    }
+                } catch (IOException ex) {
+                    ex.printStackTrace();
                     return -1;
                 }
-            } catch (IOException ex) {
-                ex.printStackTrace();
-                return -1;
-            }
 
-            out.write(buff, 0, bytes);
-            remainBytes -= bytes;
+                out.write(buff, 0, bytes);
+                remainBytes -= bytes;
+            }
+        } finally {
+            chunk.release();
         }
 
         return 0;
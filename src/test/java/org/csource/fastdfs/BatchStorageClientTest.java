@@ -0,0 +1,186 @@
+package org.csource.fastdfs;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * BatchStorageClient against a fake tracker server and a fake storage server:
+ * the deleted files must not be served by the download caches, the dedup index and the route cache
+ */
+public class BatchStorageClientTest {
+    private static final String GROUP = "group1";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private FakeServer tracker;
+    private FakeServer storage;
+    private TrackerGroup trackerGroup;
+    private RouteCache routeCache;
+    private String missingFilename;  //answered ENOENT
+
+    @BeforeClass
+    public static void init() {
+        ClientGlobal.G_CONNECT_TIMEOUT = 5000;
+        ClientGlobal.G_NETWORK_TIMEOUT = 5000;
+        ClientGlobal.G_CHARSET = "ISO8859-1";
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        this.storage = new FakeServer(new FakeServer.Handler() {
+            public boolean handle(int connection, byte cmd, byte[] body, OutputStream out) throws IOException {
+                String filename = new String(body, ProtoCommon.FDFS_GROUP_NAME_MAX_LEN,
+                        body.length - ProtoCommon.FDFS_GROUP_NAME_MAX_LEN, ClientGlobal.G_CHARSET);
+                FakeServer.answer(out, filename.equals(missingFilename) ? ProtoCommon.ERR_NO_ENOENT : 0, null);
+                return true;
+            }
+        });
+        final int port = this.storage.getAddress().getPort();
+        this.tracker = new FakeServer(new FakeServer.Handler() {
+            public boolean handle(int connection, byte cmd, byte[] body, OutputStream out) throws IOException {
+                byte[] result = new byte[ProtoCommon.TRACKER_QUERY_STORAGE_FETCH_BODY_LEN];
+                System.arraycopy(ProtoCodec.packGroupName(GROUP), 0, result, 0, ProtoCommon.FDFS_GROUP_NAME_MAX_LEN);
+                System.arraycopy("127.0.0.1".getBytes(), 0, result, ProtoCommon.FDFS_GROUP_NAME_MAX_LEN, 9);
+                System.arraycopy(ProtoCommon.long2buff(port), 0, result,
+                        ProtoCommon.FDFS_GROUP_NAME_MAX_LEN + ProtoCommon.FDFS_IPADDR_SIZE - 1,
+                        ProtoCommon.FDFS_PROTO_PKG_LEN_SIZE);
+                FakeServer.answer(out, (byte) 0, result);
+                return true;
+            }
+        });
+
+        this.routeCache = new RouteCache(16, 60000);
+        this.trackerGroup = new TrackerGroup(new InetSocketAddress[]{this.tracker.getAddress()});
+        this.trackerGroup.setRouteCache(this.routeCache);
+        ClientGlobal.G_DOWNLOAD_CACHE = new DownloadCache(1024 * 1024, 64 * 1024, false);
+        ClientGlobal.G_DISK_DOWNLOAD_CACHE = new DiskDownloadCache(this.folder.newFolder("cache"), 1024 * 1024);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (ClientGlobal.G_DEDUP_INDEX != null) {
+            ClientGlobal.G_DEDUP_INDEX.close();
+            ClientGlobal.G_DEDUP_INDEX = null;
+        }
+        ClientGlobal.G_DOWNLOAD_CACHE = null;
+        ClientGlobal.G_DISK_DOWNLOAD_CACHE.close();
+        ClientGlobal.G_DISK_DOWNLOAD_CACHE = null;
+        this.trackerGroup.close();
+        this.tracker.close();
+        this.storage.close();
+    }
+
+    /**
+     * @return the file id of the content cached in the download caches and the route cache
+     */
+    private String cacheFile(byte[] content) throws IOException {
+        CRC32 crc32 = new CRC32();
+        crc32.update(content);
+        String filename = FileIdDecoderTest.makeFilename(0x7F000001, content.length, (int) crc32.getValue(), "");
+        String fileId = GROUP + StorageClient1.SPLIT_GROUP_NAME_AND_FILENAME_SEPERATOR + filename;
+
+        ClientGlobal.G_DOWNLOAD_CACHE.put(fileId, content);
+        assertTrue(ClientGlobal.G_DISK_DOWNLOAD_CACHE.put(fileId, content));
+        ServerInfo[] servers = {new ServerInfo("127.0.0.1", this.storage.getAddress().getPort())};
+        this.routeCache.put(ProtoCommon.TRACKER_PROTO_CMD_SERVICE_QUERY_FETCH_ALL, GROUP, filename, servers);
+        this.routeCache.put(ProtoCommon.TRACKER_PROTO_CMD_SERVICE_QUERY_UPDATE, GROUP, filename, servers);
+        return fileId;
+    }
+
+    private void assertNotCached(String fileId) {
+        String filename = fileId.substring(GROUP.length() + 1);
+        assertNull(ClientGlobal.G_DOWNLOAD_CACHE.get(fileId, 0, 0));
+        assertNull(ClientGlobal.G_DISK_DOWNLOAD_CACHE.get(fileId, 0, 0));
+        assertNull(this.routeCache.get(ProtoCommon.TRACKER_PROTO_CMD_SERVICE_QUERY_FETCH_ALL, GROUP, filename));
+        assertNull(this.routeCache.get(ProtoCommon.TRACKER_PROTO_CMD_SERVICE_QUERY_UPDATE, GROUP, filename));
+    }
+
+    @Test
+    public void testDeleteInvalidatesCaches() throws Exception {
+        String deleted = cacheFile(new byte[]{1, 2, 3, 4});
+        String other = cacheFile(new byte[]{5, 6, 7, 8});
+        assertNotNull(ClientGlobal.G_DOWNLOAD_CACHE.get(deleted, 0, 0));
+        assertNotNull(ClientGlobal.G_DISK_DOWNLOAD_CACHE.get(deleted, 0, 0));
+
+        BatchStorageClient client = new BatchStorageClient(this.trackerGroup, 1, 4);
+        try {
+            Map<String, BatchResult<Void>> results = client.batch_delete_file1(Arrays.asList(deleted));
+            assertTrue(results.get(deleted).isSuccess());
+        } finally {
+            client.close();
+        }
+
+        assertNotCached(deleted);
+        assertEquals(1, this.storage.getRequestCount(ProtoCommon.STORAGE_PROTO_CMD_DELETE_FILE));
+        assertNotNull(ClientGlobal.G_DOWNLOAD_CACHE.get(other, 0, 0));  //not in the batch
+        assertNotNull(ClientGlobal.G_DISK_DOWNLOAD_CACHE.get(other, 0, 0));
+    }
+
+    @Test
+    public void testDeleteFailed() throws Exception {
+        String deleted = cacheFile(new byte[]{1, 2, 3, 4});
+        String missing = cacheFile(new byte[]{5, 6, 7, 8});
+        this.missingFilename = missing.substring(GROUP.length() + 1);
+
+        BatchStorageClient client = new BatchStorageClient(this.trackerGroup, 1, 4);
+        try {
+            Map<String, BatchResult<Void>> results = client.batch_delete_file1(Arrays.asList(deleted, missing));
+            assertTrue(results.get(deleted).isSuccess());
+            assertFalse(results.get(missing).isSuccess());
+            assertEquals(ProtoCommon.ERR_NO_ENOENT, results.get(missing).getErrorCode());
+        } finally {
+            client.close();
+        }
+
+        assertNotCached(deleted);
+        //the content is dropped before the request as delete_file does, the route is kept
+        assertNull(ClientGlobal.G_DOWNLOAD_CACHE.get(missing, 0, 0));
+        assertNull(ClientGlobal.G_DISK_DOWNLOAD_CACHE.get(missing, 0, 0));
+        assertNotNull(this.routeCache.get(ProtoCommon.TRACKER_PROTO_CMD_SERVICE_QUERY_UPDATE, GROUP,
+                this.missingFilename));
+    }
+
+    @Test
+    public void testDeleteRemovesDedupEntry() throws Exception {
+        ClientGlobal.G_DEDUP_INDEX = new DedupIndex(new File(this.folder.getRoot(), "dedup/index"), 100, false);
+        String deleted = cacheFile(new byte[]{1, 2, 3, 4});
+        String missing = cacheFile(new byte[]{5, 6, 7, 8});
+        String other = cacheFile(new byte[]{9, 10, 11, 12});
+        this.missingFilename = missing.substring(GROUP.length() + 1);
+        ClientGlobal.G_DEDUP_INDEX.put("key-deleted", deleted);
+        ClientGlobal.G_DEDUP_INDEX.put("key-missing", missing);
+        ClientGlobal.G_DEDUP_INDEX.put("key-other", other);
+
+        BatchStorageClient client = new BatchStorageClient(this.trackerGroup, 1, 4);
+        try {
+            Map<String, BatchResult<Void>> results = client.batch_delete_file1(Arrays.asList(deleted, missing));
+            assertTrue(results.get(deleted).isSuccess());
+            assertFalse(results.get(missing).isSuccess());
+        } finally {
+            client.close();
+        }
+
+        assertNull(ClientGlobal.G_DEDUP_INDEX.get("key-deleted"));
+        assertNull(ClientGlobal.G_DEDUP_INDEX.get("key-missing"));  //removed before the request as delete_file does
+        assertEquals(other, ClientGlobal.G_DEDUP_INDEX.get("key-other"));
+    }
+}
@@ -0,0 +1,117 @@
+package org.csource.fastdfs;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * BufferPool: the size classes, the reuse by the thread cache and the shared queues, the leak detection
+ */
+public class BufferPoolTest {
+    @Test
+    public void testSizeClass() {
+        BufferPool pool = new BufferPool();
+        assertEquals(4 * 1024, pool.acquire(0).array().length);
+        assertEquals(4 * 1024, pool.acquire(4 * 1024).array().length);
+        assertEquals(16 * 1024, pool.acquire(4 * 1024 + 1).array().length);
+        assertEquals(64 * 1024, pool.acquire(64 * 1024).array().length);
+        assertEquals(256 * 1024, pool.acquire(100 * 1024).array().length);
+        assertEquals(256 * 1024 + 1, pool.acquire(256 * 1024 + 1).array().length);
+        assertEquals(6, pool.getMissCount());
+    }
+
+    @Test
+    public void testReuse() {
+        BufferPool pool = new BufferPool(2, false);
+        BufferPool.Chunk chunk = pool.acquire(1000);
+        byte[] buff = chunk.array();
+        chunk.release();
+        assertNull(chunk.array());
+        chunk.release();  //released twice, ignored
+
+        assertSame(buff, pool.acquire(2000).array());  //from the thread cache
+        assertEquals(1, pool.getHitCount());
+        assertEquals(1, pool.getMissCount());
+        assertEquals(0, pool.getPooledCount(1000));
+
+        //the thread cache keeps one buffer per size class, the others go to the shared queue
+        BufferPool.Chunk[] chunks = new BufferPool.Chunk[4];
+        for (int i = 0; i < chunks.length; i++) {
+            chunks[i] = pool.acquire(10 * 1024);
+        }
+        for (BufferPool.Chunk c : chunks) {
+            c.release();
+        }
+        assertEquals(2, pool.getPooledCount(16 * 1024));  //the max count per class, the other dropped
+        assertEquals(0, pool.getPooledCount(4 * 1024));
+
+        for (int i = 0; i < 3; i++) {
+            pool.acquire(16 * 1024);
+        }
+        assertEquals(0, pool.getPooledCount(16 * 1024));
+        assertEquals(4, pool.getHitCount());
+    }
+
+    @Test
+    public void testOversize() {
+        BufferPool pool = new BufferPool(2, false);
+        BufferPool.Chunk chunk = pool.acquire(1024 * 1024);
+        chunk.release();
+        assertEquals(0, pool.getPooledCount(1024 * 1024));
+        pool.acquire(1024 * 1024);
+        assertEquals(0, pool.getHitCount());
+        assertEquals(2, pool.getMissCount());
+    }
+
+    @Test
+    public void testSharedByThreads() throws InterruptedException {
+        final BufferPool pool = new BufferPool(2, false);
+        BufferPool.Chunk first = pool.acquire(1000);
+        BufferPool.Chunk second = pool.acquire(1000);
+        byte[] shared = second.array();
+        first.release();   //to the thread cache
+        second.release();  //to the shared queue
+        assertEquals(1, pool.getPooledCount(1000));
+
+        final byte[][] result = new byte[1][];
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                result[0] = pool.acquire(1000).array();
+            }
+        });
+        thread.start();
+        thread.join();
+        assertSame(shared, result[0]);
+        assertEquals(0, pool.getPooledCount(1000));
+    }
+
+    @Test
+    public void testLeakDetection() throws InterruptedException {
+        BufferPool pool = new BufferPool(2, true);
+        assertTrue(pool.isLeakDetection());
+        BufferPool.Chunk released = pool.acquire(1000);
+        BufferPool.Chunk leased = pool.acquire(1000);
+        pool.acquire(1000);  //not released, collected
+        assertEquals(3, pool.getLeasedCount());
+        released.release();
+        assertEquals(2, pool.getLeasedCount());
+
+        for (int i = 0; i < 50 && pool.getLeakCount() == 0; i++) {
+            System.gc();
+            Thread.sleep(20);
+        }
+        assertEquals(1, pool.getLeakCount());
+        assertEquals(1, pool.getLeasedCount());
+        leased.release();
+        assertEquals(0, pool.getLeasedCount());
+        assertEquals(1, pool.getLeakCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidMaxCount() {
+        new BufferPool(0, false);
+    }
+}
@@ -0,0 +1,259 @@
+package org.csource.fastdfs;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * ConnectionPool: reuse per server address, the max count, the idle eviction, the closed pool
+ * and the ACTIVE_TEST of the idle connections
+ */
+public class ConnectionPoolTest {
+    private FakeServer server;
+    private InetSocketAddress address;
+
+    @BeforeClass
+    public static void init() {
+        ClientGlobal.G_CONNECT_TIMEOUT = 5000;
+        ClientGlobal.G_NETWORK_TIMEOUT = 5000;
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        this.server = new FakeServer(new FakeServer.Handler() {
+            public boolean handle(int connection, byte cmd, byte[] body, OutputStream out) throws IOException {
+                FakeServer.answer(out, (byte) 0, null);
+                return true;
+            }
+        });
+        this.address = this.server.getAddress();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        this.server.close();
+    }
+
+    @Test
+    public void testReuse() throws IOException {
+        ConnectionPool pool = new ConnectionPool(2, 60000);
+        try {
+            Socket sock = pool.borrow(this.address);
+            pool.release(this.address, sock);
+            assertEquals(1, pool.getIdleCount(this.address));
+            assertSame(sock, pool.borrow(this.address));
+            assertEquals(0, pool.getIdleCount(this.address));
+            assertEquals(1, pool.getCreateCount());
+            assertEquals(1, pool.getReuseCount());
+
+            InetSocketAddress other = new InetSocketAddress("localhost", this.address.getPort());
+            assertNotSame(sock, pool.borrow(other));  //keyed by the address
+            assertEquals(2, pool.getCreateCount());
+        } finally {
+            pool.close();
+        }
+    }
+
+    @Test
+    public void testMaxCountPerEntry() throws IOException {
+        ConnectionPool pool = new ConnectionPool(2, 60000);
+        try {
+            Socket[] socks = new Socket[3];
+            for (int i = 0; i < socks.length; i++) {
+                socks[i] = pool.borrow(this.address);
+            }
+            for (Socket sock : socks) {
+                pool.release(this.address, sock);
+            }
+            assertEquals(2, pool.getIdleCount(this.address));
+            assertEquals(1, pool.getCloseCount());
+            assertTrue(socks[2].isClosed());
+
+            Socket closed = pool.borrow(this.address);
+            closed.close();
+            pool.release(this.address, closed);  //not pooled
+            assertEquals(1, pool.getIdleCount(this.address));
+        } finally {
+            pool.close();
+        }
+    }
+
+    @Test
+    public void testExpiredOnBorrow() throws IOException, InterruptedException {
+        ConnectionPool pool = new ConnectionPool(2, 50);
+        try {
+            Socket sock = pool.borrow(this.address);
+            pool.release(this.address, sock);
+            Thread.sleep(100);
+            assertNotSame(sock, pool.borrow(this.address));
+            assertTrue(sock.isClosed());
+            assertEquals(2, pool.getCreateCount());
+            assertEquals(0, pool.getReuseCount());
+        } finally {
+            pool.close();
+        }
+    }
+
+    @Test
+    public void testExpiredBySweeper() throws IOException, InterruptedException {
+        ConnectionPool pool = new ConnectionPool(2, 50);
+        try {
+            Socket sock = pool.borrow(this.address);
+            pool.release(this.address, sock);
+
+            //never borrowed again, closed in the background
+            for (int i = 0; i < 100 && pool.getIdleCount(this.address) > 0; i++) {
+                Thread.sleep(50);
+            }
+            assertEquals(0, pool.getIdleCount(this.address));
+            assertTrue(sock.isClosed());
+        } finally {
+            pool.close();
+        }
+    }
+
+    @Test
+    public void testClose() throws IOException {
+        ConnectionPool pool = new ConnectionPool(2, 60000);
+        Socket sock = pool.borrow(this.address);
+        Socket other = pool.borrow(this.address);
+        pool.release(this.address, sock);
+        pool.close();
+        assertTrue(sock.isClosed());
+        assertEquals(0, pool.getIdleCount(this.address));
+
+        pool.release(this.address, other);  //released after closed
+        assertTrue(other.isClosed());
+        assertEquals(0, pool.getIdleCount(this.address));
+    }
+
+    @Test
+    public void testServerConnection() throws Throwable {
+        ConnectionPool pool = new ConnectionPool(2, 60000);
+        try {
+            TrackerServer trackerServer = new TrackerServer(this.address, pool);
+            Socket sock = trackerServer.getSocket();
+            trackerServer.close();
+            assertEquals(1, pool.getIdleCount(this.address));
+
+            trackerServer = new TrackerServer(this.address, pool);
+            assertSame(sock, trackerServer.getSocket());
+            trackerServer.markBroken();
+            trackerServer.close();
+            assertTrue(sock.isClosed());
+            assertEquals(0, pool.getIdleCount(this.address));
+
+            //abandoned, may be in the middle of an exchange
+            trackerServer = new TrackerServer(this.address, pool);
+            sock = trackerServer.getSocket();
+            trackerServer.finalize();
+            assertTrue(sock.isClosed());
+            assertEquals(0, pool.getIdleCount(this.address));
+        } finally {
+            pool.close();
+        }
+    }
+
+    @Test
+    public void testActiveTest() throws IOException {
+        ConnectionPool pool = new ConnectionPool(2, 60000, 0);
+        try {
+            Socket sock = pool.borrow(this.address);
+            pool.release(this.address, sock);
+            assertSame(sock, pool.borrow(this.address));
+            assertEquals(1, this.server.getRequestCount(ProtoCommon.FDFS_PROTO_CMD_ACTIVE_TEST));
+            assertEquals(0, pool.getActiveTestFailCount());
+
+            //closed by the server while idle
+            pool.release(this.address, sock);
+            this.server.closeConnections();
+            Socket other = pool.borrow(this.address);
+            assertNotSame(sock, other);
+            assertTrue(sock.isClosed());
+            assertEquals(1, pool.getActiveTestFailCount());
+            assertEquals(2, pool.getCreateCount());
+        } finally {
+            pool.close();
+        }
+    }
+
+    @Test
+    public void testActiveTestFail() throws IOException {
+        FakeServer failServer = new FakeServer(new FakeServer.Handler() {
+            public boolean handle(int connection, byte cmd, byte[] body, OutputStream out) throws IOException {
+                FakeServer.answer(out, ProtoCommon.ERR_NO_EINVAL, null);
+                return true;
+            }
+        });
+        ConnectionPool pool = new ConnectionPool(2, 60000, 0);
+        try {
+            InetSocketAddress failAddress = failServer.getAddress();
+            Socket sock = pool.borrow(failAddress);
+            pool.release(failAddress, sock);
+            assertNotSame(sock, pool.borrow(failAddress));
+            assertTrue(sock.isClosed());
+            assertEquals(1, pool.getActiveTestFailCount());
+        } finally {
+            pool.close();
+            failServer.close();
+        }
+    }
+
+    @Test
+    public void testActiveTestIdleTime() throws IOException, InterruptedException {
+        ConnectionPool pool = new ConnectionPool(2, 60000, 100);
+        try {
+            Socket sock = pool.borrow(this.address);
+            pool.release(this.address, sock);
+            assertSame(sock, pool.borrow(this.address));  //not idle long enough
+            assertEquals(0, this.server.getRequestCount(ProtoCommon.FDFS_PROTO_CMD_ACTIVE_TEST));
+
+            pool.release(this.address, sock);
+            Thread.sleep(150);
+            assertSame(sock, pool.borrow(this.address));
+            assertEquals(1, this.server.getRequestCount(ProtoCommon.FDFS_PROTO_CMD_ACTIVE_TEST));
+        } finally {
+            pool.close();
+        }
+
+        pool = new ConnectionPool(2, 60000);  //never
+        try {
+            Socket sock = pool.borrow(this.address);
+            pool.release(this.address, sock);
+            Thread.sleep(150);
+            assertSame(sock, pool.borrow(this.address));
+            assertEquals(1, this.server.getRequestCount(ProtoCommon.FDFS_PROTO_CMD_ACTIVE_TEST));
+        } finally {
+            pool.close();
+        }
+    }
+
+    @Test
+    public void testTrackerGroup() throws IOException {
+        ConnectionPool pool = new ConnectionPool(2, 60000, 0);
+        try {
+            TrackerGroup trackerGroup = new TrackerGroup(new InetSocketAddress[]{this.address}, pool);
+            TrackerServer trackerServer = trackerGroup.getTrackerServer();
+            Socket sock = trackerServer.getSocket();
+            trackerServer.close();
+
+            trackerServer = trackerGroup.getTrackerServer();
+            assertSame(sock, trackerServer.getSocket());
+            assertEquals(1, this.server.getRequestCount(ProtoCommon.FDFS_PROTO_CMD_ACTIVE_TEST));
+            trackerServer.close();
+        } finally {
+            pool.close();
+        }
+    }
+}
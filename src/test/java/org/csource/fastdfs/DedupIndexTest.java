@@ -0,0 +1,155 @@
+package org.csource.fastdfs;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * DedupIndex: the key of the content, the file id mapping, the eviction and the reload of the journal
+ */
+public class DedupIndexTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static String makeKey(String content, String fileExtName) throws IOException {
+        return DedupIndex.getKey(DedupIndex.newDigest().digest(content.getBytes("UTF-8")), fileExtName);
+    }
+
+    @Test
+    public void testKey() throws IOException {
+        assertEquals("e3b0c44298fc1c149afbf4c8996fb92427ae41e4649b934ca495991b7852b855", makeKey("", null));
+        assertEquals("e3b0c44298fc1c149afbf4c8996fb92427ae41e4649b934ca495991b7852b855", makeKey("", ""));
+        assertEquals("e3b0c44298fc1c149afbf4c8996fb92427ae41e4649b934ca495991b7852b855.jpg", makeKey("", "jpg"));
+    }
+
+    @Test
+    public void testPutGet() throws IOException {
+        DedupIndex index = new DedupIndex(new File(folder.getRoot(), "dedup/index"), 100, false);
+        try {
+            String keyA = makeKey("a", "jpg");
+            String keyB = makeKey("b", "jpg");
+            index.put(keyA, "group1/M00/00/00/a.jpg");
+            index.put(keyB, "group1/M00/00/00/b.jpg");
+            assertEquals("group1/M00/00/00/a.jpg", index.get(keyA));
+            assertEquals("group1/M00/00/00/b.jpg", index.get(keyB));
+            assertNull(index.get(makeKey("a", "png")));
+
+            //the same file id recorded for another key replaces the old key
+            String keyC = makeKey("c", "jpg");
+            index.put(keyC, "group1/M00/00/00/a.jpg");
+            assertNull(index.get(keyA));
+            assertEquals("group1/M00/00/00/a.jpg", index.get(keyC));
+            assertEquals(2, index.getCount());
+
+            //another file id of the same key, the old file id is not mapped any more
+            index.put(keyB, "group1/M00/00/00/b2.jpg");
+            index.removeFileId("group1/M00/00/00/b.jpg");
+            assertEquals("group1/M00/00/00/b2.jpg", index.get(keyB));
+            index.removeFileId("group1/M00/00/00/b2.jpg");
+            assertNull(index.get(keyB));
+
+            index.remove(keyC);
+            assertEquals(0, index.getCount());
+
+            index.put("a key", "group1/M00/00/00/a.jpg");  //not fit the journal format
+            index.put(keyA, "group1/M00/00/00/a b.jpg");
+            assertEquals(0, index.getCount());
+        } finally {
+            index.close();
+        }
+    }
+
+    @Test
+    public void testEviction() throws IOException {
+        DedupIndex index = new DedupIndex(folder.newFile(), 2, false);
+        try {
+            index.put("k1", "group1/f1");
+            index.put("k2", "group1/f2");
+            assertEquals("group1/f1", index.get("k1"));  //k2 is the least recently used
+            index.put("k3", "group1/f3");
+            assertEquals(2, index.getCount());
+            assertNull(index.get("k2"));
+            assertEquals("group1/f1", index.get("k1"));
+            assertEquals("group1/f3", index.get("k3"));
+
+            index.removeFileId("group1/f2");  //evicted, no effect
+            assertEquals(2, index.getCount());
+        } finally {
+            index.close();
+        }
+    }
+
+    @Test
+    public void testReload() throws IOException {
+        File indexFile = folder.newFile();
+        DedupIndex index = new DedupIndex(indexFile, 100, true);
+        assertTrue(index.isConfirm());
+        for (int i = 0; i < 10; i++) {
+            index.put("k" + i, "group1/f" + i);
+        }
+        index.remove("k3");
+        index.removeFileId("group1/f5");
+        index.put("k7", "group1/f7b");
+        index.close();
+
+        index = new DedupIndex(indexFile, 100, false);
+        try {
+            assertEquals(8, index.getCount());
+            assertNull(index.get("k3"));
+            assertNull(index.get("k5"));
+            assertEquals("group1/f0", index.get("k0"));
+            assertEquals("group1/f7b", index.get("k7"));
+
+            //the file id to key mapping is rebuilt
+            index.removeFileId("group1/f9");
+            assertNull(index.get("k9"));
+            index.removeFileId("group1/f7");
+            assertEquals("group1/f7b", index.get("k7"));
+        } finally {
+            index.close();
+        }
+
+        //the max count is applied when reloaded, the entries put last are kept
+        index = new DedupIndex(indexFile, 2, false);
+        try {
+            assertEquals(2, index.getCount());
+            assertEquals("group1/f8", index.get("k8"));
+            assertEquals("group1/f7b", index.get("k7"));
+        } finally {
+            index.close();
+        }
+    }
+
+    @Test
+    public void testChangesAfterClose() throws IOException {
+        File indexFile = folder.newFile();
+        DedupIndex index = new DedupIndex(indexFile, 100, false);
+        index.put("k0", "group1/f0");
+        for (int i = 0; i < 513; i++) {  //1027 records, compacted by the next change
+            index.put("k1", "group1/f1");
+            index.remove("k1");
+        }
+        index.close();
+
+        //the compaction must not reopen the closed journal
+        index.remove("k0");
+        index.put("k2", "group1/f2");
+        index.close();
+
+        index = new DedupIndex(indexFile, 100, false);
+        try {
+            assertEquals(1, index.getCount());
+            assertEquals("group1/f0", index.get("k0"));
+            assertNull(index.get("k2"));
+        } finally {
+            index.close();
+        }
+    }
+}
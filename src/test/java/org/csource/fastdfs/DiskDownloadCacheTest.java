@@ -0,0 +1,274 @@
+package org.csource.fastdfs;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * DiskDownloadCache: the size and crc32 checks, the eviction and the journal replay after reopen
+ */
+public class DiskDownloadCacheTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static byte[] makeContent(int length, int seed) {
+        byte[] content = new byte[length];
+        for (int i = 0; i < length; i++) {
+            content[i] = (byte) (i * 31 + seed);
+        }
+        return content;
+    }
+
+    /**
+     * @return the file id encoding the size and the crc32 of the content
+     */
+    private static String makeFileId(byte[] content) throws IOException {
+        CRC32 crc32 = new CRC32();
+        crc32.update(content, 0, content.length);
+        return "group1/" + FileIdDecoderTest.makeFilename(1, content.length, (int) crc32.getValue(), "");
+    }
+
+    private static File getContentFile(File dir, String fileId) {
+        return new File(new File(dir, DiskDownloadCache.DATA_DIR_NAME), fileId);
+    }
+
+    @Test
+    public void testPutGet() throws IOException {
+        File dir = folder.newFolder();
+        DiskDownloadCache cache = new DiskDownloadCache(dir, 1024 * 1024);
+        try {
+            byte[] content = makeContent(5000, 1);
+            String fileId = makeFileId(content);
+            assertTrue(cache.put(fileId, content));
+            assertEquals(1, cache.getCount());
+            assertEquals(content.length, cache.getBytes());
+
+            assertArrayEquals(content, cache.get(fileId, 0, 0));
+            assertArrayEquals(Arrays.copyOfRange(content, 100, 300), cache.get(fileId, 100, 200));
+            assertArrayEquals(Arrays.copyOfRange(content, 4000, 5000), cache.get(fileId, 4000, 0));
+            assertNull(cache.get(fileId, 5001, 0));
+            assertNull(cache.get("group1/M00/00/00/none.jpg", 0, 0));
+            assertEquals(3, cache.getHitCount());
+            assertEquals(2, cache.getMissCount());
+
+            File localFile = folder.newFile();
+            RandomAccessFile out = new RandomAccessFile(localFile, "rw");
+            try {
+                assertEquals(200, cache.transferTo(fileId, 100, 200, out.getChannel(), 10));
+            } finally {
+                out.close();
+            }
+            byte[] transferred = new byte[200];
+            RandomAccessFile in = new RandomAccessFile(localFile, "r");
+            try {
+                assertEquals(210, in.length());
+                in.seek(10);
+                in.readFully(transferred);
+            } finally {
+                in.close();
+            }
+            assertArrayEquals(Arrays.copyOfRange(content, 100, 300), transferred);
+
+            cache.remove(fileId);
+            assertEquals(0, cache.getCount());
+            assertEquals(0, cache.getBytes());
+            assertFalse(getContentFile(dir, fileId).exists());
+        } finally {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void testPutFile() throws IOException {
+        File dir = folder.newFolder();
+        DiskDownloadCache cache = new DiskDownloadCache(dir, 1024 * 1024);
+        try {
+            byte[] content = makeContent(300 * 1024, 2);  //larger than a pooled buffer
+            File localFile = folder.newFile();
+            FileOutputStream out = new FileOutputStream(localFile);
+            try {
+                out.write(content);
+            } finally {
+                out.close();
+            }
+
+            String fileId = makeFileId(content);
+            assertTrue(cache.put(fileId, localFile));
+            assertArrayEquals(content, cache.get(fileId, 0, 0));
+        } finally {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void testNotCacheable() throws IOException {
+        File dir = folder.newFolder();
+        DiskDownloadCache cache = new DiskDownloadCache(dir, 1024 * 1024, 1000);
+        try {
+            byte[] content = makeContent(500, 3);
+            String fileId = makeFileId(content);
+            assertTrue(cache.isCacheable(fileId.substring("group1/".length())));
+
+            byte[] changed = content.clone();
+            changed[10]++;
+            assertFalse(cache.put(fileId, changed));  //crc32 not match
+            assertFalse(cache.put(fileId, Arrays.copyOf(content, 499)));  //size not match
+            assertFalse(cache.put(fileId.substring("group1/".length()), content));  //no group name
+            assertFalse(cache.put("group1/../" + fileId, content));
+
+            byte[] large = makeContent(1001, 3);
+            assertFalse(cache.put(makeFileId(large), large));  //larger than the max file bytes
+
+            String slaveFileId = "group1/" + FileIdDecoderTest.makeFilename(1, content.length, 0, "_100x100");
+            assertFalse(cache.isCacheable(slaveFileId.substring("group1/".length())));
+            assertFalse(cache.put(slaveFileId, content));
+            assertEquals(0, cache.getCount());
+            assertEquals(0, cache.getBytes());
+        } finally {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void testEviction() throws IOException {
+        File dir = folder.newFolder();
+        DiskDownloadCache cache = new DiskDownloadCache(dir, 3000);
+        try {
+            byte[][] contents = new byte[4][];
+            String[] fileIds = new String[contents.length];
+            for (int i = 0; i < contents.length; i++) {
+                contents[i] = makeContent(1000, i);
+                fileIds[i] = makeFileId(contents[i]);
+            }
+
+            assertTrue(cache.put(fileIds[0], contents[0]));
+            assertTrue(cache.put(fileIds[1], contents[1]));
+            assertTrue(cache.put(fileIds[2], contents[2]));
+            assertArrayEquals(contents[0], cache.get(fileIds[0], 0, 0));  //1 is the least recently used
+
+            assertTrue(cache.put(fileIds[3], contents[3]));
+            assertEquals(1, cache.getEvictionCount());
+            assertEquals(3, cache.getCount());
+            assertEquals(3000, cache.getBytes());
+            assertNull(cache.get(fileIds[1], 0, 0));
+            assertFalse(getContentFile(dir, fileIds[1]).exists());
+            assertArrayEquals(contents[0], cache.get(fileIds[0], 0, 0));
+        } finally {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void testReplay() throws IOException {
+        File dir = folder.newFolder();
+        byte[][] contents = new byte[4][];
+        String[] fileIds = new String[contents.length];
+        for (int i = 0; i < contents.length; i++) {
+            contents[i] = makeContent(1000 + i, i);
+            fileIds[i] = makeFileId(contents[i]);
+        }
+
+        DiskDownloadCache cache = new DiskDownloadCache(dir, 1024 * 1024);
+        for (int i = 0; i < contents.length; i++) {
+            assertTrue(cache.put(fileIds[i], contents[i]));
+        }
+        cache.remove(fileIds[1]);
+        cache.close();
+
+        //the content file of 2 is lost, 3 is truncated, a temp file left by a crashed write
+        assertTrue(getContentFile(dir, fileIds[2]).delete());
+        RandomAccessFile file = new RandomAccessFile(getContentFile(dir, fileIds[3]), "rw");
+        try {
+            file.setLength(10);
+        } finally {
+            file.close();
+        }
+        File tempFile = new File(new File(dir, DiskDownloadCache.TEMP_DIR_NAME), "0.1");
+        assertTrue(tempFile.createNewFile());
+
+        cache = new DiskDownloadCache(dir, 1024 * 1024);
+        try {
+            assertEquals(1, cache.getCount());
+            assertEquals(contents[0].length, cache.getBytes());
+            assertArrayEquals(contents[0], cache.get(fileIds[0], 0, 0));
+            assertNull(cache.get(fileIds[1], 0, 0));
+            assertNull(cache.get(fileIds[2], 0, 0));
+            assertNull(cache.get(fileIds[3], 0, 0));
+            assertFalse(getContentFile(dir, fileIds[3]).exists());
+            assertFalse(tempFile.exists());
+
+            assertTrue(cache.put(fileIds[1], contents[1]));
+        } finally {
+            cache.close();
+        }
+
+        //the compacted index and the journal appended after it
+        cache = new DiskDownloadCache(dir, 1024 * 1024);
+        try {
+            assertEquals(2, cache.getCount());
+            assertArrayEquals(contents[1], cache.get(fileIds[1], 0, 0));
+        } finally {
+            cache.close();
+        }
+
+        //evicted by the smaller max bytes when reopened
+        cache = new DiskDownloadCache(dir, contents[1].length);
+        try {
+            assertEquals(1, cache.getCount());
+            assertEquals(1, cache.getEvictionCount());
+            assertArrayEquals(contents[1], cache.get(fileIds[1], 0, 0));
+            assertFalse(getContentFile(dir, fileIds[0]).exists());
+        } finally {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void testBrokenContent() throws IOException {
+        File dir = folder.newFolder();
+        DiskDownloadCache cache = new DiskDownloadCache(dir, 1024 * 1024);
+        try {
+            byte[] content = makeContent(2000, 5);
+            String fileId = makeFileId(content);
+            assertTrue(cache.put(fileId, content));
+
+            RandomAccessFile file = new RandomAccessFile(getContentFile(dir, fileId), "rw");
+            try {
+                file.seek(100);
+                file.write(content[100] + 1);
+            } finally {
+                file.close();
+            }
+
+            assertArrayEquals(Arrays.copyOfRange(content, 0, 100), cache.get(fileId, 0, 100));
+            assertNull(cache.get(fileId, 0, 0));  //crc32 checked when the whole content is read
+            assertEquals(0, cache.getCount());
+        } finally {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void testPutAfterClose() throws IOException {
+        File dir = folder.newFolder();
+        DiskDownloadCache cache = new DiskDownloadCache(dir, 1024 * 1024);
+        cache.close();
+
+        byte[] content = makeContent(100, 6);
+        assertFalse(cache.put(makeFileId(content), content));
+        assertEquals(0, cache.getCount());
+    }
+}
@@ -0,0 +1,148 @@
+package org.csource.fastdfs;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * DownloadCache on heap and off heap: range reads, segmented LRU eviction and block reuse
+ */
+public class DownloadCacheTest {
+    private static final int BLOCK_SIZE = 64 * 1024;
+
+    private static byte[] makeContent(int length, int seed) {
+        byte[] content = new byte[length];
+        for (int i = 0; i < length; i++) {
+            content[i] = (byte) (i * 31 + seed);
+        }
+        return content;
+    }
+
+    private static void testGet(boolean offHeap) {
+        DownloadCache cache = new DownloadCache(4 * BLOCK_SIZE, BLOCK_SIZE * 2, offHeap);
+        byte[] content = makeContent(BLOCK_SIZE + 100, 1);  //across the blocks when off heap
+        cache.put("group1/M00/00/00/a.jpg", content.clone());
+        assertArrayEquals(content, cache.get("group1/M00/00/00/a.jpg", 0, 0));
+        assertArrayEquals(Arrays.copyOfRange(content, BLOCK_SIZE - 10, BLOCK_SIZE + 10),
+                cache.get("group1/M00/00/00/a.jpg", BLOCK_SIZE - 10, 20));
+        assertArrayEquals(Arrays.copyOfRange(content, 10, content.length),
+                cache.get("group1/M00/00/00/a.jpg", 10, content.length));
+        assertEquals(0, cache.get("group1/M00/00/00/a.jpg", content.length, 0).length);
+        assertEquals(4, cache.getHitCount());
+
+        assertNull(cache.get("group1/M00/00/00/a.jpg", content.length + 1, 0));
+        assertNull(cache.get("group1/M00/00/00/a.jpg", -1, 0));
+        assertNull(cache.get("group1/M00/00/00/b.jpg", 0, 0));
+        assertEquals(3, cache.getMissCount());
+
+        byte[] result = cache.get("group1/M00/00/00/a.jpg", 0, 0);
+        result[0]++;  //the result is a copy
+        assertArrayEquals(content, cache.get("group1/M00/00/00/a.jpg", 0, 0));
+
+        cache.put("group1/M00/00/00/large.jpg", new byte[BLOCK_SIZE * 2 + 1]);
+        assertEquals(1, cache.getCount());
+
+        cache.remove("group1/M00/00/00/a.jpg");
+        assertEquals(0, cache.getCount());
+        assertEquals(0, cache.getBytes());
+        assertNull(cache.get("group1/M00/00/00/a.jpg", 0, 0));
+    }
+
+    @Test
+    public void testGetOnHeap() {
+        testGet(false);
+    }
+
+    @Test
+    public void testGetOffHeap() {
+        testGet(true);
+    }
+
+    @Test
+    public void testBytesOffHeap() {
+        DownloadCache cache = new DownloadCache(4 * BLOCK_SIZE, BLOCK_SIZE * 2, true);
+        cache.put("group1/M00/00/00/a.jpg", new byte[100]);
+        assertEquals(BLOCK_SIZE, cache.getBytes());
+        cache.put("group1/M00/00/00/b.jpg", new byte[BLOCK_SIZE + 1]);
+        assertEquals(3 * BLOCK_SIZE, cache.getBytes());
+
+        cache.put("group1/M00/00/00/a.jpg", new byte[BLOCK_SIZE * 2]);  //replaced
+        assertEquals(2, cache.getCount());
+        assertEquals(4 * BLOCK_SIZE, cache.getBytes());
+        assertEquals(0, cache.getEvictionCount());
+    }
+
+    private static void testEviction(boolean offHeap) {
+        //4 blocks, each content takes one block off heap
+        DownloadCache cache = new DownloadCache(4 * BLOCK_SIZE, BLOCK_SIZE, offHeap);
+        byte[][] contents = new byte[6][];
+        for (int i = 0; i < contents.length; i++) {
+            contents[i] = makeContent(offHeap ? 1000 : BLOCK_SIZE, i);
+        }
+
+        cache.put("group1/a", contents[0]);
+        cache.put("group1/b", contents[1]);
+        cache.put("group1/c", contents[2]);
+        cache.put("group1/d", contents[3]);
+        assertEquals(0, cache.getEvictionCount());
+
+        //a is hit again and promoted, b is the eldest of the probation segment
+        assertArrayEquals(contents[0], cache.get("group1/a", 0, 0));
+        cache.put("group1/e", contents[4]);
+        assertEquals(1, cache.getEvictionCount());
+        assertNull(cache.get("group1/b", 0, 0));
+        assertArrayEquals(contents[0], cache.get("group1/a", 0, 0));
+
+        cache.put("group1/f", contents[5]);
+        assertEquals(2, cache.getEvictionCount());
+        assertNull(cache.get("group1/c", 0, 0));
+        assertEquals(4, cache.getCount());
+
+        //the blocks of the evicted contents are reused without corrupting the others
+        assertArrayEquals(contents[0], cache.get("group1/a", 0, 0));
+        assertArrayEquals(contents[3], cache.get("group1/d", 0, 0));
+        assertArrayEquals(contents[4], cache.get("group1/e", 0, 0));
+        assertArrayEquals(contents[5], cache.get("group1/f", 0, 0));
+    }
+
+    @Test
+    public void testEvictionOnHeap() {
+        testEviction(false);
+    }
+
+    @Test
+    public void testEvictionOffHeap() {
+        testEviction(true);
+    }
+
+    @Test
+    public void testClearOffHeap() {
+        DownloadCache cache = new DownloadCache(2 * BLOCK_SIZE, BLOCK_SIZE, true);
+        for (int round = 0; round < 3; round++) {
+            byte[] a = makeContent(BLOCK_SIZE, round);
+            byte[] b = makeContent(BLOCK_SIZE, round + 10);
+            cache.put("group1/a", a);
+            cache.put("group1/b", b);
+            assertArrayEquals(a, cache.get("group1/a", 0, 0));
+            assertArrayEquals(b, cache.get("group1/b", 0, 0));
+            cache.clear();  //the blocks are reused, no block allocated beyond the max bytes
+            assertEquals(0, cache.getCount());
+            assertEquals(0, cache.getBytes());
+        }
+        assertEquals(0, cache.getEvictionCount());
+    }
+
+    @Test
+    public void testCacheable() throws IOException {
+        DownloadCache cache = new DownloadCache(BLOCK_SIZE, BLOCK_SIZE, false);
+        assertTrue(cache.isCacheable(FileIdDecoderTest.makeFilename(1, 100L, 0, "")));
+        assertFalse(cache.isCacheable(FileIdDecoderTest.makeFilename(1, ProtoCommon.APPENDER_FILE_SIZE | 100L, 0, "")));
+    }
+}
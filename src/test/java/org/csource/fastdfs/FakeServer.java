@@ -0,0 +1,194 @@
+package org.csource.fastdfs;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Fake tracker or storage server for the tests: reads the request packages of each connection
+ * in its own thread and answers them by the handler, QUIT closes the connection
+ */
+class FakeServer implements Runnable {
+    /**
+     * answer the requests
+     */
+    interface Handler {
+        /**
+         * answer the request
+         *
+         * @param connection the index of the connection, from 0
+         * @param cmd        the command of the request
+         * @param body       the body of the request
+         * @param out        the output stream of the connection
+         * @return false for no more answer, the connection is closed after the client closes it
+         */
+        boolean handle(int connection, byte cmd, byte[] body, OutputStream out) throws IOException;
+    }
+
+    private final ServerSocket serverSocket;
+    private final Handler handler;
+    private final AtomicInteger connectionCount = new AtomicInteger();
+    private final ConcurrentLinkedQueue<Byte> commands = new ConcurrentLinkedQueue<Byte>();
+    private final Set<Socket> sockets = Collections.synchronizedSet(new HashSet<Socket>());
+
+    FakeServer(Handler handler) throws IOException {
+        this(null, 0, handler);
+    }
+
+    /**
+     * the storage servers of a group share the port, they are bound to the loopback addresses
+     * such as 127.0.0.1 and 127.0.0.2
+     *
+     * @param bindAddr the address to bind, null for any
+     * @param port     the port, 0 for any free port
+     * @param handler  the handler of the requests
+     */
+    FakeServer(InetAddress bindAddr, int port, Handler handler) throws IOException {
+        this.serverSocket = new ServerSocket(port, 16, bindAddr);
+        this.handler = handler;
+        Thread thread = new Thread(this, "fake-server");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * write the response package
+     *
+     * @param out   the output stream
+     * @param errno the status of the response
+     * @param body  the body of the response, can be null
+     */
+    static void answer(OutputStream out, byte errno, byte[] body) throws IOException {
+        out.write(ProtoCommon.packHeader(ProtoCommon.STORAGE_PROTO_CMD_RESP, body != null ? body.length : 0, errno));
+        if (body != null) {
+            out.write(body);
+        }
+        out.flush();
+    }
+
+    InetSocketAddress getAddress() {
+        InetAddress addr = this.serverSocket.getInetAddress();
+        return new InetSocketAddress(addr.isAnyLocalAddress() ? "127.0.0.1" : addr.getHostAddress(),
+                this.serverSocket.getLocalPort());
+    }
+
+    int getConnectionCount() {
+        return this.connectionCount.get();
+    }
+
+    /**
+     * @return the count of the requests of the command received
+     */
+    int getRequestCount(byte cmd) {
+        int count = 0;
+        for (Byte command : this.commands) {
+            if (command == cmd) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public void run() {
+        try {
+            while (true) {
+                final Socket socket = this.serverSocket.accept();
+                final int index = this.connectionCount.getAndIncrement();
+                this.sockets.add(socket);
+                Thread thread = new Thread(new Runnable() {
+                    public void run() {
+                        try {
+                            serve(index, socket);
+                        } catch (IOException ex) {
+                            //closed by the client or the test
+                        } finally {
+                            sockets.remove(socket);
+                            try {
+                                socket.close();
+                            } catch (IOException ex) {
+                                ex.printStackTrace();
+                            }
+                        }
+                    }
+                }, "fake-server-" + index);
+                thread.setDaemon(true);
+                thread.start();
+            }
+        } catch (IOException ex) {
+            //closed by the test
+        }
+    }
+
+    private void serve(int index, Socket socket) throws IOException {
+        InputStream in = socket.getInputStream();
+        OutputStream out = socket.getOutputStream();
+        byte[] header = new byte[ProtoCommon.FDFS_PROTO_PKG_LEN_SIZE + 2];
+        while (true) {
+            if (!readFully(in, header)) {
+                return;  //closed by the client
+            }
+            byte cmd = header[ProtoCommon.PROTO_HEADER_CMD_INDEX];
+            if (cmd == ProtoCommon.FDFS_PROTO_CMD_QUIT) {
+                return;
+            }
+            byte[] body = new byte[(int) ProtoCommon.buff2long(header, 0)];
+            if (!readFully(in, body)) {
+                return;
+            }
+            this.commands.add(cmd);
+            if (!this.handler.handle(index, cmd, body, out)) {
+                break;
+            }
+        }
+
+        //no more answer, drain the requests until the client closes the connection
+        socket.shutdownOutput();
+        while (in.read(header) >= 0) {
+        }
+    }
+
+    /**
+     * @return false if the connection is closed before any byte read
+     */
+    private static boolean readFully(InputStream in, byte[] buff) throws IOException {
+        int done = 0;
+        while (done < buff.length) {
+            int bytes = in.read(buff, done, buff.length - done);
+            if (bytes < 0) {
+                if (done == 0) {
+                    return false;
+                }
+                throw new IOException("connection closed in the middle of a package");
+            }
+            done += bytes;
+        }
+        return true;
+    }
+
+    /**
+     * close the accepted connections, the server keeps accepting new ones
+     */
+    void closeConnections() throws IOException {
+        Socket[] all;
+        synchronized (this.sockets) {
+            all = this.sockets.toArray(new Socket[0]);
+        }
+        for (Socket socket : all) {
+            socket.close();
+        }
+    }
+
+    void close() throws IOException {
+        this.serverSocket.close();
+        this.closeConnections();
+    }
+}
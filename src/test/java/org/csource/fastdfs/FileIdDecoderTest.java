@@ -0,0 +1,140 @@
+package org.csource.fastdfs;
+
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * FileIdDecoder must decode the same fields as the base64 path of the original get_file_info
+ */
+public class FileIdDecoderTest {
+    private static final int IP_ADDR = (192 << 24) | (168 << 16) | (1 << 8) | 100;
+    private static final int TIMESTAMP = 1418000000;
+    private static final int CRC32 = 0x89ABCDEF;
+
+    /**
+     * make the filename as the storage server does: path, 27 chars of base64, 3 random chars and the ext name
+     */
+    private static String makeFilename(int ip, long size, String suffix) throws IOException {
+        return makeFilename(ip, size, CRC32, suffix);
+    }
+
+    static String makeFilename(int ip, long size, int crc32, String suffix) throws IOException {
+        byte[] buff = new byte[20];
+        putInt(buff, 0, ip);
+        putInt(buff, 4, TIMESTAMP);
+        System.arraycopy(ProtoCommon.long2buff(size), 0, buff, 8, 8);
+        putInt(buff, 16, crc32);
+        return "M00/00/1F/" + StorageClient.base64.encode(buff).substring(0, ProtoCommon.FDFS_FILENAME_BASE64_LENGTH)
+                + "abc" + suffix + ".jpg";
+    }
+
+    private static void putInt(byte[] buff, int offset, int n) {
+        buff[offset] = (byte) (n >>> 24);
+        buff[offset + 1] = (byte) (n >>> 16);
+        buff[offset + 2] = (byte) (n >>> 8);
+        buff[offset + 3] = (byte) n;
+    }
+
+    /**
+     * check the decoder against the base64 path
+     */
+    private static FileIdDecoder assertSameAsBase64(String filename) {
+        byte[] buff = StorageClient.base64.decodeAuto(filename.substring(ProtoCommon.FDFS_FILE_PATH_LEN,
+                ProtoCommon.FDFS_FILE_PATH_LEN + ProtoCommon.FDFS_FILENAME_BASE64_LENGTH));
+        long size = ProtoCommon.buff2long(buff, 8);
+
+        FileIdDecoder decoder = new FileIdDecoder();
+        assertTrue(decoder.decode(filename));
+        assertEquals(ProtoCommon.buff2int(buff, 0), decoder.getSourceIpAddrInt());
+        assertEquals(ProtoCommon.buff2int(buff, 4), decoder.getCreateTimestamp());
+        assertEquals(ProtoCommon.buff2int(buff, 16), decoder.getCrc32());
+        assertEquals((size >> 63) != 0 ? size & 0xFFFFFFFFL : size, decoder.getFileSize());
+        assertEquals((size & ProtoCommon.APPENDER_FILE_SIZE) != 0, decoder.isAppenderFile());
+        assertEquals(filename.length() > ProtoCommon.TRUNK_LOGIC_FILENAME_LENGTH
+                        || (filename.length() > ProtoCommon.NORMAL_LOGIC_FILENAME_LENGTH && (size & ProtoCommon.TRUNK_FILE_MARK_SIZE) == 0),
+                decoder.isSlaveFile());
+        return decoder;
+    }
+
+    @Test
+    public void testNormalFile() throws IOException {
+        String filename = makeFilename(IP_ADDR, 123456L, "");
+        assertEquals(ProtoCommon.NORMAL_LOGIC_FILENAME_LENGTH, filename.length());
+
+        FileIdDecoder decoder = assertSameAsBase64(filename);
+        assertTrue(decoder.isInfoReliable());
+        assertEquals("192.168.1.100", decoder.getSourceIpAddr());
+        assertEquals(123456L, decoder.getFileSize());
+
+        FileInfo fileInfo = StorageClient.decodeFileInfo(filename);
+        assertEquals(123456L, fileInfo.getFileSize());
+        assertEquals(CRC32, fileInfo.getCrc32());
+        assertEquals("192.168.1.100", fileInfo.getSourceIpAddr());
+    }
+
+    @Test
+    public void testStorageId() throws IOException {
+        FileIdDecoder decoder = assertSameAsBase64(makeFilename(100001, 10L, ""));
+        assertEquals(100001, decoder.getSourceIpAddrInt());
+        assertEquals("", decoder.getSourceIpAddr());
+    }
+
+    @Test
+    public void testAppenderFile() throws IOException {
+        String filename = makeFilename(IP_ADDR, ProtoCommon.APPENDER_FILE_SIZE | 0x55AAL, "");
+        FileIdDecoder decoder = assertSameAsBase64(filename);
+        assertTrue(decoder.isAppenderFile());
+        assertFalse(decoder.isInfoReliable());
+        assertNull(StorageClient.decodeFileInfo(filename));
+    }
+
+    @Test
+    public void testSlaveFile() throws IOException {
+        String filename = makeFilename(IP_ADDR, 2048L, "_150x150");
+        FileIdDecoder decoder = assertSameAsBase64(filename);
+        assertTrue(decoder.isSlaveFile());
+        assertFalse(decoder.isInfoReliable());
+        assertNull(StorageClient.decodeFileInfo(filename));
+    }
+
+    @Test
+    public void testTrunkFile() throws IOException {
+        String filename = makeFilename(IP_ADDR, ProtoCommon.TRUNK_FILE_MARK_SIZE | 4096L, "0123456789ABCDEF");
+        assertEquals(ProtoCommon.TRUNK_LOGIC_FILENAME_LENGTH, filename.length());
+
+        FileIdDecoder decoder = assertSameAsBase64(filename);
+        assertFalse(decoder.isSlaveFile());
+        assertTrue(decoder.isInfoReliable());
+    }
+
+    @Test
+    public void testHighBitSize() throws IOException {
+        FileIdDecoder decoder = assertSameAsBase64(makeFilename(IP_ADDR, Long.MIN_VALUE | (0x1234L << 32) | 4096L, ""));
+        assertEquals(4096L, decoder.getFileSize());
+    }
+
+    @Test
+    public void testFileId() throws IOException {
+        String filename = makeFilename(IP_ADDR, 99L, "");
+        FileIdDecoder decoder = new FileIdDecoder();
+        assertTrue(decoder.decode1("group1/" + filename));
+        assertEquals(99L, decoder.getFileSize());
+        assertFalse(decoder.decode1(filename.substring(ProtoCommon.FDFS_FILE_PATH_LEN)));
+    }
+
+    @Test
+    public void testInvalidFilename() throws IOException {
+        FileIdDecoder decoder = new FileIdDecoder();
+        assertFalse(decoder.decode("M00/00/00/short.jpg"));
+
+        String filename = makeFilename(IP_ADDR, 99L, "");
+        int pos = ProtoCommon.FDFS_FILE_PATH_LEN + 5;
+        assertFalse(decoder.decode(filename.substring(0, pos) + '*' + filename.substring(pos + 1)));
+    }
+}
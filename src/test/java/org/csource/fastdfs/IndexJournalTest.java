@@ -0,0 +1,102 @@
+package org.csource.fastdfs;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * IndexJournal: the replay of the records, the compaction and no record after closed
+ */
+public class IndexJournalTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static Map<String, String> load(File file) throws IOException {
+        final Map<String, String> entries = new LinkedHashMap<String, String>();
+        new IndexJournal(file, entries).load(new IndexJournal.Replayer() {
+            public void put(String key, String value) {
+                entries.put(key, value);
+            }
+
+            public void remove(String key) {
+                entries.remove(key);
+            }
+        });
+        return entries;
+    }
+
+    @Test
+    public void testReplay() throws IOException {
+        File file = new File(this.folder.getRoot(), "index");
+        Map<String, String> entries = new LinkedHashMap<String, String>();
+        IndexJournal journal = new IndexJournal(file, entries);
+        assertEquals(0, load(file).size());
+        journal.compact();
+        assertTrue(file.exists());
+
+        entries.put("a", "1");
+        journal.put("a", 1);
+        entries.put("b", "2");
+        journal.put("b", 2);
+        entries.remove("a");
+        journal.remove("a");
+        journal.close();
+        assertEquals(3, Files.readAllLines(file.toPath()).size());
+
+        Map<String, String> loaded = load(file);
+        assertEquals(1, loaded.size());
+        assertEquals("2", loaded.get("b"));
+
+        //the broken lines are skipped
+        Files.write(file.toPath(), "+ a\n- \n+ c 3\nbad\n".getBytes("UTF-8"));
+        loaded = load(file);
+        assertEquals(1, loaded.size());
+        assertEquals("3", loaded.get("c"));
+    }
+
+    @Test
+    public void testCompact() throws IOException {
+        File file = new File(this.folder.getRoot(), "index");
+        Map<String, String> entries = new LinkedHashMap<String, String>();
+        IndexJournal journal = new IndexJournal(file, entries);
+        journal.compact();
+        entries.put("k", "v");
+        for (int i = 0; i < 2000; i++) {
+            journal.put("k", "v");
+        }
+        journal.close();
+
+        List<String> lines = Files.readAllLines(file.toPath());
+        assertTrue("lines: " + lines.size(), lines.size() <= 1024 + 3);
+        assertEquals("v", load(file).get("k"));
+    }
+
+    @Test
+    public void testClosed() throws IOException {
+        File file = new File(this.folder.getRoot(), "index");
+        Map<String, String> entries = new LinkedHashMap<String, String>();
+        IndexJournal journal = new IndexJournal(file, entries);
+        journal.compact();
+        for (int i = 0; i < 1025; i++) {  //the next change is compacted, the entries are empty
+            journal.put("k", "v");
+        }
+        journal.close();
+        long length = file.length();
+
+        journal.put("k2", "v2");
+        journal.remove("k");
+        journal.compact();
+        assertEquals(length, file.length());
+        assertTrue(load(file).containsKey("k"));
+    }
+}
@@ -0,0 +1,203 @@
+package org.csource.fastdfs;
+
+import org.csource.common.NameValuePair;
+import org.junit.After;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * ProtoCodec encoders must produce the same bytes as the packages built by ProtoCommon.packHeader
+ * and System.arraycopy before
+ */
+public class ProtoCodecTest {
+    private static final String GROUP = "group1";
+    private static final String FILENAME = "M00/00/00/wKgBAVxyz12AAAAAAAAAAA.jpg";
+
+    @BeforeClass
+    public static void init() {
+        ClientGlobal.G_CHARSET = "ISO8859-1";
+    }
+
+    @After
+    public void tearDown() {
+        ClientGlobal.G_CHARSET = "ISO8859-1";
+    }
+
+    /**
+     * the package built the old way: the header then the body parts
+     */
+    private static byte[] pack(byte cmd, long contentLength, byte[]... parts) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            body.write(part);
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(ProtoCommon.packHeader(cmd, body.size() + contentLength, (byte) 0));
+        body.writeTo(out);
+        return out.toByteArray();
+    }
+
+    private static byte[] fixed(String s, int fixedLength) throws IOException {
+        byte[] bs = new byte[fixedLength];
+        byte[] src = s.getBytes(ClientGlobal.G_CHARSET);
+        System.arraycopy(src, 0, bs, 0, Math.min(src.length, fixedLength));
+        return bs;
+    }
+
+    private static byte[] bytes(String s) throws IOException {
+        return s.getBytes(ClientGlobal.G_CHARSET);
+    }
+
+    @Test
+    public void testGroupName() throws IOException {
+        assertArrayEquals(fixed(GROUP, ProtoCommon.FDFS_GROUP_NAME_MAX_LEN), ProtoCodec.packGroupName(GROUP));
+        String tooLong = "group1234567890abcdef";
+        assertArrayEquals(fixed(tooLong, ProtoCommon.FDFS_GROUP_NAME_MAX_LEN), ProtoCodec.packGroupName(tooLong));
+    }
+
+    @Test
+    public void testQueryStore() throws IOException {
+        assertArrayEquals(pack(ProtoCommon.TRACKER_PROTO_CMD_SERVICE_QUERY_STORE_WITHOUT_GROUP_ONE, 0),
+                ProtoCodec.packQueryStore(null));
+        assertArrayEquals(pack(ProtoCommon.TRACKER_PROTO_CMD_SERVICE_QUERY_STORE_WITHOUT_GROUP_ONE, 0),
+                ProtoCodec.packQueryStore(""));
+        assertArrayEquals(pack(ProtoCommon.TRACKER_PROTO_CMD_SERVICE_QUERY_STORE_WITH_GROUP_ONE, 0,
+                        fixed(GROUP, ProtoCommon.FDFS_GROUP_NAME_MAX_LEN)),
+                ProtoCodec.packQueryStore(GROUP));
+    }
+
+    @Test
+    public void testFileCommand() throws IOException {
+        byte[] cmds = {ProtoCommon.TRACKER_PROTO_CMD_SERVICE_QUERY_FETCH_ONE,
+                ProtoCommon.STORAGE_PROTO_CMD_DELETE_FILE,
+                ProtoCommon.STORAGE_PROTO_CMD_GET_METADATA,
+                ProtoCommon.STORAGE_PROTO_CMD_QUERY_FILE_INFO};
+        for (byte cmd : cmds) {
+            assertArrayEquals(pack(cmd, 0, fixed(GROUP, ProtoCommon.FDFS_GROUP_NAME_MAX_LEN), bytes(FILENAME)),
+                    ProtoCodec.packFileCommand(cmd, GROUP, FILENAME));
+        }
+    }
+
+    @Test
+    public void testUpload() throws IOException {
+        long fileSize = 123456789L;
+        byte[] expected = pack(ProtoCommon.STORAGE_PROTO_CMD_UPLOAD_FILE, fileSize,
+                new byte[]{2},
+                ProtoCommon.long2buff(fileSize),
+                fixed("jpg", ProtoCommon.FDFS_FILE_EXT_NAME_MAX_LEN));
+        assertArrayEquals(expected, ProtoCodec.packUpload(ProtoCommon.STORAGE_PROTO_CMD_UPLOAD_FILE,
+                2, null, null, "jpg", fileSize));
+
+        //no ext name, ext name too long
+        expected = pack(ProtoCommon.STORAGE_PROTO_CMD_UPLOAD_APPENDER_FILE, 0,
+                new byte[]{0},
+                ProtoCommon.long2buff(0),
+                new byte[ProtoCommon.FDFS_FILE_EXT_NAME_MAX_LEN]);
+        assertArrayEquals(expected, ProtoCodec.packUpload(ProtoCommon.STORAGE_PROTO_CMD_UPLOAD_APPENDER_FILE,
+                0, null, null, null, 0));
+        expected = pack(ProtoCommon.STORAGE_PROTO_CMD_UPLOAD_FILE, 10,
+                new byte[]{0},
+                ProtoCommon.long2buff(10),
+                fixed("tar.gz.bak", ProtoCommon.FDFS_FILE_EXT_NAME_MAX_LEN));
+        assertArrayEquals(expected, ProtoCodec.packUpload(ProtoCommon.STORAGE_PROTO_CMD_UPLOAD_FILE,
+                0, null, null, "tar.gz.bak", 10));
+    }
+
+    @Test
+    public void testUploadSlave() throws IOException {
+        long fileSize = 1024;
+        byte[] expected = pack(ProtoCommon.STORAGE_PROTO_CMD_UPLOAD_SLAVE_FILE, fileSize,
+                ProtoCommon.long2buff(FILENAME.length()),
+                ProtoCommon.long2buff(fileSize),
+                fixed("_150x150", ProtoCommon.FDFS_FILE_PREFIX_MAX_LEN),
+                fixed("jpg", ProtoCommon.FDFS_FILE_EXT_NAME_MAX_LEN),
+                bytes(FILENAME));
+        assertArrayEquals(expected, ProtoCodec.packUpload(ProtoCommon.STORAGE_PROTO_CMD_UPLOAD_SLAVE_FILE,
+                0, FILENAME, "_150x150", "jpg", fileSize));
+    }
+
+    @Test
+    public void testAppenderCommands() throws IOException {
+        assertArrayEquals(pack(ProtoCommon.STORAGE_PROTO_CMD_APPEND_FILE, 4096,
+                        ProtoCommon.long2buff(FILENAME.length()),
+                        ProtoCommon.long2buff(4096),
+                        bytes(FILENAME)),
+                ProtoCodec.packAppend(FILENAME, 4096));
+
+        assertArrayEquals(pack(ProtoCommon.STORAGE_PROTO_CMD_MODIFY_FILE, 100,
+                        ProtoCommon.long2buff(FILENAME.length()),
+                        ProtoCommon.long2buff(8192),
+                        ProtoCommon.long2buff(100),
+                        bytes(FILENAME)),
+                ProtoCodec.packModify(FILENAME, 8192, 100));
+
+        assertArrayEquals(pack(ProtoCommon.STORAGE_PROTO_CMD_TRUNCATE_FILE, 0,
+                        ProtoCommon.long2buff(FILENAME.length()),
+                        ProtoCommon.long2buff(512),
+                        bytes(FILENAME)),
+                ProtoCodec.packTruncate(FILENAME, 512));
+    }
+
+    @Test
+    public void testDownload() throws IOException {
+        assertArrayEquals(pack(ProtoCommon.STORAGE_PROTO_CMD_DOWNLOAD_FILE, 0,
+                        ProtoCommon.long2buff(1000),
+                        ProtoCommon.long2buff(0),
+                        fixed(GROUP, ProtoCommon.FDFS_GROUP_NAME_MAX_LEN),
+                        bytes(FILENAME)),
+                ProtoCodec.packDownload(GROUP, FILENAME, 1000, 0));
+    }
+
+    @Test
+    public void testSetMetadata() throws IOException {
+        NameValuePair[] metaList = {new NameValuePair("width", "120"), new NameValuePair("author", "fish")};
+        byte[] metaBuff = bytes(ProtoCommon.pack_metadata(metaList));
+        assertArrayEquals(pack(ProtoCommon.STORAGE_PROTO_CMD_SET_METADATA, 0,
+                        ProtoCommon.long2buff(bytes(FILENAME).length),
+                        ProtoCommon.long2buff(metaBuff.length),
+                        new byte[]{ProtoCommon.STORAGE_SET_METADATA_FLAG_MERGE},
+                        fixed(GROUP, ProtoCommon.FDFS_GROUP_NAME_MAX_LEN),
+                        bytes(FILENAME),
+                        metaBuff),
+                ProtoCodec.packSetMetadata(GROUP, FILENAME, metaList, ProtoCommon.STORAGE_SET_METADATA_FLAG_MERGE));
+
+        assertArrayEquals(pack(ProtoCommon.STORAGE_PROTO_CMD_SET_METADATA, 0,
+                        ProtoCommon.long2buff(bytes(FILENAME).length),
+                        ProtoCommon.long2buff(0),
+                        new byte[]{ProtoCommon.STORAGE_SET_METADATA_FLAG_OVERWRITE},
+                        fixed(GROUP, ProtoCommon.FDFS_GROUP_NAME_MAX_LEN),
+                        bytes(FILENAME)),
+                ProtoCodec.packSetMetadata(GROUP, FILENAME, null, ProtoCommon.STORAGE_SET_METADATA_FLAG_OVERWRITE));
+    }
+
+    @Test
+    public void testNonAsciiCharset() throws IOException {
+        ClientGlobal.G_CHARSET = "UTF-8";
+        String filename = "M00/00/00/中文.txt";
+        assertArrayEquals(pack(ProtoCommon.STORAGE_PROTO_CMD_DELETE_FILE, 0,
+                        fixed(GROUP, ProtoCommon.FDFS_GROUP_NAME_MAX_LEN), bytes(filename)),
+                ProtoCodec.packFileCommand(ProtoCommon.STORAGE_PROTO_CMD_DELETE_FILE, GROUP, filename));
+
+        ClientGlobal.G_CHARSET = "UTF-16";  //not ASCII compatible
+        assertArrayEquals(pack(ProtoCommon.STORAGE_PROTO_CMD_DELETE_FILE, 0,
+                        fixed(GROUP, ProtoCommon.FDFS_GROUP_NAME_MAX_LEN), bytes(FILENAME)),
+                ProtoCodec.packFileCommand(ProtoCommon.STORAGE_PROTO_CMD_DELETE_FILE, GROUP, FILENAME));
+    }
+
+    @Test
+    public void testReusedCodec() throws IOException {
+        //the thread local codec encodes a short package after a long one
+        ProtoCodec codec = ProtoCodec.get();
+        codec.encodeUpload(ProtoCommon.STORAGE_PROTO_CMD_UPLOAD_SLAVE_FILE, 0, FILENAME, "_big", "jpg", 10);
+        codec.encodeQueryStore(GROUP);
+        byte[] expected = ProtoCodec.packQueryStore(GROUP);
+        assertEquals(expected.length, codec.length());
+        assertArrayEquals(expected, codec.toByteArray());
+    }
+}
@@ -0,0 +1,186 @@
+package org.csource.fastdfs;
+
+import org.junit.After;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * StorageClient.download_resumable_file against a fake storage server: the download broken
+ * in the middle continues from the offset of the checkpoint
+ */
+public class ResumableDownloadTest {
+    private static final String GROUP = "group1";
+    private static final int FILE_SIZE = 100000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final byte[] content = new byte[FILE_SIZE];
+    private final List<Long> offsets = new CopyOnWriteArrayList<Long>();
+    private FakeServer server;
+    private String remoteFileName;
+
+    @BeforeClass
+    public static void init() {
+        ClientGlobal.G_CONNECT_TIMEOUT = 5000;
+        ClientGlobal.G_NETWORK_TIMEOUT = 5000;
+        ClientGlobal.G_CHARSET = "ISO8859-1";
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (this.server != null) {
+            this.server.close();
+        }
+    }
+
+    /**
+     * start the storage server, the connections before brokenCount send sentBytes of the content then break
+     */
+    private void startServer(final int brokenCount, final int sentBytes) throws IOException {
+        new Random(1).nextBytes(this.content);
+        CRC32 crc32 = new CRC32();
+        crc32.update(this.content);
+        this.remoteFileName = FileIdDecoderTest.makeFilename(0x7F000001, FILE_SIZE, (int) crc32.getValue(), "");
+
+        this.server = new FakeServer(new FakeServer.Handler() {
+            public boolean handle(int connection, byte cmd, byte[] body, OutputStream out) throws IOException {
+                long offset = ProtoCommon.buff2long(body, 0);
+                offsets.add(offset);
+                int length = FILE_SIZE - (int) offset;
+                out.write(ProtoCommon.packHeader(ProtoCommon.STORAGE_PROTO_CMD_RESP, length, (byte) 0));
+                if (connection < brokenCount) {
+                    out.write(content, (int) offset, sentBytes);
+                    out.flush();
+                    return false;
+                }
+                out.write(content, (int) offset, length);
+                out.flush();
+                return true;
+            }
+        });
+    }
+
+    private int download(String localFileName) throws Exception {
+        StorageServer storageServer = new StorageServer("127.0.0.1", this.server.getAddress().getPort(), 0);
+        try {
+            return new StorageClient(null, storageServer).download_resumable_file(GROUP, this.remoteFileName,
+                    localFileName);
+        } finally {
+            storageServer.close();
+        }
+    }
+
+    private void assertDownloadBroken(String localFileName) throws Exception {
+        try {
+            this.download(localFileName);
+            fail("the broken download must throw");
+        } catch (IOException ex) {
+            //expected
+        }
+    }
+
+    @Test
+    public void testResume() throws Exception {
+        startServer(1, 40000);
+        String localFileName = new File(this.folder.getRoot(), "a.jpg").getPath();
+        File checkpointFile = new File(localFileName + ResumableDownload.CHECKPOINT_FILE_SUFFIX);
+
+        assertDownloadBroken(localFileName);
+        assertEquals(40000, new File(localFileName).length());
+        assertTrue(checkpointFile.exists());
+
+        assertEquals(0, download(localFileName));
+        assertEquals(2, this.offsets.size());
+        assertEquals(0L, (long) this.offsets.get(0));
+        assertEquals(40000L, (long) this.offsets.get(1));
+        assertArrayEquals(this.content, Files.readAllBytes(new File(localFileName).toPath()));
+        assertFalse(checkpointFile.exists());
+    }
+
+    @Test
+    public void testResumeTwice() throws Exception {
+        startServer(2, 30000);
+        String localFileName = new File(this.folder.getRoot(), "a.jpg").getPath();
+
+        assertDownloadBroken(localFileName);
+        assertDownloadBroken(localFileName);
+        assertEquals(60000, new File(localFileName).length());
+
+        assertEquals(0, download(localFileName));
+        assertEquals(60000L, (long) this.offsets.get(2));
+        assertArrayEquals(this.content, Files.readAllBytes(new File(localFileName).toPath()));
+    }
+
+    @Test
+    public void testContentAfterCheckpointDiscarded() throws Exception {
+        startServer(1, 40000);
+        String localFileName = new File(this.folder.getRoot(), "a.jpg").getPath();
+        assertDownloadBroken(localFileName);
+
+        //written after the checkpoint saved, not synced
+        RandomAccessFile file = new RandomAccessFile(localFileName, "rw");
+        try {
+            file.seek(40000);
+            file.write(new byte[1000]);
+        } finally {
+            file.close();
+        }
+
+        assertEquals(0, download(localFileName));
+        assertEquals(40000L, (long) this.offsets.get(1));
+        assertArrayEquals(this.content, Files.readAllBytes(new File(localFileName).toPath()));
+    }
+
+    @Test
+    public void testPartialFileCorrupted() throws Exception {
+        startServer(1, 40000);
+        String localFileName = new File(this.folder.getRoot(), "a.jpg").getPath();
+        File checkpointFile = new File(localFileName + ResumableDownload.CHECKPOINT_FILE_SUFFIX);
+        assertDownloadBroken(localFileName);
+
+        RandomAccessFile file = new RandomAccessFile(localFileName, "rw");
+        try {
+            file.seek(100);
+            file.write(~this.content[100]);
+        } finally {
+            file.close();
+        }
+
+        //the crc32 of the whole file does not match
+        assertDownloadBroken(localFileName);
+        assertFalse(new File(localFileName).exists());
+        assertFalse(checkpointFile.exists());
+
+        assertEquals(0, download(localFileName));
+        assertEquals(0L, (long) this.offsets.get(2));
+        assertArrayEquals(this.content, Files.readAllBytes(new File(localFileName).toPath()));
+    }
+
+    @Test
+    public void testNothingReceived() throws Exception {
+        startServer(1, 0);
+        String localFileName = new File(this.folder.getRoot(), "a.jpg").getPath();
+        assertDownloadBroken(localFileName);
+        assertFalse(new File(localFileName).exists());
+        assertFalse(new File(localFileName + ResumableDownload.CHECKPOINT_FILE_SUFFIX).exists());
+    }
+}
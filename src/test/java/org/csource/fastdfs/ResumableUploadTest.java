@@ -0,0 +1,215 @@
+package org.csource.fastdfs;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * StorageClient.upload_resumable_file against a fake storage server holding the appender file:
+ * the upload failed in the middle continues from the file size queried from the storage server
+ */
+public class ResumableUploadTest {
+    private static final String GROUP = "group1";
+    private static final String APPENDER_FILENAME = "M00/00/00/wKgBAVxyz12EAAAAAAAAAA.jpg";
+    private static final String NORMAL_FILENAME = "M00/00/00/wKgBAVxyz12AAAAAAAAAAA.jpg";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final ByteArrayOutputStream stored = new ByteArrayOutputStream();  //the appender file
+    private final List<Long> appendSizes = new CopyOnWriteArrayList<Long>();
+    private volatile int failAppendIndex = -1;  //the append request answered EIO
+    private volatile boolean fileGone;
+    private FakeServer server;
+
+    @BeforeClass
+    public static void init() {
+        ClientGlobal.G_CONNECT_TIMEOUT = 5000;
+        ClientGlobal.G_NETWORK_TIMEOUT = 5000;
+        ClientGlobal.G_CHARSET = "ISO8859-1";
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        this.server = new FakeServer(new FakeServer.Handler() {
+            public boolean handle(int connection, byte cmd, byte[] body, OutputStream out) throws IOException {
+                synchronized (stored) {
+                    return serve(cmd, body, out);
+                }
+            }
+        });
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        this.server.close();
+    }
+
+    private boolean serve(byte cmd, byte[] body, OutputStream out) throws IOException {
+        int headLength;
+        switch (cmd) {
+            case ProtoCommon.STORAGE_PROTO_CMD_UPLOAD_APPENDER_FILE:
+                headLength = 1 + ProtoCommon.FDFS_PROTO_PKG_LEN_SIZE + ProtoCommon.FDFS_FILE_EXT_NAME_MAX_LEN;
+                this.stored.reset();
+                this.stored.write(body, headLength, body.length - headLength);
+                this.fileGone = false;
+                FakeServer.answer(out, (byte) 0, packResult(APPENDER_FILENAME));
+                return true;
+            case ProtoCommon.STORAGE_PROTO_CMD_APPEND_FILE:
+                long size = ProtoCommon.buff2long(body, ProtoCommon.FDFS_PROTO_PKG_LEN_SIZE);
+                int index = this.appendSizes.size();
+                this.appendSizes.add(size);
+                if (index == this.failAppendIndex) {
+                    FakeServer.answer(out, ProtoCommon.ERR_NO_EIO, null);
+                    return true;
+                }
+                this.stored.write(body, body.length - (int) size, (int) size);
+                FakeServer.answer(out, (byte) 0, null);
+                return true;
+            case ProtoCommon.STORAGE_PROTO_CMD_QUERY_FILE_INFO:
+                if (this.fileGone) {
+                    FakeServer.answer(out, ProtoCommon.ERR_NO_ENOENT, null);
+                    return true;
+                }
+                byte[] fileInfo = new byte[ProtoCodec.getFileInfoBodyLength()];
+                System.arraycopy(ProtoCommon.long2buff(this.stored.size()), 0, fileInfo, 0, 8);
+                FakeServer.answer(out, (byte) 0, fileInfo);
+                return true;
+            case ProtoCommon.STORAGE_PROTO_CMD_REGENERATE_APPENDER_FILENAME:
+                FakeServer.answer(out, (byte) 0, packResult(NORMAL_FILENAME));
+                return true;
+            default:
+                FakeServer.answer(out, ProtoCommon.ERR_NO_EINVAL, null);
+                return true;
+        }
+    }
+
+    private static byte[] packResult(String filename) throws IOException {
+        byte[] name = filename.getBytes(ClientGlobal.G_CHARSET);
+        byte[] body = new byte[ProtoCommon.FDFS_GROUP_NAME_MAX_LEN + name.length];
+        System.arraycopy(ProtoCodec.packGroupName(GROUP), 0, body, 0, ProtoCommon.FDFS_GROUP_NAME_MAX_LEN);
+        System.arraycopy(name, 0, body, ProtoCommon.FDFS_GROUP_NAME_MAX_LEN, name.length);
+        return body;
+    }
+
+    private File makeLocalFile(int size) throws IOException {
+        byte[] content = new byte[size];
+        new Random(size).nextBytes(content);
+        File file = this.folder.newFile("a.jpg");
+        Files.write(file.toPath(), content);
+        return file;
+    }
+
+    private String[] upload(File localFile, boolean toNormalFile) throws Exception {
+        StorageServer storageServer = new StorageServer("127.0.0.1", this.server.getAddress().getPort(), 0);
+        try {
+            return new StorageClient(null, storageServer).upload_resumable_file(GROUP, localFile.getPath(), null,
+                    null, localFile.getPath() + ResumableUpload.CHECKPOINT_FILE_SUFFIX, toNormalFile);
+        } finally {
+            storageServer.close();
+        }
+    }
+
+    private byte[] getStored() {
+        synchronized (this.stored) {
+            return this.stored.toByteArray();
+        }
+    }
+
+    @Test
+    public void testResume() throws Exception {
+        File localFile = makeLocalFile(2 * ResumableUpload.CHUNK_SIZE + 1000);
+        File checkpointFile = new File(localFile.getPath() + ResumableUpload.CHECKPOINT_FILE_SUFFIX);
+        this.failAppendIndex = 1;
+        assertNull(upload(localFile, false));
+        assertTrue(checkpointFile.exists());
+        assertEquals(2 * ResumableUpload.CHUNK_SIZE, getStored().length);
+
+        String[] results = upload(localFile, false);
+        assertNotNull(results);
+        assertEquals(GROUP, results[0]);
+        assertEquals(APPENDER_FILENAME, results[1]);
+        assertEquals(1, this.server.getRequestCount(ProtoCommon.STORAGE_PROTO_CMD_UPLOAD_APPENDER_FILE));
+        assertEquals(1, this.server.getRequestCount(ProtoCommon.STORAGE_PROTO_CMD_QUERY_FILE_INFO));
+        assertEquals(Arrays.asList((long) ResumableUpload.CHUNK_SIZE, 1000L, 1000L), this.appendSizes);
+        assertArrayEquals(Files.readAllBytes(localFile.toPath()), getStored());
+        assertFalse(checkpointFile.exists());
+    }
+
+    @Test
+    public void testResumeFromStorageSize() throws Exception {
+        File localFile = makeLocalFile(2 * ResumableUpload.CHUNK_SIZE + 1000);
+        this.failAppendIndex = 1;
+        assertNull(upload(localFile, false));
+
+        //the storage server holds less than the checkpoint offset, e.g. restored from a replica
+        synchronized (this.stored) {
+            byte[] head = Arrays.copyOf(this.stored.toByteArray(), 3000);
+            this.stored.reset();
+            this.stored.write(head);
+        }
+        assertNotNull(upload(localFile, true));
+        assertEquals(2 * ResumableUpload.CHUNK_SIZE + 1000 - 3000, (long) this.appendSizes.get(2)
+                + this.appendSizes.get(3));
+        assertArrayEquals(Files.readAllBytes(localFile.toPath()), getStored());
+    }
+
+    @Test
+    public void testAppenderFileGone() throws Exception {
+        File localFile = makeLocalFile(ResumableUpload.CHUNK_SIZE + 1000);
+        this.failAppendIndex = 0;
+        assertNull(upload(localFile, false));
+        this.fileGone = true;
+
+        assertNotNull(upload(localFile, false));
+        assertEquals(2, this.server.getRequestCount(ProtoCommon.STORAGE_PROTO_CMD_UPLOAD_APPENDER_FILE));
+        assertArrayEquals(Files.readAllBytes(localFile.toPath()), getStored());
+    }
+
+    @Test
+    public void testLocalFileChanged() throws Exception {
+        File localFile = makeLocalFile(ResumableUpload.CHUNK_SIZE + 1000);
+        this.failAppendIndex = 0;
+        assertNull(upload(localFile, false));
+
+        byte[] content = new byte[ResumableUpload.CHUNK_SIZE + 2000];
+        new Random(2).nextBytes(content);
+        Files.write(localFile.toPath(), content);
+
+        assertNotNull(upload(localFile, false));
+        assertEquals(0, this.server.getRequestCount(ProtoCommon.STORAGE_PROTO_CMD_QUERY_FILE_INFO));
+        assertEquals(2, this.server.getRequestCount(ProtoCommon.STORAGE_PROTO_CMD_UPLOAD_APPENDER_FILE));
+        assertArrayEquals(content, getStored());
+    }
+
+    @Test
+    public void testToNormalFile() throws Exception {
+        File localFile = makeLocalFile(1000);
+        String[] results = upload(localFile, true);
+        assertNotNull(results);
+        assertEquals(NORMAL_FILENAME, results[1]);
+        assertEquals(0, this.appendSizes.size());
+        assertArrayEquals(Files.readAllBytes(localFile.toPath()), getStored());
+        assertFalse(new File(localFile.getPath() + ResumableUpload.CHECKPOINT_FILE_SUFFIX).exists());
+    }
+}
@@ -0,0 +1,159 @@
+package org.csource.fastdfs;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * RouteCache must keep the reverse index of the servers in step with the cached routes
+ */
+public class RouteCacheTest {
+    private static final byte FETCH_ONE = ProtoCommon.TRACKER_PROTO_CMD_SERVICE_QUERY_FETCH_ONE;
+    private static final byte FETCH_ALL = ProtoCommon.TRACKER_PROTO_CMD_SERVICE_QUERY_FETCH_ALL;
+    private static final byte UPDATE = ProtoCommon.TRACKER_PROTO_CMD_SERVICE_QUERY_UPDATE;
+
+    private static final ServerInfo SERVER_A = new ServerInfo("192.168.1.1", 23000);
+    private static final ServerInfo SERVER_B = new ServerInfo("192.168.1.2", 23000);
+    private static final ServerInfo SERVER_C = new ServerInfo("192.168.1.3", 23000);
+
+    @Test
+    public void testQueryCmd() {
+        assertEquals(FETCH_ALL, RouteCache.getQueryCmd(FETCH_ONE));
+        assertEquals(FETCH_ALL, RouteCache.getQueryCmd(FETCH_ALL));
+        assertEquals(UPDATE, RouteCache.getQueryCmd(UPDATE));
+    }
+
+    @Test
+    public void testFetchOneNotCached() {
+        RouteCache cache = new RouteCache(16, 60000);
+        cache.put(FETCH_ONE, "group1", "M00/00/00/a.jpg", new ServerInfo[]{SERVER_A});
+        assertEquals(0, cache.size());
+        assertNull(cache.get(FETCH_ONE, "group1", "M00/00/00/a.jpg"));
+        assertNull(cache.get(FETCH_ALL, "group1", "M00/00/00/a.jpg"));
+    }
+
+    @Test
+    public void testGetCopy() {
+        RouteCache cache = new RouteCache(16, 60000);
+        ServerInfo[] servers = {SERVER_A, SERVER_B};
+        cache.put(FETCH_ALL, "group1", "M00/00/00/a.jpg", servers);
+        servers[0] = SERVER_C;
+
+        ServerInfo[] cached = cache.get(FETCH_ALL, "group1", "M00/00/00/a.jpg");
+        assertNotNull(cached);
+        assertEquals(SERVER_A, cached[0]);
+        cached[0] = SERVER_C;
+        assertEquals(SERVER_A, cache.get(FETCH_ALL, "group1", "M00/00/00/a.jpg")[0]);
+        assertNull(cache.get(UPDATE, "group1", "M00/00/00/a.jpg"));
+        assertEquals(2, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+    }
+
+    @Test
+    public void testExpire() throws InterruptedException {
+        RouteCache cache = new RouteCache(16, 50);
+        cache.put(FETCH_ALL, "group1", "M00/00/00/a.jpg", new ServerInfo[]{SERVER_A});
+        Thread.sleep(100);
+        assertNull(cache.get(FETCH_ALL, "group1", "M00/00/00/a.jpg"));
+        assertEquals(0, cache.size());
+
+        //the expired route is unindexed, the new route of the key is kept
+        cache = new RouteCache(16, 50);
+        cache.put(FETCH_ALL, "group1", "M00/00/00/a.jpg", new ServerInfo[]{SERVER_A});
+        Thread.sleep(100);
+        assertNull(cache.get(FETCH_ALL, "group1", "M00/00/00/a.jpg"));
+        cache.put(FETCH_ALL, "group1", "M00/00/00/a.jpg", new ServerInfo[]{SERVER_B});
+        cache.removeServer(SERVER_A.getIpAddr(), SERVER_A.getPort());
+        assertNotNull(cache.get(FETCH_ALL, "group1", "M00/00/00/a.jpg"));
+    }
+
+    @Test
+    public void testRemove() {
+        RouteCache cache = new RouteCache(16, 60000);
+        cache.put(FETCH_ALL, "group1", "M00/00/00/a.jpg", new ServerInfo[]{SERVER_A});
+        cache.put(UPDATE, "group1", "M00/00/00/a.jpg", new ServerInfo[]{SERVER_A});
+        cache.put(FETCH_ALL, "group1", "M00/00/00/b.jpg", new ServerInfo[]{SERVER_A});
+        assertEquals(3, cache.size());
+
+        cache.remove("group1", "M00/00/00/a.jpg");
+        assertEquals(1, cache.size());
+        assertNull(cache.get(FETCH_ALL, "group1", "M00/00/00/a.jpg"));
+        assertNull(cache.get(UPDATE, "group1", "M00/00/00/a.jpg"));
+        assertNotNull(cache.get(FETCH_ALL, "group1", "M00/00/00/b.jpg"));
+
+        cache.removeServer(SERVER_A.getIpAddr(), SERVER_A.getPort());
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testRemoveServer() {
+        RouteCache cache = new RouteCache(16, 60000);
+        cache.put(FETCH_ALL, "group1", "M00/00/00/a.jpg", new ServerInfo[]{SERVER_A, SERVER_B});
+        cache.put(UPDATE, "group1", "M00/00/00/a.jpg", new ServerInfo[]{SERVER_A});
+        cache.put(FETCH_ALL, "group1", "M00/00/00/b.jpg", new ServerInfo[]{SERVER_B});
+        cache.put(FETCH_ALL, "group1", "M00/00/00/c.jpg", new ServerInfo[]{SERVER_C});
+
+        cache.removeServer(SERVER_A.getIpAddr(), SERVER_A.getPort());
+        assertEquals(2, cache.size());
+        assertNull(cache.get(FETCH_ALL, "group1", "M00/00/00/a.jpg"));
+        assertNull(cache.get(UPDATE, "group1", "M00/00/00/a.jpg"));
+
+        cache.removeServer(SERVER_B.getIpAddr(), 23001);  //other port
+        assertEquals(2, cache.size());
+        cache.removeServer(SERVER_B.getIpAddr(), SERVER_B.getPort());
+        assertEquals(1, cache.size());
+        assertNotNull(cache.get(FETCH_ALL, "group1", "M00/00/00/c.jpg"));
+
+        cache.clear();
+        assertEquals(0, cache.size());
+        cache.removeServer(SERVER_C.getIpAddr(), SERVER_C.getPort());
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testEvictionUnindexed() {
+        RouteCache cache = new RouteCache(1, 60000);
+        cache.put(FETCH_ALL, "group1", "M00/00/00/a.jpg", new ServerInfo[]{SERVER_A});
+        cache.put(FETCH_ALL, "group1", "M00/00/00/b.jpg", new ServerInfo[]{SERVER_B});
+        assertEquals(1, cache.size());
+        assertNull(cache.get(FETCH_ALL, "group1", "M00/00/00/a.jpg"));
+
+        //the evicted route of server A must not remove the new route of the key
+        cache.put(FETCH_ALL, "group1", "M00/00/00/a.jpg", new ServerInfo[]{SERVER_C});
+        cache.removeServer(SERVER_A.getIpAddr(), SERVER_A.getPort());
+        assertNotNull(cache.get(FETCH_ALL, "group1", "M00/00/00/a.jpg"));
+
+        //replaced route is unindexed too
+        cache.put(FETCH_ALL, "group1", "M00/00/00/a.jpg", new ServerInfo[]{SERVER_B});
+        cache.removeServer(SERVER_C.getIpAddr(), SERVER_C.getPort());
+        assertNotNull(cache.get(FETCH_ALL, "group1", "M00/00/00/a.jpg"));
+
+        RouteCache disabled = new RouteCache(0, 60000);
+        disabled.put(FETCH_ALL, "group1", "M00/00/00/a.jpg", new ServerInfo[]{SERVER_A});
+        assertEquals(0, disabled.size());
+    }
+
+    @Test
+    public void testSelect() {
+        RouteCache cache = new RouteCache(16, 60000);
+        ServerInfo[] servers = {SERVER_A, SERVER_B, SERVER_C};
+        assertEquals(servers, cache.select(FETCH_ALL, servers));
+        assertEquals(servers, cache.select(UPDATE, servers));
+
+        Set<ServerInfo> selected = new HashSet<ServerInfo>();
+        for (int i = 0; i < servers.length; i++) {
+            ServerInfo[] one = cache.select(FETCH_ONE, servers);
+            assertEquals(1, one.length);
+            selected.add(one[0]);
+        }
+        assertEquals(servers.length, selected.size());
+
+        ServerInfo[] single = {SERVER_A};
+        assertEquals(single, cache.select(FETCH_ONE, single));
+    }
+}
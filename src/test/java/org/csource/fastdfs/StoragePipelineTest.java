@@ -0,0 +1,231 @@
+package org.csource.fastdfs;
+
+import org.csource.common.FastDFSClientException;
+import org.junit.After;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * StoragePipeline failure paths against a local fake storage server: the requests sent
+ * and not answered fail, the requests not sent yet continue on a new connection
+ */
+public class StoragePipelineTest {
+    private static final byte CMD = ProtoCommon.STORAGE_PROTO_CMD_QUERY_FILE_INFO;
+
+    /**
+     * the request of the value, answered by the value, the odd values fail to decode
+     */
+    private static class EchoOperation extends StoragePipeline.Operation<Long> {
+        private final long value;
+
+        EchoOperation(long value) {
+            this.value = value;
+        }
+
+        void send(ProtoCodec codec, OutputStream out) throws IOException {
+            out.write(ProtoCommon.packHeader(CMD, 8, (byte) 0));
+            out.write(ProtoCommon.long2buff(this.value));
+        }
+
+        Long decode(ProtoCodec codec) throws IOException, FastDFSClientException {
+            long result = ProtoCommon.buff2long(codec.array(), 0);
+            if (result % 2 != 0) {
+                throw new FastDFSClientException("odd value: " + result, ProtoCommon.ERR_NO_EINVAL);
+            }
+            return result;
+        }
+
+        long getExpectBodyLength() {
+            return 8;
+        }
+    }
+
+    /**
+     * the fake storage server, answers the requests of each connection by the script
+     */
+    private static class FakeStorage implements Runnable {
+        private final ServerSocket serverSocket;
+        private final int[] answerCounts;  //the answer count of each connection, -1 for all
+        private final AtomicInteger connectionCount = new AtomicInteger();
+        private final long errorValue;  //the request answered by ENOENT
+
+        private FakeStorage(int[] answerCounts, long errorValue) throws IOException {
+            this.serverSocket = new ServerSocket(0, 8, null);
+            this.answerCounts = answerCounts;
+            this.errorValue = errorValue;
+            Thread thread = new Thread(this, "fake-storage");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        private InetSocketAddress getAddress() {
+            return new InetSocketAddress("127.0.0.1", this.serverSocket.getLocalPort());
+        }
+
+        public void run() {
+            try {
+                while (true) {
+                    Socket socket = this.serverSocket.accept();
+                    int index = this.connectionCount.getAndIncrement();
+                    try {
+                        this.serve(socket, index < this.answerCounts.length ? this.answerCounts[index] : -1);
+                    } catch (IOException ex) {
+                        //closed by the client
+                    } finally {
+                        socket.close();
+                    }
+                }
+            } catch (IOException ex) {
+                //closed by the test
+            }
+        }
+
+        private void serve(Socket socket, int answerCount) throws IOException {
+            InputStream in = socket.getInputStream();
+            OutputStream out = socket.getOutputStream();
+            byte[] header = new byte[10];
+            byte[] body = new byte[8];
+            for (int i = 0; answerCount < 0 || i < answerCount; i++) {
+                ProtoCommon.readFully(in, header, 0, header.length);
+                ProtoCommon.readFully(in, body, 0, body.length);
+                if (ProtoCommon.buff2long(body, 0) == this.errorValue) {
+                    out.write(ProtoCommon.packHeader(ProtoCommon.STORAGE_PROTO_CMD_RESP, 0, ProtoCommon.ERR_NO_ENOENT));
+                } else {
+                    out.write(ProtoCommon.packHeader(ProtoCommon.STORAGE_PROTO_CMD_RESP, 8, (byte) 0));
+                    out.write(body);
+                }
+                out.flush();
+            }
+
+            //no more answer, drain the requests until the client closes the connection
+            socket.shutdownOutput();
+            while (in.read(header) >= 0) {
+            }
+        }
+
+        private void close() throws IOException {
+            this.serverSocket.close();
+        }
+    }
+
+    private FakeStorage storage;
+
+    @BeforeClass
+    public static void init() {
+        ClientGlobal.G_CONNECT_TIMEOUT = 5000;
+        ClientGlobal.G_NETWORK_TIMEOUT = 5000;
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (this.storage != null) {
+            this.storage.close();
+        }
+    }
+
+    private static List<EchoOperation> makeOperations(int count) {
+        List<EchoOperation> operations = new ArrayList<EchoOperation>(count);
+        for (int i = 0; i < count; i++) {
+            operations.add(new EchoOperation(2 * i));
+        }
+        return operations;
+    }
+
+    @Test
+    public void testAllAnswered() throws IOException {
+        this.storage = new FakeStorage(new int[0], -1);
+        List<EchoOperation> operations = makeOperations(20);
+        StoragePipeline.execute(this.storage.getAddress(), operations, 4);
+        for (int i = 0; i < operations.size(); i++) {
+            BatchResult<Long> result = operations.get(i).getResult();
+            assertTrue(result.isSuccess());
+            assertEquals(2L * i, (long) result.getValue());
+        }
+        assertEquals(1, this.storage.connectionCount.get());
+    }
+
+    @Test
+    public void testErrorResponse() throws IOException {
+        this.storage = new FakeStorage(new int[0], 4);
+        List<EchoOperation> operations = makeOperations(5);
+        operations.set(3, new EchoOperation(3));
+        StoragePipeline.execute(this.storage.getAddress(), operations, 2);
+
+        //the error status and the decode failure do not break the connection
+        BatchResult<Long> result = operations.get(2).getResult();
+        assertFalse(result.isSuccess());
+        assertEquals(ProtoCommon.ERR_NO_ENOENT, result.getErrorCode());
+
+        result = operations.get(3).getResult();
+        assertFalse(result.isSuccess());
+        assertTrue(result.getException() instanceof FastDFSClientException);
+
+        assertTrue(operations.get(0).getResult().isSuccess());
+        assertTrue(operations.get(1).getResult().isSuccess());
+        assertEquals(8L, (long) operations.get(4).getResult().getValue());
+        assertEquals(1, this.storage.connectionCount.get());
+    }
+
+    @Test
+    public void testConnectionBroken() throws IOException {
+        //the first connection answers 2 requests, 4 more sent by the window are not answered
+        this.storage = new FakeStorage(new int[]{2}, -1);
+        List<EchoOperation> operations = makeOperations(10);
+        StoragePipeline.execute(this.storage.getAddress(), operations, 4);
+
+        for (int i = 0; i < operations.size(); i++) {
+            BatchResult<Long> result = operations.get(i).getResult();
+            assertNotNull(result);
+            if (i >= 2 && i < 6) {
+                assertFalse(result.isSuccess());
+                assertTrue(result.getException() instanceof IOException);
+            } else {
+                assertTrue("operation " + i, result.isSuccess());
+                assertEquals(2L * i, (long) result.getValue());
+            }
+        }
+        assertEquals(2, this.storage.connectionCount.get());
+    }
+
+    @Test
+    public void testNewConnectionNotAnswered() throws IOException {
+        //the new connection answers nothing, the pipeline gives up instead of retrying
+        this.storage = new FakeStorage(new int[]{2, 0, 0}, -1);
+        List<EchoOperation> operations = makeOperations(10);
+        StoragePipeline.execute(this.storage.getAddress(), operations, 4);
+
+        for (int i = 0; i < operations.size(); i++) {
+            assertEquals("operation " + i, i < 2, operations.get(i).getResult().isSuccess());
+        }
+        assertEquals(2, this.storage.connectionCount.get());
+    }
+
+    @Test
+    public void testConnectRefused() throws IOException {
+        ServerSocket serverSocket = new ServerSocket(0);
+        InetSocketAddress address = new InetSocketAddress("127.0.0.1", serverSocket.getLocalPort());
+        serverSocket.close();
+
+        List<EchoOperation> operations = makeOperations(5);
+        StoragePipeline.execute(address, operations, 2);
+        for (EchoOperation operation : operations) {
+            assertFalse(operation.getResult().isSuccess());
+            assertTrue(operation.getResult().getException() instanceof IOException);
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package org.csource.fastdfs;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * TrackerHealth ejection and backoff, TrackerGroup ordering of the candidates and the prober lifecycle
+ */
+public class TrackerHealthTest {
+    private static final InetSocketAddress ADDRESS = new InetSocketAddress("127.0.0.1", 22122);
+
+    @BeforeClass
+    public static void init() {
+        ClientGlobal.G_CONNECT_TIMEOUT = 5000;
+        ClientGlobal.G_NETWORK_TIMEOUT = 5000;
+    }
+
+    private static InetSocketAddress getClosedAddress() throws IOException {
+        ServerSocket serverSocket = new ServerSocket(0);
+        InetSocketAddress address = new InetSocketAddress("127.0.0.1", serverSocket.getLocalPort());
+        serverSocket.close();
+        return address;
+    }
+
+    private static FakeServer newActiveTestServer() throws IOException {
+        return new FakeServer(new FakeServer.Handler() {
+            public boolean handle(int connection, byte cmd, byte[] body, OutputStream out) throws IOException {
+                FakeServer.answer(out, (byte) 0, null);
+                return true;
+            }
+        });
+    }
+
+    @Test
+    public void testEjection() {
+        TrackerHealth health = new TrackerHealth(ADDRESS, TrackerHealth.DEFAULT_MAX_FAIL_COUNT);
+        assertFalse(health.onFailure());
+        assertFalse(health.onFailure());
+        health.onSuccess(100);  //not in a row
+        assertEquals(0, health.getFailCount());
+
+        assertFalse(health.onFailure());
+        assertFalse(health.onFailure());
+        assertFalse(health.isEjected());
+        assertTrue(health.onFailure());
+        assertTrue(health.isEjected());
+        assertFalse(health.onFailure());  //ejected already
+        assertTrue(health.isEjected());
+
+        health.onProbeSuccess();
+        assertFalse(health.isEjected());
+        assertEquals(0, health.getFailCount());
+    }
+
+    @Test
+    public void testBackoff() {
+        TrackerHealth health = new TrackerHealth(ADDRESS, 1);
+        long now = System.currentTimeMillis();
+        assertFalse(health.needProbe(now));
+        assertTrue(health.onFailure());
+        assertFalse(health.needProbe(now));
+        assertTrue(health.needProbe(now + TrackerHealth.MIN_BACKOFF_TIME + 1000));
+
+        health.onProbeFailure();  //the backoff time doubled
+        now = System.currentTimeMillis();
+        assertFalse(health.needProbe(now + TrackerHealth.MIN_BACKOFF_TIME));
+        assertTrue(health.needProbe(now + 2 * TrackerHealth.MIN_BACKOFF_TIME + 1000));
+        for (int i = 0; i < 10; i++) {
+            health.onProbeFailure();
+        }
+        now = System.currentTimeMillis();
+        assertTrue(health.needProbe(now + TrackerHealth.MAX_BACKOFF_TIME + 1000));
+
+        health.onProbeSuccess();
+        assertFalse(health.needProbe(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void testEwmaLatency() {
+        TrackerHealth health = new TrackerHealth(ADDRESS, 3);
+        assertEquals(0, health.getEwmaLatency());
+        health.onSuccess(1000);
+        assertEquals(1000, health.getEwmaLatency());
+        health.onSuccess(2000);
+        assertEquals(1200, health.getEwmaLatency());
+    }
+
+    @Test
+    public void testCandidates() {
+        InetSocketAddress[] addresses = {
+                new InetSocketAddress("127.0.0.1", 22122),
+                new InetSocketAddress("127.0.0.2", 22122),
+                new InetSocketAddress("127.0.0.3", 22122)};
+        TrackerGroup trackerGroup = new TrackerGroup(addresses);
+        TrackerHealth[] healths = trackerGroup.getTrackerHealths();
+        for (int i = 0; i < TrackerHealth.DEFAULT_MAX_FAIL_COUNT; i++) {
+            healths[0].onFailure();
+        }
+        healths[1].onSuccess(5000);
+        healths[2].onSuccess(100);
+
+        for (int i = 0; i < 6; i++) {
+            TrackerHealth[] candidates = trackerGroup.getCandidates();
+            assertEquals(3, candidates.length);
+            assertSame(healths[2], candidates[0]);  //the lower latency of the healthy ones
+            assertSame(healths[1], candidates[1]);
+            assertSame(healths[0], candidates[2]);  //the ejected one last
+        }
+    }
+
+    @Test
+    public void testConnectFailure() throws IOException {
+        FakeServer server = newActiveTestServer();
+        TrackerGroup trackerGroup = new TrackerGroup(new InetSocketAddress[]{getClosedAddress(), server.getAddress()});
+        try {
+            TrackerHealth dead = trackerGroup.getTrackerHealths()[0];
+            for (int i = 0; i < 10; i++) {
+                TrackerServer trackerServer = trackerGroup.getTrackerServer();
+                assertNotNull(trackerServer);
+                assertEquals(server.getAddress(), trackerServer.getInetSocketAddress());
+                trackerServer.close();
+            }
+            assertTrue(dead.isEjected());
+            assertEquals(TrackerHealth.DEFAULT_MAX_FAIL_COUNT, dead.getFailCount());
+            assertTrue(trackerGroup.isProbing());
+        } finally {
+            trackerGroup.close();
+            server.close();
+        }
+        assertFalse(trackerGroup.isProbing());
+
+        //not started again after closed
+        for (int i = 0; i < TrackerHealth.DEFAULT_MAX_FAIL_COUNT; i++) {
+            trackerGroup.onFailure(trackerGroup.getTrackerHealths()[1], new IOException("test"));
+        }
+        assertTrue(trackerGroup.getTrackerHealths()[1].isEjected());
+        assertFalse(trackerGroup.isProbing());
+    }
+
+    @Test
+    public void testProbedBack() throws IOException, InterruptedException {
+        FakeServer server = newActiveTestServer();
+        TrackerGroup trackerGroup = new TrackerGroup(new InetSocketAddress[]{server.getAddress()});
+        try {
+            TrackerHealth health = trackerGroup.getTrackerHealths()[0];
+            for (int i = 0; i < TrackerHealth.DEFAULT_MAX_FAIL_COUNT; i++) {
+                trackerGroup.onFailure(health, new IOException("test"));
+            }
+            assertTrue(health.isEjected());
+            assertTrue(trackerGroup.isProbing());
+
+            //the prober stops itself when no tracker server is ejected
+            for (int i = 0; i < 100 && trackerGroup.isProbing(); i++) {
+                Thread.sleep(50);
+            }
+            assertFalse(health.isEjected());
+            assertFalse(trackerGroup.isProbing());
+            assertEquals(1, server.getRequestCount(ProtoCommon.FDFS_PROTO_CMD_ACTIVE_TEST));
+        } finally {
+            trackerGroup.close();
+            server.close();
+        }
+    }
+}
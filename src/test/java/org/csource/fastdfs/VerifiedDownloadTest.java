@@ -0,0 +1,261 @@
+package org.csource.fastdfs;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * StorageClient downloads verified by the crc32 in the filename: the replicas of a group listed
+ * by a fake tracker server, the content of the corrupt replica is discarded and downloaded again
+ * from the other one
+ */
+public class VerifiedDownloadTest {
+    private static final String GROUP = "group1";
+    private static final int FILE_SIZE = 50000;
+
+    private static final int GOOD = 0;
+    private static final int CORRUPT = 1;
+    private static final int ENOENT = 2;
+    private static final int BROKEN = 3;  //closed without answer
+
+    private final byte[] content = new byte[FILE_SIZE];
+    private String remoteFileName;
+    private FakeServer tracker;
+    private FakeServer replicaA;
+    private FakeServer replicaB;
+    private volatile int modeA;
+    private volatile int modeB;
+
+    /**
+     * the callback collects the content, reset() discards it
+     */
+    private static class Collector implements DownloadCallback {
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        private final int resetResult;
+        private int resetCount;
+
+        Collector(int resetResult) {
+            this.resetResult = resetResult;
+        }
+
+        public int recv(long file_size, byte[] data, int bytes) {
+            this.out.write(data, 0, bytes);
+            return 0;
+        }
+
+        public int reset() {
+            this.resetCount++;
+            this.out.reset();
+            return this.resetResult;
+        }
+    }
+
+    @BeforeClass
+    public static void init() {
+        ClientGlobal.G_CONNECT_TIMEOUT = 5000;
+        ClientGlobal.G_NETWORK_TIMEOUT = 5000;
+        ClientGlobal.G_CHARSET = "ISO8859-1";
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        new Random(3).nextBytes(this.content);
+        CRC32 crc32 = new CRC32();
+        crc32.update(this.content);
+        this.remoteFileName = FileIdDecoderTest.makeFilename(0x7F000001, FILE_SIZE, (int) crc32.getValue(), "");
+
+        //the storage servers of a group listen on the same port
+        this.replicaA = new FakeServer(InetAddress.getByName("127.0.0.1"), 0, new FakeServer.Handler() {
+            public boolean handle(int connection, byte cmd, byte[] body, OutputStream out) throws IOException {
+                return answerDownload(modeA, out);
+            }
+        });
+        final int port = this.replicaA.getAddress().getPort();
+        this.replicaB = new FakeServer(InetAddress.getByName("127.0.0.2"), port, new FakeServer.Handler() {
+            public boolean handle(int connection, byte cmd, byte[] body, OutputStream out) throws IOException {
+                return answerDownload(modeB, out);
+            }
+        });
+
+        this.tracker = new FakeServer(new FakeServer.Handler() {
+            public boolean handle(int connection, byte cmd, byte[] body, OutputStream out) throws IOException {
+                byte[] result = new byte[ProtoCommon.TRACKER_QUERY_STORAGE_FETCH_BODY_LEN + ProtoCommon.FDFS_IPADDR_SIZE - 1];
+                System.arraycopy(ProtoCodec.packGroupName(GROUP), 0, result, 0, ProtoCommon.FDFS_GROUP_NAME_MAX_LEN);
+                int offset = ProtoCommon.FDFS_GROUP_NAME_MAX_LEN;
+                System.arraycopy("127.0.0.1".getBytes(), 0, result, offset, 9);
+                offset += ProtoCommon.FDFS_IPADDR_SIZE - 1;
+                System.arraycopy(ProtoCommon.long2buff(port), 0, result, offset, ProtoCommon.FDFS_PROTO_PKG_LEN_SIZE);
+                offset += ProtoCommon.FDFS_PROTO_PKG_LEN_SIZE;
+                System.arraycopy("127.0.0.2".getBytes(), 0, result, offset, 9);
+                FakeServer.answer(out, (byte) 0, result);
+                return true;
+            }
+        });
+        ClientGlobal.G_TRACKER_GROUP = new TrackerGroup(new InetSocketAddress[]{this.tracker.getAddress()});
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        ClientGlobal.G_TRACKER_GROUP.close();
+        ClientGlobal.G_TRACKER_GROUP = null;
+        this.tracker.close();
+        this.replicaA.close();
+        this.replicaB.close();
+    }
+
+    private boolean answerDownload(int mode, OutputStream out) throws IOException {
+        switch (mode) {
+            case ENOENT:
+                FakeServer.answer(out, ProtoCommon.ERR_NO_ENOENT, null);
+                return true;
+            case BROKEN:
+                return false;
+            case CORRUPT:
+                byte[] corrupt = Arrays.copyOf(this.content, FILE_SIZE);
+                corrupt[FILE_SIZE / 2] ^= 0x01;
+                FakeServer.answer(out, (byte) 0, corrupt);
+                return true;
+            default:
+                FakeServer.answer(out, (byte) 0, this.content);
+                return true;
+        }
+    }
+
+    private int getDownloadCount(FakeServer server) {
+        return server.getRequestCount(ProtoCommon.STORAGE_PROTO_CMD_DOWNLOAD_FILE);
+    }
+
+    private StorageClient newClient() {
+        StorageClient client = new StorageClient();
+        client.setVerifyDownload(true);
+        return client;
+    }
+
+    @Test
+    public void testCorruptReplica() throws Exception {
+        this.modeA = CORRUPT;
+        Collector collector = new Collector(0);
+        StorageClient client = newClient();
+        assertEquals(0, client.download_file(GROUP, this.remoteFileName, collector));
+        assertArrayEquals(this.content, collector.out.toByteArray());
+        assertEquals(1, collector.resetCount);
+        assertEquals(1, getDownloadCount(this.replicaA));
+        assertEquals(1, getDownloadCount(this.replicaB));
+
+        //the other ways of download
+        assertArrayEquals(this.content, client.download_file(GROUP, this.remoteFileName));
+        ByteBuffer buffer = ByteBuffer.allocate(FILE_SIZE + 100);
+        buffer.position(100);
+        assertEquals(FILE_SIZE, client.download_file(GROUP, this.remoteFileName, 0, 0, buffer));
+        assertEquals(FILE_SIZE + 100, buffer.position());
+        assertArrayEquals(this.content, Arrays.copyOfRange(buffer.array(), 100, FILE_SIZE + 100));
+        assertEquals(3, getDownloadCount(this.replicaB));
+    }
+
+    @Test
+    public void testTriedAddressSkipped() throws Exception {
+        this.modeA = CORRUPT;
+        Collector collector = new Collector(0);
+        StorageServer storageServer = new StorageServer("127.0.0.1", this.replicaA.getAddress().getPort(), 0);
+        try {
+            StorageClient client = new StorageClient(null, storageServer);
+            client.setVerifyDownload(true);
+            assertEquals(0, client.download_file(GROUP, this.remoteFileName, collector));
+        } finally {
+            storageServer.close();
+        }
+        assertArrayEquals(this.content, collector.out.toByteArray());
+        assertEquals(1, collector.resetCount);
+        assertEquals(1, getDownloadCount(this.replicaA));  //listed by the tracker server, not tried again
+        assertEquals(1, getDownloadCount(this.replicaB));
+    }
+
+    @Test
+    public void testBrokenReplica() throws Exception {
+        this.modeA = BROKEN;
+        Collector collector = new Collector(0);
+        assertEquals(0, newClient().download_file(GROUP, this.remoteFileName, collector));
+        assertArrayEquals(this.content, collector.out.toByteArray());
+        assertEquals(1, collector.resetCount);
+
+        //the IOException is thrown when no replica answers
+        this.modeB = BROKEN;
+        try {
+            newClient().download_file(GROUP, this.remoteFileName, new Collector(0));
+            fail("no replica answers");
+        } catch (IOException ex) {
+            assertTrue(ex.getMessage(), ex.getMessage().startsWith("recv"));
+        }
+    }
+
+    @Test
+    public void testAllCorrupt() throws Exception {
+        this.modeA = CORRUPT;
+        this.modeB = CORRUPT;
+        Collector collector = new Collector(0);
+        StorageClient client = newClient();
+        try {
+            client.download_file(GROUP, this.remoteFileName, collector);
+            fail("no replica matches the crc32");
+        } catch (IOException ex) {
+            assertTrue(ex.getMessage(), ex.getMessage().contains("2 storage server(s) tried"));
+        }
+        assertEquals(ProtoCommon.ERR_NO_EIO, client.getErrorCode());
+        assertEquals(1, collector.resetCount);
+    }
+
+    @Test
+    public void testResetRefused() throws Exception {
+        this.modeA = CORRUPT;
+        Collector collector = new Collector(ProtoCommon.ERR_NO_EIO);
+        try {
+            newClient().download_file(GROUP, this.remoteFileName, collector);
+            fail("the callback can't receive the content again");
+        } catch (IOException ex) {
+            assertTrue(ex.getMessage(), ex.getMessage().contains("1 storage server(s) tried"));
+        }
+        assertEquals(1, collector.resetCount);
+        assertEquals(0, getDownloadCount(this.replicaB));
+
+        //by default the callback can't be reset
+        try {
+            newClient().download_file(GROUP, this.remoteFileName, new DownloadCallback() {
+                public int recv(long file_size, byte[] data, int bytes) {
+                    return 0;
+                }
+            });
+            fail("the callback can't receive the content again");
+        } catch (IOException ex) {
+            assertNotNull(ex.getMessage());
+        }
+        assertEquals(0, getDownloadCount(this.replicaB));
+    }
+
+    @Test
+    public void testErrorNotRetried() throws Exception {
+        this.modeA = ENOENT;
+        Collector collector = new Collector(0);
+        StorageClient client = newClient();
+        assertEquals(ProtoCommon.ERR_NO_ENOENT, client.download_file(GROUP, this.remoteFileName, collector));
+        assertEquals(ProtoCommon.ERR_NO_ENOENT, client.getErrorCode());
+        assertEquals(0, collector.resetCount);
+        assertEquals(0, getDownloadCount(this.replicaB));
+    }
+}
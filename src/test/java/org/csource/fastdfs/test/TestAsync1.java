@@ -0,0 +1,77 @@
+/**
+ * Copyright (C) 2008 Happy Fish / YuQing
+ * <p>
+ * FastDFS Java Client may be copied only under the terms of the GNU Lesser
+ * General Public License (LGPL).
+ * Please visit the FastDFS Home Page http://www.csource.org/ for more detail.
+ **/
+
+package org.csource.fastdfs.test;
+
+import org.csource.common.NameValuePair;
+import org.csource.fastdfs.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * async client test
+ * @author Happy Fish / YuQing
+ * @version Version 1.25
+ */
+public class TestAsync1 {
+    private TestAsync1() {
+    }
+
+    /**
+     * entry point
+     * @param args comand arguments
+     *     <ul><li>args[0]: config filename</li></ul>
+     *     <ul><li>args[1]: file count to upload concurrently</li></ul>
+     */
+    public static void main(String args[]) {
+        if (args.length < 2) {
+            System.out.println("Error: Must have 2 parameters, one is config filename, "
+                    + "the other is the file count to upload");
+            return;
+        }
+
+        System.out.println("java.version=" + System.getProperty("java.version"));
+
+        String conf_filename = args[0];
+        int count = Integer.parseInt(args[1]);
+
+        try {
+            ClientGlobal.init(conf_filename);
+            System.out.println("network_timeout=" + ClientGlobal.G_NETWORK_TIMEOUT + "ms");
+            System.out.println("charset=" + ClientGlobal.G_CHARSET);
+
+            AsyncStorageClient client = new AsyncStorageClient();
+            NameValuePair[] meta_list = new NameValuePair[]{new NameValuePair("author", "Happy Fish")};
+
+            long startTime = System.currentTimeMillis();
+            List<CompletableFuture<String>> futures = new ArrayList<CompletableFuture<String>>(count);
+            for (int i = 0; i < count; i++) {
+                byte[] file_buff = ("this is a test #" + i).getBytes(ClientGlobal.G_CHARSET);
+                futures.add(client.upload_file1(file_buff, "txt", meta_list));
+            }
+            System.out.println("in-flight count: " + client.getInFlightCount()
+                    + ", pending count: " + client.getPendingCount()
+                    + ", queue depth: " + client.getQueueDepth());
+
+            for (CompletableFuture<String> future : futures) {
+                String file_id = future.get();
+                byte[] file_buff = client.download_file1(file_id).get();
+                System.out.println(file_id + ": " + new String(file_buff, ClientGlobal.G_CHARSET));
+                client.delete_file1(file_id).get();
+            }
+            System.out.println("upload, download and delete " + count + " files time used: "
+                    + (System.currentTimeMillis() - startTime) + " ms");
+
+            client.close();
+        } catch (Exception ex) {
+            ex.printStackTrace();
+        }
+    }
+}